@@ -21,9 +21,15 @@
 package com.docdoku.server.converters.all;
 
 
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import com.docdoku.server.converters.commons.process.ProcessResult;
+import com.docdoku.server.converters.commons.process.ProcessRunner;
+import com.docdoku.server.converters.commons.routing.ConversionRoute;
+import com.docdoku.server.converters.commons.routing.ConversionRouter;
+import com.docdoku.server.converters.commons.scheduling.ConversionScheduler;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
 import javax.ejb.Stateless;
 import java.io.IOException;
@@ -32,7 +38,8 @@ import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -54,25 +61,54 @@ public class AllFileConverterImpl implements CADConverter {
         }
     }
 
+    private static final ProcessRunner PROCESS_RUNNER = ProcessRunner.forTool("meshconv", CONF);
+    private static final ConversionCache CONVERSION_CACHE = ConversionCache.forConverter("all", CONF);
+    private static final ConversionScheduler SCHEDULER = ConversionScheduler.forConverter("all", CONF);
+
+    private static final ConversionRouter ROUTER = new ConversionRouter("all", routes());
+
+    private static ConversionRoute[] routes() {
+        List<ConversionRoute> routes = new ArrayList<>();
+        if (Boolean.parseBoolean(CONF.getProperty("native_stl", "true"))) {
+            routes.add(ConversionRoute.inJvm("native-stl", AllFileConverterImpl::convertStl, "stl"));
+        }
+        String meshConvBinary = CONF.getProperty("meshconv_path");
+        routes.add(ConversionRoute.tool("meshconv", meshConvBinary, meshConvBinary + " -c obj",
+                AllFileConverterImpl::convertWithMeshConv, "stl", "3ds", "wrl"));
+        return routes.toArray(new ConversionRoute[0]);
+    }
+
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
+        return SCHEDULER.convert(cadFileUri, tmpDirUri, (cad, tmp) -> ROUTER.convert(cad, tmp, CONVERSION_CACHE));
+    }
+
+    private static ConversionResult convertStl(final URI cadFileUri, final URI tmpDirUri)
+            throws ConversionException {
+        Path tmpCadFile = Paths.get(cadFileUri);
+        Path convertedFile = Paths.get(tmpDirUri).resolve(UUID.randomUUID() + ".obj");
+        try {
+            long faces = new StlToObjConverter().convert(tmpCadFile, convertedFile);
+            LOGGER.log(Level.FINE, "{0} converted in-JVM, {1} faces", new Object[]{tmpCadFile, faces});
+            return new ConversionResult(convertedFile);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(convertedFile);
+            } catch (IOException deleteError) {
+                LOGGER.log(Level.FINE, null, deleteError);
+            }
+            throw new ConversionException("Cannot read " + tmpCadFile, e);
+        }
+    }
+
+    private static ConversionResult convertWithMeshConv(final URI cadFileUri, final URI tmpDirUri)
+            throws ConversionException {
         Path tmpDir = Paths.get(tmpDirUri);
         Path tmpCadFile = Paths.get(cadFileUri);
 
+        // The executable was probed by the router
         String meshConvBinary = CONF.getProperty("meshconv_path");
-        Path executable = Paths.get(meshConvBinary);
-
-        // sanity checks
-        if (!Files.exists(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + meshConvBinary + "\" is not available");
-        }
-
-        if (!Files.isExecutable(executable)) {
-            throw new ConversionException("Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + meshConvBinary
-                    + "\" has no execution rights");
-        }
 
         UUID uuid = UUID.randomUUID();
         Path convertedFile = tmpDir.resolve(uuid.toString());
@@ -82,24 +118,16 @@ public class AllFileConverterImpl implements CADConverter {
 
         String[] args = {meshConvBinary, tmpCadFile.toAbsolutePath().toString(), "-c", "obj", "-o",
                 convertedFile.toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
-
         try {
-            Process proc = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(proc.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(proc.getErrorStream());
-
-            LOGGER.info(stdOutput);
+            ProcessResult result = PROCESS_RUNNER.run(args, ConverterFiles.getExtension(tmpCadFile));
 
-            proc.waitFor();
+            LOGGER.info(result.getStdOutput());
 
-            if (proc.exitValue() == 0) {
+            if (result.isSuccess()) {
                 return new ConversionResult(finalConvertedFile);
             } else {
                 throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + result.getErrorOutput());
             }
         } catch (IOException | InterruptedException e) {
             LOGGER.log(Level.SEVERE, null, e);
@@ -109,7 +137,7 @@ public class AllFileConverterImpl implements CADConverter {
 
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return Arrays.asList("stl", "off", "ply", "3ds", "wrl").contains(cadFileExtension);
+        return ROUTER.canConvert(cadFileExtension);
     }
 
 }
\ No newline at end of file
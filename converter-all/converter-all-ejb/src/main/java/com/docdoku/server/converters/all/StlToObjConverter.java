@@ -0,0 +1,172 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.all;
+
+import com.docdoku.server.converters.commons.mesh.MappedFileReader;
+import com.docdoku.server.converters.commons.mesh.ObjWriter;
+import com.docdoku.server.converters.commons.mesh.VertexIndex;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * In-JVM conversion of binary and ASCII STL files to indexed OBJ.
+ * <p>
+ * The STL file is memory-mapped and read twice: the first pass welds the
+ * vertices and streams the unique ones, the second pass streams the faces
+ * referencing them. Memory use grows with the number of unique vertices, not
+ * with the size of the file.
+ */
+public class StlToObjConverter {
+
+    private static final int HEADER_SIZE = 80;
+    private static final int TRIANGLE_SIZE = 50;
+
+    /**
+     * @return the number of faces written
+     */
+    public long convert(Path stlFile, Path objFile) throws IOException {
+        try (MappedFileReader reader = new MappedFileReader(stlFile);
+             ObjWriter writer = new ObjWriter(objFile)) {
+            boolean binary = isBinary(reader);
+            // Closed meshes have about half as many vertices as triangles
+            int expectedVertices = binary ? (int) Math.min(binaryTriangleCount(reader) / 2, 1 << 22) : 1024;
+            VertexIndex vertices = new VertexIndex(expectedVertices);
+
+            read(reader, binary, (corners, count) -> {
+                for (int i = 0; i < count; i++) {
+                    int known = vertices.size();
+                    int index = vertices.add(corners[i * 3], corners[i * 3 + 1], corners[i * 3 + 2]);
+                    if (index == known) {
+                        writer.vertex(vertices.x(index), vertices.y(index), vertices.z(index));
+                    }
+                }
+            });
+
+            long[] faces = {0};
+            read(reader, binary, (corners, count) -> {
+                // Fan triangulation of the rare non triangular ASCII facets
+                int first = vertices.find(corners[0], corners[1], corners[2]);
+                for (int i = 1; i + 1 < count; i++) {
+                    int second = vertices.find(corners[i * 3], corners[i * 3 + 1], corners[i * 3 + 2]);
+                    int third = vertices.find(corners[i * 3 + 3], corners[i * 3 + 4], corners[i * 3 + 5]);
+                    // Degenerate triangles are dropped
+                    if (first != second && second != third && first != third) {
+                        writer.face(first, second, third);
+                        faces[0]++;
+                    }
+                }
+            });
+            return faces[0];
+        }
+    }
+
+    static boolean isBinary(MappedFileReader reader) throws IOException {
+        if (reader.size() < HEADER_SIZE + Integer.BYTES) {
+            return false;
+        }
+        long expectedSize = HEADER_SIZE + Integer.BYTES + binaryTriangleCount(reader) * TRIANGLE_SIZE;
+        if (expectedSize == reader.size()) {
+            return true;
+        }
+        // Some exporters write "solid" in binary headers, check the content too
+        reader.position(0);
+        boolean ascii = reader.matchKeyword("solid");
+        reader.position(0);
+        return !ascii && expectedSize <= reader.size();
+    }
+
+    private static long binaryTriangleCount(MappedFileReader reader) throws IOException {
+        reader.order(ByteOrder.LITTLE_ENDIAN);
+        reader.position(HEADER_SIZE);
+        long count = reader.getInt() & 0xFFFFFFFFL;
+        reader.position(0);
+        return count;
+    }
+
+    private static void read(MappedFileReader reader, boolean binary, FacetHandler handler) throws IOException {
+        if (binary) {
+            readBinary(reader, handler);
+        } else {
+            readAscii(reader, handler);
+        }
+    }
+
+    private static void readBinary(MappedFileReader reader, FacetHandler handler) throws IOException {
+        long count = binaryTriangleCount(reader);
+        reader.order(ByteOrder.LITTLE_ENDIAN);
+        reader.position(HEADER_SIZE + Integer.BYTES);
+        float[] corners = new float[9];
+        for (long triangle = 0; triangle < count; triangle++) {
+            // Facet normals are recomputed by the viewer
+            reader.skip(3 * Float.BYTES);
+            for (int i = 0; i < 9; i++) {
+                corners[i] = reader.getFloat();
+            }
+            reader.skip(Short.BYTES);
+            handler.facet(corners, 3);
+        }
+    }
+
+    private static void readAscii(MappedFileReader reader, FacetHandler handler) throws IOException {
+        reader.position(0);
+        float[] corners = new float[9];
+        while (reader.skipWhitespace() != -1) {
+            if (reader.matchKeyword("facet")) {
+                reader.skipLine();
+                expect(reader, "outer");
+                expect(reader, "loop");
+                int count = 0;
+                while (reader.matchKeyword("vertex")) {
+                    if (corners.length < count * 3 + 3) {
+                        corners = Arrays.copyOf(corners, corners.length * 2);
+                    }
+                    corners[count * 3] = reader.readFloat();
+                    corners[count * 3 + 1] = reader.readFloat();
+                    corners[count * 3 + 2] = reader.readFloat();
+                    count++;
+                }
+                expect(reader, "endloop");
+                expect(reader, "endfacet");
+                if (count >= 3) {
+                    handler.facet(corners, count);
+                }
+            } else if (reader.matchKeyword("endsolid") || reader.matchKeyword("solid")) {
+                reader.skipLine();
+            } else {
+                throw reader.syntaxError("facet");
+            }
+        }
+    }
+
+    private static void expect(MappedFileReader reader, String keyword) throws IOException {
+        if (!reader.matchKeyword(keyword)) {
+            throw reader.syntaxError(keyword);
+        }
+    }
+
+    @FunctionalInterface
+    private interface FacetHandler {
+        void facet(float[] corners, int count) throws IOException;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.all;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class StlToObjConverterTest {
+
+    // Two triangles of a unit square, sharing an edge
+    private static final float[][] SQUARE = {
+            {0, 0, 0, 1, 0, 0, 1, 1, 0},
+            {0, 0, 0, 1, 1, 0, 0, 1, 0}
+    };
+
+    private Path workDir;
+
+    @Before
+    public void setup() throws IOException {
+        workDir = Files.createTempDirectory("stl-test");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path file : Files.list(workDir).collect(Collectors.toList())) {
+            Files.delete(file);
+        }
+        Files.delete(workDir);
+    }
+
+    @Test
+    public void testBinaryStlIsWelded() throws Exception {
+        Path stl = workDir.resolve("square.stl");
+        Files.write(stl, binaryStl("solid header exported by a binary writer"));
+
+        List<String> obj = convert(stl);
+        Assert.assertEquals(4, count(obj, "v "));
+        Assert.assertEquals(Arrays.asList("f 1 2 3", "f 1 3 4"), lines(obj, "f "));
+        Assert.assertEquals("v 1 1 0", obj.get(2));
+    }
+
+    @Test
+    public void testAsciiStl() throws Exception {
+        StringBuilder ascii = new StringBuilder("solid square\n");
+        for (float[] triangle : SQUARE) {
+            ascii.append("  facet normal 0 0 1\n    outer loop\n");
+            for (int i = 0; i < 9; i += 3) {
+                ascii.append("      vertex ").append(triangle[i]).append(' ').append(triangle[i + 1]).append(' ')
+                        .append(-triangle[i + 2]).append('\n');
+            }
+            ascii.append("    endloop\n  endfacet\n");
+        }
+        ascii.append("endsolid square\n");
+        Path stl = workDir.resolve("square.stl");
+        Files.write(stl, ascii.toString().getBytes(StandardCharsets.US_ASCII));
+
+        List<String> obj = convert(stl);
+        Assert.assertEquals(4, count(obj, "v "));
+        Assert.assertEquals(Arrays.asList("f 1 2 3", "f 1 3 4"), lines(obj, "f "));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedAsciiStl() throws Exception {
+        Path stl = workDir.resolve("broken.stl");
+        Files.write(stl, "solid broken\nfacet normal 0 0 1\nouter loop\nvertex 0 0\n".getBytes(StandardCharsets.US_ASCII));
+        convert(stl);
+    }
+
+    private List<String> convert(Path stl) throws IOException {
+        Path obj = workDir.resolve("square.obj");
+        new StlToObjConverter().convert(stl, obj);
+        return Files.readAllLines(obj, StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] binaryStl(String header) {
+        ByteBuffer buffer = ByteBuffer.allocate(84 + 50 * SQUARE.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(Arrays.copyOf(header.getBytes(StandardCharsets.US_ASCII), 80));
+        buffer.putInt(SQUARE.length);
+        for (float[] triangle : SQUARE) {
+            buffer.putFloat(0).putFloat(0).putFloat(1);
+            for (float coordinate : triangle) {
+                buffer.putFloat(coordinate);
+            }
+            buffer.putShort((short) 0);
+        }
+        return buffer.array();
+    }
+
+    private static long count(List<String> lines, String prefix) {
+        return lines(lines, prefix).size();
+    }
+
+    private static List<String> lines(List<String> lines, String prefix) {
+        return lines.stream().filter(line -> line.startsWith(prefix)).collect(Collectors.toList());
+    }
+}
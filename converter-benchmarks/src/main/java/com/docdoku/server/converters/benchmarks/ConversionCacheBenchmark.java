@@ -0,0 +1,118 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.commons.ConversionTask;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result caching: hashing of the uploaded file into the cache key, and a
+ * cache hit, which restores a copy of the stored OBJ file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConversionCacheBenchmark {
+
+    private static final String SETTINGS = "benchmark";
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int triangles;
+
+    private Path dir;
+    private Path cadFile;
+    private Path tmpDir;
+    private ConversionCache cache;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, CADConverter.ConversionException {
+        dir = Files.createTempDirectory("cache-benchmark");
+        cadFile = SyntheticMeshes.writeObj(triangles, dir.resolve("mesh.obj"));
+
+        Properties conf = new Properties();
+        conf.setProperty(ConversionCache.CACHE_DIR, dir.resolve("cache").toString());
+        conf.setProperty(ConversionCache.CACHE_VERSION, "1");
+        cache = ConversionCache.forConverter("benchmark", conf);
+
+        Path warmupDir = Files.createDirectory(dir.resolve("warmup"));
+        cache.convert(cadFile.toUri(), warmupDir.toUri(), SETTINGS, (cad, tmp) -> {
+            try {
+                return new ConversionResult(Files.copy(Paths.get(cad), Paths.get(tmp).resolve("converted.obj")));
+            } catch (IOException e) {
+                throw new CADConverter.ConversionException(e);
+            }
+        });
+        BenchmarkFiles.deleteRecursively(warmupDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void createTmpDir() throws IOException {
+        tmpDir = Files.createTempDirectory(dir, "tmp");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTmpDir() throws IOException {
+        BenchmarkFiles.deleteRecursively(tmpDir);
+    }
+
+    @Benchmark
+    public String computeKey() throws IOException {
+        return cache.computeKey(cadFile, SETTINGS);
+    }
+
+    @Benchmark
+    public ConversionResult hit() throws CADConverter.ConversionException {
+        ConversionTask miss = (cad, tmp) -> {
+            throw new CADConverter.ConversionException("Unexpected cache miss");
+        };
+        return cache.convert(cadFile.toUri(), tmpDir.toUri(), SETTINGS, miss);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import com.docdoku.server.converters.commons.output.MetadataStage;
+import com.docdoku.server.converters.commons.process.ProcessResult;
+import com.docdoku.server.converters.commons.process.ProcessRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end conversion through an external tool, as made by the converters
+ * relying on assimp or meshconv: process slot, spawning and draining of the
+ * tool, deduplication of identical conversions, output stages and metrics.
+ * <p>
+ * The tool is a stub script that copies its input, so that the results show
+ * the cost of the orchestration rather than the one of the tool. The
+ * converters load their configuration from their bundled properties, the
+ * benchmark thus assembles the same pipeline from its own configuration,
+ * with the cache disabled so that every conversion runs the tool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConverterBenchmark {
+
+    private static final String STUB = "#!/bin/sh\n"
+            + "# Stands in for \"assimp export <input> <output>\"\n"
+            + "[ \"$1\" = \"export\" ] || exit 0\n"
+            + "cp \"$2\" \"$3\" && : > \"$3.mtl\"\n";
+
+    @Param({"10000", "1000000"})
+    public int triangles;
+
+    @Param({"false", "true"})
+    public boolean metadataOutput;
+
+    private Path dir;
+    private Path stub;
+    private Path cadFile;
+    private Path tmpDir;
+    private ProcessRunner processRunner;
+    private ConversionCache conversionCache;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("converter-benchmark");
+        stub = Files.write(dir.resolve("stub-assimp"), STUB.getBytes(StandardCharsets.US_ASCII));
+        Files.setPosixFilePermissions(stub, PosixFilePermissions.fromString("rwxr-xr-x"));
+        cadFile = SyntheticMeshes.writeObj(triangles, dir.resolve("mesh.dxf"));
+
+        Properties conf = new Properties();
+        conf.setProperty(ProcessRunner.PROCESS_TIMEOUT, "600");
+        conf.setProperty(ConversionCache.CACHE_ENABLED, "false");
+        conf.setProperty(MetadataStage.METADATA_OUTPUT, String.valueOf(metadataOutput));
+        processRunner = ProcessRunner.forTool("stub-assimp", conf);
+        conversionCache = ConversionCache.forConverter("benchmark", conf);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void createTmpDir() throws IOException {
+        tmpDir = Files.createTempDirectory(dir, "tmp");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTmpDir() throws IOException {
+        BenchmarkFiles.deleteRecursively(tmpDir);
+    }
+
+    /**
+     * Spawning and waiting for the tool alone, the floor of any conversion.
+     */
+    @Benchmark
+    public ProcessResult spawn() throws IOException, InterruptedException {
+        return processRunner.run(new String[]{stub.toString(), "version"}, "dxf");
+    }
+
+    @Benchmark
+    public ConversionResult convert() throws CADConverter.ConversionException {
+        return conversionCache.convert(cadFile.toUri(), tmpDir.toUri(), "stub export", this::convertWithStub);
+    }
+
+    private ConversionResult convertWithStub(URI cadFileUri, URI tmpDirUri) throws CADConverter.ConversionException {
+        Path tmpCadFile = Paths.get(cadFileUri);
+        Path convertedFile = Paths.get(tmpDirUri).resolve(UUID.randomUUID() + ".obj");
+        String[] args = {stub.toString(), "export", tmpCadFile.toString(), convertedFile.toString()};
+        try {
+            ProcessResult result = processRunner.run(args, ConverterFiles.getExtension(tmpCadFile));
+            if (!result.isSuccess()) {
+                throw new CADConverter.ConversionException("Stub failed: " + result.getErrorOutput());
+            }
+            return new ConversionResult(convertedFile,
+                    Collections.singletonList(convertedFile.resolveSibling(convertedFile.getFileName() + ".mtl")));
+        } catch (IOException | InterruptedException e) {
+            throw new CADConverter.ConversionException(e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.commons.mesh.ObjNormalizer;
+import com.docdoku.server.converters.commons.mesh.ObjStatistics;
+import com.docdoku.server.converters.commons.mesh.ObjWriter;
+import com.docdoku.server.converters.commons.mesh.TriangleMesh;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing of OBJ files: parsing into statistics, validation and
+ * normalization of uploaded files, and formatting of in-memory meshes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class ObjBenchmark {
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int triangles;
+
+    private Path dir;
+    private Path objFile;
+    private Path normalizedFile;
+    private TriangleMesh mesh;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("obj-benchmark");
+        objFile = SyntheticMeshes.writeObj(triangles, dir.resolve("mesh.obj"));
+        normalizedFile = dir.resolve("normalized.obj");
+        mesh = SyntheticMeshes.generate(triangles);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(objFile);
+        Files.deleteIfExists(normalizedFile);
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public ObjStatistics parse() throws IOException {
+        return ObjStatistics.read(objFile);
+    }
+
+    @Benchmark
+    public ObjNormalizer.Report normalize() throws IOException {
+        return ObjNormalizer.normalize(objFile, normalizedFile);
+    }
+
+    /**
+     * Formatting only, the output is discarded so that disk throughput does
+     * not blur the results.
+     */
+    @Benchmark
+    public long write() throws IOException {
+        try (ObjWriter writer = new ObjWriter(new DiscardingChannel())) {
+            mesh.writeTo(writer);
+            writer.flush();
+            return writer.getBytesWritten();
+        }
+    }
+
+    private static class DiscardingChannel implements WritableByteChannel {
+
+        private boolean open = true;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
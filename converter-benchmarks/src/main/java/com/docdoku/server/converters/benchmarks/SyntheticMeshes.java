@@ -0,0 +1,101 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.commons.mesh.ObjWriter;
+import com.docdoku.server.converters.commons.mesh.TriangleMesh;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Generates the meshes the benchmarks work on: a rippled square grid cut
+ * into bands of materials, reproducible for a given triangle count.
+ */
+public final class SyntheticMeshes {
+
+    private static final int MATERIALS = 8;
+
+    private SyntheticMeshes() {
+    }
+
+    /**
+     * @return a mesh of exactly the given number of triangles
+     */
+    public static TriangleMesh generate(int triangles) {
+        int columns = Math.max(1, (int) Math.round(Math.sqrt(triangles / 2.0)));
+        int rows = (triangles + 2 * columns - 1) / (2 * columns);
+        TriangleMesh mesh = new TriangleMesh((rows + 1) * (columns + 1), triangles);
+
+        for (int row = 0; row <= rows; row++) {
+            for (int column = 0; column <= columns; column++) {
+                double x = (double) column / columns;
+                double y = (double) row / rows;
+                double z = 0.05 * Math.sin(x * 8 * Math.PI) * Math.cos(y * 8 * Math.PI);
+                mesh.addVertex((float) x, (float) y, (float) z);
+            }
+        }
+
+        int count = 0;
+        for (int row = 0; row < rows && count < triangles; row++) {
+            int group = row * MATERIALS / rows;
+            for (int column = 0; column < columns && count < triangles; column++) {
+                int a = row * (columns + 1) + column;
+                int b = a + 1;
+                int c = a + columns + 1;
+                int d = c + 1;
+                mesh.addTriangle(a, b, d, group);
+                if (++count < triangles) {
+                    mesh.addTriangle(a, d, c, group);
+                    count++;
+                }
+            }
+        }
+        return mesh;
+    }
+
+    /**
+     * Write a generated mesh to an OBJ file, with a <code>usemtl</code>
+     * statement for each band of materials.
+     */
+    public static Path writeObj(int triangles, Path objFile) throws IOException {
+        TriangleMesh mesh = generate(triangles);
+        float[] positions = mesh.getPositions();
+        int[] indices = mesh.getTriangles();
+        int[] groups = mesh.getGroups();
+
+        try (ObjWriter writer = new ObjWriter(objFile)) {
+            writer.comment("Synthetic mesh, " + triangles + " triangles");
+            for (int i = 0; i < mesh.getVertexCount() * 3; i += 3) {
+                writer.vertex(positions[i], positions[i + 1], positions[i + 2]);
+            }
+            int group = -1;
+            for (int i = 0; i < mesh.getTriangleCount(); i++) {
+                if (groups[i] != group) {
+                    group = groups[i];
+                    writer.statement("usemtl", "material" + group);
+                }
+                writer.face(indices, i * 3, 3);
+            }
+        }
+        return objFile;
+    }
+}
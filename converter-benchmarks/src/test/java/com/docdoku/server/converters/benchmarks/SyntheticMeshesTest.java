@@ -0,0 +1,59 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.commons.mesh.ObjStatistics;
+import com.docdoku.server.converters.commons.mesh.TriangleMesh;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class SyntheticMeshesTest {
+
+    @Test
+    public void testTriangleCountIsExact() {
+        for (int triangles : new int[]{1, 2, 3, 999, 10000, 12345}) {
+            TriangleMesh mesh = SyntheticMeshes.generate(triangles);
+            Assert.assertEquals(triangles, mesh.getTriangleCount());
+            int[] indices = mesh.getTriangles();
+            for (int i = 0; i < triangles * 3; i++) {
+                Assert.assertTrue(indices[i] < mesh.getVertexCount());
+            }
+        }
+    }
+
+    @Test
+    public void testObjFile() throws Exception {
+        Path dir = Files.createTempDirectory("synthetic-test");
+        Path objFile = SyntheticMeshes.writeObj(10000, dir.resolve("mesh.obj"));
+        try {
+            ObjStatistics statistics = ObjStatistics.read(objFile);
+            Assert.assertEquals(10000, statistics.getTriangles());
+            Assert.assertEquals(8, statistics.getMaterials().size());
+            Assert.assertEquals(1, statistics.getBounds()[3], 1e-6);
+        } finally {
+            Files.delete(objFile);
+            Files.delete(dir);
+        }
+    }
+}
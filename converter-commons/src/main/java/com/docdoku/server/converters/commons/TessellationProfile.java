@@ -0,0 +1,136 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons;
+
+import java.util.Locale;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Quality tier of the tessellation of B-rep models (STEP, IGES, IFC...).
+ * <p>
+ * Tiers are read from the converter <code>conf.properties</code>:
+ * <ul>
+ * <li><code>tessellation_profile</code>: tier used for the conversions,
+ * defaults to <code>standard</code></li>
+ * <li><code>tessellation_profile.&lt;extension&gt;</code>: tier used for a
+ * given input file extension</li>
+ * <li><code>tessellation.&lt;tier&gt;.linear_deflection</code>: maximum
+ * distance between the surface and its tessellation, in model units</li>
+ * <li><code>tessellation.&lt;tier&gt;.angular_deflection</code>: maximum angle
+ * between adjacent facets, in radians</li>
+ * </ul>
+ */
+public class TessellationProfile {
+
+    public static final String TESSELLATION_PROFILE = "tessellation_profile";
+    public static final String PREVIEW = "preview";
+    public static final String STANDARD = "standard";
+
+    private static final Logger LOGGER = Logger.getLogger(TessellationProfile.class.getName());
+
+    private static final double DEFAULT_LINEAR_DEFLECTION = 0.1;
+    private static final double DEFAULT_ANGULAR_DEFLECTION = 0.5;
+
+    private final String name;
+    private final double linearDeflection;
+    private final double angularDeflection;
+
+    public TessellationProfile(String name, double linearDeflection, double angularDeflection) {
+        this.name = name;
+        this.linearDeflection = linearDeflection;
+        this.angularDeflection = angularDeflection;
+    }
+
+    /**
+     * @return the tier configured for the given tier name
+     */
+    public static TessellationProfile forName(String name, Properties conf) {
+        String prefix = "tessellation." + name + ".";
+        return new TessellationProfile(name,
+                parsePositive(conf, prefix + "linear_deflection", DEFAULT_LINEAR_DEFLECTION),
+                parsePositive(conf, prefix + "angular_deflection", DEFAULT_ANGULAR_DEFLECTION));
+    }
+
+    /**
+     * @param extension extension of the converted file, may be null
+     * @return the tier configured for the given file extension
+     */
+    public static TessellationProfile forExtension(String extension, Properties conf) {
+        String name = null;
+        if (extension != null) {
+            name = conf.getProperty(TESSELLATION_PROFILE + "." + extension.toLowerCase(Locale.ROOT));
+        }
+        if (name == null || name.trim().isEmpty()) {
+            name = conf.getProperty(TESSELLATION_PROFILE);
+        }
+        if (name == null || name.trim().isEmpty()) {
+            name = STANDARD;
+        }
+        return forName(name.trim(), conf);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getLinearDeflection() {
+        return linearDeflection;
+    }
+
+    public double getAngularDeflection() {
+        return angularDeflection;
+    }
+
+    public boolean isPreview() {
+        return PREVIEW.equals(name);
+    }
+
+    /**
+     * @return the tolerances as a string, to be part of the conversion cache key
+     */
+    public String toSettings() {
+        return name + " " + linearDeflection + " " + angularDeflection;
+    }
+
+    @Override
+    public String toString() {
+        return toSettings();
+    }
+
+    private static double parsePositive(Properties conf, String key, double defaultValue) {
+        String value = conf.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            double parsed = Double.parseDouble(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.FINEST, null, e);
+        }
+        LOGGER.log(Level.WARNING, "Invalid {0} value: {1}", new Object[]{key, value});
+        return defaultValue;
+    }
+}
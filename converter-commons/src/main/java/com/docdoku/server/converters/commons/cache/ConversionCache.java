@@ -0,0 +1,450 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.cache;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.ConversionTask;
+import com.docdoku.server.converters.commons.metrics.ConverterMetrics;
+import com.docdoku.server.converters.commons.output.ConversionOutput;
+import com.docdoku.server.converters.commons.output.OutputStages;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed cache of conversion results, stored on local disk.
+ * <p>
+ * Entries are keyed by the SHA-256 of the CAD file, the converter id, the
+ * <code>cache_version</code> property and the converter settings. A hit copies
+ * the stored OBJ and materials into the conversion temporary directory, under
+ * their original names so that <code>mtllib</code> statements still resolve;
+ * callers always get files they are free to close or modify.
+ * <p>
+ * Entries are built in a staging directory and published with an atomic move,
+ * so that concurrent identical conversions never expose a partial entry. The
+ * least recently used entries are evicted once <code>cache_max_size</code>
+ * (in MB) is exceeded; entries being restored by a lookup are kept until the
+ * copy is done. Each stored file gets its own subdirectory of the entry, so
+ * that files of the same name coming from different directories never collide.
+ * <p>
+ * The configured {@link OutputStages} run after the conversion task, their
+ * settings are part of the key and the artifacts they add are cached along
+ * with the converted file.
+ * <p>
+ * Unless <code>deduplicate_conversions</code> is false, concurrent conversions
+ * of identical files are run only once, see {@link InFlightConversions}. This
+ * also applies when the cache itself is disabled.
+ * <p>
+ * Every conversion going through the cache is recorded in the
+ * {@link ConverterMetrics} of the converter.
+ */
+public class ConversionCache {
+
+    public static final String CACHE_ENABLED = "cache_enabled";
+    public static final String CACHE_DIR = "cache_dir";
+    public static final String CACHE_MAX_SIZE = "cache_max_size";
+    public static final String CACHE_VERSION = "cache_version";
+    public static final String DEDUPLICATE_CONVERSIONS = "deduplicate_conversions";
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionCache.class.getName());
+
+    private static final long DEFAULT_MAX_SIZE_MB = 2048;
+    private static final String STAGING_DIR = ".staging";
+    private static final String MANIFEST = "entry.properties";
+    private static final String CONVERTED_FILE = "converted";
+    private static final String MATERIALS = "materials";
+    private static final String ARTIFACT_PREFIX = "artifact.";
+
+    private static final ConcurrentMap<Path, ConversionCache> CACHES = new ConcurrentHashMap<>();
+
+    private final String converterId;
+    private final String version;
+    private final Path root;
+    private final long maxSize;
+    private final InFlightConversions inFlight;
+    private final OutputStages outputStages;
+    private final ConverterMetrics metrics;
+
+    // Entry key to entry size, in access order
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    // Entries being restored, never evicted until released
+    private final Map<String, Integer> pins = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ConversionCache(String converterId, String version, Path root, long maxSize, boolean deduplicate) {
+        this(converterId, version, root, maxSize, deduplicate, OutputStages.none());
+    }
+
+    ConversionCache(String converterId, String version, Path root, long maxSize, boolean deduplicate,
+                    OutputStages outputStages) {
+        this.converterId = converterId;
+        this.version = version;
+        this.root = root;
+        this.maxSize = maxSize;
+        this.inFlight = deduplicate ? new InFlightConversions() : null;
+        this.outputStages = outputStages;
+        this.metrics = ConverterMetrics.forConverter(converterId);
+    }
+
+    /**
+     * Get the cache of a converter as configured in its properties. A disabled
+     * cache simply runs the conversions, followed by the configured
+     * {@link OutputStages}.
+     */
+    public static ConversionCache forConverter(String converterId, Properties conf) {
+        String version = conf.getProperty(CACHE_VERSION, "");
+        boolean deduplicate = Boolean.parseBoolean(conf.getProperty(DEDUPLICATE_CONVERSIONS, "true"));
+        OutputStages stages = OutputStages.forConverter(conf);
+        if (!Boolean.parseBoolean(conf.getProperty(CACHE_ENABLED, "true"))) {
+            return new ConversionCache(converterId, version, null, 0, deduplicate, stages);
+        }
+        String dir = conf.getProperty(CACHE_DIR, "").trim();
+        Path baseDir = dir.isEmpty() ? Paths.get(System.getProperty("java.io.tmpdir"), "docdoku-conversion-cache")
+                : Paths.get(dir);
+        Path root = baseDir.resolve(converterId).toAbsolutePath();
+        long maxSize = parseMegabytes(conf.getProperty(CACHE_MAX_SIZE)) * 1024 * 1024;
+
+        return CACHES.computeIfAbsent(root, path -> {
+            try {
+                ConversionCache cache = new ConversionCache(converterId, version, path, maxSize, deduplicate,
+                        stages);
+                cache.load();
+                return cache;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot use conversion cache in " + path, e);
+                return new ConversionCache(converterId, version, null, 0, deduplicate, stages);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return root != null;
+    }
+
+    /**
+     * Return the cached result of the conversion if available, run the task
+     * and the output stages and cache their result otherwise.
+     *
+     * @param settings anything besides the file content the output depends on
+     */
+    public ConversionResult convert(URI cadFileUri, URI tmpDirUri, String settings, ConversionTask task)
+            throws CADConverter.ConversionException {
+        return metrics.convert(cadFileUri, tmpDirUri, (cad, tmp) -> convertCached(cad, tmp, settings, task));
+    }
+
+    private ConversionResult convertCached(URI cadFileUri, URI tmpDirUri, String settings, ConversionTask task)
+            throws CADConverter.ConversionException {
+        ConversionTask outputTask = outputStages.isEmpty() ? task
+                : (cad, tmp) -> outputStages.apply(task.convert(cad, tmp), Paths.get(tmp));
+        if (!isEnabled() && inFlight == null) {
+            return outputTask.convert(cadFileUri, tmpDirUri);
+        }
+
+        Path cadFile = Paths.get(cadFileUri);
+        Path tmpDir = Paths.get(tmpDirUri);
+
+        String key;
+        try {
+            key = computeKey(cadFile, settings);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot hash " + cadFile + ", bypassing the conversion cache", e);
+            return outputTask.convert(cadFileUri, tmpDirUri);
+        }
+
+        if (isEnabled()) {
+            ConversionResult cached = lookup(key, tmpDir);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        ConversionTask cachingTask = (cad, tmp) -> {
+            ConversionResult result = outputTask.convert(cad, tmp);
+            if (isEnabled()) {
+                publish(key, result);
+            }
+            return result;
+        };
+        return inFlight == null ? cachingTask.convert(cadFileUri, tmpDirUri)
+                : inFlight.convert(key, cadFileUri, tmpDirUri, cachingTask);
+    }
+
+    /**
+     * @return the registry of running conversions, null if deduplication is disabled
+     */
+    public InFlightConversions getInFlightConversions() {
+        return inFlight;
+    }
+
+    public String computeKey(Path cadFile, String settings) throws IOException {
+        return ContentHash.of(cadFile, converterId, version, settings + outputStages.getSettings());
+    }
+
+    public OutputStages getOutputStages() {
+        return outputStages;
+    }
+
+    /**
+     * @return the metrics of the conversions made through this cache, hits included
+     */
+    public ConverterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return a copy of the cached entry in the given directory, or null on a miss
+     */
+    public ConversionResult lookup(String key, Path tmpDir) {
+        synchronized (index) {
+            if (index.get(key) == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            pins.merge(key, 1, Integer::sum);
+        }
+        Path entry = root.resolve(key);
+        try {
+            ConversionResult result = restore(entry, tmpDir);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            LOGGER.log(Level.FINE, "Conversion cache hit for {0} ({1})", new Object[]{key, converterId});
+            return result;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot restore cache entry " + key, e);
+            misses.incrementAndGet();
+            return null;
+        } finally {
+            synchronized (index) {
+                pins.computeIfPresent(key, (pinned, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+    }
+
+    /**
+     * Store a copy of the given result. Failures are logged and otherwise ignored,
+     * the cache never fails a conversion.
+     */
+    public void publish(String key, ConversionResult result) {
+        Path staging = root.resolve(STAGING_DIR).resolve(UUID.randomUUID().toString());
+        try {
+            Files.createDirectories(staging);
+            long entrySize = stage(result, staging);
+            try {
+                Files.move(staging, root.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (Files.isRegularFile(root.resolve(key).resolve(MANIFEST))) {
+                    // Published by a concurrent identical conversion
+                    ConverterFiles.deleteRecursively(staging);
+                    return;
+                }
+                throw e;
+            }
+            register(key, entrySize);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot cache conversion result " + key, e);
+            deleteQuietly(staging);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getSize() {
+        synchronized (index) {
+            return size;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    void load() throws IOException {
+        Files.createDirectories(root);
+        ConverterFiles.deleteRecursively(root.resolve(STAGING_DIR));
+
+        List<Path> entries;
+        try (Stream<Path> children = Files.list(root)) {
+            entries = children.filter(child -> Files.isRegularFile(child.resolve(MANIFEST)))
+                    .sorted(Comparator.comparingLong(ConversionCache::lastModified))
+                    .collect(Collectors.toList());
+        }
+        for (Path entry : entries) {
+            register(entry.getFileName().toString(), sizeOf(entry));
+        }
+        LOGGER.log(Level.INFO, "Conversion cache {0}: {1} entries, {2} bytes",
+                new Object[]{root, getEntryCount(), getSize()});
+    }
+
+    private ConversionResult restore(Path entry, Path tmpDir) throws IOException {
+        Properties manifest = new Properties();
+        try (InputStream in = Files.newInputStream(entry.resolve(MANIFEST))) {
+            manifest.load(in);
+        }
+        String convertedName = manifest.getProperty(CONVERTED_FILE);
+        String materialNames = manifest.getProperty(MATERIALS, "");
+
+        List<Path> files = new ArrayList<>();
+        files.add(entry.resolve(convertedName));
+        for (String name : materialNames.split(",")) {
+            if (!name.isEmpty()) {
+                files.add(entry.resolve(name));
+            }
+        }
+        Map<String, Path> artifacts = new LinkedHashMap<>();
+        for (String property : manifest.stringPropertyNames()) {
+            if (property.startsWith(ARTIFACT_PREFIX)) {
+                artifacts.put(property.substring(ARTIFACT_PREFIX.length()),
+                        entry.resolve(manifest.getProperty(property)));
+            }
+        }
+        return ResultFiles.copyInto(files, artifacts, tmpDir, false);
+    }
+
+    private long stage(ConversionResult result, Path staging) throws IOException {
+        List<Path> files = ResultFiles.filesOf(result);
+        List<String> names = new ArrayList<>();
+        for (Path file : files) {
+            names.add(stageFile(file, staging, names.size()));
+        }
+
+        Properties manifest = new Properties();
+        manifest.setProperty(CONVERTED_FILE, names.get(0));
+        manifest.setProperty(MATERIALS, String.join(",", names.subList(1, names.size())));
+        int number = names.size();
+        for (Map.Entry<String, Path> artifact : ConversionOutput.artifactsOf(result).entrySet()) {
+            manifest.setProperty(ARTIFACT_PREFIX + artifact.getKey(), stageFile(artifact.getValue(), staging, number++));
+        }
+        try (OutputStream out = Files.newOutputStream(staging.resolve(MANIFEST))) {
+            manifest.store(out, converterId);
+        }
+        return sizeOf(staging);
+    }
+
+    /**
+     * @return the path of the copy relative to the staging directory, in a numbered
+     * subdirectory so that the file keeps its name
+     */
+    private static String stageFile(Path file, Path staging, int number) throws IOException {
+        Path directory = Files.createDirectory(staging.resolve(String.valueOf(number)));
+        Files.copy(file, directory.resolve(file.getFileName()));
+        return number + "/" + file.getFileName();
+    }
+
+    private void register(String key, long entrySize) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (index) {
+            Long previous = index.put(key, entrySize);
+            size += entrySize - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+            while (size > maxSize && index.size() > 1 && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (!entry.getKey().equals(key) && !pins.containsKey(entry.getKey())) {
+                    size -= entry.getValue();
+                    evicted.add(entry.getKey());
+                    eldest.remove();
+                }
+            }
+        }
+        for (String evictedKey : evicted) {
+            deleteQuietly(root.resolve(evictedKey));
+        }
+    }
+
+    private static long sizeOf(Path entry) throws IOException {
+        long entrySize = 0;
+        try (Stream<Path> files = Files.walk(entry)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file) && !MANIFEST.equals(file.getFileName().toString())) {
+                    entrySize += Files.size(file);
+                }
+            }
+        }
+        return entrySize;
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            ConverterFiles.deleteRecursively(path);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete " + path, e);
+        }
+    }
+
+    private static long parseMegabytes(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT_MAX_SIZE_MB;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + CACHE_MAX_SIZE + " value: " + value, e);
+            return DEFAULT_MAX_SIZE_MB;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.cache;
+
+import com.docdoku.server.converters.commons.ConversionTask;
+import com.docdoku.server.converters.commons.output.ConversionOutput;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the conversions currently running, keyed by content hash.
+ * <p>
+ * When identical files are converted at the same time (an assembly check-in
+ * referencing the same geometry many times), only the first caller runs the
+ * conversion. The others wait for it and get hard links, or copies, of its
+ * output files in their own temporary directory.
+ */
+public class InFlightConversions {
+
+    private static final Logger LOGGER = Logger.getLogger(InFlightConversions.class.getName());
+
+    private final ConcurrentMap<String, CompletableFuture<ConversionResult>> conversions = new ConcurrentHashMap<>();
+    private final AtomicLong sharedConversions = new AtomicLong();
+
+    public ConversionResult convert(String key, URI cadFileUri, URI tmpDirUri, ConversionTask task)
+            throws CADConverter.ConversionException {
+        CompletableFuture<ConversionResult> own = new CompletableFuture<>();
+        CompletableFuture<ConversionResult> running = conversions.putIfAbsent(key, own);
+
+        if (running == null) {
+            try {
+                ConversionResult result = task.convert(cadFileUri, tmpDirUri);
+                own.complete(result);
+                return result;
+            } catch (CADConverter.ConversionException | RuntimeException | Error e) {
+                own.completeExceptionally(e);
+                throw e;
+            } finally {
+                conversions.remove(key, own);
+            }
+        }
+
+        ConversionResult result = await(running);
+        try {
+            ConversionResult shared = ResultFiles.copyInto(ResultFiles.filesOf(result),
+                    ConversionOutput.artifactsOf(result), Paths.get(tmpDirUri), true);
+            sharedConversions.incrementAndGet();
+            return shared;
+        } catch (IOException e) {
+            // The first caller already cleaned up its files
+            LOGGER.log(Level.FINE, "Cannot share conversion " + key + ", converting again", e);
+            return task.convert(cadFileUri, tmpDirUri);
+        }
+    }
+
+    /**
+     * @return the number of conversions currently running
+     */
+    public int getInFlightCount() {
+        return conversions.size();
+    }
+
+    /**
+     * @return the number of callers served by a conversion run for someone else
+     */
+    public long getSharedConversions() {
+        return sharedConversions.get();
+    }
+
+    private static ConversionResult await(CompletableFuture<ConversionResult> running)
+            throws CADConverter.ConversionException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CADConverter.ConversionException(e);
+        } catch (ExecutionException e) {
+            // The same file fails the same way
+            Throwable cause = e.getCause();
+            throw new CADConverter.ConversionException(cause.getMessage(), cause);
+        }
+    }
+}
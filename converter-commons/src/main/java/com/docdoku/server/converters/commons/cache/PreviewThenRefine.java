@@ -0,0 +1,196 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.cache;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TessellationProfile;
+import com.docdoku.server.converters.commons.scratch.ScratchDirectory;
+import com.docdoku.server.converters.commons.scratch.ScratchSpace;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Two-phase conversion of B-rep models: a coarse preview is converted and
+ * returned first, the conversion with the configured tessellation profile is
+ * then run in the background and published in the {@link ConversionCache}, so
+ * that it replaces the preview on the next conversion of the same file.
+ * <p>
+ * Enabled by <code>preview_then_refine=true</code> in the converter
+ * <code>conf.properties</code>, the preview uses the <code>preview</code>
+ * tessellation profile. Refinements run one at a time on a low priority
+ * thread, in a directory of the {@link ScratchSpace}. A refinement the scratch
+ * space has no room for is skipped, and scheduled again on the next
+ * conversion of the file. Without a cache the refined result could not be
+ * served, the conversion is then done in a single phase.
+ */
+public class PreviewThenRefine {
+
+    public static final String PREVIEW_THEN_REFINE = "preview_then_refine";
+
+    private static final Logger LOGGER = Logger.getLogger(PreviewThenRefine.class.getName());
+
+    private static final ExecutorService REFINERS = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "converter-refinement");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // Room for the copy of the model and the refined output, several times larger
+    private static final long RESERVATION_FACTOR = 5;
+
+    private final ConversionCache cache;
+    private final Properties conf;
+    private final ScratchSpace scratchSpace;
+    private final boolean enabled;
+    private final Set<String> pendingRefinements = ConcurrentHashMap.newKeySet();
+    private final AtomicLong completedRefinements = new AtomicLong();
+
+    public PreviewThenRefine(ConversionCache cache, Properties conf) {
+        this.cache = cache;
+        this.conf = conf;
+        this.scratchSpace = ScratchSpace.of(conf);
+        this.enabled = Boolean.parseBoolean(conf.getProperty(PREVIEW_THEN_REFINE, "false"));
+        if (enabled && !cache.isEnabled()) {
+            LOGGER.log(Level.WARNING, "{0} needs the conversion cache, converting in a single phase",
+                    PREVIEW_THEN_REFINE);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled && cache.isEnabled();
+    }
+
+    /**
+     * Convert the file with the profile configured for its extension, or with
+     * the preview profile if the refined result is not available yet.
+     *
+     * @param settings the converter settings, the profile tolerances are appended to them
+     */
+    public ConversionResult convert(URI cadFileUri, URI tmpDirUri, String settings, ProfiledConversionTask task)
+            throws CADConverter.ConversionException {
+        Path cadFile = Paths.get(cadFileUri);
+        String extension = ConverterFiles.getExtension(cadFile);
+        TessellationProfile profile = TessellationProfile.forExtension(extension, conf);
+        String refinedSettings = settings + " " + profile.toSettings();
+
+        if (!isEnabled() || profile.isPreview()) {
+            return cache.convert(cadFileUri, tmpDirUri, refinedSettings, (cad, tmp) -> task.convert(cad, tmp, profile));
+        }
+
+        String refinedKey;
+        try {
+            refinedKey = cache.computeKey(cadFile, refinedSettings);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot hash " + cadFile + ", converting in a single phase", e);
+            ConversionResult result = task.convert(cadFileUri, tmpDirUri, profile);
+            return cache.getOutputStages().apply(result, Paths.get(tmpDirUri));
+        }
+        ConversionResult refined = cache.lookup(refinedKey, Paths.get(tmpDirUri));
+        if (refined != null) {
+            return refined;
+        }
+
+        TessellationProfile preview = TessellationProfile.forName(TessellationProfile.PREVIEW, conf);
+        ConversionResult result = cache.convert(cadFileUri, tmpDirUri, settings + " " + preview.toSettings(),
+                (cad, tmp) -> task.convert(cad, tmp, preview));
+        scheduleRefinement(cadFile, refinedKey, refinedSettings, profile, task);
+        return result;
+    }
+
+    /**
+     * @return the number of refinements queued or running
+     */
+    public int getPendingRefinements() {
+        return pendingRefinements.size();
+    }
+
+    public long getCompletedRefinements() {
+        return completedRefinements.get();
+    }
+
+    private void scheduleRefinement(Path cadFile, String key, String settings, TessellationProfile profile,
+                                    ProfiledConversionTask task) {
+        if (!pendingRefinements.add(key)) {
+            return;
+        }
+        ScratchDirectory workDir = null;
+        try {
+            // The caller deletes its temp directory once the preview is stored
+            workDir = scratchSpace.tryAllocate("refinement", Files.size(cadFile) * RESERVATION_FACTOR);
+            if (workDir == null) {
+                LOGGER.log(Level.INFO, "No scratch space to refine {0}, skipped", cadFile.getFileName());
+                pendingRefinements.remove(key);
+                return;
+            }
+            Files.copy(cadFile, workDir.resolve(cadFile.getFileName().toString()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot schedule the refinement of " + cadFile, e);
+            pendingRefinements.remove(key);
+            if (workDir != null) {
+                workDir.close();
+            }
+            return;
+        }
+        ScratchDirectory refinementDir = workDir;
+        REFINERS.submit(() -> refine(refinementDir, refinementDir.resolve(cadFile.getFileName().toString()), key,
+                settings, profile, task));
+    }
+
+    private void refine(ScratchDirectory workDir, Path cadFile, String key, String settings,
+                        TessellationProfile profile, ProfiledConversionTask task) {
+        try {
+            // Only the cached copy is of use, the files handed back are deleted right away
+            cache.convert(cadFile.toUri(), workDir.getPath().toUri(), settings,
+                    (cad, tmp) -> task.convert(cad, tmp, profile)).close();
+            completedRefinements.incrementAndGet();
+            LOGGER.log(Level.FINE, "{0} refined with the {1} profile", new Object[]{cadFile.getFileName(), profile});
+        } catch (CADConverter.ConversionException | IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Refinement of " + cadFile.getFileName() + " failed", e);
+        } finally {
+            pendingRefinements.remove(key);
+            workDir.close();
+        }
+    }
+
+    /**
+     * A conversion using the given tessellation tolerances.
+     */
+    @FunctionalInterface
+    public interface ProfiledConversionTask {
+        ConversionResult convert(URI cadFileUri, URI tmpDirUri, TessellationProfile profile)
+                throws CADConverter.ConversionException;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.cache;
+
+import com.docdoku.server.converters.commons.output.ConversionOutput;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands out private copies of conversion output files.
+ * <p>
+ * File names are kept so that <code>mtllib</code> statements still resolve;
+ * the files go to a dedicated sub-directory when a name is already taken,
+ * including by another file of the same output.
+ */
+final class ResultFiles {
+
+    private static final Logger LOGGER = Logger.getLogger(ResultFiles.class.getName());
+
+    private ResultFiles() {
+    }
+
+    /**
+     * @param files the converted file followed by its materials
+     * @param link  hard link the files when possible instead of copying them
+     */
+    static ConversionResult copyInto(List<Path> files, Path tmpDir, boolean link) throws IOException {
+        return copyInto(files, Collections.emptyMap(), tmpDir, link);
+    }
+
+    /**
+     * @param artifacts the additional output files, by name
+     * @return a {@link ConversionOutput} if there are artifacts, a plain result otherwise
+     */
+    static ConversionResult copyInto(List<Path> files, Map<String, Path> artifacts, Path tmpDir, boolean link)
+            throws IOException {
+        List<Path> allFiles = new ArrayList<>(files);
+        allFiles.addAll(artifacts.values());
+        Path targetDir = tmpDir;
+        for (Path file : allFiles) {
+            if (Files.exists(tmpDir.resolve(file.getFileName()))) {
+                targetDir = Files.createDirectory(tmpDir.resolve(UUID.randomUUID().toString()));
+                break;
+            }
+        }
+
+        List<Path> copies = new ArrayList<>();
+        try {
+            Set<Path> names = new HashSet<>();
+            for (Path file : allFiles) {
+                Path directory = names.add(file.getFileName()) ? targetDir
+                        : Files.createDirectory(tmpDir.resolve(UUID.randomUUID().toString()));
+                Path target = directory.resolve(file.getFileName());
+                copies.add(link ? linkOrCopy(file, target) : Files.copy(file, target));
+            }
+        } catch (IOException e) {
+            for (Path copy : copies) {
+                Files.deleteIfExists(copy);
+            }
+            throw e;
+        }
+        List<Path> materials = new ArrayList<>(copies.subList(1, files.size()));
+        if (artifacts.isEmpty()) {
+            return new ConversionResult(copies.get(0), materials);
+        }
+        Map<String, Path> artifactCopies = new LinkedHashMap<>();
+        int i = files.size();
+        for (String name : artifacts.keySet()) {
+            artifactCopies.put(name, copies.get(i++));
+        }
+        return new ConversionOutput(copies.get(0), materials, artifactCopies);
+    }
+
+    /**
+     * @return the converted file followed by the materials that actually exist
+     */
+    static List<Path> filesOf(ConversionResult result) {
+        List<Path> files = new ArrayList<>();
+        files.add(result.getConvertedFile());
+        if (result.getMaterials() != null) {
+            for (Path material : result.getMaterials()) {
+                // Converters list the material file they expect, tools do not always write it
+                if (Files.exists(material)) {
+                    files.add(material);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static Path linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            return Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            // Different file stores, or no hard link support
+            LOGGER.log(Level.FINEST, null, e);
+            return Files.copy(source, target);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.gltf;
+
+import com.docdoku.server.converters.commons.Json;
+import com.docdoku.server.converters.commons.mesh.MtlLibrary;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JSON part of a GLB file: a single mesh of indexed triangle
+ * primitives, one node holding the dequantization transform, materials and
+ * the texture images they reference by URI.
+ */
+class GltfDocument {
+
+    static final int ARRAY_BUFFER = 34962;
+    static final int ELEMENT_ARRAY_BUFFER = 34963;
+
+    private static final int BYTE = 5120;
+    private static final int SHORT = 5122;
+    private static final int UNSIGNED_SHORT = 5123;
+    private static final int UNSIGNED_INT = 5125;
+    private static final int FLOAT = 5126;
+    private static final String QUANTIZATION = "KHR_mesh_quantization";
+
+    private final MtlLibrary library;
+    private final Map<String, Integer> materialIndices = new HashMap<>();
+    private final StringBuilder materials = new StringBuilder();
+    private final Map<String, Integer> imageIndices = new HashMap<>();
+    private final StringBuilder images = new StringBuilder();
+    private final StringBuilder bufferViews = new StringBuilder();
+    private final StringBuilder accessors = new StringBuilder();
+    private final List<String> primitives = new ArrayList<>();
+    private int bufferViewCount;
+    private int accessorCount;
+    private double[] translation = {0, 0, 0};
+    private double scale = 1;
+
+    GltfDocument(MtlLibrary library) {
+        this.library = library;
+    }
+
+    void setQuantization(double[] center, double scale) {
+        this.translation = center.clone();
+        this.scale = scale;
+    }
+
+    /**
+     * @param name the material name used by the OBJ faces, null for none
+     * @return the index of the material, -1 for none
+     */
+    int material(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer index = materialIndices.get(name);
+        if (index != null) {
+            return index;
+        }
+        index = materialIndices.size();
+        materialIndices.put(name, index);
+
+        MtlLibrary.Material material = library.get(name);
+        float[] diffuse = material != null ? material.getDiffuse() : new float[]{0.8f, 0.8f, 0.8f};
+        float opacity = material != null ? material.getOpacity() : 1;
+        separate(materials).append("{\"name\":").append(Json.quote(name))
+                .append(",\"pbrMetallicRoughness\":{\"baseColorFactor\":[")
+                .append(diffuse[0]).append(',').append(diffuse[1]).append(',').append(diffuse[2]).append(',')
+                .append(opacity).append("],\"metallicFactor\":0,\"roughnessFactor\":")
+                .append(material != null ? roughness(material.getSpecularExponent()) : 1f);
+        if (material != null && material.getDiffuseTexture() != null) {
+            materials.append(",\"baseColorTexture\":{\"index\":").append(image(material.getDiffuseTexture()))
+                    .append('}');
+        }
+        materials.append('}');
+        if (opacity < 1) {
+            materials.append(",\"alphaMode\":\"BLEND\"");
+        }
+        materials.append('}');
+        return index;
+    }
+
+    int bufferView(long offset, long length, int stride, int target) {
+        separate(bufferViews).append("{\"buffer\":0,\"byteOffset\":").append(offset)
+                .append(",\"byteLength\":").append(length);
+        if (stride > 0) {
+            bufferViews.append(",\"byteStride\":").append(stride);
+        }
+        bufferViews.append(",\"target\":").append(target).append('}');
+        return bufferViewCount++;
+    }
+
+    void primitive(int material, VertexLayout layout, int vertexView, int vertexCount, short[] min, short[] max,
+                   int indexView, int indexCount, boolean shortIndices) {
+        StringBuilder primitive = new StringBuilder("{\"attributes\":{\"POSITION\":");
+        primitive.append(accessor(vertexView, VertexLayout.POSITION_OFFSET, SHORT, true, vertexCount, "VEC3",
+                "[" + min[0] + "," + min[1] + "," + min[2] + "]", "[" + max[0] + "," + max[1] + "," + max[2] + "]"));
+        if (layout.hasNormals) {
+            primitive.append(",\"NORMAL\":").append(accessor(vertexView, VertexLayout.NORMAL_OFFSET, BYTE, true,
+                    vertexCount, "VEC3", null, null));
+        }
+        if (layout.hasTextures) {
+            primitive.append(",\"TEXCOORD_0\":").append(accessor(vertexView, layout.textureOffset,
+                    layout.quantizedTextures ? UNSIGNED_SHORT : FLOAT, layout.quantizedTextures, vertexCount,
+                    "VEC2", null, null));
+        }
+        primitive.append("},\"indices\":").append(accessor(indexView, 0,
+                shortIndices ? UNSIGNED_SHORT : UNSIGNED_INT, false, indexCount, "SCALAR", null, null));
+        if (material >= 0) {
+            primitive.append(",\"material\":").append(material);
+        }
+        primitive.append(",\"mode\":4}");
+        primitives.add(primitive.toString());
+    }
+
+    String toJson(long binLength) {
+        StringBuilder json = new StringBuilder(256 + accessors.length() + bufferViews.length());
+        json.append("{\"asset\":{\"version\":\"2.0\",\"generator\":\"DocDokuPLM converters\"}")
+                .append(",\"extensionsUsed\":[\"").append(QUANTIZATION).append("\"]")
+                .append(",\"extensionsRequired\":[\"").append(QUANTIZATION).append("\"]")
+                .append(",\"scene\":0,\"scenes\":[{\"nodes\":[0]}]")
+                .append(",\"nodes\":[{\"mesh\":0,\"translation\":[")
+                .append(translation[0]).append(',').append(translation[1]).append(',').append(translation[2])
+                .append("],\"scale\":[").append(scale).append(',').append(scale).append(',').append(scale)
+                .append("]}]")
+                .append(",\"meshes\":[{\"primitives\":[").append(String.join(",", primitives)).append("]}]");
+        if (materials.length() > 0) {
+            json.append(",\"materials\":[").append(materials).append(']');
+        }
+        if (images.length() > 0) {
+            json.append(",\"images\":[").append(images).append(']');
+            json.append(",\"textures\":[");
+            for (int i = 0; i < imageIndices.size(); i++) {
+                json.append(i > 0 ? "," : "").append("{\"source\":").append(i).append('}');
+            }
+            json.append(']');
+        }
+        json.append(",\"accessors\":[").append(accessors).append(']')
+                .append(",\"bufferViews\":[").append(bufferViews).append(']')
+                .append(",\"buffers\":[{\"byteLength\":").append(binLength).append("}]}");
+        return json.toString();
+    }
+
+    private int accessor(int bufferView, int offset, int componentType, boolean normalized, int count,
+                         String type, String min, String max) {
+        separate(accessors).append("{\"bufferView\":").append(bufferView)
+                .append(",\"byteOffset\":").append(offset)
+                .append(",\"componentType\":").append(componentType);
+        if (normalized) {
+            accessors.append(",\"normalized\":true");
+        }
+        accessors.append(",\"count\":").append(count).append(",\"type\":\"").append(type).append('"');
+        if (min != null) {
+            accessors.append(",\"min\":").append(min).append(",\"max\":").append(max);
+        }
+        accessors.append('}');
+        return accessorCount++;
+    }
+
+    private int image(String path) {
+        Integer index = imageIndices.get(path);
+        if (index == null) {
+            index = imageIndices.size();
+            imageIndices.put(path, index);
+            String uri = path.replace('\\', '/').replace(" ", "%20");
+            separate(images).append("{\"uri\":").append(Json.quote(uri)).append('}');
+        }
+        return index;
+    }
+
+    /**
+     * Approximation of the roughness of a Phong specular exponent.
+     */
+    private static float roughness(float specularExponent) {
+        if (specularExponent < 0) {
+            return 1;
+        }
+        return (float) Math.sqrt(2 / (specularExponent + 2));
+    }
+
+    private static StringBuilder separate(StringBuilder list) {
+        if (list.length() > 0) {
+            list.append(',');
+        }
+        return list;
+    }
+}
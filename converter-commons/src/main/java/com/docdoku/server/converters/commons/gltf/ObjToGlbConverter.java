@@ -0,0 +1,501 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.gltf;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.mesh.MappedFileReader;
+import com.docdoku.server.converters.commons.mesh.MtlLibrary;
+import com.docdoku.server.converters.commons.mesh.RecordFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a Wavefront OBJ model and its materials to binary glTF 2.0.
+ * <p>
+ * The OBJ file is read once: vertex attributes are spilled to memory-mapped
+ * record files and faces, triangulated, to one record file per material. The
+ * triangles of each material are then split into primitives of at most
+ * <code>maxChunkVertices</code> unique vertices, written as interleaved
+ * vertex buffers with 16-bit indices whenever they fit. Positions are
+ * quantized to normalized shorts around the model center and normals to
+ * normalized bytes (<code>KHR_mesh_quantization</code>), texture coordinates
+ * to normalized unsigned shorts when they lie within [0, 1].
+ * <p>
+ * Heap use depends on the chunk size and the number of materials, not on the
+ * size of the model. Buffers are written through NIO channels and the binary
+ * chunk of the GLB file is transferred from its spill file.
+ */
+public class ObjToGlbConverter {
+
+    public static final int DEFAULT_MAX_CHUNK_VERTICES = 65535;
+
+    private static final int GLB_MAGIC = 0x46546C67;
+    private static final int GLB_VERSION = 2;
+    private static final int JSON_CHUNK = 0x4E4F534A;
+    private static final int BIN_CHUNK = 0x004E4942;
+
+    private static final int SPILL_BUFFER_SIZE = 1024 * 1024;
+    private static final int TRIANGLE_SPILL_BUFFER_SIZE = 64 * 1024;
+    // Vertex, texture coordinate and normal indices of the three corners
+    private static final int TRIANGLE_RECORD_SIZE = 9 * Integer.BYTES;
+    private static final int MAX_CHUNK_INDICES = 1 << 26;
+
+    private final int maxChunkVertices;
+    private final int maxChunkIndices;
+
+    // First pass
+    private RecordFile positions;
+    private RecordFile textures;
+    private RecordFile normals;
+    private final Map<String, RecordFile> triangles = new LinkedHashMap<>();
+    private long positionCount;
+    private long textureCount;
+    private long normalCount;
+    private final double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+    private final double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+    private boolean texturesInUnitRange = true;
+    private int[] faceVertices = new int[16];
+    private int[] faceTextures = new int[16];
+    private int[] faceNormals = new int[16];
+
+    // Second pass
+    private VertexLayout layout;
+    private FileChannel bin;
+    private long binLength;
+    private ByteBuffer vertexData;
+    private ByteBuffer indexData;
+    private int[] indices;
+    private int vertexCount;
+    private int indexCount;
+    private final short[] chunkMin = new short[3];
+    private final short[] chunkMax = new short[3];
+    private CornerMap corners;
+    private final float[] flatNormal = new float[3];
+
+    public ObjToGlbConverter() {
+        this(DEFAULT_MAX_CHUNK_VERTICES);
+    }
+
+    /**
+     * @param maxChunkVertices the maximum number of vertices of a primitive, at least 3
+     */
+    public ObjToGlbConverter(int maxChunkVertices) {
+        this.maxChunkVertices = Math.max(3, maxChunkVertices);
+        this.maxChunkIndices = (int) Math.min(MAX_CHUNK_INDICES, this.maxChunkVertices * 6L);
+    }
+
+    /**
+     * @param mtlFiles the material libraries of the model
+     * @return the number of triangles written
+     */
+    public long convert(Path objFile, List<Path> mtlFiles, Path glbFile) throws IOException {
+        MtlLibrary library = MtlLibrary.read(mtlFiles);
+        Path workDir = Files.createTempDirectory(glbFile.toAbsolutePath().getParent(), "glb");
+        try {
+            positions = new RecordFile(workDir.resolve("positions"), 3 * Float.BYTES, SPILL_BUFFER_SIZE);
+            textures = new RecordFile(workDir.resolve("textures"), 2 * Float.BYTES, SPILL_BUFFER_SIZE);
+            normals = new RecordFile(workDir.resolve("normals"), 3 * Float.BYTES, SPILL_BUFFER_SIZE);
+            readObj(objFile, workDir);
+            positions.finish();
+            textures.finish();
+            normals.finish();
+
+            long triangleCount = 0;
+            for (RecordFile materialTriangles : triangles.values()) {
+                materialTriangles.finish();
+                triangleCount += materialTriangles.size();
+            }
+            if (triangleCount == 0) {
+                throw new IOException("No faces to convert in " + objFile);
+            }
+
+            GltfDocument document = new GltfDocument(library);
+            layout = new VertexLayout(normalCount > 0, textureCount > 0, texturesInUnitRange, min, max);
+            document.setQuantization(layout.center, layout.scale);
+            try (FileChannel binChannel = FileChannel.open(workDir.resolve("bin"), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                bin = binChannel;
+                writeChunks(document);
+                writeGlb(document, binChannel, glbFile);
+            }
+            return triangleCount;
+        } finally {
+            closeAll();
+            ConverterFiles.deleteRecursively(workDir);
+        }
+    }
+
+    private void readObj(Path objFile, Path workDir) throws IOException {
+        try (MappedFileReader reader = new MappedFileReader(objFile)) {
+            String material = null;
+            RecordFile current = null;
+            int c;
+            while ((c = reader.skipWhitespace()) != -1) {
+                if (c == 'v') {
+                    reader.get();
+                    readVertexAttribute(reader);
+                    reader.skipLine();
+                } else if (c == 'f') {
+                    reader.get();
+                    if (current == null) {
+                        current = triangles.get(material);
+                        if (current == null) {
+                            current = new RecordFile(workDir.resolve("triangles-" + triangles.size()),
+                                    TRIANGLE_RECORD_SIZE, TRIANGLE_SPILL_BUFFER_SIZE);
+                            triangles.put(material, current);
+                        }
+                    }
+                    readFace(reader, current);
+                } else if (reader.matchKeyword("usemtl")) {
+                    material = reader.readLine().trim();
+                    current = null;
+                } else {
+                    reader.skipLine();
+                }
+            }
+        }
+    }
+
+    private void readVertexAttribute(MappedFileReader reader) throws IOException {
+        int type = reader.peek();
+        if (type == ' ' || type == '\t') {
+            for (int axis = 0; axis < 3; axis++) {
+                float value = reader.readFloat();
+                positions.putFloat(value);
+                min[axis] = Math.min(min[axis], value);
+                max[axis] = Math.max(max[axis], value);
+            }
+            positionCount++;
+        } else if (type == 't') {
+            reader.get();
+            float u = reader.readFloat();
+            int next = reader.skipBlanks();
+            float v = next == '-' || next == '+' || next == '.' || next >= '0' && next <= '9' ? reader.readFloat() : 0;
+            textures.putFloat(u);
+            textures.putFloat(v);
+            texturesInUnitRange &= u >= 0 && u <= 1 && v >= 0 && v <= 1;
+            textureCount++;
+        } else if (type == 'n') {
+            reader.get();
+            normals.putFloat(reader.readFloat());
+            normals.putFloat(reader.readFloat());
+            normals.putFloat(reader.readFloat());
+            normalCount++;
+        }
+    }
+
+    private void readFace(MappedFileReader reader, RecordFile output) throws IOException {
+        int count = 0;
+        int c;
+        while ((c = reader.skipBlanks()) != -1 && c != '\n' && c != '\r' && c != '#') {
+            long vertex = reader.readLong();
+            long texture = 0;
+            long normal = 0;
+            if (reader.peek() == '/') {
+                reader.get();
+                if (reader.peek() != '/') {
+                    texture = reader.readLong();
+                }
+                if (reader.peek() == '/') {
+                    reader.get();
+                    normal = reader.readLong();
+                }
+            }
+            if (count == faceVertices.length) {
+                faceVertices = Arrays.copyOf(faceVertices, count * 2);
+                faceTextures = Arrays.copyOf(faceTextures, count * 2);
+                faceNormals = Arrays.copyOf(faceNormals, count * 2);
+            }
+            faceVertices[count] = resolve(vertex, positionCount, reader);
+            faceTextures[count] = texture == 0 ? -1 : resolve(texture, textureCount, reader);
+            faceNormals[count] = normal == 0 ? -1 : resolve(normal, normalCount, reader);
+            count++;
+        }
+        reader.skipLine();
+
+        // Polygons are triangulated as fans
+        for (int i = 1; i + 1 < count; i++) {
+            putCorner(output, 0);
+            putCorner(output, i);
+            putCorner(output, i + 1);
+        }
+    }
+
+    private void putCorner(RecordFile output, int corner) throws IOException {
+        output.putInt(faceVertices[corner]);
+        output.putInt(faceTextures[corner]);
+        output.putInt(faceNormals[corner]);
+    }
+
+    private static int resolve(long index, long count, MappedFileReader reader) throws IOException {
+        long resolved = index > 0 ? index - 1 : count + index;
+        if (index == 0 || resolved < 0 || resolved >= count) {
+            throw new IOException("Invalid index " + index + " before offset " + reader.position());
+        }
+        return (int) resolved;
+    }
+
+    private void writeChunks(GltfDocument document) throws IOException {
+        vertexData = ByteBuffer.allocate(maxChunkVertices * layout.stride).order(ByteOrder.LITTLE_ENDIAN);
+        indexData = ByteBuffer.allocate(maxChunkIndices * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        indices = new int[maxChunkIndices];
+        corners = new CornerMap(maxChunkVertices);
+
+        for (Map.Entry<String, RecordFile> entry : triangles.entrySet()) {
+            int material = document.material(entry.getKey());
+            RecordFile materialTriangles = entry.getValue();
+            startChunk();
+            for (long triangle = 0; triangle < materialTriangles.size(); triangle++) {
+                if (vertexCount + 3 > maxChunkVertices || indexCount + 3 > maxChunkIndices) {
+                    endChunk(document, material);
+                    startChunk();
+                }
+                boolean flat = false;
+                for (int corner = 0; corner < 3; corner++) {
+                    flat |= layout.hasNormals && materialTriangles.getInt(triangle, corner * 12 + 8) < 0;
+                }
+                if (flat) {
+                    computeFlatNormal(materialTriangles, triangle);
+                }
+                for (int corner = 0; corner < 3; corner++) {
+                    int offset = corner * 12;
+                    indices[indexCount++] = vertex(materialTriangles.getInt(triangle, offset),
+                            materialTriangles.getInt(triangle, offset + 4),
+                            materialTriangles.getInt(triangle, offset + 8));
+                }
+            }
+            endChunk(document, material);
+        }
+    }
+
+    private void startChunk() {
+        vertexData.clear();
+        vertexCount = 0;
+        indexCount = 0;
+        Arrays.fill(chunkMin, Short.MAX_VALUE);
+        Arrays.fill(chunkMax, Short.MIN_VALUE);
+        corners.clear();
+    }
+
+    /**
+     * @return the index in the chunk of the vertex of the given attributes, added if needed
+     */
+    private int vertex(int position, int texture, int normal) {
+        // Corners without a normal get the normal of their face and are never shared
+        boolean shared = !layout.hasNormals || normal >= 0;
+        if (shared) {
+            int existing = corners.get(position, texture, normal);
+            if (existing >= 0) {
+                return existing;
+            }
+        }
+
+        for (int axis = 0; axis < 3; axis++) {
+            short quantized = layout.quantizePosition(positions.getFloat(position, axis * Float.BYTES), axis);
+            vertexData.putShort(quantized);
+            chunkMin[axis] = (short) Math.min(chunkMin[axis], quantized);
+            chunkMax[axis] = (short) Math.max(chunkMax[axis], quantized);
+        }
+        vertexData.putShort((short) 0);
+        if (layout.hasNormals) {
+            float x = normal >= 0 ? normals.getFloat(normal, 0) : flatNormal[0];
+            float y = normal >= 0 ? normals.getFloat(normal, 4) : flatNormal[1];
+            float z = normal >= 0 ? normals.getFloat(normal, 8) : flatNormal[2];
+            double length = Math.sqrt(x * x + y * y + z * z);
+            double scale = length > 0 ? 127 / length : 0;
+            vertexData.put((byte) Math.round(x * scale));
+            vertexData.put((byte) Math.round(y * scale));
+            vertexData.put((byte) Math.round(z * scale));
+            vertexData.put((byte) 0);
+        }
+        if (layout.hasTextures) {
+            float u = texture >= 0 ? textures.getFloat(texture, 0) : 0;
+            // glTF texture coordinates start at the top left corner
+            float v = texture >= 0 ? 1 - textures.getFloat(texture, 4) : 0;
+            if (layout.quantizedTextures) {
+                vertexData.putShort((short) Math.round(u * 65535));
+                vertexData.putShort((short) Math.round(v * 65535));
+            } else {
+                vertexData.putFloat(u);
+                vertexData.putFloat(v);
+            }
+        }
+
+        int index = vertexCount++;
+        if (shared) {
+            corners.put(position, texture, normal, index);
+        }
+        return index;
+    }
+
+    private void computeFlatNormal(RecordFile materialTriangles, long triangle) {
+        int a = materialTriangles.getInt(triangle, 0);
+        int b = materialTriangles.getInt(triangle, 12);
+        int c = materialTriangles.getInt(triangle, 24);
+        float abX = positions.getFloat(b, 0) - positions.getFloat(a, 0);
+        float abY = positions.getFloat(b, 4) - positions.getFloat(a, 4);
+        float abZ = positions.getFloat(b, 8) - positions.getFloat(a, 8);
+        float acX = positions.getFloat(c, 0) - positions.getFloat(a, 0);
+        float acY = positions.getFloat(c, 4) - positions.getFloat(a, 4);
+        float acZ = positions.getFloat(c, 8) - positions.getFloat(a, 8);
+        flatNormal[0] = abY * acZ - abZ * acY;
+        flatNormal[1] = abZ * acX - abX * acZ;
+        flatNormal[2] = abX * acY - abY * acX;
+    }
+
+    private void endChunk(GltfDocument document, int material) throws IOException {
+        if (indexCount == 0) {
+            return;
+        }
+        vertexData.flip();
+        int vertexView = document.bufferView(binLength, vertexData.remaining(), layout.stride,
+                GltfDocument.ARRAY_BUFFER);
+        write(vertexData);
+
+        // The largest value of the index type is reserved as primitive restart
+        boolean shortIndices = vertexCount <= 0xFFFF;
+        indexData.clear();
+        for (int i = 0; i < indexCount; i++) {
+            if (shortIndices) {
+                indexData.putShort((short) indices[i]);
+            } else {
+                indexData.putInt(indices[i]);
+            }
+        }
+        int indexLength = indexData.position();
+        while (indexData.position() % 4 != 0) {
+            indexData.put((byte) 0);
+        }
+        indexData.flip();
+        int indexView = document.bufferView(binLength, indexLength, 0, GltfDocument.ELEMENT_ARRAY_BUFFER);
+        write(indexData);
+
+        document.primitive(material, layout, vertexView, vertexCount, chunkMin, chunkMax,
+                indexView, indexCount, shortIndices);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            binLength += bin.write(buffer, binLength);
+        }
+    }
+
+    private void writeGlb(GltfDocument document, FileChannel binChannel, Path glbFile) throws IOException {
+        byte[] json = document.toJson(binLength).getBytes(StandardCharsets.UTF_8);
+        int jsonPadding = (4 - json.length % 4) % 4;
+        long totalLength = 12 + 8 + json.length + jsonPadding + 8 + binLength;
+        if (totalLength > 0xFFFFFFFFL) {
+            throw new IOException("Model too large for a GLB file: " + totalLength + " bytes");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(12 + 8 + json.length + jsonPadding + 8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(GLB_MAGIC).putInt(GLB_VERSION).putInt((int) totalLength);
+        header.putInt(json.length + jsonPadding).putInt(JSON_CHUNK).put(json);
+        for (int i = 0; i < jsonPadding; i++) {
+            header.put((byte) ' ');
+        }
+        header.putInt((int) binLength).putInt(BIN_CHUNK);
+        header.flip();
+
+        try (FileChannel out = FileChannel.open(glbFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            long transferred = 0;
+            while (transferred < binLength) {
+                transferred += binChannel.transferTo(transferred, binLength - transferred, out);
+            }
+        }
+    }
+
+    private void closeAll() throws IOException {
+        List<RecordFile> files = new ArrayList<>(triangles.values());
+        files.add(positions);
+        files.add(textures);
+        files.add(normals);
+        for (RecordFile file : files) {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Open addressing map from vertex attribute indices to chunk vertex index.
+     */
+    private static class CornerMap {
+        private final int[] keys;
+        private final int[] values;
+        private final int mask;
+
+        CornerMap(int maxEntries) {
+            int capacity = Integer.highestOneBit(Math.max(4, maxEntries * 2 - 1)) << 1;
+            keys = new int[capacity * 3];
+            values = new int[capacity];
+            mask = capacity - 1;
+            clear();
+        }
+
+        void clear() {
+            Arrays.fill(values, -1);
+        }
+
+        int get(int position, int texture, int normal) {
+            for (int slot = hash(position, texture, normal); ; slot = (slot + 1) & mask) {
+                if (values[slot] < 0) {
+                    return -1;
+                }
+                if (keys[slot * 3] == position && keys[slot * 3 + 1] == texture && keys[slot * 3 + 2] == normal) {
+                    return values[slot];
+                }
+            }
+        }
+
+        void put(int position, int texture, int normal, int value) {
+            int slot = hash(position, texture, normal);
+            while (values[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot * 3] = position;
+            keys[slot * 3 + 1] = texture;
+            keys[slot * 3 + 2] = normal;
+            values[slot] = value;
+        }
+
+        private int hash(int position, int texture, int normal) {
+            int hash = position * 0x9E3779B1 + texture * 0x85EBCA77 + normal * 0xC2B2AE3D;
+            return (hash ^ hash >>> 16) & mask;
+        }
+    }
+}
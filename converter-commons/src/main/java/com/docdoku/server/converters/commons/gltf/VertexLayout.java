@@ -0,0 +1,64 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.gltf;
+
+/**
+ * Interleaved vertex layout of the GLB primitives, with the quantization of
+ * the positions.
+ * <p>
+ * Positions are 3 normalized shorts padded to 8 bytes, then come 3 normalized
+ * bytes of normal padded to 4 bytes, then texture coordinates as 2 normalized
+ * unsigned shorts or 2 floats. Attributes missing from the model are left out.
+ */
+class VertexLayout {
+
+    static final int POSITION_OFFSET = 0;
+    static final int NORMAL_OFFSET = 8;
+
+    final boolean hasNormals;
+    final boolean hasTextures;
+    final boolean quantizedTextures;
+    final int textureOffset;
+    final int stride;
+    final double[] center = new double[3];
+    final double scale;
+
+    VertexLayout(boolean hasNormals, boolean hasTextures, boolean texturesInUnitRange, double[] min, double[] max) {
+        this.hasNormals = hasNormals;
+        this.hasTextures = hasTextures;
+        this.quantizedTextures = texturesInUnitRange;
+        this.textureOffset = hasNormals ? 12 : 8;
+        this.stride = textureOffset + (hasTextures ? (quantizedTextures ? 4 : 8) : 0);
+
+        // A uniform scale keeps the normals valid under the node transform
+        double halfExtent = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            center[axis] = Double.isFinite(min[axis] + max[axis]) ? (min[axis] + max[axis]) / 2 : 0;
+            halfExtent = Math.max(halfExtent, (max[axis] - min[axis]) / 2);
+        }
+        this.scale = halfExtent > 0 && Double.isFinite(halfExtent) ? halfExtent : 1;
+    }
+
+    short quantizePosition(float value, int axis) {
+        double normalized = (value - center[axis]) / scale;
+        return (short) Math.round(Math.max(-1, Math.min(1, normalized)) * Short.MAX_VALUE);
+    }
+}
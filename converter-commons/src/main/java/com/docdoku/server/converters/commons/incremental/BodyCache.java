@@ -0,0 +1,243 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.incremental;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tessellated bodies of assemblies, one OBJ chunk per body with its MTL
+ * library, evicted least recently used first.
+ * <p>
+ * Chunks are kept next to the conversion cache of the converter, in
+ * <code>&lt;cache_dir&gt;/&lt;converter&gt;-bodies</code>, within
+ * <code>body_cache_max_size</code> megabytes, 2048 by default.
+ */
+public class BodyCache {
+
+    public static final String BODY_CACHE_MAX_SIZE = "body_cache_max_size";
+
+    private static final Logger LOGGER = Logger.getLogger(BodyCache.class.getName());
+
+    private static final ConcurrentMap<Path, BodyCache> CACHES = new ConcurrentHashMap<>();
+    private static final String STAGING_DIR = "staging";
+    private static final String OBJ = ".obj";
+    private static final String MTL = ".mtl";
+    private static final long DEFAULT_MAX_SIZE_MB = 2048;
+
+    private final Path root;
+    private final long maxSize;
+
+    // Chunk key to chunk size, in access order
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    BodyCache(Path root, long maxSize) {
+        this.root = root;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the body cache of a converter, shared by the converters configured
+     * with the same cache directory.
+     *
+     * @throws IOException if the cache directory cannot be used
+     */
+    public static BodyCache forConverter(String converterId, Properties conf) throws IOException {
+        String dir = conf.getProperty(ConversionCache.CACHE_DIR, "").trim();
+        Path baseDir = dir.isEmpty() ? Paths.get(System.getProperty("java.io.tmpdir"), "docdoku-conversion-cache")
+                : Paths.get(dir);
+        Path root = baseDir.resolve(converterId + "-bodies").toAbsolutePath();
+        long maxSize = parseMegabytes(conf.getProperty(BODY_CACHE_MAX_SIZE)) * 1024 * 1024;
+        try {
+            return CACHES.computeIfAbsent(root, path -> {
+                BodyCache cache = new BodyCache(path, maxSize);
+                try {
+                    cache.load();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return cache;
+            });
+        } catch (IllegalStateException e) {
+            throw new IOException("Cannot use body cache in " + root, e.getCause());
+        }
+    }
+
+    public boolean contains(String key) {
+        synchronized (index) {
+            return index.get(key) != null;
+        }
+    }
+
+    /**
+     * @return the cached chunk, null if missing
+     */
+    public Path getObj(String key) {
+        Path obj = root.resolve(key + OBJ);
+        synchronized (index) {
+            if (index.get(key) == null) {
+                return null;
+            }
+        }
+        try {
+            Files.setLastModifiedTime(obj, FileTime.fromMillis(System.currentTimeMillis()));
+            return obj;
+        } catch (IOException e) {
+            // Evicted in the meantime
+            LOGGER.log(Level.FINE, null, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the material library of a cached chunk, null if it has none
+     */
+    public Path getMtl(String key) {
+        Path mtl = root.resolve(key + MTL);
+        return Files.exists(mtl) ? mtl : null;
+    }
+
+    /**
+     * Store a copy of a chunk.
+     *
+     * @param mtl the material library used by the chunk, may be null
+     */
+    public void put(String key, Path obj, Path mtl) throws IOException {
+        Path staging = root.resolve(STAGING_DIR).resolve(UUID.randomUUID().toString());
+        Files.createDirectories(staging);
+        try {
+            long chunkSize = Files.size(Files.copy(obj, staging.resolve(key + OBJ)));
+            if (mtl != null && Files.exists(mtl)) {
+                chunkSize += Files.size(Files.copy(mtl, staging.resolve(key + MTL)));
+                Files.move(staging.resolve(key + MTL), root.resolve(key + MTL), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            // The chunk comes last, it marks the entry as complete
+            Files.move(staging.resolve(key + OBJ), root.resolve(key + OBJ), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            register(key, chunkSize);
+        } finally {
+            ConverterFiles.deleteRecursively(staging);
+        }
+    }
+
+    public long getSize() {
+        synchronized (index) {
+            return size;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    void load() throws IOException {
+        Files.createDirectories(root);
+        ConverterFiles.deleteRecursively(root.resolve(STAGING_DIR));
+
+        List<Path> chunks = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "*" + OBJ)) {
+            for (Path file : files) {
+                chunks.add(file);
+            }
+        }
+        chunks.sort(Comparator.comparingLong(BodyCache::lastModified));
+        for (Path chunk : chunks) {
+            String name = chunk.getFileName().toString();
+            String key = name.substring(0, name.length() - OBJ.length());
+            Path mtl = root.resolve(key + MTL);
+            register(key, Files.size(chunk) + (Files.exists(mtl) ? Files.size(mtl) : 0));
+        }
+        LOGGER.log(Level.INFO, "Body cache {0}: {1} chunks, {2} bytes", new Object[]{root, getEntryCount(), getSize()});
+    }
+
+    private void register(String key, long chunkSize) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (index) {
+            Long previous = index.put(key, chunkSize);
+            size += chunkSize - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+            while (size > maxSize && index.size() > 1 && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (!entry.getKey().equals(key)) {
+                    size -= entry.getValue();
+                    evicted.add(entry.getKey());
+                    eldest.remove();
+                }
+            }
+        }
+        for (String evictedKey : evicted) {
+            try {
+                Files.deleteIfExists(root.resolve(evictedKey + OBJ));
+                Files.deleteIfExists(root.resolve(evictedKey + MTL));
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot evict chunk " + evictedKey, e);
+            }
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long parseMegabytes(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT_MAX_SIZE_MB;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + BODY_CACHE_MAX_SIZE + ": " + value, e);
+            return DEFAULT_MAX_SIZE_MB;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.incremental;
+
+import com.docdoku.server.converters.commons.mesh.ObjMerger;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles a model from the chunks of its bodies, so that only the bodies
+ * missing from the {@link BodyCache} are tessellated again:
+ * <ol>
+ * <li>the converter hashes the bodies of the model, see {@link SubgraphHasher},
+ * and gets their chunk keys with {@link #chunkKey(String)},</li>
+ * <li>tessellates the {@link #missing(List)} bodies and {@link #store(String, Path, Path)}s
+ * their chunks,</li>
+ * <li>{@link #stitch(List, Path, Path)}es the chunks of all bodies.</li>
+ * </ol>
+ * Materials of stored chunks are renamed after their definition, chunks
+ * tessellated from different files can share a library without clashing.
+ * Not thread-safe, meant for one conversion.
+ */
+public class IncrementalAssembly {
+
+    // Byte transparent, OBJ and MTL files are mostly ASCII
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final String USEMTL = "usemtl";
+    private static final String NEWMTL = "newmtl";
+
+    private final BodyCache cache;
+    private final String settings;
+
+    // Last material library read, usually shared by the chunks of a run
+    private Path definitionsFile;
+    private Map<String, String> definitions = new HashMap<>();
+
+    /**
+     * @param settings the tessellation settings, part of the chunk keys
+     */
+    public IncrementalAssembly(BodyCache cache, String settings) {
+        this.cache = cache;
+        this.settings = settings;
+    }
+
+    /**
+     * @return the key of the chunk of a body tessellated with the settings
+     */
+    public String chunkKey(String bodyHash) {
+        return sha256(bodyHash + "\n" + settings);
+    }
+
+    /**
+     * @return the keys without a cached chunk, in order
+     */
+    public List<String> missing(List<String> keys) {
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            if (!cache.contains(key)) {
+                missing.add(key);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Store the chunk of a body, empty if the body has no geometry.
+     *
+     * @param mtl the material library used by the chunk, may be shared with other chunks, null if there is none
+     */
+    public void store(String key, Path obj, Path mtl) throws IOException {
+        if (mtl == null || !Files.exists(mtl)) {
+            definitions = new HashMap<>();
+            definitionsFile = null;
+        } else if (!mtl.equals(definitionsFile)) {
+            definitions = readMaterials(mtl);
+            definitionsFile = mtl;
+        }
+        Path renamedObj = Files.createTempFile(obj.toAbsolutePath().getParent(), "chunk", ".obj");
+        Path chunkMtl = Files.createTempFile(obj.toAbsolutePath().getParent(), "chunk", ".mtl");
+        try {
+            Map<String, String> used = new LinkedHashMap<>();
+            try (BufferedReader reader = newReader(obj); Writer writer = newWriter(renamedObj)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("mtllib")) {
+                        continue;
+                    }
+                    if (line.startsWith(USEMTL)) {
+                        String name = line.substring(USEMTL.length()).trim();
+                        String definition = definitions.get(name);
+                        if (definition != null) {
+                            String renamed = "mat-" + sha256(definition).substring(0, 16);
+                            used.put(renamed, definition);
+                            line = USEMTL + " " + renamed;
+                        }
+                    }
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+            if (used.isEmpty()) {
+                cache.put(key, renamedObj, null);
+                return;
+            }
+            try (Writer writer = newWriter(chunkMtl)) {
+                for (Map.Entry<String, String> material : used.entrySet()) {
+                    writer.write(NEWMTL + " " + material.getKey() + "\n");
+                    writer.write(material.getValue());
+                }
+            }
+            cache.put(key, renamedObj, chunkMtl);
+        } finally {
+            Files.deleteIfExists(renamedObj);
+            Files.deleteIfExists(chunkMtl);
+        }
+    }
+
+    /**
+     * Merge the chunks of the bodies of a model.
+     *
+     * @param keys the chunk keys of the bodies, in order
+     * @return the model and its material library if any, null if a chunk is no longer cached
+     */
+    public ConversionResult stitch(List<String> keys, Path objFile, Path mtlFile) throws IOException {
+        List<Path> chunks = new ArrayList<>();
+        List<Path> mtls = new ArrayList<>();
+        for (String key : keys) {
+            Path chunk = cache.getObj(key);
+            if (chunk == null) {
+                return null;
+            }
+            chunks.add(chunk);
+            Path mtl = cache.getMtl(key);
+            if (mtl != null) {
+                mtls.add(mtl);
+            }
+        }
+        if (mtls.isEmpty()) {
+            new ObjMerger().merge(chunks, objFile, null);
+            return new ConversionResult(objFile);
+        }
+        ObjMerger.mergeMaterials(mtls, mtlFile);
+        new ObjMerger().merge(chunks, objFile, mtlFile);
+        List<Path> materials = new ArrayList<>();
+        materials.add(mtlFile);
+        return new ConversionResult(objFile, materials);
+    }
+
+    /**
+     * @return the definition of each material, without its name
+     */
+    private static Map<String, String> readMaterials(Path mtl) throws IOException {
+        Map<String, String> definitions = new HashMap<>();
+        try (BufferedReader reader = newReader(mtl)) {
+            String name = null;
+            StringBuilder definition = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.startsWith(NEWMTL)) {
+                    if (name != null) {
+                        definitions.putIfAbsent(name, definition.toString());
+                    }
+                    name = trimmed.substring(NEWMTL.length()).trim();
+                    definition.setLength(0);
+                } else if (name != null && !trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    definition.append(trimmed).append('\n');
+                }
+            }
+            if (name != null) {
+                definitions.putIfAbsent(name, definition.toString());
+            }
+        }
+        return definitions;
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return SubgraphHasher.toHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static BufferedReader newReader(Path file) throws IOException {
+        return new BufferedReader(new InputStreamReader(Files.newInputStream(file), CHARSET), BUFFER_SIZE);
+    }
+
+    private static Writer newWriter(Path file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), CHARSET), BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.incremental;
+
+import com.docdoku.server.converters.commons.mesh.MappedFileReader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entity instances of a STEP physical file (ISO 10303-21), the format of
+ * STEP and IFC models, with the references between them.
+ * <p>
+ * Each instance keeps its entity name and its parameters in a canonical
+ * form: whitespace and comments dropped, references replaced by a bare
+ * <code>#</code> and listed apart, so that two instances only differing by
+ * the numbering of the file compare equal.
+ */
+public class Part21Graph {
+
+    private static final long[] NO_REFERENCES = new long[0];
+
+    private final Map<Long, Instance> instances;
+
+    private Part21Graph(Map<Long, Instance> instances) {
+        this.instances = instances;
+    }
+
+    /**
+     * An entity instance. Complex instances have an empty entity name, their
+     * partial entities are part of the parameters.
+     */
+    public static class Instance {
+
+        private final long id;
+        private final String entity;
+        private final String parameters;
+        private final long[] references;
+
+        Instance(long id, String entity, String parameters, long[] references) {
+            this.id = id;
+            this.entity = entity;
+            this.parameters = parameters;
+            this.references = references;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return the upper case entity name
+         */
+        public String getEntity() {
+            return entity;
+        }
+
+        public String getParameters() {
+            return parameters;
+        }
+
+        /**
+         * @return the referenced instances, in order of appearance
+         */
+        public long[] getReferences() {
+            return references;
+        }
+
+        /**
+         * @return the first string parameter without its quotes, null if there is none
+         */
+        public String getFirstString() {
+            int start = parameters.indexOf('\'');
+            if (start < 0) {
+                return null;
+            }
+            StringBuilder value = new StringBuilder();
+            for (int i = start + 1; i < parameters.length(); i++) {
+                char c = parameters.charAt(i);
+                if (c == '\'') {
+                    if (i + 1 < parameters.length() && parameters.charAt(i + 1) == '\'') {
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                value.append(c);
+            }
+            return value.toString();
+        }
+    }
+
+    public static Part21Graph read(Path file) throws IOException {
+        Map<Long, Instance> instances = new LinkedHashMap<>();
+        Map<String, String> entityNames = new HashMap<>();
+        Parser parser = new Parser();
+        try (MappedFileReader reader = new MappedFileReader(file)) {
+            int c;
+            while ((c = reader.skipWhitespace()) != -1) {
+                if (c == '/') {
+                    reader.get();
+                    Parser.skipComment(reader);
+                    continue;
+                }
+                if (c != '#') {
+                    // Header and section statements
+                    parser.parameters(reader);
+                    continue;
+                }
+                reader.get();
+                long id = reader.readLong();
+                if (reader.skipWhitespace() != '=') {
+                    throw reader.syntaxError("=");
+                }
+                reader.get();
+                reader.skipWhitespace();
+                String entity = entityNames.computeIfAbsent(parser.name(reader), name -> name);
+                String parameters = parser.parameters(reader);
+                instances.put(id, new Instance(id, entity, parameters, parser.references()));
+            }
+        }
+        return new Part21Graph(instances);
+    }
+
+    public Instance get(long id) {
+        return instances.get(id);
+    }
+
+    public int size() {
+        return instances.size();
+    }
+
+    /**
+     * @return the instances of the file, in order of appearance
+     */
+    public Iterable<Instance> instances() {
+        return Collections.unmodifiableCollection(instances.values());
+    }
+
+    /**
+     * @return the instances referencing an instance of the given entity, in order of appearance
+     */
+    public List<Instance> referencing(String entity) {
+        List<Instance> referencing = new ArrayList<>();
+        for (Instance instance : instances.values()) {
+            for (long reference : instance.references) {
+                Instance referenced = instances.get(reference);
+                if (referenced != null && entity.equals(referenced.entity)) {
+                    referencing.add(instance);
+                    break;
+                }
+            }
+        }
+        return referencing;
+    }
+
+    private static class Parser {
+
+        private final StringBuilder text = new StringBuilder(256);
+        private long[] references = new long[16];
+        private int referenceCount;
+
+        String name(MappedFileReader reader) throws IOException {
+            text.setLength(0);
+            int c = reader.peek();
+            while (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_') {
+                text.append(Character.toUpperCase((char) c));
+                reader.get();
+                c = reader.peek();
+            }
+            return text.toString();
+        }
+
+        /**
+         * Read up to the end of the statement.
+         *
+         * @return the canonical parameters
+         */
+        String parameters(MappedFileReader reader) throws IOException {
+            text.setLength(0);
+            referenceCount = 0;
+            int c;
+            while ((c = reader.peek()) != -1) {
+                reader.get();
+                switch (c) {
+                    case ';':
+                        return text.toString();
+                    case ' ':
+                    case '\t':
+                    case '\r':
+                    case '\n':
+                    case '\f':
+                        break;
+                    case '\'':
+                        text.append('\'');
+                        copyString(reader);
+                        break;
+                    case '/':
+                        if (reader.peek() == '*') {
+                            skipComment(reader);
+                        } else {
+                            text.append('/');
+                        }
+                        break;
+                    case '#':
+                        text.append('#');
+                        if (referenceCount == references.length) {
+                            references = Arrays.copyOf(references, referenceCount * 2);
+                        }
+                        references[referenceCount++] = reader.readLong();
+                        break;
+                    default:
+                        text.append((char) (c & 0xFF));
+                        break;
+                }
+            }
+            return text.toString();
+        }
+
+        long[] references() {
+            return referenceCount == 0 ? NO_REFERENCES : Arrays.copyOf(references, referenceCount);
+        }
+
+        private void copyString(MappedFileReader reader) throws IOException {
+            while (reader.peek() != -1) {
+                byte b = reader.get();
+                text.append((char) (b & 0xFF));
+                if (b == '\'') {
+                    // Quotes are escaped by doubling them
+                    if (reader.peek() != '\'') {
+                        return;
+                    }
+                    text.append((char) reader.get());
+                }
+            }
+        }
+
+        static void skipComment(MappedFileReader reader) throws IOException {
+            if (reader.peek() != '*') {
+                return;
+            }
+            reader.get();
+            int previous = 0;
+            int c;
+            while ((c = reader.peek()) != -1) {
+                reader.get();
+                if (previous == '*' && c == '/') {
+                    return;
+                }
+                previous = c;
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.incremental;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hashes an instance of a {@link Part21Graph} together with everything it
+ * references, directly or not, ignoring the numbering of the instances: two
+ * bodies exported with the same geometry hash the same, whatever the rest of
+ * the file.
+ * <p>
+ * Some entities are better left out, such as the owner history of IFC
+ * files updated on every save: a reference to them only hashes their entity
+ * name. Others describe the instances they reference rather than the other
+ * way round, such as styled items: once attached, they are hashed as part
+ * of each instance they reference, without following that reference back.
+ * <p>
+ * Hashes are memoized, hashing many bodies sharing their definitions costs
+ * about one pass over the graph. Not thread-safe.
+ */
+public class SubgraphHasher {
+
+    private static final byte[] MISSING = "missing".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CYCLE = "cycle".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ATTACHED = "attached".getBytes(StandardCharsets.US_ASCII);
+
+    private final Part21Graph graph;
+    private final Set<String> ignoredEntities;
+    private final MessageDigest digest;
+
+    private final Map<Long, byte[]> hashes = new HashMap<>();
+    // Attached instances, by the instance they reference
+    private final Map<Long, List<Part21Graph.Instance>> attachments = new HashMap<>();
+
+    /**
+     * @param ignoredEntities entities whose content is left out
+     * @param attachedEntities entities hashed with the instances they reference
+     */
+    public SubgraphHasher(Part21Graph graph, Set<String> ignoredEntities, Set<String> attachedEntities) {
+        this.graph = graph;
+        this.ignoredEntities = ignoredEntities;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if (!attachedEntities.isEmpty()) {
+            for (Part21Graph.Instance instance : graph.instances()) {
+                if (attachedEntities.contains(instance.getEntity())) {
+                    for (long reference : instance.getReferences()) {
+                        attachments.computeIfAbsent(reference, id -> new ArrayList<>()).add(instance);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the hash of the instance and of its subgraph, in hexadecimal
+     */
+    public String hash(long id) {
+        return toHex(hashOf(id));
+    }
+
+    /**
+     * @param related instances hashed along, such as those of relations kept apart from the subgraph
+     * @return the hash of the instance and of its subgraph together with the subgraphs of the related
+     * instances, whatever their order, in hexadecimal; the hash of the instance alone if there are none
+     */
+    public String hash(long id, Collection<Long> related) {
+        byte[] hash = hashOf(id);
+        if (related.isEmpty()) {
+            return toHex(hash);
+        }
+        List<byte[]> relatedHashes = new ArrayList<>();
+        for (long relatedId : related) {
+            relatedHashes.add(hashOf(relatedId));
+        }
+        relatedHashes.sort(SubgraphHasher::compare);
+        digest.reset();
+        digest.update(hash);
+        for (byte[] relatedHash : relatedHashes) {
+            digest.update((byte) 2);
+            digest.update(relatedHash);
+        }
+        return toHex(digest.digest());
+    }
+
+    private byte[] hashOf(long root) {
+        byte[] known = hashes.get(root);
+        if (known != null) {
+            return known;
+        }
+        // Depth first, iterative as geometry chains can be deep
+        Set<Long> inProgress = new HashSet<>();
+        Deque<Long> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            long id = stack.peek();
+            if (hashes.containsKey(id)) {
+                stack.pop();
+                continue;
+            }
+            Part21Graph.Instance instance = graph.get(id);
+            if (instance == null || ignoredEntities.contains(instance.getEntity())) {
+                hashes.put(id, leafHash(instance));
+                stack.pop();
+                continue;
+            }
+            if (inProgress.add(id)) {
+                for (long reference : instance.getReferences()) {
+                    if (!hashes.containsKey(reference) && !inProgress.contains(reference)) {
+                        stack.push(reference);
+                    }
+                }
+                for (Part21Graph.Instance attached : attachments.getOrDefault(id, noAttachments())) {
+                    for (long reference : attached.getReferences()) {
+                        if (reference != id && !hashes.containsKey(reference)
+                                && !inProgress.contains(reference)) {
+                            stack.push(reference);
+                        }
+                    }
+                }
+                continue;
+            }
+            stack.pop();
+            inProgress.remove(id);
+            hashes.put(id, combine(instance, null));
+        }
+        return hashes.get(root);
+    }
+
+    private byte[] combine(Part21Graph.Instance instance, Part21Graph.Instance attachedTo) {
+        List<byte[]> attachedHashes = new ArrayList<>();
+        if (attachedTo == null) {
+            for (Part21Graph.Instance attached : attachments.getOrDefault(instance.getId(), noAttachments())) {
+                attachedHashes.add(combine(attached, instance));
+            }
+            // Independent of the order of the attached instances in the file
+            attachedHashes.sort(SubgraphHasher::compare);
+        }
+
+        digest.reset();
+        digest.update(instance.getEntity().getBytes(StandardCharsets.ISO_8859_1));
+        digest.update((byte) 0);
+        digest.update(instance.getParameters().getBytes(StandardCharsets.ISO_8859_1));
+        for (long reference : instance.getReferences()) {
+            digest.update((byte) 0);
+            if (attachedTo != null && reference == attachedTo.getId()) {
+                digest.update(ATTACHED);
+            } else {
+                byte[] referenced = hashes.get(reference);
+                digest.update(referenced != null ? referenced : CYCLE);
+            }
+        }
+        for (byte[] attached : attachedHashes) {
+            digest.update((byte) 1);
+            digest.update(attached);
+        }
+        return digest.digest();
+    }
+
+    private byte[] leafHash(Part21Graph.Instance instance) {
+        digest.reset();
+        digest.update(instance == null ? MISSING : instance.getEntity().getBytes(StandardCharsets.ISO_8859_1));
+        return digest.digest();
+    }
+
+    private static List<Part21Graph.Instance> noAttachments() {
+        return Collections.emptyList();
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.lod;
+
+import com.docdoku.server.converters.commons.mesh.MappedFileReader;
+import com.docdoku.server.converters.commons.mesh.MeshSimplifier;
+import com.docdoku.server.converters.commons.mesh.ObjWriter;
+import com.docdoku.server.converters.commons.mesh.TriangleMesh;
+import com.docdoku.server.converters.commons.mesh.VertexIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds decimated versions of an OBJ model, one per level of detail.
+ * <p>
+ * The model is read once into primitive arrays, its vertices welded by
+ * position so that the faces of a part are connected, then every level is
+ * decimated from it and written by its own fork/join task. Levels keep the
+ * material libraries and materials of the model, but not its normals and
+ * texture coordinates: the viewer computes the normals of coarse meshes.
+ */
+public class ObjLodGenerator {
+
+    private static final ForkJoinPool LOD_BUILDERS = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final List<String> materialLibraries = new ArrayList<>();
+    private final Map<String, Integer> materials = new LinkedHashMap<>();
+    private final TriangleMesh mesh = new TriangleMesh();
+
+    private ObjLodGenerator() {
+    }
+
+    /**
+     * Decimate the model unless it has fewer triangles than the given minimum.
+     *
+     * @param ratios the fraction of the triangles of the model to keep at each level
+     * @param lodFiles the file of each level
+     * @return the number of triangles of the model, the files are not written if it is below the minimum
+     */
+    public static int generate(Path objFile, double[] ratios, List<Path> lodFiles, int minTriangles)
+            throws IOException {
+        ObjLodGenerator generator = new ObjLodGenerator();
+        generator.read(objFile);
+        int triangleCount = generator.mesh.getTriangleCount();
+        if (triangleCount >= minTriangles) {
+            generator.writeLevels(ratios, lodFiles);
+        }
+        return triangleCount;
+    }
+
+    private void read(Path objFile) throws IOException {
+        VertexIndex vertices = new VertexIndex();
+        int[] welded = new int[1024];
+        int positionCount = 0;
+        int group = groupOf(null);
+        int[] face = new int[16];
+
+        try (MappedFileReader reader = new MappedFileReader(objFile)) {
+            int c;
+            while ((c = reader.skipWhitespace()) != -1) {
+                if (c == 'v') {
+                    reader.get();
+                    int type = reader.peek();
+                    if (type == ' ' || type == '\t') {
+                        if (positionCount == welded.length) {
+                            welded = Arrays.copyOf(welded, positionCount * 2);
+                        }
+                        welded[positionCount++] = vertices.add(reader.readFloat(), reader.readFloat(),
+                                reader.readFloat());
+                    }
+                    reader.skipLine();
+                } else if (c == 'f') {
+                    reader.get();
+                    int count = 0;
+                    while ((c = reader.skipBlanks()) != -1 && c != '\n' && c != '\r' && c != '#') {
+                        long index = reader.readLong();
+                        long resolved = index > 0 ? index - 1 : positionCount + index;
+                        if (index == 0 || resolved < 0 || resolved >= positionCount) {
+                            throw new IOException("Invalid index " + index + " before offset " + reader.position());
+                        }
+                        // Texture coordinate and normal references are dropped
+                        while ((c = reader.peek()) != -1 && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                            reader.get();
+                        }
+                        if (count == face.length) {
+                            face = Arrays.copyOf(face, count * 2);
+                        }
+                        face[count++] = welded[(int) resolved];
+                    }
+                    reader.skipLine();
+                    for (int i = 1; i + 1 < count; i++) {
+                        // Welding may leave degenerate triangles
+                        if (face[0] != face[i] && face[i] != face[i + 1] && face[0] != face[i + 1]) {
+                            mesh.addTriangle(face[0], face[i], face[i + 1], group);
+                        }
+                    }
+                } else if (reader.matchKeyword("usemtl")) {
+                    group = groupOf(reader.readLine().trim());
+                } else if (reader.matchKeyword("mtllib")) {
+                    materialLibraries.add(reader.readLine().trim());
+                } else {
+                    reader.skipLine();
+                }
+            }
+        }
+        for (int vertex = 0; vertex < vertices.size(); vertex++) {
+            mesh.addVertex(vertices.x(vertex), vertices.y(vertex), vertices.z(vertex));
+        }
+    }
+
+    private int groupOf(String material) {
+        return materials.computeIfAbsent(material, name -> materials.size());
+    }
+
+    private void writeLevels(double[] ratios, List<Path> lodFiles) throws IOException {
+        List<Level> levels = new ArrayList<>();
+        for (int level = 0; level < ratios.length; level++) {
+            levels.add(new Level((int) Math.round(mesh.getTriangleCount() * ratios[level]), lodFiles.get(level)));
+        }
+        LOD_BUILDERS.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                for (Level level : levels) {
+                    level.fork();
+                }
+                // Every level completes, so that no file is written after a failure is reported
+                for (Level level : levels) {
+                    level.join();
+                }
+            }
+        });
+        IOException failure = null;
+        for (Level level : levels) {
+            if (failure == null) {
+                failure = level.failure;
+            } else if (level.failure != null) {
+                failure.addSuppressed(level.failure);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void write(TriangleMesh lod, Path lodFile) throws IOException {
+        int groupCount = materials.size();
+        String[] names = materials.keySet().toArray(new String[groupCount]);
+        int[] groups = lod.getGroups();
+        int[] triangles = lod.getTriangles();
+        float[] positions = lod.getPositions();
+
+        // Faces are written material after material, sorted by counting
+        int[] groupStart = new int[groupCount + 1];
+        for (int triangle = 0; triangle < lod.getTriangleCount(); triangle++) {
+            groupStart[groups[triangle] + 1]++;
+        }
+        for (int g = 0; g < groupCount; g++) {
+            groupStart[g + 1] += groupStart[g];
+        }
+        int[] order = new int[lod.getTriangleCount()];
+        int[] next = Arrays.copyOf(groupStart, groupCount);
+        for (int triangle = 0; triangle < lod.getTriangleCount(); triangle++) {
+            order[next[groups[triangle]]++] = triangle;
+        }
+
+        try (ObjWriter writer = new ObjWriter(lodFile)) {
+            for (String library : materialLibraries) {
+                writer.statement("mtllib", library);
+            }
+            for (int i = 0; i < lod.getVertexCount() * 3; i += 3) {
+                writer.vertex(positions[i], positions[i + 1], positions[i + 2]);
+            }
+            for (int g = 0; g < groupCount; g++) {
+                if (groupStart[g] == groupStart[g + 1]) {
+                    continue;
+                }
+                if (names[g] != null) {
+                    writer.statement("usemtl", names[g]);
+                }
+                for (int i = groupStart[g]; i < groupStart[g + 1]; i++) {
+                    int triangle = order[i] * 3;
+                    writer.face(triangles[triangle], triangles[triangle + 1], triangles[triangle + 2]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(lodFile);
+            throw e;
+        }
+    }
+
+    private class Level extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int targetTriangles;
+        private final Path lodFile;
+        private IOException failure;
+
+        Level(int targetTriangles, Path lodFile) {
+            this.targetTriangles = targetTriangles;
+            this.lodFile = lodFile;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                write(MeshSimplifier.simplify(mesh, targetTriangles), lodFile);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential reader over a memory-mapped file, for the in-JVM mesh parsers.
+ * <p>
+ * The file is mapped through a sliding window so that files larger than 2 GB
+ * can be read. Binary values are read with the configured byte order, text
+ * helpers parse numbers straight from the mapped bytes without allocating.
+ */
+public class MappedFileReader implements Closeable {
+
+    private static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowPosition;
+    private int windowLimit;
+
+    public MappedFileReader(Path file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedFileReader(Path file, long windowSize) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        map(0);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long position() {
+        return windowStart + windowPosition;
+    }
+
+    public void position(long position) throws IOException {
+        if (position < 0 || position > size) {
+            throw new EOFException("Offset " + position + " is out of the file bounds");
+        }
+        if (position >= windowStart && position <= windowStart + windowLimit) {
+            windowPosition = (int) (position - windowStart);
+        } else {
+            map(position);
+        }
+    }
+
+    public boolean hasRemaining() {
+        return position() < size;
+    }
+
+    public long remaining() {
+        return size - position();
+    }
+
+    public void order(ByteOrder byteOrder) {
+        order = byteOrder;
+        window.order(byteOrder);
+    }
+
+    /**
+     * @return the next byte, or -1 at the end of the file
+     */
+    public int peek() throws IOException {
+        if (windowPosition == windowLimit) {
+            if (!hasRemaining()) {
+                return -1;
+            }
+            map(position());
+        }
+        return window.get(windowPosition) & 0xFF;
+    }
+
+    public byte get() throws IOException {
+        if (windowPosition == windowLimit) {
+            if (!hasRemaining()) {
+                throw new EOFException("Unexpected end of file at offset " + size);
+            }
+            map(position());
+        }
+        return window.get(windowPosition++);
+    }
+
+    public void skip(long bytes) throws IOException {
+        position(position() + bytes);
+    }
+
+    public short getShort() throws IOException {
+        ensure(Short.BYTES);
+        short value = window.getShort(windowPosition);
+        windowPosition += Short.BYTES;
+        return value;
+    }
+
+    public int getInt() throws IOException {
+        ensure(Integer.BYTES);
+        int value = window.getInt(windowPosition);
+        windowPosition += Integer.BYTES;
+        return value;
+    }
+
+    public long getLong() throws IOException {
+        ensure(Long.BYTES);
+        long value = window.getLong(windowPosition);
+        windowPosition += Long.BYTES;
+        return value;
+    }
+
+    public float getFloat() throws IOException {
+        ensure(Float.BYTES);
+        float value = window.getFloat(windowPosition);
+        windowPosition += Float.BYTES;
+        return value;
+    }
+
+    public double getDouble() throws IOException {
+        ensure(Double.BYTES);
+        double value = window.getDouble(windowPosition);
+        windowPosition += Double.BYTES;
+        return value;
+    }
+
+    /**
+     * Skip spaces and tabs, stopping at line ends.
+     *
+     * @return the next byte, or -1 at the end of the file
+     */
+    public int skipBlanks() throws IOException {
+        int c = peek();
+        while (c == ' ' || c == '\t') {
+            windowPosition++;
+            c = peek();
+        }
+        return c;
+    }
+
+    /**
+     * Skip any whitespace, line ends included.
+     *
+     * @return the next byte, or -1 at the end of the file
+     */
+    public int skipWhitespace() throws IOException {
+        int c = peek();
+        while (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f') {
+            windowPosition++;
+            c = peek();
+        }
+        return c;
+    }
+
+    /**
+     * Move after the next line feed.
+     */
+    public void skipLine() throws IOException {
+        int c = peek();
+        while (c != -1 && c != '\n') {
+            windowPosition++;
+            c = peek();
+        }
+        if (c == '\n') {
+            windowPosition++;
+        }
+    }
+
+    /**
+     * @return the next whitespace delimited token, or null at the end of the file
+     */
+    public String readToken() throws IOException {
+        int c = skipWhitespace();
+        if (c == -1) {
+            return null;
+        }
+        long start = position();
+        while (c != -1 && c != ' ' && c != '\t' && c != '\r' && c != '\n' && c != '\f') {
+            windowPosition++;
+            c = peek();
+        }
+        return text(start, position());
+    }
+
+    /**
+     * @return the rest of the current line without its line end, the reader is moved to the next line
+     */
+    public String readLine() throws IOException {
+        long start = position();
+        int c = peek();
+        while (c != -1 && c != '\n' && c != '\r') {
+            windowPosition++;
+            c = peek();
+        }
+        String line = text(start, position());
+        skipLine();
+        return line;
+    }
+
+    /**
+     * Consume the given keyword if it comes next, after optional whitespace.
+     * The comparison is case insensitive, the keyword must be lower case.
+     */
+    public boolean matchKeyword(String keyword) throws IOException {
+        skipWhitespace();
+        long start = position();
+        for (int i = 0; i < keyword.length(); i++) {
+            int c = peek();
+            if (c == -1 || Character.toLowerCase(c) != keyword.charAt(i)) {
+                position(start);
+                return false;
+            }
+            windowPosition++;
+        }
+        return true;
+    }
+
+    public int readInt() throws IOException {
+        return (int) readLong();
+    }
+
+    public long readLong() throws IOException {
+        int c = skipWhitespace();
+        boolean negative = false;
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            windowPosition++;
+            c = peek();
+        }
+        if (c < '0' || c > '9') {
+            throw syntaxError("integer");
+        }
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            windowPosition++;
+            c = peek();
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a decimal number, optionally signed and in scientific notation.
+     */
+    public float readFloat() throws IOException {
+        return (float) readDouble();
+    }
+
+    public double readDouble() throws IOException {
+        int c = skipWhitespace();
+        boolean negative = false;
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            windowPosition++;
+            c = peek();
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean seenDigit = false;
+        while (c >= '0' && c <= '9') {
+            seenDigit = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+            windowPosition++;
+            c = peek();
+        }
+        if (c == '.') {
+            windowPosition++;
+            c = peek();
+            while (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                }
+                windowPosition++;
+                c = peek();
+            }
+        }
+        if (!seenDigit) {
+            return parseSpecial(negative);
+        }
+        if (c == 'e' || c == 'E') {
+            windowPosition++;
+            c = peek();
+            boolean negativeExponent = false;
+            if (c == '-' || c == '+') {
+                negativeExponent = c == '-';
+                windowPosition++;
+                c = peek();
+            }
+            if (c < '0' || c > '9') {
+                throw syntaxError("exponent");
+            }
+            int explicitExponent = 0;
+            while (c >= '0' && c <= '9') {
+                if (explicitExponent < 10000) {
+                    explicitExponent = explicitExponent * 10 + (c - '0');
+                }
+                windowPosition++;
+                c = peek();
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value / Math.pow(10, -exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    public IOException syntaxError(String expected) throws IOException {
+        int c = peek();
+        String found = c == -1 ? "end of file" : "'" + (char) c + "'";
+        return new IOException("Expected " + expected + " at offset " + position() + ", found " + found);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private double parseSpecial(boolean negative) throws IOException {
+        if (matchKeyword("nan")) {
+            return Double.NaN;
+        }
+        if (matchKeyword("inf")) {
+            matchKeyword("inity");
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        throw syntaxError("number");
+    }
+
+    private String text(long start, long end) throws IOException {
+        byte[] bytes = new byte[(int) (end - start)];
+        long current = position();
+        position(start);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = get();
+        }
+        position(current);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (windowLimit - windowPosition < bytes) {
+            if (remaining() < bytes) {
+                throw new EOFException("Unexpected end of file at offset " + position());
+            }
+            map(position());
+        }
+    }
+
+    private void map(long position) throws IOException {
+        long length = Math.min(windowSize, size - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        window.order(order);
+        windowStart = position;
+        windowPosition = 0;
+        windowLimit = (int) length;
+    }
+}
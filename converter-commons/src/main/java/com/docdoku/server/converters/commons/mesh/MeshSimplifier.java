@@ -0,0 +1,557 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Decimates triangle meshes by quadric error edge collapse.
+ * <p>
+ * Each vertex accumulates the quadric of the planes of its triangles and edges
+ * are collapsed to the position minimizing the sum of the quadrics of their
+ * ends, cheapest first. Instead of a priority queue, the edges are swept with
+ * an error threshold raised at each pass, which only needs the primitive
+ * arrays of the mesh and the vertex to triangle references, rebuilt every few
+ * passes. Collapses flipping a triangle or moving a border vertex inward are
+ * rejected, and border edges add the quadric of a plane orthogonal to their
+ * triangle so that open surfaces keep their outline. Triangles keep their
+ * group.
+ * <p>
+ * The source mesh is only read, so several levels of detail may be computed
+ * from it concurrently.
+ */
+public class MeshSimplifier {
+
+    private static final int MAX_PASSES = 100;
+    private static final int PASSES_BETWEEN_UPDATES = 5;
+    private static final double AGGRESSIVENESS = 7;
+    private static final double MIN_DETERMINANT = 1e-12;
+    private static final double BORDER_WEIGHT = 10;
+
+    private final double[] center = new double[3];
+    private double scale = 1;
+
+    private int vertexCount;
+    private double[] positions;
+    private double[] quadrics;
+    private boolean[] border;
+    private int[] refStart;
+    private int[] refCount;
+
+    private int triangleCount;
+    private int liveTriangles;
+    private int[] triangles;
+    private int[] groups;
+    private double[] normals;
+    private double[] errors;
+    private boolean[] deleted;
+    private boolean[] dirty;
+
+    private int refSize;
+    private int[] refTriangles;
+    private int[] refCorners;
+
+    private boolean[] collapsed0 = new boolean[16];
+    private boolean[] collapsed1 = new boolean[16];
+    private final double[] point = new double[3];
+    private final double[] edgeQuadric = new double[10];
+    private final double[] direction1 = new double[3];
+    private final double[] direction2 = new double[3];
+
+    private MeshSimplifier(TriangleMesh mesh) {
+        vertexCount = mesh.getVertexCount();
+        triangleCount = mesh.getTriangleCount();
+        liveTriangles = triangleCount;
+        triangles = Arrays.copyOf(mesh.getTriangles(), triangleCount * 3);
+        groups = Arrays.copyOf(mesh.getGroups(), triangleCount);
+        normals = new double[triangleCount * 3];
+        errors = new double[triangleCount * 4];
+        deleted = new boolean[triangleCount];
+        dirty = new boolean[triangleCount];
+        quadrics = new double[vertexCount * 10];
+        border = new boolean[vertexCount];
+        refStart = new int[vertexCount];
+        refCount = new int[vertexCount];
+        refTriangles = new int[triangleCount * 3];
+        refCorners = new int[triangleCount * 3];
+        normalize(mesh.getPositions());
+    }
+
+    /**
+     * @param mesh the mesh to decimate, left unchanged
+     * @param targetTriangles the number of triangles to reach, when possible
+     * @return a new mesh of at most the given number of triangles if the
+     * target was reached, without the vertices no longer used
+     */
+    public static TriangleMesh simplify(TriangleMesh mesh, int targetTriangles) {
+        MeshSimplifier simplifier = new MeshSimplifier(mesh);
+        simplifier.collapse(Math.max(0, targetTriangles));
+        return simplifier.toMesh();
+    }
+
+    private void normalize(float[] source) {
+        // Error thresholds assume a model of unit size
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int i = 0; i < vertexCount * 3; i++) {
+            min[i % 3] = Math.min(min[i % 3], source[i]);
+            max[i % 3] = Math.max(max[i % 3], source[i]);
+        }
+        double extent = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            center[axis] = vertexCount > 0 ? (min[axis] + max[axis]) / 2 : 0;
+            extent = Math.max(extent, max[axis] - min[axis]);
+        }
+        scale = extent > 0 && Double.isFinite(extent) ? extent : 1;
+        positions = new double[vertexCount * 3];
+        for (int i = 0; i < vertexCount * 3; i++) {
+            positions[i] = (source[i] - center[i % 3]) / scale;
+        }
+    }
+
+    private void collapse(int targetTriangles) {
+        for (int pass = 0; pass < MAX_PASSES && liveTriangles > targetTriangles; pass++) {
+            if (pass % PASSES_BETWEEN_UPDATES == 0) {
+                update(pass == 0);
+            }
+            Arrays.fill(dirty, 0, triangleCount, false);
+            double threshold = 1e-9 * Math.pow(pass + 3, AGGRESSIVENESS);
+
+            for (int triangle = 0; triangle < triangleCount && liveTriangles > targetTriangles; triangle++) {
+                if (errors[triangle * 4 + 3] > threshold || deleted[triangle] || dirty[triangle]) {
+                    continue;
+                }
+                for (int corner = 0; corner < 3; corner++) {
+                    if (errors[triangle * 4 + corner] <= threshold
+                            && collapseEdge(triangles[triangle * 3 + corner],
+                            triangles[triangle * 3 + (corner + 1) % 3])) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Collapse the second vertex of the edge into the first one, if it keeps the surface valid.
+     */
+    private boolean collapseEdge(int v0, int v1) {
+        if (border[v0] != border[v1]) {
+            return false;
+        }
+        edgeError(v0, v1);
+        if (collapsed0.length < refCount[v0]) {
+            collapsed0 = new boolean[refCount[v0] * 2];
+        }
+        if (collapsed1.length < refCount[v1]) {
+            collapsed1 = new boolean[refCount[v1] * 2];
+        }
+        if (flipped(v0, v1, collapsed0) || flipped(v1, v0, collapsed1)) {
+            return false;
+        }
+
+        System.arraycopy(point, 0, positions, v0 * 3, 3);
+        for (int i = 0; i < 10; i++) {
+            quadrics[v0 * 10 + i] += quadrics[v1 * 10 + i];
+        }
+        int start = refSize;
+        updateTriangles(v0, v0, collapsed0);
+        updateTriangles(v0, v1, collapsed1);
+        int count = refSize - start;
+        if (count <= refCount[v0]) {
+            // The references fit in place, reclaim the space they were appended to
+            System.arraycopy(refTriangles, start, refTriangles, refStart[v0], count);
+            System.arraycopy(refCorners, start, refCorners, refStart[v0], count);
+            refSize = start;
+        } else {
+            refStart[v0] = start;
+        }
+        refCount[v0] = count;
+        return true;
+    }
+
+    /**
+     * @param collapsed set for each triangle of the vertex, whether it disappears with the edge
+     * @return true if moving the vertex to the collapse point flips or degenerates one of its triangles
+     */
+    private boolean flipped(int vertex, int other, boolean[] collapsed) {
+        for (int k = 0; k < refCount[vertex]; k++) {
+            int ref = refStart[vertex] + k;
+            int triangle = refTriangles[ref];
+            if (deleted[triangle]) {
+                continue;
+            }
+            int corner = refCorners[ref];
+            int id1 = triangles[triangle * 3 + (corner + 1) % 3];
+            int id2 = triangles[triangle * 3 + (corner + 2) % 3];
+            if (id1 == other || id2 == other) {
+                collapsed[k] = true;
+                continue;
+            }
+            collapsed[k] = false;
+            if (!direction(id1, direction1) || !direction(id2, direction2)) {
+                return true;
+            }
+            double dot = direction1[0] * direction2[0] + direction1[1] * direction2[1]
+                    + direction1[2] * direction2[2];
+            if (Math.abs(dot) > 0.999) {
+                return true;
+            }
+            double nx = direction1[1] * direction2[2] - direction1[2] * direction2[1];
+            double ny = direction1[2] * direction2[0] - direction1[0] * direction2[2];
+            double nz = direction1[0] * direction2[1] - direction1[1] * direction2[0];
+            double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if ((nx * normals[triangle * 3] + ny * normals[triangle * 3 + 1] + nz * normals[triangle * 3 + 2])
+                    < 0.2 * length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the vertex lies on the collapse point
+     */
+    private boolean direction(int vertex, double[] direction) {
+        double length = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            direction[axis] = positions[vertex * 3 + axis] - point[axis];
+            length += direction[axis] * direction[axis];
+        }
+        if (length == 0) {
+            return false;
+        }
+        length = Math.sqrt(length);
+        for (int axis = 0; axis < 3; axis++) {
+            direction[axis] /= length;
+        }
+        return true;
+    }
+
+    /**
+     * Move the triangles of a collapsed vertex to the vertex kept, dropping those
+     * which contained the edge, and append their references.
+     */
+    private void updateTriangles(int kept, int vertex, boolean[] collapsed) {
+        int start = refStart[vertex];
+        int count = refCount[vertex];
+        for (int k = 0; k < count; k++) {
+            int triangle = refTriangles[start + k];
+            int corner = refCorners[start + k];
+            if (deleted[triangle]) {
+                continue;
+            }
+            if (collapsed[k]) {
+                deleted[triangle] = true;
+                liveTriangles--;
+                continue;
+            }
+            triangles[triangle * 3 + corner] = kept;
+            dirty[triangle] = true;
+            computeNormal(triangle);
+            computeErrors(triangle);
+            addRef(triangle, corner);
+        }
+    }
+
+    private void update(boolean first) {
+        if (!first) {
+            compactTriangles();
+        } else {
+            for (int triangle = 0; triangle < triangleCount; triangle++) {
+                computeNormal(triangle);
+                addPlaneQuadric(triangle);
+            }
+        }
+        buildRefs();
+        if (first) {
+            findBorders();
+            for (int triangle = 0; triangle < triangleCount; triangle++) {
+                computeErrors(triangle);
+            }
+        }
+    }
+
+    private void compactTriangles() {
+        int kept = 0;
+        for (int triangle = 0; triangle < triangleCount; triangle++) {
+            if (deleted[triangle]) {
+                continue;
+            }
+            if (kept != triangle) {
+                System.arraycopy(triangles, triangle * 3, triangles, kept * 3, 3);
+                System.arraycopy(normals, triangle * 3, normals, kept * 3, 3);
+                System.arraycopy(errors, triangle * 4, errors, kept * 4, 4);
+                groups[kept] = groups[triangle];
+                deleted[kept] = false;
+            }
+            kept++;
+        }
+        triangleCount = kept;
+    }
+
+    private void buildRefs() {
+        Arrays.fill(refCount, 0);
+        for (int i = 0; i < triangleCount * 3; i++) {
+            refCount[triangles[i]]++;
+        }
+        int start = 0;
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            refStart[vertex] = start;
+            start += refCount[vertex];
+            refCount[vertex] = 0;
+        }
+        for (int i = 0; i < triangleCount * 3; i++) {
+            int vertex = triangles[i];
+            int ref = refStart[vertex] + refCount[vertex]++;
+            refTriangles[ref] = i / 3;
+            refCorners[ref] = i % 3;
+        }
+        refSize = start;
+    }
+
+    private void findBorders() {
+        // An edge used by a single triangle is on a border: its far vertex
+        // appears once among the triangles around the near one
+        int[] neighbours = new int[16];
+        int[] occurrences = new int[16];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            int neighbourCount = 0;
+            for (int k = 0; k < refCount[vertex]; k++) {
+                int triangle = refTriangles[refStart[vertex] + k];
+                for (int corner = 0; corner < 3; corner++) {
+                    int id = triangles[triangle * 3 + corner];
+                    int found = 0;
+                    while (found < neighbourCount && neighbours[found] != id) {
+                        found++;
+                    }
+                    if (found == neighbourCount) {
+                        if (neighbourCount == neighbours.length) {
+                            neighbours = Arrays.copyOf(neighbours, neighbourCount * 2);
+                            occurrences = Arrays.copyOf(occurrences, neighbourCount * 2);
+                        }
+                        neighbours[neighbourCount] = id;
+                        occurrences[neighbourCount++] = 1;
+                    } else {
+                        occurrences[found]++;
+                    }
+                }
+            }
+            for (int i = 0; i < neighbourCount; i++) {
+                if (occurrences[i] == 1) {
+                    border[neighbours[i]] = true;
+                    if (vertex < neighbours[i]) {
+                        addBorderQuadric(vertex, neighbours[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addBorderQuadric(int v0, int v1) {
+        int triangle = -1;
+        for (int k = 0; k < refCount[v0] && triangle < 0; k++) {
+            int candidate = refTriangles[refStart[v0] + k];
+            for (int corner = 0; corner < 3; corner++) {
+                if (triangles[candidate * 3 + corner] == v1) {
+                    triangle = candidate;
+                }
+            }
+        }
+        double ex = positions[v1 * 3] - positions[v0 * 3];
+        double ey = positions[v1 * 3 + 1] - positions[v0 * 3 + 1];
+        double ez = positions[v1 * 3 + 2] - positions[v0 * 3 + 2];
+        double nx = normals[triangle * 3];
+        double ny = normals[triangle * 3 + 1];
+        double nz = normals[triangle * 3 + 2];
+        double a = ey * nz - ez * ny;
+        double b = ez * nx - ex * nz;
+        double c = ex * ny - ey * nx;
+        double length = Math.sqrt(a * a + b * b + c * c);
+        if (length == 0) {
+            return;
+        }
+        a /= length;
+        b /= length;
+        c /= length;
+        double d = -(a * positions[v0 * 3] + b * positions[v0 * 3 + 1] + c * positions[v0 * 3 + 2]);
+        addQuadric(v0, a, b, c, d, BORDER_WEIGHT);
+        addQuadric(v1, a, b, c, d, BORDER_WEIGHT);
+    }
+
+    private void addRef(int triangle, int corner) {
+        if (refSize == refTriangles.length) {
+            refTriangles = Arrays.copyOf(refTriangles, refSize * 3 / 2 + 16);
+            refCorners = Arrays.copyOf(refCorners, refTriangles.length);
+        }
+        refTriangles[refSize] = triangle;
+        refCorners[refSize++] = corner;
+    }
+
+    private void computeNormal(int triangle) {
+        int a = triangles[triangle * 3] * 3;
+        int b = triangles[triangle * 3 + 1] * 3;
+        int c = triangles[triangle * 3 + 2] * 3;
+        double abX = positions[b] - positions[a];
+        double abY = positions[b + 1] - positions[a + 1];
+        double abZ = positions[b + 2] - positions[a + 2];
+        double acX = positions[c] - positions[a];
+        double acY = positions[c + 1] - positions[a + 1];
+        double acZ = positions[c + 2] - positions[a + 2];
+        double nx = abY * acZ - abZ * acY;
+        double ny = abZ * acX - abX * acZ;
+        double nz = abX * acY - abY * acX;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        double inverse = length > 0 ? 1 / length : 0;
+        normals[triangle * 3] = nx * inverse;
+        normals[triangle * 3 + 1] = ny * inverse;
+        normals[triangle * 3 + 2] = nz * inverse;
+    }
+
+    private void addPlaneQuadric(int triangle) {
+        double a = normals[triangle * 3];
+        double b = normals[triangle * 3 + 1];
+        double c = normals[triangle * 3 + 2];
+        int first = triangles[triangle * 3] * 3;
+        double d = -(a * positions[first] + b * positions[first + 1] + c * positions[first + 2]);
+        for (int corner = 0; corner < 3; corner++) {
+            addQuadric(triangles[triangle * 3 + corner], a, b, c, d, 1);
+        }
+    }
+
+    private void addQuadric(int vertex, double a, double b, double c, double d, double weight) {
+        int q = vertex * 10;
+        quadrics[q] += weight * a * a;
+        quadrics[q + 1] += weight * a * b;
+        quadrics[q + 2] += weight * a * c;
+        quadrics[q + 3] += weight * a * d;
+        quadrics[q + 4] += weight * b * b;
+        quadrics[q + 5] += weight * b * c;
+        quadrics[q + 6] += weight * b * d;
+        quadrics[q + 7] += weight * c * c;
+        quadrics[q + 8] += weight * c * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    private void computeErrors(int triangle) {
+        double min = Double.MAX_VALUE;
+        for (int corner = 0; corner < 3; corner++) {
+            double error = edgeError(triangles[triangle * 3 + corner], triangles[triangle * 3 + (corner + 1) % 3]);
+            errors[triangle * 4 + corner] = error;
+            min = Math.min(min, error);
+        }
+        errors[triangle * 4 + 3] = min;
+    }
+
+    /**
+     * @return the error of collapsing the edge, whose target position is left in {@link #point}
+     */
+    private double edgeError(int v0, int v1) {
+        double[] q = edgeQuadric;
+        for (int i = 0; i < 10; i++) {
+            q[i] = quadrics[v0 * 10 + i] + quadrics[v1 * 10 + i];
+        }
+        int p0 = v0 * 3;
+        int p1 = v1 * 3;
+
+        if (!(border[v0] && border[v1])) {
+            // Solve the gradient of the quadric for zero by Cramer's rule
+            double det = det3(q[0], q[1], q[2], q[1], q[4], q[5], q[2], q[5], q[7]);
+            if (Math.abs(det) > MIN_DETERMINANT) {
+                double x = -det3(q[3], q[1], q[2], q[6], q[4], q[5], q[8], q[5], q[7]) / det;
+                double y = -det3(q[0], q[3], q[2], q[1], q[6], q[5], q[2], q[8], q[7]) / det;
+                double z = -det3(q[0], q[1], q[3], q[1], q[4], q[6], q[2], q[5], q[8]) / det;
+                // Nearly flat neighbourhoods may put the optimum far away along the surface
+                double dx = x - (positions[p0] + positions[p1]) / 2;
+                double dy = y - (positions[p0 + 1] + positions[p1 + 1]) / 2;
+                double dz = z - (positions[p0 + 2] + positions[p1 + 2]) / 2;
+                double ex = positions[p1] - positions[p0];
+                double ey = positions[p1 + 1] - positions[p0 + 1];
+                double ez = positions[p1 + 2] - positions[p0 + 2];
+                if (dx * dx + dy * dy + dz * dz <= 4 * (ex * ex + ey * ey + ez * ez)) {
+                    point[0] = x;
+                    point[1] = y;
+                    point[2] = z;
+                    return quadricError(q, x, y, z);
+                }
+            }
+        }
+
+        // Otherwise the best of the ends and the middle of the edge
+        double best = Double.MAX_VALUE;
+        for (int candidate = 0; candidate < 3; candidate++) {
+            double weight0 = candidate == 0 ? 1 : candidate == 1 ? 0 : 0.5;
+            double x = positions[p0] * weight0 + positions[p1] * (1 - weight0);
+            double y = positions[p0 + 1] * weight0 + positions[p1 + 1] * (1 - weight0);
+            double z = positions[p0 + 2] * weight0 + positions[p1 + 2] * (1 - weight0);
+            double error = quadricError(q, x, y, z);
+            if (error < best) {
+                best = error;
+                point[0] = x;
+                point[1] = y;
+                point[2] = z;
+            }
+        }
+        return best;
+    }
+
+    private static double quadricError(double[] q, double x, double y, double z) {
+        return q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3] * x
+                + q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y
+                + q[7] * z * z + 2 * q[8] * z + q[9];
+    }
+
+    private static double det3(double a11, double a12, double a13,
+                               double a21, double a22, double a23,
+                               double a31, double a32, double a33) {
+        return a11 * (a22 * a33 - a23 * a32) - a12 * (a21 * a33 - a23 * a31) + a13 * (a21 * a32 - a22 * a31);
+    }
+
+    private TriangleMesh toMesh() {
+        compactTriangles();
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int used = 0;
+        for (int i = 0; i < triangleCount * 3; i++) {
+            if (remap[triangles[i]] < 0) {
+                remap[triangles[i]] = used++;
+            }
+        }
+        TriangleMesh mesh = new TriangleMesh(used, triangleCount);
+        float[] coordinates = new float[used * 3];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            if (remap[vertex] >= 0) {
+                for (int axis = 0; axis < 3; axis++) {
+                    coordinates[remap[vertex] * 3 + axis] =
+                            (float) (positions[vertex * 3 + axis] * scale + center[axis]);
+                }
+            }
+        }
+        for (int vertex = 0; vertex < used; vertex++) {
+            mesh.addVertex(coordinates[vertex * 3], coordinates[vertex * 3 + 1], coordinates[vertex * 3 + 2]);
+        }
+        for (int triangle = 0; triangle < triangleCount; triangle++) {
+            mesh.addTriangle(remap[triangles[triangle * 3]], remap[triangles[triangle * 3 + 1]],
+                    remap[triangles[triangle * 3 + 2]], groups[triangle]);
+        }
+        return mesh;
+    }
+}
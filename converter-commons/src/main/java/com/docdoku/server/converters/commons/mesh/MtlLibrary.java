@@ -0,0 +1,214 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The materials of Wavefront MTL files, reduced to what the viewers render:
+ * diffuse colour and texture, specular colour and exponent, opacity.
+ */
+public class MtlLibrary {
+
+    public static class Material {
+
+        private final String name;
+        private float[] diffuse = {0.8f, 0.8f, 0.8f};
+        private float[] specular;
+        private float specularExponent = -1;
+        private float opacity = 1;
+        private String diffuseTexture;
+
+        Material(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public float[] getDiffuse() {
+            return diffuse;
+        }
+
+        /**
+         * @return the specular colour, null if unspecified
+         */
+        public float[] getSpecular() {
+            return specular;
+        }
+
+        /**
+         * @return the specular exponent, negative if unspecified
+         */
+        public float getSpecularExponent() {
+            return specularExponent;
+        }
+
+        public float getOpacity() {
+            return opacity;
+        }
+
+        /**
+         * @return the diffuse texture path as written in the library, null if there is none
+         */
+        public String getDiffuseTexture() {
+            return diffuseTexture;
+        }
+    }
+
+    private final Map<String, Material> materials = new LinkedHashMap<>();
+
+    /**
+     * Read the given libraries, the first definition of a material wins.
+     */
+    public static MtlLibrary read(List<Path> mtlFiles) throws IOException {
+        MtlLibrary library = new MtlLibrary();
+        for (Path mtlFile : mtlFiles) {
+            library.parse(mtlFile);
+        }
+        return library;
+    }
+
+    /**
+     * @return the material of the given name, null if it is not defined
+     */
+    public Material get(String name) {
+        return materials.get(name);
+    }
+
+    public Collection<Material> getMaterials() {
+        return Collections.unmodifiableCollection(materials.values());
+    }
+
+    private void parse(Path mtlFile) throws IOException {
+        // Decoded as the OBJ material names are, malformed bytes are replaced
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(mtlFile), StandardCharsets.UTF_8))) {
+            Material material = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                int space = line.indexOf(' ');
+                if (line.isEmpty() || line.charAt(0) == '#' || space < 0) {
+                    continue;
+                }
+                String keyword = line.substring(0, space);
+                String value = line.substring(space + 1).trim();
+                if ("newmtl".equals(keyword)) {
+                    material = materials.containsKey(value) ? null : new Material(value);
+                    if (material != null) {
+                        materials.put(value, material);
+                    }
+                } else if (material != null) {
+                    parseStatement(material, keyword, value);
+                }
+            }
+        }
+    }
+
+    private static void parseStatement(Material material, String keyword, String value) {
+        try {
+            switch (keyword) {
+                case "Kd":
+                    material.diffuse = parseColor(value, material.diffuse);
+                    break;
+                case "Ks":
+                    material.specular = parseColor(value, material.specular);
+                    break;
+                case "Ns":
+                    material.specularExponent = Float.parseFloat(value);
+                    break;
+                case "d":
+                    material.opacity = Float.parseFloat(lastToken(value));
+                    break;
+                case "Tr":
+                    material.opacity = 1 - Float.parseFloat(lastToken(value));
+                    break;
+                case "map_Kd":
+                    material.diffuseTexture = textureFile(value);
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // Ignored, as viewers do
+        }
+    }
+
+    private static float[] parseColor(String value, float[] defaultColor) {
+        String[] tokens = value.split("\\s+");
+        if ("spectral".equals(tokens[0]) || "xyz".equals(tokens[0])) {
+            return defaultColor;
+        }
+        float r = Float.parseFloat(tokens[0]);
+        float g = tokens.length > 2 ? Float.parseFloat(tokens[1]) : r;
+        float b = tokens.length > 2 ? Float.parseFloat(tokens[2]) : r;
+        return new float[]{r, g, b};
+    }
+
+    /**
+     * @return the file name of a texture statement, after its options
+     */
+    public static String textureFile(String value) {
+        String[] tokens = value.split("\\s+");
+        int i = 0;
+        while (i < tokens.length - 1 && tokens[i].startsWith("-")) {
+            String option = tokens[i++];
+            if ("-o".equals(option) || "-s".equals(option) || "-t".equals(option) || "-mm".equals(option)) {
+                // Up to 3 numbers
+                int max = "-mm".equals(option) ? 2 : 3;
+                for (int n = 0; n < max && i < tokens.length - 1 && isNumber(tokens[i]); n++) {
+                    i++;
+                }
+            } else {
+                i++;
+            }
+        }
+        // File names may contain spaces
+        return String.join(" ", Arrays.copyOfRange(tokens, i, tokens.length));
+    }
+
+    private static boolean isNumber(String token) {
+        try {
+            Float.parseFloat(token);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String lastToken(String value) {
+        int space = Math.max(value.lastIndexOf(' '), value.lastIndexOf('\t'));
+        return space < 0 ? value : value.substring(space + 1);
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import com.docdoku.server.converters.commons.Json;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Splits an OBJ model into spatially coherent chunks of a bounded number of
+ * triangles, so that viewers can fetch and render a large model piece by
+ * piece.
+ * <p>
+ * Triangles are split k-d tree fashion: each node is cut at the median of
+ * the triangle centroids along its longest axis, until the leaves are small
+ * enough. Each chunk keeps the triangle order of the model and the
+ * statements in effect for its triangles, <code>mtllib</code>,
+ * <code>usemtl</code>, groups... Vertex attributes are numbered per chunk.
+ * <p>
+ * The model is held in memory while split.
+ */
+public final class ObjChunker {
+
+    private ObjChunker() {
+    }
+
+    /**
+     * A chunk file with the number of its triangles and vertices, and its bounds.
+     */
+    public static class Chunk {
+
+        private final Path file;
+        private final int triangleCount;
+        private final int vertexCount;
+        private final float[] min;
+        private final float[] max;
+
+        Chunk(Path file, int triangleCount, int vertexCount, float[] min, float[] max) {
+            this.file = file;
+            this.triangleCount = triangleCount;
+            this.vertexCount = vertexCount;
+            this.min = min;
+            this.max = max;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public int getTriangleCount() {
+            return triangleCount;
+        }
+
+        public int getVertexCount() {
+            return vertexCount;
+        }
+
+        public float[] getMin() {
+            return min.clone();
+        }
+
+        public float[] getMax() {
+            return max.clone();
+        }
+    }
+
+    /**
+     * @param maxTriangles the maximum number of triangles of a chunk
+     * @param chunkFiles   the file of each chunk, from its index
+     * @return the chunks written, in k-d tree order, null if the model is not
+     * supported or small enough to be kept whole
+     */
+    public static List<Chunk> split(Path objFile, int maxTriangles, IntFunction<Path> chunkFiles) throws IOException {
+        ObjModel model = ObjModel.read(objFile);
+        if (model == null || model.triangleCount <= maxTriangles) {
+            return null;
+        }
+        float[] centroids = centroids(model);
+        int[] triangles = new int[model.triangleCount];
+        for (int i = 0; i < triangles.length; i++) {
+            triangles[i] = i;
+        }
+
+        // Leaves as [from, to) ranges of the triangle array, left to right
+        List<int[]> leaves = new ArrayList<>();
+        Deque<int[]> nodes = new ArrayDeque<>();
+        nodes.push(new int[]{0, triangles.length});
+        while (!nodes.isEmpty()) {
+            int[] node = nodes.pop();
+            int from = node[0];
+            int to = node[1];
+            if (to - from <= maxTriangles) {
+                leaves.add(node);
+                continue;
+            }
+            int middle = (from + to) >>> 1;
+            select(triangles, from, to, middle, centroids, longestAxis(triangles, from, to, centroids));
+            nodes.push(new int[]{middle, to});
+            nodes.push(new int[]{from, middle});
+        }
+
+        String[] keywords = new String[model.statements.size()];
+        for (int i = 0; i < keywords.length; i++) {
+            keywords[i] = model.statements.get(i).split("\\s+", 2)[0].toLowerCase(Locale.ROOT);
+        }
+        ChunkWriter writer = new ChunkWriter(model, keywords);
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            for (int[] leaf : leaves) {
+                // Back to the model order, statements apply to the triangles after them
+                Arrays.sort(triangles, leaf[0], leaf[1]);
+                chunks.add(writer.write(chunkFiles.apply(chunks.size()), triangles, leaf[0], leaf[1]));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = 0; i <= chunks.size(); i++) {
+                Files.deleteIfExists(chunkFiles.apply(i));
+            }
+            throw e;
+        }
+        return chunks;
+    }
+
+    /**
+     * Write the manifest of the chunks, file names relative to the manifest:
+     * <pre>
+     * {"triangles":24,"chunks":[
+     * {"file":"part_chunk1.obj","triangles":12,"vertices":8,"bounds":{"min":[0,0,0],"max":[1,1,1]}},
+     * ...]}
+     * </pre>
+     */
+    public static void writeManifest(List<Chunk> chunks, Path jsonFile) throws IOException {
+        long triangles = 0;
+        for (Chunk chunk : chunks) {
+            triangles += chunk.triangleCount;
+        }
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(jsonFile, StandardCharsets.UTF_8))) {
+            writer.write("{\"triangles\":" + triangles + ",\"chunks\":[");
+            boolean first = true;
+            for (Chunk chunk : chunks) {
+                writer.write((first ? "\n" : ",\n") + "{\"file\":" + Json.quote(chunk.file.getFileName().toString())
+                        + ",\"triangles\":" + chunk.triangleCount
+                        + ",\"vertices\":" + chunk.vertexCount
+                        + ",\"bounds\":{\"min\":[" + chunk.min[0] + "," + chunk.min[1] + "," + chunk.min[2]
+                        + "],\"max\":[" + chunk.max[0] + "," + chunk.max[1] + "," + chunk.max[2] + "]}}");
+                first = false;
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    private static float[] centroids(ObjModel model) {
+        float[] centroids = new float[model.triangleCount * 3];
+        for (int triangle = 0; triangle < model.triangleCount; triangle++) {
+            for (int axis = 0; axis < 3; axis++) {
+                float sum = 0;
+                for (int corner = 0; corner < 3; corner++) {
+                    sum += model.positions[model.cornerPositions[triangle * 3 + corner] * 3 + axis];
+                }
+                centroids[triangle * 3 + axis] = sum / 3;
+            }
+        }
+        return centroids;
+    }
+
+    private static int longestAxis(int[] triangles, int from, int to, float[] centroids) {
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int i = from; i < to; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                float value = centroids[triangles[i] * 3 + axis];
+                min[axis] = Math.min(min[axis], value);
+                max[axis] = Math.max(max[axis], value);
+            }
+        }
+        int longest = 0;
+        for (int axis = 1; axis < 3; axis++) {
+            if (max[axis] - min[axis] > max[longest] - min[longest]) {
+                longest = axis;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Partially sort the triangles of a range so that the n-th one is in
+     * place, those before it not greater along the axis, those after it not smaller.
+     */
+    private static void select(int[] triangles, int from, int to, int nth, float[] centroids, int axis) {
+        int left = from;
+        int right = to - 1;
+        while (right > left) {
+            float pivot = centroids[triangles[(left + right) >>> 1] * 3 + axis];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (centroids[triangles[i] * 3 + axis] < pivot) {
+                    i++;
+                }
+                while (centroids[triangles[j] * 3 + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swapped = triangles[i];
+                    triangles[i++] = triangles[j];
+                    triangles[j--] = swapped;
+                }
+            }
+            if (nth <= j) {
+                right = j;
+            } else if (nth >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static class ChunkWriter {
+
+        private final ObjModel model;
+        private final String[] keywords;
+        // Number of each attribute in the chunk being written, valid when its stamp is the chunk's
+        private final int[] positionNumbers;
+        private final int[] positionStamps;
+        private final int[] textureNumbers;
+        private final int[] textureStamps;
+        private final int[] normalNumbers;
+        private final int[] normalStamps;
+        private int stamp;
+
+        private final int[] facePositions = new int[3];
+        private final int[] faceTextures = new int[3];
+        private final int[] faceNormals = new int[3];
+
+        ChunkWriter(ObjModel model, String[] keywords) {
+            this.model = model;
+            this.keywords = keywords;
+            positionNumbers = new int[model.positionCount];
+            positionStamps = new int[model.positionCount];
+            textureNumbers = new int[model.textureCount];
+            textureStamps = new int[model.textureCount];
+            normalNumbers = new int[model.normalCount];
+            normalStamps = new int[model.normalCount];
+        }
+
+        /**
+         * @param triangles the triangles of the chunk in [from, to), in model order
+         */
+        Chunk write(Path file, int[] triangles, int from, int to) throws IOException {
+            stamp++;
+            int positionCount = 0;
+            int textureCount = 0;
+            int normalCount = 0;
+            float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+            float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+            // First statement not written yet
+            int statement = 0;
+            try (ObjWriter writer = new ObjWriter(file)) {
+                for (int i = from; i < to; i++) {
+                    int triangle = triangles[i];
+                    statement = writeStatements(writer, statement, triangle);
+                    for (int corner = 0; corner < 3; corner++) {
+                        int index = triangle * 3 + corner;
+                        int position = model.cornerPositions[index];
+                        if (positionStamps[position] != stamp) {
+                            positionStamps[position] = stamp;
+                            positionNumbers[position] = positionCount++;
+                            float[] positions = model.positions;
+                            writer.vertex(positions[position * 3], positions[position * 3 + 1],
+                                    positions[position * 3 + 2]);
+                            for (int axis = 0; axis < 3; axis++) {
+                                min[axis] = Math.min(min[axis], positions[position * 3 + axis]);
+                                max[axis] = Math.max(max[axis], positions[position * 3 + axis]);
+                            }
+                        }
+                        facePositions[corner] = positionNumbers[position];
+
+                        int texture = model.cornerTextures[index];
+                        if (texture >= 0 && textureStamps[texture] != stamp) {
+                            textureStamps[texture] = stamp;
+                            textureNumbers[texture] = textureCount++;
+                            writer.textureCoordinate(model.textures[texture * 2], model.textures[texture * 2 + 1]);
+                        }
+                        faceTextures[corner] = texture < 0 ? -1 : textureNumbers[texture];
+
+                        int normal = model.cornerNormals[index];
+                        if (normal >= 0 && normalStamps[normal] != stamp) {
+                            normalStamps[normal] = stamp;
+                            normalNumbers[normal] = normalCount++;
+                            writer.normal(model.normals[normal * 3], model.normals[normal * 3 + 1],
+                                    model.normals[normal * 3 + 2]);
+                        }
+                        faceNormals[corner] = normal < 0 ? -1 : normalNumbers[normal];
+                    }
+                    writer.face(facePositions, faceTextures, faceNormals, 0, 3);
+                }
+            }
+            return new Chunk(file, to - from, positionCount, min, max);
+        }
+
+        /**
+         * Write the statements before a triangle since the previous one of the
+         * chunk, only the last one of each keyword since the others are overridden.
+         *
+         * @return the first statement after the triangle
+         */
+        private int writeStatements(ObjWriter writer, int statement, int triangle) throws IOException {
+            int end = statement;
+            while (end < model.statements.size() && model.statementTriangles[end] <= triangle) {
+                end++;
+            }
+            if (end == statement) {
+                return end;
+            }
+            Map<String, Integer> last = new LinkedHashMap<>();
+            for (int i = statement; i < end; i++) {
+                last.remove(keywords[i]);
+                last.put(keywords[i], i);
+            }
+            for (int i : last.values()) {
+                String[] line = model.statements.get(i).split("\\s+", 2);
+                writer.statement(line[0], line.length > 1 ? line[1] : null);
+            }
+            return end;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Splits an OBJ file into one file per group, each with its own vertex,
+ * texture coordinate and normal numbering, the opposite of
+ * {@link ObjMerger}. Elements before the first group go to the unnamed
+ * group, groups named more than once are gathered.
+ * <p>
+ * The model is held in memory while splitting.
+ */
+public class ObjGroupSplitter {
+
+    // Byte transparent, OBJ files are mostly ASCII
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final List<String> vertices = new ArrayList<>();
+    private final List<String> textures = new ArrayList<>();
+    private final List<String> normals = new ArrayList<>();
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * @param fileNamer file of each group, from its name
+     * @return the files written, by group name in order of appearance
+     */
+    public Map<String, Path> split(Path objFile, Function<String, Path> fileNamer) throws IOException {
+        Group current = group("");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(objFile), CHARSET),
+                BUFFER_SIZE)) {
+            String element;
+            while ((element = reader.readLine()) != null) {
+                if (element.startsWith("v ")) {
+                    vertices.add(element);
+                } else if (element.startsWith("vt ")) {
+                    textures.add(element);
+                } else if (element.startsWith("vn ")) {
+                    normals.add(element);
+                } else if (element.startsWith("g ") || element.startsWith("o ")) {
+                    current = group(element.substring(2).trim());
+                } else if (element.startsWith("f ") || element.startsWith("l ") || element.startsWith("p ")) {
+                    current.lines.add(renumber(element, current));
+                } else if (element.startsWith("usemtl") || element.startsWith("s ")) {
+                    current.lines.add(element);
+                }
+            }
+        }
+
+        Map<String, Path> files = new LinkedHashMap<>();
+        for (Group group : groups.values()) {
+            if (group.lines.isEmpty()) {
+                continue;
+            }
+            Path file = fileNamer.apply(group.name);
+            write(group, file);
+            files.put(group.name, file);
+        }
+        return files;
+    }
+
+    private Group group(String name) {
+        return groups.computeIfAbsent(name, Group::new);
+    }
+
+    private String renumber(String element, Group group) {
+        line.setLength(0);
+        int length = element.length();
+        int i = 0;
+        // Keyword
+        while (i < length && element.charAt(i) != ' ') {
+            line.append(element.charAt(i++));
+        }
+        int slot = 0;
+        while (i < length) {
+            char c = element.charAt(i);
+            if (c >= '0' && c <= '9' || c == '-') {
+                boolean relative = c == '-';
+                if (relative) {
+                    i++;
+                }
+                int index = 0;
+                while (i < length && (c = element.charAt(i)) >= '0' && c <= '9') {
+                    index = index * 10 + (c - '0');
+                    i++;
+                }
+                line.append(group.localIndex(slot, relative ? sizeOf(slot) - index : index - 1) + 1);
+                continue;
+            }
+            if (c == '/') {
+                slot++;
+            } else if (c == ' ' || c == '\t') {
+                slot = 0;
+            }
+            line.append(c);
+            i++;
+        }
+        return line.toString();
+    }
+
+    private int sizeOf(int slot) {
+        switch (slot) {
+            case 0:
+                return vertices.size();
+            case 1:
+                return textures.size();
+            default:
+                return normals.size();
+        }
+    }
+
+    private void write(Group group, Path file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), CHARSET),
+                BUFFER_SIZE)) {
+            if (!group.name.isEmpty()) {
+                writer.write("g " + group.name + "\n");
+            }
+            writeElements(writer, group.used.get(0), vertices);
+            writeElements(writer, group.used.get(1), textures);
+            writeElements(writer, group.used.get(2), normals);
+            for (String element : group.lines) {
+                writer.write(element);
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static void writeElements(Writer writer, List<Integer> used, List<String> elements) throws IOException {
+        for (int index : used) {
+            writer.write(elements.get(index));
+            writer.write('\n');
+        }
+    }
+
+    private static class Group {
+
+        private final String name;
+        private final List<String> lines = new ArrayList<>();
+        // Global indices used by the group, in local order, for vertices, texture coordinates and normals
+        private final List<List<Integer>> used = new ArrayList<>();
+        private final List<Map<Integer, Integer>> local = new ArrayList<>();
+
+        Group(String name) {
+            this.name = name;
+            for (int kind = 0; kind < 3; kind++) {
+                used.add(new ArrayList<>());
+                local.add(new HashMap<>());
+            }
+        }
+
+        int localIndex(int slot, int global) {
+            int kind = Math.min(slot, 2);
+            Integer index = local.get(kind).get(global);
+            if (index == null) {
+                index = used.get(kind).size();
+                local.get(kind).put(global, index);
+                used.get(kind).add(global);
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,616 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import com.docdoku.server.converters.commons.Json;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the objects of an OBJ model which repeat the geometry of a previous
+ * one, such as the bolts or windows of an assembly.
+ * <p>
+ * Each <code>o</code> or <code>g</code> object is hashed from its triangles,
+ * numbered by first use of their vertices, its texture coordinates, its
+ * material and the radius of gyration of its positions, which does not change
+ * with placement. Objects of the same hash are then compared: the rigid
+ * transform mapping the vertices of the first one, the prototype, to those of
+ * the other is computed from a few reference vertices and must map all
+ * positions within a tolerance, and the normals along.
+ * <p>
+ * The instance table is a JSON document listing the repeated prototypes by
+ * name, with the name and the transform of each of their copies, as a 4x4
+ * column-major matrix applied to the prototype vertices:
+ * <pre>
+ * {"prototypes":[{"name":"bolt","instances":[{"name":"bolt.001","matrix":[...]}]}]}
+ * </pre>
+ * The model may also be rewritten without its copies.
+ */
+public class ObjInstancer {
+
+    private static final double NORMAL_TOLERANCE = 1e-3;
+
+    private final ObjModel model;
+    private final double tolerance;
+
+    // Objects, by their first statement
+    private final List<ObjectRange> objects = new ArrayList<>();
+    private int[] correspondence = new int[0];
+    private int[] reverse = new int[0];
+
+    private final double[] frame = new double[9];
+    private final double[] inverse = new double[9];
+    private final double[] target = new double[9];
+
+    private ObjInstancer(ObjModel model, double tolerance) {
+        this.model = model;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Statistics of the repeated objects of a model.
+     */
+    public static class Report {
+
+        private final int objects;
+        private final int prototypes;
+        private final int instances;
+        private final long instanceTriangles;
+
+        Report(int objects, int prototypes, int instances, long instanceTriangles) {
+            this.objects = objects;
+            this.prototypes = prototypes;
+            this.instances = instances;
+            this.instanceTriangles = instanceTriangles;
+        }
+
+        public int getObjects() {
+            return objects;
+        }
+
+        /**
+         * @return the number of objects repeated at least once
+         */
+        public int getPrototypes() {
+            return prototypes;
+        }
+
+        public int getInstances() {
+            return instances;
+        }
+
+        /**
+         * @return the number of triangles of the copies, which the instance table replaces
+         */
+        public long getInstanceTriangles() {
+            return instanceTriangles;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d objects, %d repeated %d times, %d triangles in copies",
+                    objects, prototypes, instances, instanceTriangles);
+        }
+    }
+
+    /**
+     * @param strippedFile where to write the model without its copies, null not to write it
+     * @param tableFile where to write the instance table
+     * @param tolerance the largest distance between the transformed prototype
+     *                  and a copy, as a fraction of the radius of the prototype
+     * @return the statistics of the model, null if it has no copies or
+     * unsupported elements, in which case no file is written
+     */
+    public static Report instance(Path objFile, Path strippedFile, Path tableFile, double tolerance)
+            throws IOException {
+        ObjModel model = ObjModel.read(objFile);
+        if (model == null) {
+            return null;
+        }
+        ObjInstancer instancer = new ObjInstancer(model, tolerance);
+        instancer.splitObjects();
+        Report report = instancer.match();
+        if (report.getInstances() == 0) {
+            return null;
+        }
+        try {
+            instancer.writeTable(tableFile);
+            if (strippedFile != null) {
+                instancer.writeStripped(strippedFile);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tableFile);
+            if (strippedFile != null) {
+                Files.deleteIfExists(strippedFile);
+            }
+            throw e;
+        }
+        return report;
+    }
+
+    private void splitObjects() {
+        String material = null;
+        ObjectRange current = null;
+        for (int statement = 0; statement < model.statements.size(); statement++) {
+            String[] line = model.statements.get(statement).split("\\s+", 2);
+            String keyword = line[0].toLowerCase(Locale.ROOT);
+            if (keyword.equals("o") || keyword.equals("g")) {
+                if (current != null) {
+                    current.endTriangle = model.statementTriangles[statement];
+                    current.endStatement = statement;
+                }
+                current = new ObjectRange(line.length > 1 ? line[1] : "", statement,
+                        model.statementTriangles[statement], material);
+                objects.add(current);
+            } else if (keyword.equals("usemtl")) {
+                material = line.length > 1 ? line[1] : "";
+                if (current != null && model.statementTriangles[statement] == current.startTriangle) {
+                    current.material = material;
+                }
+            }
+        }
+        if (current != null) {
+            current.endTriangle = model.triangleCount;
+            current.endStatement = model.statements.size();
+        }
+    }
+
+    private Report match() {
+        correspondence = new int[Math.max(model.positionCount, Math.max(model.textureCount, model.normalCount))];
+        reverse = new int[correspondence.length];
+        Arrays.fill(correspondence, -1);
+        Arrays.fill(reverse, -1);
+
+        Map<Long, List<ObjectRange>> prototypes = new HashMap<>();
+        int prototypeCount = 0;
+        int instanceCount = 0;
+        long instanceTriangles = 0;
+        for (ObjectRange object : objects) {
+            if (object.endTriangle == object.startTriangle) {
+                continue;
+            }
+            object.positions = firstUses(model.cornerPositions, object);
+            long signature = signature(object);
+            List<ObjectRange> candidates = prototypes.computeIfAbsent(signature, key -> new ArrayList<>());
+            for (ObjectRange prototype : candidates) {
+                double[] matrix = matches(prototype, object);
+                if (matrix != null) {
+                    if (prototype.instances.isEmpty()) {
+                        prototypeCount++;
+                    }
+                    object.matrix = matrix;
+                    prototype.instances.add(object);
+                    instanceCount++;
+                    instanceTriangles += object.endTriangle - object.startTriangle;
+                    break;
+                }
+            }
+            if (object.matrix == null) {
+                candidates.add(object);
+            }
+        }
+        return new Report(objects.size(), prototypeCount, instanceCount, instanceTriangles);
+    }
+
+    /**
+     * @return the attributes used by the object, in the order of their first use
+     */
+    private int[] firstUses(int[] corners, ObjectRange object) {
+        int[] uses = new int[(object.endTriangle - object.startTriangle) * 3];
+        int count = 0;
+        for (int corner = object.startTriangle * 3; corner < object.endTriangle * 3; corner++) {
+            int attribute = corners[corner];
+            if (attribute >= 0 && correspondence[attribute] < 0) {
+                correspondence[attribute] = count;
+                uses[count++] = attribute;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            correspondence[uses[i]] = -1;
+        }
+        return Arrays.copyOf(uses, count);
+    }
+
+    private long signature(ObjectRange object) {
+        long hash = object.endTriangle - object.startTriangle;
+        hash = hash * 31 + object.positions.length;
+        hash = hash * 31 + (object.material == null ? 0 : object.material.hashCode());
+        // Corners numbered by first use
+        int count = 0;
+        for (int corner = object.startTriangle * 3; corner < object.endTriangle * 3; corner++) {
+            int position = model.cornerPositions[corner];
+            if (correspondence[position] < 0) {
+                correspondence[position] = count++;
+            }
+            hash = hash * 31 + correspondence[position];
+            hash = hash * 31 + (model.cornerTextures[corner] < 0 ? 0 : 1) + (model.cornerNormals[corner] < 0 ? 0 : 2);
+        }
+        for (int position : object.positions) {
+            correspondence[position] = -1;
+        }
+        for (int statement = object.startStatement + 1; statement < object.endStatement; statement++) {
+            hash = hash * 31 + model.statements.get(statement).hashCode();
+        }
+
+        // Radius of gyration, on a logarithmic scale fine enough to tell parts apart
+        double[] center = center(object.positions);
+        double sum = 0;
+        for (int position : object.positions) {
+            for (int axis = 0; axis < 3; axis++) {
+                double d = model.positions[position * 3 + axis] - center[axis];
+                sum += d * d;
+            }
+        }
+        object.radius = Math.sqrt(sum / object.positions.length);
+        hash = hash * 31 + (object.radius > 0 ? Math.round(Math.log(object.radius) * 1e4) : 0);
+        return hash;
+    }
+
+    private double[] center(int[] positions) {
+        double[] center = new double[3];
+        for (int position : positions) {
+            for (int axis = 0; axis < 3; axis++) {
+                center[axis] += model.positions[position * 3 + axis];
+            }
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            center[axis] /= positions.length;
+        }
+        return center;
+    }
+
+    /**
+     * @return the column-major transform from the prototype to the object, null if they differ
+     */
+    private double[] matches(ObjectRange prototype, ObjectRange object) {
+        if (prototype.endTriangle - prototype.startTriangle != object.endTriangle - object.startTriangle
+                || prototype.positions.length != object.positions.length
+                || !same(prototype.material, object.material)
+                || prototype.endStatement - prototype.startStatement != object.endStatement - object.startStatement) {
+            return null;
+        }
+        for (int i = 1; i < prototype.endStatement - prototype.startStatement; i++) {
+            if (!model.statements.get(prototype.startStatement + i)
+                    .equals(model.statements.get(object.startStatement + i))
+                    || model.statementTriangles[prototype.startStatement + i] - prototype.startTriangle
+                    != model.statementTriangles[object.startStatement + i] - object.startTriangle) {
+                return null;
+            }
+        }
+        if (!correspond(model.cornerPositions, prototype, object, null)
+                || !correspond(model.cornerTextures, prototype, object, model.textures)) {
+            return null;
+        }
+        double[] matrix = transform(prototype, object);
+        if (matrix == null || !mapsPositions(matrix, prototype, object) || !mapsNormals(matrix, prototype, object)) {
+            return null;
+        }
+        return matrix;
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @param values when not null, two values per attribute which must be equal in both objects
+     * @return true if the corners of both objects reference their attributes in the same pattern
+     */
+    private boolean correspond(int[] corners, ObjectRange prototype, ObjectRange object, float[] values) {
+        int offset = (object.startTriangle - prototype.startTriangle) * 3;
+        boolean same = true;
+        int corner = prototype.startTriangle * 3;
+        for (; corner < prototype.endTriangle * 3 && same; corner++) {
+            int a = corners[corner];
+            int b = corners[corner + offset];
+            if (a < 0 || b < 0) {
+                same = a == b;
+            } else if (correspondence[a] < 0 && reverse[b] < 0) {
+                correspondence[a] = b;
+                reverse[b] = a;
+                same = values == null || values[a * 2] == values[b * 2] && values[a * 2 + 1] == values[b * 2 + 1];
+            } else {
+                same = correspondence[a] == b && reverse[b] == a;
+            }
+        }
+        for (int reset = prototype.startTriangle * 3; reset < corner; reset++) {
+            if (corners[reset] >= 0) {
+                correspondence[corners[reset]] = -1;
+            }
+            if (corners[reset + offset] >= 0) {
+                reverse[corners[reset + offset]] = -1;
+            }
+        }
+        return same;
+    }
+
+    /**
+     * @return the rigid transform mapping reference vertices of the prototype on those of the object
+     */
+    private double[] transform(ObjectRange prototype, ObjectRange object) {
+        int[] from = prototype.positions;
+        int[] to = object.positions;
+        int origin = 0;
+        int first = farthest(from, origin, -1, -1);
+        int second = farthest(from, origin, first, -1);
+        int third = farthest(from, origin, first, second);
+        if (first < 0 || second < 0) {
+            return null;
+        }
+        // A third vertex too close to the plane of the first two would make the frame ill-conditioned
+        double[] normal = cross(difference(from, first, origin), difference(from, second, origin));
+        if (third >= 0 && Math.abs(dot(difference(from, third, origin), normal)) / Math.sqrt(dot(normal, normal))
+                <= prototype.radius * 1e-3) {
+            third = -1;
+        }
+        if (!frame(from, origin, first, second, third, frame) || !frame(to, origin, first, second, third, target)
+                || !invert(frame, inverse)) {
+            return null;
+        }
+        double[] matrix = new double[16];
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                double value = 0;
+                for (int k = 0; k < 3; k++) {
+                    value += target[row * 3 + k] * inverse[k * 3 + column];
+                }
+                matrix[column * 4 + row] = value;
+            }
+        }
+        if (determinant(matrix) <= 0) {
+            // Mirrored copies would need their winding reversed
+            return null;
+        }
+        for (int row = 0; row < 3; row++) {
+            double value = model.positions[to[origin] * 3 + row];
+            for (int column = 0; column < 3; column++) {
+                value -= matrix[column * 4 + row] * model.positions[from[origin] * 3 + column];
+            }
+            matrix[12 + row] = value;
+        }
+        matrix[15] = 1;
+        return matrix;
+    }
+
+    /**
+     * @return the vertex farthest from the origin, from the line through the
+     * first vertex or from the plane through the first two, -1 if all are on it
+     */
+    private int farthest(int[] positions, int origin, int first, int second) {
+        double[] line = first < 0 ? null : difference(positions, first, origin);
+        double[] normal = second < 0 ? null : cross(line, difference(positions, second, origin));
+        int best = -1;
+        double bestDistance = 0;
+        for (int i = 0; i < positions.length; i++) {
+            double[] d = difference(positions, i, origin);
+            double distance;
+            if (line == null) {
+                distance = dot(d, d);
+            } else if (normal == null) {
+                double[] c = cross(d, line);
+                distance = dot(c, c);
+            } else {
+                distance = Math.abs(dot(d, normal));
+            }
+            if (distance > bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Set the columns of the frame to the edges from the origin, the third one
+     * orthogonal to the first two for flat objects, without a third vertex.
+     */
+    private boolean frame(int[] positions, int origin, int first, int second, int third, double[] frame) {
+        double[] e1 = difference(positions, first, origin);
+        double[] e2 = difference(positions, second, origin);
+        double[] e3;
+        double[] normal = cross(e1, e2);
+        double area = Math.sqrt(dot(normal, normal));
+        if (area == 0) {
+            return false;
+        }
+        if (third >= 0) {
+            e3 = difference(positions, third, origin);
+        } else {
+            double scale = 1 / Math.sqrt(area);
+            e3 = new double[]{normal[0] * scale, normal[1] * scale, normal[2] * scale};
+        }
+        for (int row = 0; row < 3; row++) {
+            frame[row * 3] = e1[row];
+            frame[row * 3 + 1] = e2[row];
+            frame[row * 3 + 2] = e3[row];
+        }
+        return true;
+    }
+
+    private boolean mapsPositions(double[] matrix, ObjectRange prototype, ObjectRange object) {
+        double maxDistance = tolerance * Math.max(prototype.radius, Float.MIN_NORMAL);
+        for (int i = 0; i < prototype.positions.length; i++) {
+            int from = prototype.positions[i] * 3;
+            int to = object.positions[i] * 3;
+            double distance = 0;
+            for (int row = 0; row < 3; row++) {
+                double value = matrix[12 + row];
+                for (int column = 0; column < 3; column++) {
+                    value += matrix[column * 4 + row] * model.positions[from + column];
+                }
+                double d = value - model.positions[to + row];
+                distance += d * d;
+            }
+            if (distance > maxDistance * maxDistance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean mapsNormals(double[] matrix, ObjectRange prototype, ObjectRange object) {
+        int offset = (object.startTriangle - prototype.startTriangle) * 3;
+        for (int corner = prototype.startTriangle * 3; corner < prototype.endTriangle * 3; corner++) {
+            int from = model.cornerNormals[corner];
+            int to = model.cornerNormals[corner + offset];
+            if (from < 0) {
+                continue;
+            }
+            double[] transformed = new double[3];
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 3; column++) {
+                    transformed[row] += matrix[column * 4 + row] * model.normals[from * 3 + column];
+                }
+            }
+            double length = Math.sqrt(dot(transformed, transformed));
+            double targetLength = Math.sqrt(model.normals[to * 3] * model.normals[to * 3]
+                    + model.normals[to * 3 + 1] * model.normals[to * 3 + 1]
+                    + model.normals[to * 3 + 2] * model.normals[to * 3 + 2]);
+            if (length == 0 || targetLength == 0) {
+                if (length != targetLength) {
+                    return false;
+                }
+                continue;
+            }
+            for (int axis = 0; axis < 3; axis++) {
+                if (Math.abs(transformed[axis] / length - model.normals[to * 3 + axis] / targetLength)
+                        > NORMAL_TOLERANCE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private double[] difference(int[] positions, int index, int origin) {
+        int a = positions[index] * 3;
+        int b = positions[origin] * 3;
+        return new double[]{model.positions[a] - (double) model.positions[b],
+                model.positions[a + 1] - (double) model.positions[b + 1],
+                model.positions[a + 2] - (double) model.positions[b + 2]};
+    }
+
+    private static double[] cross(double[] a, double[] b) {
+        return new double[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static double determinant(double[] m) {
+        return m[0] * (m[5] * m[10] - m[9] * m[6]) - m[4] * (m[1] * m[10] - m[9] * m[2])
+                + m[8] * (m[1] * m[6] - m[5] * m[2]);
+    }
+
+    private static boolean invert(double[] m, double[] inverse) {
+        double det = m[0] * (m[4] * m[8] - m[5] * m[7]) - m[1] * (m[3] * m[8] - m[5] * m[6])
+                + m[2] * (m[3] * m[7] - m[4] * m[6]);
+        if (det == 0 || !Double.isFinite(det)) {
+            return false;
+        }
+        inverse[0] = (m[4] * m[8] - m[5] * m[7]) / det;
+        inverse[1] = (m[2] * m[7] - m[1] * m[8]) / det;
+        inverse[2] = (m[1] * m[5] - m[2] * m[4]) / det;
+        inverse[3] = (m[5] * m[6] - m[3] * m[8]) / det;
+        inverse[4] = (m[0] * m[8] - m[2] * m[6]) / det;
+        inverse[5] = (m[2] * m[3] - m[0] * m[5]) / det;
+        inverse[6] = (m[3] * m[7] - m[4] * m[6]) / det;
+        inverse[7] = (m[1] * m[6] - m[0] * m[7]) / det;
+        inverse[8] = (m[0] * m[4] - m[1] * m[3]) / det;
+        return true;
+    }
+
+    private void writeTable(Path tableFile) throws IOException {
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(tableFile, StandardCharsets.UTF_8))) {
+            writer.write("{\"prototypes\":[");
+            boolean firstPrototype = true;
+            for (ObjectRange prototype : objects) {
+                if (prototype.instances.isEmpty()) {
+                    continue;
+                }
+                writer.write(firstPrototype ? "\n" : ",\n");
+                firstPrototype = false;
+                writer.write("{\"name\":" + Json.quote(prototype.name) + ",\"instances\":[");
+                for (int i = 0; i < prototype.instances.size(); i++) {
+                    ObjectRange instance = prototype.instances.get(i);
+                    writer.write(i > 0 ? ",\n" : "\n");
+                    writer.write("{\"name\":" + Json.quote(instance.name) + ",\"matrix\":[");
+                    for (int k = 0; k < 16; k++) {
+                        writer.write((k > 0 ? "," : "") + (float) instance.matrix[k]);
+                    }
+                    writer.write("]}");
+                }
+                writer.write("]}");
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    private void writeStripped(Path strippedFile) throws IOException {
+        // The other statements of the copies are kept: materials and smoothing carry over to the next objects
+        boolean[] keptTriangles = new boolean[model.triangleCount];
+        Arrays.fill(keptTriangles, true);
+        boolean[] keptStatements = new boolean[model.statements.size()];
+        Arrays.fill(keptStatements, true);
+        for (ObjectRange object : objects) {
+            if (object.matrix != null) {
+                Arrays.fill(keptTriangles, object.startTriangle, object.endTriangle, false);
+                keptStatements[object.startStatement] = false;
+            }
+        }
+        model.write(strippedFile, keptTriangles, keptStatements);
+    }
+
+    private static class ObjectRange {
+
+        final String name;
+        final int startStatement;
+        final int startTriangle;
+        // The material of the first face of the object
+        String material;
+        int endStatement;
+        int endTriangle;
+
+        int[] positions;
+        double radius;
+        double[] matrix;
+        final List<ObjectRange> instances = new ArrayList<>();
+
+        ObjectRange(String name, int startStatement, int startTriangle, String material) {
+            this.name = name;
+            this.startStatement = startStatement;
+            this.startTriangle = startTriangle;
+            this.material = material;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites an OBJ model with one contiguous run of triangles per material,
+ * so that viewers draw each material with a single call.
+ * <p>
+ * Materials with the same definition are merged first: definitions are
+ * compared by value, whatever their name, the order of their statements or
+ * the formatting of their numbers. Within each material, triangles are
+ * ordered by group, and keep their order within each group. The
+ * <code>o</code> and <code>g</code> statements are written again at the start
+ * of each group of a run, so that a group split between several materials
+ * keeps its name in each of them.
+ * <p>
+ * The model is held in primitive arrays. Models with line, point, curve or
+ * surface elements are not batched.
+ */
+public final class ObjMaterialBatcher {
+
+    // Byte transparent, MTL files are mostly ASCII
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+    private static final String USEMTL = "usemtl";
+    private static final String MTLLIB = "mtllib";
+    private static final String NEWMTL = "newmtl";
+    private static final String OBJECT = "o";
+    private static final String GROUP = "g";
+
+    private ObjMaterialBatcher() {
+    }
+
+    /**
+     * Statistics of a batched model.
+     */
+    public static class Report {
+
+        private final int materialsBefore;
+        private final int materialsAfter;
+        private final int switchesBefore;
+        private final int switchesAfter;
+
+        Report(int materialsBefore, int materialsAfter, int switchesBefore, int switchesAfter) {
+            this.materialsBefore = materialsBefore;
+            this.materialsAfter = materialsAfter;
+            this.switchesBefore = switchesBefore;
+            this.switchesAfter = switchesAfter;
+        }
+
+        /**
+         * @return the number of materials used by the model
+         */
+        public int getMaterialsBefore() {
+            return materialsBefore;
+        }
+
+        public int getMaterialsAfter() {
+            return materialsAfter;
+        }
+
+        /**
+         * @return the number of runs of triangles of a same material, and group, in the model
+         */
+        public int getSwitchesBefore() {
+            return switchesBefore;
+        }
+
+        public int getSwitchesAfter() {
+            return switchesAfter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d -> %d materials, %d -> %d runs",
+                    materialsBefore, materialsAfter, switchesBefore, switchesAfter);
+        }
+    }
+
+    /**
+     * @param mtlFiles   the material libraries of the model, the first definition of a material wins
+     * @param batchedMtl the deduplicated library, meant to replace the first of the given ones under its
+     *                   name; not written if there are no libraries
+     * @return the statistics of the model, null if it was not batched because of unsupported elements
+     */
+    public static Report batch(Path objFile, List<Path> mtlFiles, Path batchedObj, Path batchedMtl)
+            throws IOException {
+        ObjModel model = ObjModel.read(objFile);
+        if (model == null) {
+            return null;
+        }
+
+        // Definitions by name, then the first name of each distinct definition
+        Map<String, String> definitions = new LinkedHashMap<>();
+        for (Path mtlFile : mtlFiles) {
+            readMaterials(mtlFile, definitions);
+        }
+        Map<String, String> canonicalNames = new HashMap<>();
+        Map<String, String> namesByValue = new HashMap<>();
+        for (Map.Entry<String, String> definition : definitions.entrySet()) {
+            String name = namesByValue.computeIfAbsent(canonical(definition.getValue()), value -> definition.getKey());
+            canonicalNames.put(definition.getKey(), name);
+        }
+
+        // Material and group of each triangle, by index of first use, 0 for the triangles before any
+        // usemtl or before any o and g
+        List<String> materials = new ArrayList<>();
+        materials.add(null);
+        Map<String, Integer> materialIds = new HashMap<>();
+        List<String[]> groups = new ArrayList<>();
+        groups.add(new String[2]);
+        Map<List<String>, Integer> groupIds = new HashMap<>();
+        Set<String> usedBefore = new LinkedHashSet<>();
+        Set<String> libraries = new LinkedHashSet<>();
+        int[] triangleMaterials = new int[model.triangleCount];
+        int[] triangleGroups = new int[model.triangleCount];
+        int switchesBefore = 0;
+        int current = 0;
+        int currentGroup = 0;
+        String object = null;
+        String group = null;
+        int statement = 0;
+        int previousRunStart = -1;
+        for (int triangle = 0; triangle < model.triangleCount; triangle++) {
+            boolean newRun = false;
+            while (statement < model.statements.size() && model.statementTriangles[statement] <= triangle) {
+                String text = model.statements.get(statement++).trim();
+                String[] line = text.split("\\s+", 2);
+                String keyword = line[0].toLowerCase(Locale.ROOT);
+                String value = line.length > 1 ? line[1].trim() : "";
+                if (USEMTL.equals(keyword)) {
+                    usedBefore.add(value);
+                    String name = canonicalNames.getOrDefault(value, value);
+                    current = materialIds.computeIfAbsent(name, key -> {
+                        materials.add(key);
+                        return materials.size() - 1;
+                    });
+                } else if (OBJECT.equals(keyword) || GROUP.equals(keyword)) {
+                    if (OBJECT.equals(keyword)) {
+                        object = text;
+                    } else {
+                        group = text;
+                    }
+                    String[] groupStatements = {object, group};
+                    currentGroup = groupIds.computeIfAbsent(Arrays.asList(groupStatements), key -> {
+                        groups.add(groupStatements);
+                        return groups.size() - 1;
+                    });
+                }
+                newRun = true;
+            }
+            if (newRun || previousRunStart < 0) {
+                switchesBefore++;
+                previousRunStart = triangle;
+            }
+            triangleMaterials[triangle] = current;
+            triangleGroups[triangle] = currentGroup;
+        }
+        for (String statementLine : model.statements) {
+            String[] line = statementLine.split("\\s+", 2);
+            if (MTLLIB.equalsIgnoreCase(line[0]) && line.length > 1) {
+                libraries.add(line[1].trim());
+            }
+        }
+
+        // Stable sort of the triangles by group, then by material
+        int[] order = new int[model.triangleCount];
+        for (int triangle = 0; triangle < order.length; triangle++) {
+            order[triangle] = triangle;
+        }
+        order = sort(order, triangleGroups, groups.size());
+        order = sort(order, triangleMaterials, materials.size());
+        int[] positions = new int[model.triangleCount * 3];
+        int[] textures = new int[model.triangleCount * 3];
+        int[] normals = new int[model.triangleCount * 3];
+        for (int to = 0; to < order.length; to++) {
+            int from = order[to];
+            System.arraycopy(model.cornerPositions, from * 3, positions, to * 3, 3);
+            System.arraycopy(model.cornerTextures, from * 3, textures, to * 3, 3);
+            System.arraycopy(model.cornerNormals, from * 3, normals, to * 3, 3);
+        }
+        model.cornerPositions = positions;
+        model.cornerTextures = textures;
+        model.cornerNormals = normals;
+
+        boolean hasLibraries = false;
+        for (Path mtlFile : mtlFiles) {
+            hasLibraries |= Files.exists(mtlFile);
+        }
+        model.statements.clear();
+        List<Integer> statementTriangles = new ArrayList<>();
+        if (hasLibraries) {
+            model.statements.add(MTLLIB + " " + mtlFiles.get(0).getFileName());
+            statementTriangles.add(0);
+        } else {
+            for (String library : libraries) {
+                model.statements.add(MTLLIB + " " + library);
+                statementTriangles.add(0);
+            }
+        }
+        int switchesAfter = 0;
+        boolean grouped = false;
+        for (int to = 0; to < order.length; to++) {
+            int material = triangleMaterials[order[to]];
+            int groupId = triangleGroups[order[to]];
+            boolean newMaterial = to == 0 || material != triangleMaterials[order[to - 1]];
+            if (!newMaterial && groupId == triangleGroups[order[to - 1]]) {
+                continue;
+            }
+            switchesAfter++;
+            String[] groupStatements = groups.get(groupId);
+            if (groupId == 0 && grouped) {
+                // Back to the default group
+                model.statements.add(GROUP);
+                statementTriangles.add(to);
+            }
+            for (String groupStatement : groupStatements) {
+                if (groupStatement != null) {
+                    model.statements.add(groupStatement);
+                    statementTriangles.add(to);
+                    grouped = true;
+                }
+            }
+            if (newMaterial && materials.get(material) != null) {
+                model.statements.add(USEMTL + " " + materials.get(material));
+                statementTriangles.add(to);
+            }
+        }
+        model.statementTriangles = new int[Math.max(1, statementTriangles.size())];
+        for (int i = 0; i < statementTriangles.size(); i++) {
+            model.statementTriangles[i] = statementTriangles.get(i);
+        }
+
+        try {
+            model.write(batchedObj, null, null);
+            if (hasLibraries) {
+                writeMaterials(definitions, canonicalNames, batchedMtl);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(batchedObj);
+            Files.deleteIfExists(batchedMtl);
+            throw e;
+        }
+        return new Report(usedBefore.size(), materials.size() - 1, switchesBefore, switchesAfter);
+    }
+
+    /**
+     * @return the given order of the triangles, stably sorted by their key
+     */
+    private static int[] sort(int[] order, int[] keys, int keyCount) {
+        int[] starts = new int[keyCount + 1];
+        for (int key : keys) {
+            starts[key + 1]++;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        int[] sorted = new int[order.length];
+        for (int triangle : order) {
+            sorted[starts[keys[triangle]]++] = triangle;
+        }
+        return sorted;
+    }
+
+    /**
+     * Add the materials of a library not defined yet, with their statements as they are.
+     */
+    private static void readMaterials(Path mtlFile, Map<String, String> definitions) throws IOException {
+        if (!Files.exists(mtlFile)) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(mtlFile), CHARSET))) {
+            String name = null;
+            StringBuilder definition = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.startsWith(NEWMTL)) {
+                    if (name != null) {
+                        definitions.putIfAbsent(name, definition.toString());
+                    }
+                    name = trimmed.substring(NEWMTL.length()).trim();
+                    definition.setLength(0);
+                } else if (name != null && !trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    definition.append(trimmed).append('\n');
+                }
+            }
+            if (name != null) {
+                definitions.putIfAbsent(name, definition.toString());
+            }
+        }
+    }
+
+    /**
+     * @return the definition with its statements sorted, keywords in lower case and numbers normalized
+     */
+    private static String canonical(String definition) {
+        List<String> statements = new ArrayList<>();
+        for (String line : definition.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            StringBuilder statement = new StringBuilder(tokens[0].toLowerCase(Locale.ROOT));
+            for (int i = 1; i < tokens.length; i++) {
+                statement.append(' ').append(normalizeNumber(tokens[i]));
+            }
+            statements.add(statement.toString());
+        }
+        statements.sort(null);
+        return String.join("\n", statements);
+    }
+
+    private static String normalizeNumber(String token) {
+        char first = token.charAt(0);
+        if (first != '-' && first != '+' && first != '.' && (first < '0' || first > '9')) {
+            return token;
+        }
+        try {
+            return Double.toString(Double.parseDouble(token));
+        } catch (NumberFormatException e) {
+            return token;
+        }
+    }
+
+    private static void writeMaterials(Map<String, String> definitions, Map<String, String> canonicalNames,
+                                       Path mtlFile) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(mtlFile), CHARSET))) {
+            for (Map.Entry<String, String> definition : definitions.entrySet()) {
+                if (definition.getKey().equals(canonicalNames.get(definition.getKey()))) {
+                    writer.write(NEWMTL + " " + definition.getKey() + "\n");
+                    writer.write(definition.getValue());
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+}
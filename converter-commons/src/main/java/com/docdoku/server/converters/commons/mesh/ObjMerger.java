@@ -0,0 +1,194 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Concatenates OBJ files, and their MTL files, into a single model.
+ * <p>
+ * Files are streamed line by line. The positive vertex, texture coordinate
+ * and normal indices of each file are shifted by the number of elements of the
+ * files before it, relative indices stay valid as they are. Materials are
+ * deduplicated by name, the first definition wins.
+ */
+public class ObjMerger {
+
+    // Byte transparent, OBJ and MTL files are mostly ASCII
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private long vertexOffset;
+    private long textureOffset;
+    private long normalOffset;
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * @param objFiles the models to merge, in order
+     * @param target   the merged model
+     * @param mtlFile  the merged material library referenced by the model, null if there is none
+     * @return the number of vertices of the merged model
+     */
+    public long merge(List<Path> objFiles, Path target, Path mtlFile) throws IOException {
+        vertexOffset = 0;
+        textureOffset = 0;
+        normalOffset = 0;
+        try (Writer writer = newWriter(target)) {
+            if (mtlFile != null) {
+                writer.write("mtllib " + mtlFile.getFileName() + "\n");
+            }
+            for (Path objFile : objFiles) {
+                append(objFile, writer);
+            }
+        }
+        return vertexOffset;
+    }
+
+    /**
+     * Concatenate material libraries, skipping the materials already defined.
+     */
+    public static void mergeMaterials(List<Path> mtlFiles, Path target) throws IOException {
+        Set<String> names = new HashSet<>();
+        try (Writer writer = newWriter(target)) {
+            for (Path mtlFile : mtlFiles) {
+                if (!Files.exists(mtlFile)) {
+                    continue;
+                }
+                try (BufferedReader reader = newReader(mtlFile)) {
+                    boolean skipping = false;
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String trimmed = line.trim();
+                        if (trimmed.startsWith("newmtl")) {
+                            skipping = !names.add(trimmed.substring("newmtl".length()).trim());
+                        }
+                        if (!skipping) {
+                            writer.write(line);
+                            writer.write('\n');
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void append(Path objFile, Writer writer) throws IOException {
+        long vertices = 0;
+        long textures = 0;
+        long normals = 0;
+        try (BufferedReader reader = newReader(objFile)) {
+            String current;
+            while ((current = reader.readLine()) != null) {
+                if (current.startsWith("v ")) {
+                    vertices++;
+                } else if (current.startsWith("vt ")) {
+                    textures++;
+                } else if (current.startsWith("vn ")) {
+                    normals++;
+                } else if (current.startsWith("f ") || current.startsWith("l ") || current.startsWith("p ")) {
+                    current = shiftIndices(current);
+                } else if (current.startsWith("mtllib")) {
+                    // Replaced by the merged library
+                    continue;
+                }
+                writer.write(current);
+                writer.write('\n');
+            }
+        }
+        vertexOffset += vertices;
+        textureOffset += textures;
+        normalOffset += normals;
+    }
+
+    private String shiftIndices(String element) {
+        if (vertexOffset == 0 && textureOffset == 0 && normalOffset == 0) {
+            return element;
+        }
+        line.setLength(0);
+        int length = element.length();
+        int i = 0;
+        // Keyword
+        while (i < length && element.charAt(i) != ' ') {
+            line.append(element.charAt(i++));
+        }
+        int slot = 0;
+        while (i < length) {
+            char c = element.charAt(i);
+            if (c >= '0' && c <= '9') {
+                long index = 0;
+                while (i < length && (c = element.charAt(i)) >= '0' && c <= '9') {
+                    index = index * 10 + (c - '0');
+                    i++;
+                }
+                line.append(index + offset(slot));
+                continue;
+            }
+            if (c == '/') {
+                slot++;
+            } else if (c == ' ' || c == '\t') {
+                slot = 0;
+            } else if (c == '-') {
+                // Relative index, copied as is with its digits
+                line.append(c);
+                i++;
+                while (i < length && (c = element.charAt(i)) >= '0' && c <= '9') {
+                    line.append(c);
+                    i++;
+                }
+                continue;
+            }
+            line.append(c);
+            i++;
+        }
+        return line.toString();
+    }
+
+    private static BufferedReader newReader(Path file) throws IOException {
+        return new BufferedReader(new InputStreamReader(Files.newInputStream(file), CHARSET), BUFFER_SIZE);
+    }
+
+    private static Writer newWriter(Path file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), CHARSET), BUFFER_SIZE);
+    }
+
+    private long offset(int slot) {
+        switch (slot) {
+            case 0:
+                return vertexOffset;
+            case 1:
+                return textureOffset;
+            default:
+                return normalOffset;
+        }
+    }
+}
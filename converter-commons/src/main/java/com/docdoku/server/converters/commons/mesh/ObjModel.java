@@ -0,0 +1,272 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * OBJ model held in primitive arrays, for the passes rewriting a whole model.
+ * <p>
+ * Faces are triangulated as fans. Other statements, such as <code>o</code>,
+ * <code>g</code>, <code>usemtl</code> or <code>mtllib</code>, are kept with
+ * the number of triangles before them. Models with line, point, curve or
+ * surface elements are not supported.
+ */
+class ObjModel {
+
+    private static final List<String> UNSUPPORTED_ELEMENTS = Arrays.asList("l", "p", "curv", "curv2", "surf", "vp");
+
+    float[] positions = new float[3 * 1024];
+    int positionCount;
+    float[] textures = new float[2 * 1024];
+    int textureCount;
+    float[] normals = new float[3 * 1024];
+    int normalCount;
+
+    // Position, texture coordinate and normal index of the corners, -1 when missing
+    int[] cornerPositions = new int[3 * 1024];
+    int[] cornerTextures = new int[3 * 1024];
+    int[] cornerNormals = new int[3 * 1024];
+    int triangleCount;
+
+    // Statements, with the number of triangles before them
+    final List<String> statements = new ArrayList<>();
+    int[] statementTriangles = new int[16];
+
+    private int[] face = new int[3 * 16];
+
+    private ObjModel() {
+    }
+
+    /**
+     * @return the model, null if it has unsupported elements
+     */
+    static ObjModel read(Path objFile) throws IOException {
+        ObjModel model = new ObjModel();
+        return model.parse(objFile) ? model : null;
+    }
+
+    private boolean parse(Path objFile) throws IOException {
+        try (MappedFileReader reader = new MappedFileReader(objFile)) {
+            int c;
+            while ((c = reader.skipWhitespace()) != -1) {
+                if (c == '#') {
+                    reader.skipLine();
+                    continue;
+                }
+                if (c == 'v' || c == 'f') {
+                    long start = reader.position();
+                    reader.get();
+                    int type = reader.peek();
+                    if (c == 'v' && (type == ' ' || type == '\t')) {
+                        readPosition(reader);
+                        continue;
+                    } else if (c == 'v' && type == 't') {
+                        reader.get();
+                        readTexture(reader);
+                        continue;
+                    } else if (c == 'v' && type == 'n') {
+                        reader.get();
+                        readNormal(reader);
+                        continue;
+                    } else if (c == 'f' && (type == ' ' || type == '\t')) {
+                        readFace(reader);
+                        continue;
+                    }
+                    reader.position(start);
+                }
+                String statement = reader.readLine().trim();
+                String keyword = statement.split("\\s+", 2)[0].toLowerCase(Locale.ROOT);
+                if (UNSUPPORTED_ELEMENTS.contains(keyword)) {
+                    return false;
+                }
+                if (statements.size() == statementTriangles.length) {
+                    statementTriangles = Arrays.copyOf(statementTriangles, statements.size() * 2);
+                }
+                statementTriangles[statements.size()] = triangleCount;
+                statements.add(statement);
+            }
+        }
+        return true;
+    }
+
+    private void readPosition(MappedFileReader reader) throws IOException {
+        if (positionCount * 3 == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[positionCount * 3] = reader.readFloat();
+        positions[positionCount * 3 + 1] = reader.readFloat();
+        positions[positionCount * 3 + 2] = reader.readFloat();
+        positionCount++;
+        reader.skipLine();
+    }
+
+    private void readTexture(MappedFileReader reader) throws IOException {
+        if (textureCount * 2 == textures.length) {
+            textures = Arrays.copyOf(textures, textures.length * 2);
+        }
+        textures[textureCount * 2] = reader.readFloat();
+        int next = reader.skipBlanks();
+        textures[textureCount * 2 + 1] = next == '-' || next == '+' || next == '.' || next >= '0' && next <= '9'
+                ? reader.readFloat() : 0;
+        textureCount++;
+        reader.skipLine();
+    }
+
+    private void readNormal(MappedFileReader reader) throws IOException {
+        if (normalCount * 3 == normals.length) {
+            normals = Arrays.copyOf(normals, normals.length * 2);
+        }
+        normals[normalCount * 3] = reader.readFloat();
+        normals[normalCount * 3 + 1] = reader.readFloat();
+        normals[normalCount * 3 + 2] = reader.readFloat();
+        normalCount++;
+        reader.skipLine();
+    }
+
+    private void readFace(MappedFileReader reader) throws IOException {
+        int count = 0;
+        int c;
+        while ((c = reader.skipBlanks()) != -1 && c != '\n' && c != '\r' && c != '#') {
+            long vertex = reader.readLong();
+            long texture = 0;
+            long normal = 0;
+            if (reader.peek() == '/') {
+                reader.get();
+                if (reader.peek() != '/') {
+                    texture = reader.readLong();
+                }
+                if (reader.peek() == '/') {
+                    reader.get();
+                    normal = reader.readLong();
+                }
+            }
+            if (count * 3 == face.length) {
+                face = Arrays.copyOf(face, face.length * 2);
+            }
+            face[count * 3] = resolve(vertex, positionCount, reader);
+            face[count * 3 + 1] = texture == 0 ? -1 : resolve(texture, textureCount, reader);
+            face[count * 3 + 2] = normal == 0 ? -1 : resolve(normal, normalCount, reader);
+            count++;
+        }
+        reader.skipLine();
+
+        for (int i = 1; i + 1 < count; i++) {
+            if (triangleCount * 3 == cornerPositions.length) {
+                cornerPositions = Arrays.copyOf(cornerPositions, cornerPositions.length * 2);
+                cornerTextures = Arrays.copyOf(cornerTextures, cornerPositions.length);
+                cornerNormals = Arrays.copyOf(cornerNormals, cornerPositions.length);
+            }
+            putCorner(triangleCount * 3, 0);
+            putCorner(triangleCount * 3 + 1, i);
+            putCorner(triangleCount * 3 + 2, i + 1);
+            triangleCount++;
+        }
+    }
+
+    private void putCorner(int corner, int faceCorner) {
+        cornerPositions[corner] = face[faceCorner * 3];
+        cornerTextures[corner] = face[faceCorner * 3 + 1];
+        cornerNormals[corner] = face[faceCorner * 3 + 2];
+    }
+
+    private static int resolve(long index, long count, MappedFileReader reader) throws IOException {
+        long resolved = index > 0 ? index - 1 : count + index;
+        if (index == 0 || resolved < 0 || resolved >= count) {
+            throw new IOException("Invalid index " + index + " before offset " + reader.position());
+        }
+        return (int) resolved;
+    }
+
+    /**
+     * Write the model, vertex attributes first in the order of their first use, unused ones left out.
+     *
+     * @param keptTriangles the triangles to write, null for all of them
+     * @param keptStatements the statements to write, null for all of them
+     */
+    void write(Path objFile, boolean[] keptTriangles, boolean[] keptStatements) throws IOException {
+        int[] positionNumbers = new int[positionCount];
+        int[] textureNumbers = new int[textureCount];
+        int[] normalNumbers = new int[normalCount];
+        int[] positionOrder = numberByFirstUse(cornerPositions, positionNumbers, keptTriangles);
+        int[] textureOrder = numberByFirstUse(cornerTextures, textureNumbers, keptTriangles);
+        int[] normalOrder = numberByFirstUse(cornerNormals, normalNumbers, keptTriangles);
+
+        try (ObjWriter writer = new ObjWriter(objFile)) {
+            for (int original : positionOrder) {
+                writer.vertex(positions[original * 3], positions[original * 3 + 1], positions[original * 3 + 2]);
+            }
+            for (int original : textureOrder) {
+                writer.textureCoordinate(textures[original * 2], textures[original * 2 + 1]);
+            }
+            for (int original : normalOrder) {
+                writer.normal(normals[original * 3], normals[original * 3 + 1], normals[original * 3 + 2]);
+            }
+            int[] facePositions = new int[3];
+            int[] faceTextures = new int[3];
+            int[] faceNormals = new int[3];
+            int statement = 0;
+            for (int triangle = 0; triangle <= triangleCount; triangle++) {
+                while (statement < statements.size() && statementTriangles[statement] == triangle) {
+                    if (keptStatements == null || keptStatements[statement]) {
+                        String[] line = statements.get(statement).split("\\s+", 2);
+                        writer.statement(line[0], line.length > 1 ? line[1] : null);
+                    }
+                    statement++;
+                }
+                if (triangle < triangleCount && (keptTriangles == null || keptTriangles[triangle])) {
+                    for (int corner = 0; corner < 3; corner++) {
+                        int index = triangle * 3 + corner;
+                        facePositions[corner] = positionNumbers[cornerPositions[index]];
+                        faceTextures[corner] = cornerTextures[index] < 0 ? -1 : textureNumbers[cornerTextures[index]];
+                        faceNormals[corner] = cornerNormals[index] < 0 ? -1 : normalNumbers[cornerNormals[index]];
+                    }
+                    writer.face(facePositions, faceTextures, faceNormals, 0, 3);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number the attributes used by the corners in the order of their first use.
+     *
+     * @param numbers set to the new number of each attribute
+     * @return the original index of each attribute used, in the new order
+     */
+    private int[] numberByFirstUse(int[] corners, int[] numbers, boolean[] keptTriangles) {
+        Arrays.fill(numbers, -1);
+        int[] originals = new int[numbers.length];
+        int used = 0;
+        for (int corner = 0; corner < triangleCount * 3; corner++) {
+            int attribute = corners[corner];
+            if (attribute >= 0 && numbers[attribute] < 0 && (keptTriangles == null || keptTriangles[corner / 3])) {
+                originals[used] = attribute;
+                numbers[attribute] = used++;
+            }
+        }
+        return Arrays.copyOf(originals, used);
+    }
+}
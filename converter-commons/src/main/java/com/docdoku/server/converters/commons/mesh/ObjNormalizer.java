@@ -0,0 +1,677 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Validates an OBJ file and rewrites it in a normalized form: vertex data
+ * first, then the faces and other statements in their original order, with
+ * positive indices, without comments and with compact numbers.
+ * <p>
+ * The file is split on line boundaries into chunks mapped in memory and
+ * processed in parallel, in two passes: the vertex data of each chunk is
+ * counted, so that every chunk knows how many vertices precede it, then each
+ * chunk is validated and rewritten to its own temporary files, which are
+ * finally concatenated. Broken files are rejected with the number of the
+ * first invalid line found.
+ */
+public class ObjNormalizer {
+
+    private static final long MIN_CHUNK_SIZE = 4L * 1024 * 1024;
+    private static final long MAX_CHUNK_SIZE = 64L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ForkJoinPool NORMALIZERS = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // Output streams of each chunk, concatenated in this order
+    private static final int POSITIONS = 0;
+    private static final int TEXTURES = 1;
+    private static final int NORMALS = 2;
+    private static final int STATEMENTS = 3;
+
+    private static final byte[] V = {'v'};
+    private static final byte[] VT = {'v', 't'};
+    private static final byte[] VN = {'v', 'n'};
+    private static final byte[] F = {'f'};
+    private static final byte[] L = {'l'};
+    private static final byte[] P = {'p'};
+
+    private final FileChannel channel;
+    private final Path tmpDir;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final long[] totals = new long[3];
+    private volatile boolean failed;
+
+    private ObjNormalizer(FileChannel channel, Path tmpDir) {
+        this.channel = channel;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Statistics of a normalized file.
+     */
+    public static class Report {
+
+        private final long lines;
+        private final long positions;
+        private final long textures;
+        private final long normals;
+        private final long faces;
+        private final long inputSize;
+        private final long outputSize;
+
+        Report(long lines, long positions, long textures, long normals, long faces, long inputSize,
+               long outputSize) {
+            this.lines = lines;
+            this.positions = positions;
+            this.textures = textures;
+            this.normals = normals;
+            this.faces = faces;
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getPositions() {
+            return positions;
+        }
+
+        public long getTextures() {
+            return textures;
+        }
+
+        public long getNormals() {
+            return normals;
+        }
+
+        public long getFaces() {
+            return faces;
+        }
+
+        public long getInputSize() {
+            return inputSize;
+        }
+
+        public long getOutputSize() {
+            return outputSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d lines, %d positions, %d texture coordinates, %d normals, "
+                    + "%d faces, %d bytes to %d", lines, positions, textures, normals, faces, inputSize, outputSize);
+        }
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or written, or is not a valid OBJ file
+     */
+    public static Report normalize(Path objFile, Path normalizedFile) throws IOException {
+        long size = Files.size(objFile);
+        long chunkSize = Math.max(MIN_CHUNK_SIZE,
+                Math.min(MAX_CHUNK_SIZE, size / (NORMALIZERS.getParallelism() * 4L)));
+        return normalize(objFile, normalizedFile, chunkSize);
+    }
+
+    static Report normalize(Path objFile, Path normalizedFile, long chunkSize) throws IOException {
+        Path tmpDir = normalizedFile.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(objFile, StandardOpenOption.READ)) {
+            ObjNormalizer normalizer = new ObjNormalizer(channel, tmpDir);
+            try {
+                return normalizer.run(normalizedFile, chunkSize);
+            } finally {
+                normalizer.deleteChunkFiles();
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(normalizedFile);
+            throw e;
+        }
+    }
+
+    private Report run(Path normalizedFile, long chunkSize) throws IOException {
+        split(chunkSize);
+
+        runPass(false);
+        long lines = 0;
+        for (Chunk chunk : chunks) {
+            chunk.lineBase = lines;
+            lines += chunk.lines;
+            for (int kind = 0; kind < 3; kind++) {
+                chunk.bases[kind] = totals[kind];
+                totals[kind] += chunk.counts[kind];
+            }
+        }
+
+        runPass(true);
+        long faces = 0;
+        for (Chunk chunk : chunks) {
+            faces += chunk.faces;
+        }
+
+        long outputSize = 0;
+        try (FileChannel output = FileChannel.open(normalizedFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int stream = POSITIONS; stream <= STATEMENTS; stream++) {
+                for (Chunk chunk : chunks) {
+                    if (chunk.files[stream] != null) {
+                        outputSize += append(chunk.files[stream], output);
+                    }
+                }
+            }
+        }
+        return new Report(lines, totals[POSITIONS], totals[TEXTURES], totals[NORMALS], faces, channel.size(),
+                outputSize);
+    }
+
+    /**
+     * Split the file in chunks of about the given size, each ending after a line feed.
+     */
+    private void split(long chunkSize) throws IOException {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+            boolean found = end == size;
+            while (!found) {
+                buffer.clear();
+                int read = channel.read(buffer, end);
+                if (read <= 0) {
+                    end = size;
+                    break;
+                }
+                for (int i = 0; i < read && !found; i++) {
+                    found = buffer.get(i) == '\n';
+                    end++;
+                }
+            }
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("Line too long at offset " + start);
+            }
+            chunks.add(new Chunk(start, (int) (end - start)));
+            start = end;
+        }
+    }
+
+    private void runPass(boolean rewrite) throws IOException {
+        NORMALIZERS.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<>();
+                for (Chunk chunk : chunks) {
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            chunk.run(rewrite);
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+
+        IOException failure = null;
+        Chunk firstError = null;
+        for (Chunk chunk : chunks) {
+            if (chunk.failure != null) {
+                if (failure == null) {
+                    failure = chunk.failure;
+                } else {
+                    failure.addSuppressed(chunk.failure);
+                }
+            }
+            if (chunk.error != null && (firstError == null || chunk.errorLine < firstError.errorLine)) {
+                firstError = chunk;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (firstError != null) {
+            throw new IOException("Invalid OBJ file, line " + firstError.errorLine + ": " + firstError.error);
+        }
+    }
+
+    private static long append(Path file, FileChannel output) throws IOException {
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = input.size();
+            long position = 0;
+            while (position < size) {
+                position += input.transferTo(position, size - position, output);
+            }
+            return size;
+        }
+    }
+
+    private void deleteChunkFiles() throws IOException {
+        for (Chunk chunk : chunks) {
+            chunk.closeOutputs();
+            for (Path file : chunk.files) {
+                if (file != null) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static boolean isBlank(int c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    private class Chunk {
+
+        private final long start;
+        private final int length;
+
+        // First pass
+        long lines;
+        final long[] counts = new long[3];
+
+        // Second pass
+        long lineBase;
+        final long[] bases = new long[3];
+        long faces;
+        final Path[] files = new Path[4];
+        private final OutputStream[] outputs = new OutputStream[4];
+        private byte[] line = new byte[256];
+        private int lineLength;
+
+        IOException failure;
+        String error;
+        long errorLine;
+
+        private MappedByteBuffer in;
+
+        Chunk(long start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        void run(boolean rewrite) {
+            try {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                if (rewrite) {
+                    rewrite();
+                } else {
+                    count();
+                }
+            } catch (IOException e) {
+                failure = e;
+                failed = true;
+            } finally {
+                in = null;
+                try {
+                    closeOutputs();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+
+        private void count() {
+            int position = 0;
+            while (position < length) {
+                int end = lineEnd(position);
+                lines++;
+                int s = position;
+                while (s < end && isBlank(in.get(s))) {
+                    s++;
+                }
+                if (s + 1 < end && in.get(s) == 'v') {
+                    int type = in.get(s + 1);
+                    if (isBlank(type)) {
+                        counts[POSITIONS]++;
+                    } else if (s + 2 < end && isBlank(in.get(s + 2))) {
+                        if (type == 't') {
+                            counts[TEXTURES]++;
+                        } else if (type == 'n') {
+                            counts[NORMALS]++;
+                        }
+                    }
+                }
+                position = end + 1;
+            }
+        }
+
+        private void rewrite() throws IOException {
+            long[] defined = bases.clone();
+            long lineNumber = lineBase;
+            int position = 0;
+            while (position < length && !failed) {
+                int end = lineEnd(position);
+                lineNumber++;
+                int contentEnd = position;
+                while (contentEnd < end && in.get(contentEnd) != '#') {
+                    contentEnd++;
+                }
+                int s = position;
+                while (s < contentEnd && isBlank(in.get(s))) {
+                    s++;
+                }
+                while (contentEnd > s && isBlank(in.get(contentEnd - 1))) {
+                    contentEnd--;
+                }
+                if (s < contentEnd) {
+                    int k = s;
+                    while (k < contentEnd && !isBlank(in.get(k))) {
+                        k++;
+                    }
+                    String message = rewriteLine(s, k, contentEnd, defined);
+                    if (message != null) {
+                        error = message;
+                        errorLine = lineNumber;
+                        failed = true;
+                        return;
+                    }
+                }
+                position = end + 1;
+            }
+        }
+
+        /**
+         * @return an error message, null if the line is valid
+         */
+        private String rewriteLine(int start, int keywordEnd, int end, long[] defined) throws IOException {
+            lineLength = 0;
+            append(start, keywordEnd);
+            if (keywordIs(start, keywordEnd, V)) {
+                defined[POSITIONS]++;
+                return writeNumbers(POSITIONS, keywordEnd, end, 3, 7);
+            } else if (keywordIs(start, keywordEnd, VT)) {
+                defined[TEXTURES]++;
+                return writeNumbers(TEXTURES, keywordEnd, end, 1, 3);
+            } else if (keywordIs(start, keywordEnd, VN)) {
+                defined[NORMALS]++;
+                return writeNumbers(NORMALS, keywordEnd, end, 3, 3);
+            } else if (keywordIs(start, keywordEnd, F)) {
+                faces++;
+                return writeReferences(keywordEnd, end, 3, defined);
+            } else if (keywordIs(start, keywordEnd, L)) {
+                return writeReferences(keywordEnd, end, 2, defined);
+            } else if (keywordIs(start, keywordEnd, P)) {
+                return writeReferences(keywordEnd, end, 1, defined);
+            }
+            int rest = keywordEnd;
+            while (rest < end && isBlank(in.get(rest))) {
+                rest++;
+            }
+            if (rest < end) {
+                appendByte(' ');
+                append(rest, end);
+            }
+            writeLine(STATEMENTS);
+            return null;
+        }
+
+        private String writeNumbers(int stream, int position, int end, int min, int max) throws IOException {
+            int count = 0;
+            while (position < end) {
+                while (isBlank(in.get(position))) {
+                    position++;
+                }
+                int tokenEnd = position;
+                while (tokenEnd < end && !isBlank(in.get(tokenEnd))) {
+                    tokenEnd++;
+                }
+                int compactEnd = numberEnd(position, tokenEnd);
+                if (compactEnd < 0) {
+                    return "invalid number " + text(position, tokenEnd);
+                }
+                appendByte(' ');
+                if (compactEnd == position || compactEnd == position + 1 && !isDigit(in.get(position))) {
+                    // Only zeros after the sign
+                    appendByte('0');
+                } else {
+                    append(position, compactEnd);
+                }
+                count++;
+                position = tokenEnd;
+            }
+            if (count < min || count > max) {
+                return min == max ? "expected " + min + " values, found " + count
+                        : "expected " + min + " to " + max + " values, found " + count;
+            }
+            writeLine(stream);
+            return null;
+        }
+
+        /**
+         * @return the end of the number without its useless trailing zeros, -1 if it is not a number
+         */
+        private int numberEnd(int position, int end) {
+            int i = position;
+            if (i < end && (in.get(i) == '-' || in.get(i) == '+')) {
+                i++;
+            }
+            int digits = 0;
+            while (i < end && isDigit(in.get(i))) {
+                i++;
+                digits++;
+            }
+            int dot = -1;
+            if (i < end && in.get(i) == '.') {
+                dot = i++;
+                while (i < end && isDigit(in.get(i))) {
+                    i++;
+                    digits++;
+                }
+            }
+            if (digits == 0) {
+                return -1;
+            }
+            if (i < end && (in.get(i) == 'e' || in.get(i) == 'E')) {
+                i++;
+                if (i < end && (in.get(i) == '-' || in.get(i) == '+')) {
+                    i++;
+                }
+                int exponentDigits = 0;
+                while (i < end && isDigit(in.get(i))) {
+                    i++;
+                    exponentDigits++;
+                }
+                return i == end && exponentDigits > 0 ? end : -1;
+            }
+            if (i != end) {
+                return -1;
+            }
+            if (dot < 0) {
+                return end;
+            }
+            while (end > dot + 1 && in.get(end - 1) == '0') {
+                end--;
+            }
+            end = end == dot + 1 ? dot : end;
+            // Drop the integer zero before the dot, if nothing follows it
+            return end == position + 1 && in.get(position) == '0' ? position : end;
+        }
+
+        private String writeReferences(int position, int end, int min, long[] defined) throws IOException {
+            int count = 0;
+            while (position < end) {
+                while (isBlank(in.get(position))) {
+                    position++;
+                }
+                if (in.get(position) == '/') {
+                    return "missing position in vertex reference " + text(position, referenceEnd(position, end));
+                }
+                appendByte(' ');
+                int kind = POSITIONS;
+                while (position < end && !isBlank(in.get(position))) {
+                    if (in.get(position) == '/') {
+                        if (++kind > NORMALS) {
+                            return "invalid vertex reference " + text(position, end);
+                        }
+                        appendByte('/');
+                        position++;
+                        continue;
+                    }
+                    boolean negative = in.get(position) == '-';
+                    int digitsStart = negative || in.get(position) == '+' ? position + 1 : position;
+                    int digitsEnd = digitsStart;
+                    long index = 0;
+                    while (digitsEnd < end && isDigit(in.get(digitsEnd)) && digitsEnd - digitsStart < 18) {
+                        index = index * 10 + in.get(digitsEnd) - '0';
+                        digitsEnd++;
+                    }
+                    if (digitsEnd == digitsStart || digitsEnd < end && !isBlank(in.get(digitsEnd))
+                            && in.get(digitsEnd) != '/') {
+                        return "invalid vertex reference " + text(position, referenceEnd(position, end));
+                    }
+                    // Positive indices may reference vertex data defined later, it is written first anyway
+                    long resolved = negative ? defined[kind] - index + 1 : index;
+                    if (index == 0 || resolved < 1 || resolved > totals[kind]) {
+                        return "index " + text(position, digitsEnd) + " out of range, " + defined[kind] + " "
+                                + kindName(kind) + " defined before";
+                    }
+                    appendNumber(resolved);
+                    position = digitsEnd;
+                }
+                count++;
+            }
+            if (count < min) {
+                return "expected at least " + min + " vertices, found " + count;
+            }
+            writeLine(STATEMENTS);
+            return null;
+        }
+
+        private int referenceEnd(int position, int end) {
+            while (position < end && !isBlank(in.get(position))) {
+                position++;
+            }
+            return position;
+        }
+
+        private String kindName(int kind) {
+            return kind == POSITIONS ? "positions" : kind == TEXTURES ? "texture coordinates" : "normals";
+        }
+
+        private int lineEnd(int position) {
+            while (position < length && in.get(position) != '\n') {
+                position++;
+            }
+            return position;
+        }
+
+        private boolean keywordIs(int start, int end, byte[] keyword) {
+            if (end - start != keyword.length) {
+                return false;
+            }
+            for (int i = 0; i < keyword.length; i++) {
+                if (in.get(start + i) != keyword[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String text(int start, int end) {
+            byte[] bytes = new byte[Math.min(end - start, 64)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = in.get(start + i);
+            }
+            return "\"" + new String(bytes, StandardCharsets.UTF_8) + "\"";
+        }
+
+        private void append(int start, int end) {
+            ensure(end - start);
+            for (int i = start; i < end; i++) {
+                line[lineLength++] = in.get(i);
+            }
+        }
+
+        private void appendByte(char c) {
+            ensure(1);
+            line[lineLength++] = (byte) c;
+        }
+
+        private void appendNumber(long value) {
+            ensure(20);
+            int start = lineLength;
+            do {
+                line[lineLength++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = lineLength - 1; i < j; i++, j--) {
+                byte digit = line[i];
+                line[i] = line[j];
+                line[j] = digit;
+            }
+        }
+
+        private void ensure(int bytes) {
+            if (lineLength + bytes + 1 > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + bytes + 1));
+            }
+        }
+
+        private void writeLine(int stream) throws IOException {
+            line[lineLength++] = '\n';
+            if (outputs[stream] == null) {
+                files[stream] = Files.createTempFile(tmpDir, "normalize", ".obj");
+                outputs[stream] = new BufferedOutputStream(Files.newOutputStream(files[stream]), BUFFER_SIZE);
+            }
+            outputs[stream].write(line, 0, lineLength);
+        }
+
+        void closeOutputs() throws IOException {
+            IOException closeFailure = null;
+            for (int stream = 0; stream < outputs.length; stream++) {
+                if (outputs[stream] != null) {
+                    try {
+                        outputs[stream].close();
+                    } catch (IOException e) {
+                        closeFailure = e;
+                    }
+                    outputs[stream] = null;
+                }
+            }
+            if (closeFailure != null) {
+                throw closeFailure;
+            }
+        }
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Rewrites an OBJ model for faster rendering.
+ * <p>
+ * Positions closer than a tolerance are welded and duplicated texture
+ * coordinates and normals merged. Faces are triangulated, then the triangles
+ * of each run of faces between two statements such as <code>o</code>,
+ * <code>g</code> or <code>usemtl</code> are reordered for the vertex cache by
+ * {@link VertexCacheOptimizer}. Vertex attributes are finally written in the
+ * order of their first use, for fetch locality, and unused ones dropped.
+ * <p>
+ * The model is held in primitive arrays. Models with line, point, curve or
+ * surface elements are not optimized.
+ */
+public class ObjOptimizer {
+
+    private final ObjModel model;
+
+    private ObjOptimizer(ObjModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Statistics of an optimized model.
+     */
+    public static class Report {
+
+        private final int triangles;
+        private final int verticesBefore;
+        private final int verticesAfter;
+        private final double acmrBefore;
+        private final double acmrAfter;
+
+        Report(int triangles, int verticesBefore, int verticesAfter, double acmrBefore, double acmrAfter) {
+            this.triangles = triangles;
+            this.verticesBefore = verticesBefore;
+            this.verticesAfter = verticesAfter;
+            this.acmrBefore = acmrBefore;
+            this.acmrAfter = acmrAfter;
+        }
+
+        public int getTriangles() {
+            return triangles;
+        }
+
+        /**
+         * @return the number of distinct position, texture coordinate and normal combinations
+         */
+        public int getVerticesBefore() {
+            return verticesBefore;
+        }
+
+        public int getVerticesAfter() {
+            return verticesAfter;
+        }
+
+        /**
+         * @return the average cache miss ratio with a FIFO cache of {@link VertexCacheOptimizer#REPORT_CACHE_SIZE}
+         */
+        public double getAcmrBefore() {
+            return acmrBefore;
+        }
+
+        public double getAcmrAfter() {
+            return acmrAfter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d triangles, %d -> %d vertices, ACMR %.3f -> %.3f",
+                    triangles, verticesBefore, verticesAfter, acmrBefore, acmrAfter);
+        }
+    }
+
+    /**
+     * @param weldTolerance the distance under which positions are welded, as a
+     *                      fraction of the diagonal of the model bounds, 0 to weld identical positions only
+     * @return the statistics of the model, null if it was not optimized because of unsupported elements
+     */
+    public static Report optimize(Path objFile, Path optimizedFile, double weldTolerance) throws IOException {
+        ObjModel model = ObjModel.read(objFile);
+        if (model == null) {
+            return null;
+        }
+        ObjOptimizer optimizer = new ObjOptimizer(model);
+
+        int[] vertices = new int[model.triangleCount * 3];
+        int verticesBefore = optimizer.vertexIds(vertices);
+        double acmrBefore = VertexCacheOptimizer.acmr(vertices, model.triangleCount, verticesBefore,
+                VertexCacheOptimizer.REPORT_CACHE_SIZE);
+
+        optimizer.weld(weldTolerance);
+        int verticesAfter = optimizer.vertexIds(vertices);
+        optimizer.reorderTriangles(vertices, verticesAfter);
+        optimizer.vertexIds(vertices);
+        double acmrAfter = VertexCacheOptimizer.acmr(vertices, model.triangleCount, verticesAfter,
+                VertexCacheOptimizer.REPORT_CACHE_SIZE);
+
+        try {
+            model.write(optimizedFile, null, null);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(optimizedFile);
+            throw e;
+        }
+        return new Report(model.triangleCount, verticesBefore, verticesAfter, acmrBefore, acmrAfter);
+    }
+
+    /**
+     * Number the distinct corners, as the GPU vertices they become.
+     *
+     * @return the number of vertices
+     */
+    private int vertexIds(int[] vertices) {
+        CornerIndex index = new CornerIndex(Math.max(16, model.triangleCount));
+        for (int corner = 0; corner < model.triangleCount * 3; corner++) {
+            vertices[corner] = index.add(model.cornerPositions[corner], model.cornerTextures[corner],
+                    model.cornerNormals[corner]);
+        }
+        return index.size();
+    }
+
+    private void weld(double weldTolerance) {
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int i = 0; i < model.positionCount * 3; i++) {
+            min[i % 3] = Math.min(min[i % 3], model.positions[i]);
+            max[i % 3] = Math.max(max[i % 3], model.positions[i]);
+        }
+        double diagonal = 0;
+        for (int axis = 0; axis < 3 && model.positionCount > 0; axis++) {
+            diagonal += (max[axis] - min[axis]) * (max[axis] - min[axis]);
+        }
+        double tolerance = weldTolerance * Math.sqrt(diagonal);
+
+        int[] positionRemap = new int[model.positionCount];
+        if (tolerance > 0 && Double.isFinite(tolerance)) {
+            VertexWelder welder = new VertexWelder(tolerance, model.positionCount);
+            for (int i = 0; i < model.positionCount; i++) {
+                positionRemap[i] = welder.add(model.positions[i * 3], model.positions[i * 3 + 1],
+                        model.positions[i * 3 + 2]);
+            }
+        } else {
+            VertexIndex index = new VertexIndex(model.positionCount);
+            for (int i = 0; i < model.positionCount; i++) {
+                positionRemap[i] = index.add(model.positions[i * 3], model.positions[i * 3 + 1],
+                        model.positions[i * 3 + 2]);
+            }
+        }
+        int[] textureRemap = new int[model.textureCount];
+        VertexIndex textureIndex = new VertexIndex(model.textureCount);
+        for (int i = 0; i < model.textureCount; i++) {
+            textureRemap[i] = textureIndex.add(model.textures[i * 2], model.textures[i * 2 + 1], 0);
+        }
+        int[] normalRemap = new int[model.normalCount];
+        VertexIndex normalIndex = new VertexIndex(model.normalCount);
+        for (int i = 0; i < model.normalCount; i++) {
+            normalRemap[i] = normalIndex.add(model.normals[i * 3], model.normals[i * 3 + 1],
+                    model.normals[i * 3 + 2]);
+        }
+
+        // Remapped attributes still index the original arrays, by their first occurrence
+        int[] firstPosition = firstOccurrences(positionRemap);
+        int[] firstTexture = firstOccurrences(textureRemap);
+        int[] firstNormal = firstOccurrences(normalRemap);
+
+        // Triangles collapsed by the welding are dropped
+        int kept = 0;
+        int statement = 0;
+        for (int triangle = 0; triangle < model.triangleCount; triangle++) {
+            while (statement < model.statements.size() && model.statementTriangles[statement] == triangle) {
+                model.statementTriangles[statement++] = kept;
+            }
+            int a = positionRemap[model.cornerPositions[triangle * 3]];
+            int b = positionRemap[model.cornerPositions[triangle * 3 + 1]];
+            int c = positionRemap[model.cornerPositions[triangle * 3 + 2]];
+            if (a == b || b == c || a == c) {
+                continue;
+            }
+            for (int corner = 0; corner < 3; corner++) {
+                int from = triangle * 3 + corner;
+                int to = kept * 3 + corner;
+                model.cornerPositions[to] = firstPosition[positionRemap[model.cornerPositions[from]]];
+                model.cornerTextures[to] = model.cornerTextures[from] < 0 ? -1
+                        : firstTexture[textureRemap[model.cornerTextures[from]]];
+                model.cornerNormals[to] = model.cornerNormals[from] < 0 ? -1
+                        : firstNormal[normalRemap[model.cornerNormals[from]]];
+            }
+            kept++;
+        }
+        while (statement < model.statements.size()) {
+            model.statementTriangles[statement++] = kept;
+        }
+        model.triangleCount = kept;
+    }
+
+    private static int[] firstOccurrences(int[] remap) {
+        int[] first = new int[remap.length];
+        Arrays.fill(first, -1);
+        for (int i = 0; i < remap.length; i++) {
+            if (first[remap[i]] < 0) {
+                first[remap[i]] = i;
+            }
+        }
+        return first;
+    }
+
+    private void reorderTriangles(int[] vertices, int vertexCount) {
+        int[] local = new int[vertexCount];
+        Arrays.fill(local, -1);
+        int[] segmentIndices = new int[0];
+        int[] reorderedPositions = new int[model.triangleCount * 3];
+        int[] reorderedTextures = new int[model.triangleCount * 3];
+        int[] reorderedNormals = new int[model.triangleCount * 3];
+
+        for (int segment = 0; segment <= model.statements.size(); segment++) {
+            int start = segment == 0 ? 0 : model.statementTriangles[segment - 1];
+            int end = segment == model.statements.size() ? model.triangleCount : model.statementTriangles[segment];
+            int count = end - start;
+            if (count <= 0) {
+                continue;
+            }
+            // Number the vertices of the segment from zero
+            if (segmentIndices.length < count * 3) {
+                segmentIndices = new int[count * 3];
+            }
+            int localCount = 0;
+            for (int i = 0; i < count * 3; i++) {
+                int vertex = vertices[start * 3 + i];
+                if (local[vertex] < 0) {
+                    local[vertex] = localCount++;
+                }
+                segmentIndices[i] = local[vertex];
+            }
+            for (int i = 0; i < count * 3; i++) {
+                local[vertices[start * 3 + i]] = -1;
+            }
+
+            int[] order = VertexCacheOptimizer.optimize(segmentIndices, count, localCount);
+            for (int i = 0; i < count; i++) {
+                int from = (start + order[i]) * 3;
+                int to = (start + i) * 3;
+                System.arraycopy(model.cornerPositions, from, reorderedPositions, to, 3);
+                System.arraycopy(model.cornerTextures, from, reorderedTextures, to, 3);
+                System.arraycopy(model.cornerNormals, from, reorderedNormals, to, 3);
+            }
+        }
+        model.cornerPositions = reorderedPositions;
+        model.cornerTextures = reorderedTextures;
+        model.cornerNormals = reorderedNormals;
+    }
+
+    /**
+     * Open addressing map from the attribute indices of a corner to its vertex number.
+     */
+    private static class CornerIndex {
+
+        private int[] keys;
+        private int[] values;
+        private int mask;
+        private int size;
+
+        CornerIndex(int expectedEntries) {
+            int capacity = Integer.highestOneBit(Math.max(4, expectedEntries * 2 - 1)) << 1;
+            keys = new int[capacity * 3];
+            values = new int[capacity];
+            Arrays.fill(values, -1);
+            mask = capacity - 1;
+        }
+
+        int add(int position, int texture, int normal) {
+            int slot = hash(position, texture, normal) & mask;
+            while (values[slot] >= 0) {
+                if (keys[slot * 3] == position && keys[slot * 3 + 1] == texture && keys[slot * 3 + 2] == normal) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot * 3] = position;
+            keys[slot * 3 + 1] = texture;
+            keys[slot * 3 + 2] = normal;
+            values[slot] = size;
+            if (++size * 2 > values.length) {
+                grow();
+            }
+            return size - 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            Arrays.fill(values, -1);
+            mask = values.length - 1;
+            for (int old = 0; old < oldValues.length; old++) {
+                if (oldValues[old] >= 0) {
+                    int slot = hash(oldKeys[old * 3], oldKeys[old * 3 + 1], oldKeys[old * 3 + 2]) & mask;
+                    while (values[slot] >= 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    System.arraycopy(oldKeys, old * 3, keys, slot * 3, 3);
+                    values[slot] = oldValues[old];
+                }
+            }
+        }
+
+        private static int hash(int position, int texture, int normal) {
+            int hash = position * 0x9E3779B1 + texture * 0x85EBCA77 + normal * 0xC2B2AE3D;
+            return hash ^ hash >>> 16;
+        }
+    }
+}
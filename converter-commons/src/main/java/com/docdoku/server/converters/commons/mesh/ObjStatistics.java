@@ -0,0 +1,249 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import com.docdoku.server.converters.commons.Json;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts, bounds and materials of an OBJ model, gathered in a single pass
+ * over the file.
+ * <p>
+ * The bounds of the model are those of all its positions, the bounds of a
+ * group, named by its <code>o</code> or <code>g</code> statements, those of
+ * the positions its faces reference. Faces before the first group belong to
+ * the group of empty name.
+ */
+public class ObjStatistics {
+
+    private long vertices;
+    private long textureCoordinates;
+    private long normals;
+    private long faces;
+    private long triangles;
+    private final Bounds bounds = new Bounds();
+    private final Set<String> materialLibraries = new LinkedHashSet<>();
+    private final Set<String> materials = new LinkedHashSet<>();
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+
+    private ObjStatistics() {
+    }
+
+    public static ObjStatistics read(Path objFile) throws IOException {
+        ObjStatistics statistics = new ObjStatistics();
+        statistics.parse(objFile);
+        return statistics;
+    }
+
+    private void parse(Path objFile) throws IOException {
+        float[] positions = new float[3 * 1024];
+        Group group = null;
+        try (MappedFileReader reader = new MappedFileReader(objFile)) {
+            int c;
+            while ((c = reader.skipWhitespace()) != -1) {
+                if (c == 'v') {
+                    reader.get();
+                    int type = reader.peek();
+                    if (type == ' ' || type == '\t') {
+                        if (vertices * 3 == positions.length) {
+                            positions = Arrays.copyOf(positions, positions.length * 2);
+                        }
+                        int offset = (int) vertices * 3;
+                        for (int axis = 0; axis < 3; axis++) {
+                            positions[offset + axis] = reader.readFloat();
+                        }
+                        bounds.add(positions, offset);
+                        vertices++;
+                    } else if (type == 't') {
+                        textureCoordinates++;
+                    } else if (type == 'n') {
+                        normals++;
+                    }
+                    reader.skipLine();
+                } else if (c == 'f') {
+                    reader.get();
+                    if (group == null) {
+                        group = groupOf("");
+                    }
+                    int count = 0;
+                    while ((c = reader.skipBlanks()) != -1 && c != '\n' && c != '\r' && c != '#') {
+                        long index = reader.readLong();
+                        long resolved = index > 0 ? index - 1 : vertices + index;
+                        if (index == 0 || resolved < 0 || resolved >= vertices) {
+                            throw new IOException("Invalid index " + index + " before offset " + reader.position());
+                        }
+                        while ((c = reader.peek()) != -1 && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                            reader.get();
+                        }
+                        group.bounds.add(positions, (int) resolved * 3);
+                        count++;
+                    }
+                    reader.skipLine();
+                    faces++;
+                    group.faces++;
+                    triangles += Math.max(0, count - 2);
+                } else if (c == 'o' || c == 'g') {
+                    reader.get();
+                    int next = reader.peek();
+                    if (next == ' ' || next == '\t') {
+                        group = groupOf(reader.readLine().trim());
+                    } else {
+                        reader.skipLine();
+                    }
+                } else if (reader.matchKeyword("usemtl")) {
+                    materials.add(reader.readLine().trim());
+                } else if (reader.matchKeyword("mtllib")) {
+                    materialLibraries.add(reader.readLine().trim());
+                } else {
+                    reader.skipLine();
+                }
+            }
+        }
+    }
+
+    private Group groupOf(String name) {
+        return groups.computeIfAbsent(name, key -> new Group());
+    }
+
+    public long getVertices() {
+        return vertices;
+    }
+
+    public long getTextureCoordinates() {
+        return textureCoordinates;
+    }
+
+    public long getNormals() {
+        return normals;
+    }
+
+    public long getFaces() {
+        return faces;
+    }
+
+    public long getTriangles() {
+        return triangles;
+    }
+
+    /**
+     * @return the minimum and maximum coordinates of the model, null if it has no vertex
+     */
+    public double[] getBounds() {
+        return bounds.toArray();
+    }
+
+    /**
+     * @return the material names used by the faces, in order of first use
+     */
+    public Set<String> getMaterials() {
+        return materials;
+    }
+
+    /**
+     * @return the bounds of the faces of the given group, null if it has no face
+     */
+    public double[] getGroupBounds(String name) {
+        Group group = groups.get(name);
+        return group == null ? null : group.bounds.toArray();
+    }
+
+    /**
+     * Write the statistics as a JSON document:
+     * <pre>
+     * {"vertices":8,"textureCoordinates":0,"normals":6,"faces":6,"triangles":12,
+     *  "bounds":{"min":[0,0,0],"max":[1,1,1]},"materialLibraries":["part.mtl"],
+     *  "materials":["steel"],"groups":[{"name":"cube","faces":6,"bounds":{...}}]}
+     * </pre>
+     * Bounds are null for an empty model.
+     */
+    public void write(Path jsonFile) throws IOException {
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(jsonFile, StandardCharsets.UTF_8))) {
+            writer.write("{\"vertices\":" + vertices
+                    + ",\"textureCoordinates\":" + textureCoordinates
+                    + ",\"normals\":" + normals
+                    + ",\"faces\":" + faces
+                    + ",\"triangles\":" + triangles
+                    + ",\n\"bounds\":" + bounds.toJson()
+                    + ",\n\"materialLibraries\":" + toJson(materialLibraries)
+                    + ",\n\"materials\":" + toJson(materials)
+                    + ",\n\"groups\":[");
+            boolean first = true;
+            for (Map.Entry<String, Group> group : groups.entrySet()) {
+                writer.write((first ? "\n" : ",\n") + "{\"name\":" + Json.quote(group.getKey())
+                        + ",\"faces\":" + group.getValue().faces
+                        + ",\"bounds\":" + group.getValue().bounds.toJson() + "}");
+                first = false;
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    private static String toJson(Set<String> values) {
+        StringBuilder json = new StringBuilder("[");
+        for (String value : values) {
+            json.append(json.length() > 1 ? "," : "").append(Json.quote(value));
+        }
+        return json.append(']').toString();
+    }
+
+    private static class Group {
+
+        final Bounds bounds = new Bounds();
+        long faces;
+    }
+
+    private static class Bounds {
+
+        private final float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        private final float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+
+        void add(float[] positions, int offset) {
+            for (int axis = 0; axis < 3; axis++) {
+                min[axis] = Math.min(min[axis], positions[offset + axis]);
+                max[axis] = Math.max(max[axis], positions[offset + axis]);
+            }
+        }
+
+        boolean isEmpty() {
+            return min[0] > max[0];
+        }
+
+        double[] toArray() {
+            return isEmpty() ? null : new double[]{min[0], min[1], min[2], max[0], max[1], max[2]};
+        }
+
+        String toJson() {
+            return isEmpty() ? "null" : "{\"min\":[" + min[0] + "," + min[1] + "," + min[2]
+                    + "],\"max\":[" + max[0] + "," + max[1] + "," + max[2] + "]}";
+        }
+    }
+}
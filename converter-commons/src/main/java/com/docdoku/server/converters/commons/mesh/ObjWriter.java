@@ -0,0 +1,271 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming Wavefront OBJ writer.
+ * <p>
+ * Statements are formatted straight into a large reusable byte buffer which is
+ * flushed to the channel when full; numbers are formatted without going
+ * through strings. Vertex indices given to this writer are zero-based, they
+ * are written one-based as OBJ requires.
+ */
+public class ObjWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_NUMBER_LENGTH = 32;
+    // A float holds a bit more than 7 significant digits
+    private static final int SIGNIFICANT_DIGITS = 7;
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L};
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] bytes;
+    private final byte[] digits = new byte[20];
+    private long bytesWritten;
+
+    public ObjWriter(Path file) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE));
+    }
+
+    public ObjWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        this.bytes = new byte[BUFFER_SIZE];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    public void comment(String comment) throws IOException {
+        statement("#", comment);
+    }
+
+    /**
+     * Write a statement such as <code>mtllib</code>, <code>usemtl</code>,
+     * <code>o</code> or <code>g</code>.
+     */
+    public void statement(String keyword, String value) throws IOException {
+        ascii(keyword);
+        if (value != null && !value.isEmpty()) {
+            put((byte) ' ');
+            text(value);
+        }
+        newLine();
+    }
+
+    public void vertex(float x, float y, float z) throws IOException {
+        tuple((byte) 'v', (byte) ' ', x, y, z);
+    }
+
+    public void normal(float x, float y, float z) throws IOException {
+        tuple((byte) 'v', (byte) 'n', x, y, z);
+    }
+
+    public void textureCoordinate(float u, float v) throws IOException {
+        ensure(3 + 2 * MAX_NUMBER_LENGTH);
+        buffer.put((byte) 'v').put((byte) 't');
+        buffer.put((byte) ' ');
+        number(u);
+        buffer.put((byte) ' ');
+        number(v);
+        buffer.put((byte) '\n');
+    }
+
+    public void face(int a, int b, int c) throws IOException {
+        ensure(2 + 3 * 12);
+        buffer.put((byte) 'f');
+        index(a);
+        index(b);
+        index(c);
+        buffer.put((byte) '\n');
+    }
+
+    public void face(int[] indices, int offset, int count) throws IOException {
+        ensure(2 + count * 12);
+        buffer.put((byte) 'f');
+        for (int i = offset; i < offset + count; i++) {
+            index(indices[i]);
+        }
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Write a face with per-corner texture coordinate and normal indices, a
+     * negative value leaves the corresponding reference out.
+     */
+    public void face(int[] vertices, int[] textureCoordinates, int[] normals, int offset, int count) throws IOException {
+        ensure(2 + count * 36);
+        buffer.put((byte) 'f');
+        for (int i = offset; i < offset + count; i++) {
+            index(vertices[i]);
+            boolean hasTexture = textureCoordinates != null && textureCoordinates[i] >= 0;
+            boolean hasNormal = normals != null && normals[i] >= 0;
+            if (hasTexture || hasNormal) {
+                buffer.put((byte) '/');
+                if (hasTexture) {
+                    positive(textureCoordinates[i] + 1L);
+                }
+                if (hasNormal) {
+                    buffer.put((byte) '/');
+                    positive(normals[i] + 1L);
+                }
+            }
+        }
+        buffer.put((byte) '\n');
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten + buffer.position();
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void tuple(byte first, byte second, float x, float y, float z) throws IOException {
+        ensure(3 + 3 * MAX_NUMBER_LENGTH);
+        buffer.put(first).put(second);
+        if (second != ' ') {
+            buffer.put((byte) ' ');
+        }
+        number(x);
+        buffer.put((byte) ' ');
+        number(y);
+        buffer.put((byte) ' ');
+        number(z);
+        buffer.put((byte) '\n');
+    }
+
+    private void index(int zeroBased) {
+        buffer.put((byte) ' ');
+        positive(zeroBased + 1L);
+    }
+
+    private void number(float value) {
+        double abs = Math.abs((double) value);
+        if (value == 0f) {
+            buffer.put((byte) '0');
+            return;
+        }
+        if (abs < 1e-2 || abs >= 1e7 || Float.isNaN(value)) {
+            // Rare enough to go through the JDK formatting
+            String text = Float.toString(value);
+            for (int i = 0; i < text.length(); i++) {
+                buffer.put((byte) text.charAt(i));
+            }
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+        }
+        int integerDigits = 0;
+        while (integerDigits < SIGNIFICANT_DIGITS && abs >= POWERS_OF_TEN[integerDigits]) {
+            integerDigits++;
+        }
+        int decimals = Math.max(0, SIGNIFICANT_DIGITS - integerDigits);
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(abs * scale);
+        positive(scaled / scale);
+        long fraction = scaled % scale;
+        if (fraction != 0) {
+            int length = decimals;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                length--;
+            }
+            buffer.put((byte) '.');
+            int start = buffer.position();
+            for (int i = length - 1; i >= 0; i--) {
+                bytes[start + i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            buffer.position(start + length);
+        }
+    }
+
+    private void positive(long value) {
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (length > 0) {
+            buffer.put(digits[--length]);
+        }
+    }
+
+    private void newLine() throws IOException {
+        put((byte) '\n');
+    }
+
+    private void put(byte b) throws IOException {
+        ensure(1);
+        buffer.put(b);
+    }
+
+    private void ascii(String text) throws IOException {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    private void text(String text) throws IOException {
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        if (encoded.length > buffer.capacity()) {
+            flush();
+            ByteBuffer large = ByteBuffer.wrap(encoded);
+            while (large.hasRemaining()) {
+                bytesWritten += channel.write(large);
+            }
+            return;
+        }
+        ensure(encoded.length);
+        buffer.put(encoded);
+    }
+
+    private void ensure(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+}
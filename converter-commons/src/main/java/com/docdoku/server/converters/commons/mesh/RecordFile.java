@@ -0,0 +1,137 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Temporary file of fixed-size binary records, appended sequentially then
+ * read back in any order through memory mapping.
+ * <p>
+ * Lets mesh stages work on models larger than the heap: the records live in
+ * the page cache, only the append buffer is allocated. The file is deleted
+ * when closed.
+ */
+public class RecordFile implements Closeable {
+
+    // Mappings are limited to 2 GB, records never span two of them
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int recordSize;
+    private final ByteBuffer buffer;
+    private long bytes;
+
+    private MappedByteBuffer[] segments;
+    private long recordsPerSegment;
+
+    /**
+     * @param recordSize the size of a record in bytes
+     * @param bufferSize the size of the append buffer in bytes
+     */
+    public RecordFile(Path file, int recordSize, int bufferSize) throws IOException {
+        this.file = file;
+        this.recordSize = recordSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, recordSize)).order(ByteOrder.nativeOrder());
+    }
+
+    public void putFloat(float value) throws IOException {
+        ensure(4);
+        buffer.putFloat(value);
+    }
+
+    public void putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    /**
+     * @return the number of complete records written
+     */
+    public long size() {
+        return (bytes + buffer.position()) / recordSize;
+    }
+
+    /**
+     * Flush the appended records and map them for reading, no record can be appended afterwards.
+     */
+    public void finish() throws IOException {
+        flush();
+        recordsPerSegment = MAX_SEGMENT_SIZE / recordSize;
+        long records = bytes / recordSize;
+        int count = (int) ((records + recordsPerSegment - 1) / recordsPerSegment);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * recordsPerSegment * recordSize;
+            long length = Math.min(recordsPerSegment * recordSize, bytes - start);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            segments[i].order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * @param offset the offset of the value in the record, in bytes
+     */
+    public float getFloat(long record, int offset) {
+        return segments[(int) (record / recordsPerSegment)]
+                .getFloat((int) (record % recordsPerSegment) * recordSize + offset);
+    }
+
+    public int getInt(long record, int offset) {
+        return segments[(int) (record / recordsPerSegment)]
+                .getInt((int) (record % recordsPerSegment) * recordSize + offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        segments = null;
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void ensure(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytes += channel.write(buffer, bytes);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Indexed triangle mesh held in primitive arrays: three floats per vertex
+ * position, three vertex indices per triangle and the group of each triangle,
+ * such as its material.
+ */
+public class TriangleMesh {
+
+    private float[] positions;
+    private int vertexCount;
+    private int[] triangles;
+    private int[] groups;
+    private int triangleCount;
+
+    public TriangleMesh() {
+        this(1024, 1024);
+    }
+
+    public TriangleMesh(int expectedVertices, int expectedTriangles) {
+        positions = new float[Math.max(1, expectedVertices) * 3];
+        triangles = new int[Math.max(1, expectedTriangles) * 3];
+        groups = new int[Math.max(1, expectedTriangles)];
+    }
+
+    /**
+     * @return the index of the new vertex
+     */
+    public int addVertex(float x, float y, float z) {
+        if (vertexCount * 3 + 3 > positions.length) {
+            positions = Arrays.copyOf(positions, grow(positions.length));
+        }
+        int offset = vertexCount * 3;
+        positions[offset] = x;
+        positions[offset + 1] = y;
+        positions[offset + 2] = z;
+        return vertexCount++;
+    }
+
+    public void addTriangle(int a, int b, int c) {
+        addTriangle(a, b, c, 0);
+    }
+
+    public void addTriangle(int a, int b, int c, int group) {
+        if (triangleCount * 3 + 3 > triangles.length) {
+            triangles = Arrays.copyOf(triangles, grow(triangles.length));
+        }
+        if (triangleCount == groups.length) {
+            groups = Arrays.copyOf(groups, triangles.length / 3);
+        }
+        int offset = triangleCount * 3;
+        triangles[offset] = a;
+        triangles[offset + 1] = b;
+        triangles[offset + 2] = c;
+        groups[triangleCount] = group;
+        triangleCount++;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * @return the vertex positions, the array may be larger than needed
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * @return the triangle vertex indices, the array may be larger than needed
+     */
+    public int[] getTriangles() {
+        return triangles;
+    }
+
+    /**
+     * @return the group of each triangle, the array may be larger than needed
+     */
+    public int[] getGroups() {
+        return groups;
+    }
+
+    /**
+     * Write the mesh to an OBJ file, vertices first then faces.
+     */
+    public void writeTo(ObjWriter writer) throws IOException {
+        for (int i = 0; i < vertexCount * 3; i += 3) {
+            writer.vertex(positions[i], positions[i + 1], positions[i + 2]);
+        }
+        for (int i = 0; i < triangleCount * 3; i += 3) {
+            writer.face(triangles[i], triangles[i + 1], triangles[i + 2]);
+        }
+    }
+
+    private static int grow(int length) {
+        long grown = (long) length * 3 / 2 + 3;
+        if (grown > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Mesh too large");
+        }
+        return (int) grown;
+    }
+}
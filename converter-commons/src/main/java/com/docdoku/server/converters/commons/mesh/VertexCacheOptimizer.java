@@ -0,0 +1,208 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Orders triangles for the post-transform vertex cache of GPUs, following
+ * Tom Forsyth's linear-speed vertex cache optimisation: vertices are scored
+ * by their position in a simulated LRU cache and by the number of triangles
+ * still using them, and the triangle of highest score among those of the
+ * cached vertices is emitted next.
+ */
+public final class VertexCacheOptimizer {
+
+    /**
+     * The FIFO cache size commonly used to report the average cache miss ratio.
+     */
+    public static final int REPORT_CACHE_SIZE = 16;
+
+    private static final int CACHE_SIZE = 32;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final double CACHE_DECAY_POWER = 1.5;
+    private static final float VALENCE_BOOST_SCALE = 2;
+    private static final double VALENCE_BOOST_POWER = 0.5;
+    private static final int VALENCE_TABLE_SIZE = 64;
+
+    private static final float[] CACHE_SCORES = new float[CACHE_SIZE];
+    private static final float[] VALENCE_SCORES = new float[VALENCE_TABLE_SIZE];
+
+    static {
+        for (int position = 0; position < CACHE_SIZE; position++) {
+            // The vertices of the last triangle get a fixed score, so that it is not reused at once
+            CACHE_SCORES[position] = position < 3 ? LAST_TRIANGLE_SCORE
+                    : (float) Math.pow(1 - (position - 3) / (double) (CACHE_SIZE - 3), CACHE_DECAY_POWER);
+        }
+        for (int valence = 1; valence < VALENCE_TABLE_SIZE; valence++) {
+            VALENCE_SCORES[valence] = valenceScore(valence);
+        }
+    }
+
+    private VertexCacheOptimizer() {
+    }
+
+    /**
+     * @param indices the vertex indices of the triangles, three per triangle
+     * @param vertexCount the number of vertices, greater than any index
+     * @return the triangles in the order to draw them
+     */
+    public static int[] optimize(int[] indices, int triangleCount, int vertexCount) {
+        // Triangles of each vertex, the live ones first
+        int[] adjacencyStart = new int[vertexCount + 1];
+        for (int i = 0; i < triangleCount * 3; i++) {
+            adjacencyStart[indices[i] + 1]++;
+        }
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            adjacencyStart[vertex + 1] += adjacencyStart[vertex];
+        }
+        int[] liveTriangles = new int[vertexCount];
+        int[] adjacency = new int[triangleCount * 3];
+        for (int i = 0; i < triangleCount * 3; i++) {
+            int vertex = indices[i];
+            adjacency[adjacencyStart[vertex] + liveTriangles[vertex]++] = i / 3;
+        }
+
+        float[] vertexScores = new float[vertexCount];
+        int[] cachePositions = new int[vertexCount];
+        Arrays.fill(cachePositions, -1);
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            vertexScores[vertex] = score(-1, liveTriangles[vertex]);
+        }
+        float[] triangleScores = new float[triangleCount];
+        for (int triangle = 0; triangle < triangleCount; triangle++) {
+            triangleScores[triangle] = vertexScores[indices[triangle * 3]] + vertexScores[indices[triangle * 3 + 1]]
+                    + vertexScores[indices[triangle * 3 + 2]];
+        }
+        boolean[] emitted = new boolean[triangleCount];
+
+        int[] order = new int[triangleCount];
+        int[] cache = new int[CACHE_SIZE + 3];
+        int[] newCache = new int[CACHE_SIZE + 3];
+        int cacheSize = 0;
+        int best = -1;
+        float bestScore = -1;
+        for (int triangle = 0; triangle < triangleCount; triangle++) {
+            if (triangleScores[triangle] > bestScore) {
+                bestScore = triangleScores[triangle];
+                best = triangle;
+            }
+        }
+        int cursor = 0;
+
+        for (int count = 0; count < triangleCount; count++) {
+            if (best < 0) {
+                // Dead end, restart from the next triangle left
+                while (emitted[cursor]) {
+                    cursor++;
+                }
+                best = cursor;
+            }
+            order[count] = best;
+            emitted[best] = true;
+
+            // The vertices of the triangle move to the front of the cache
+            int newSize = 0;
+            for (int corner = 0; corner < 3; corner++) {
+                int vertex = indices[best * 3 + corner];
+                newCache[newSize++] = vertex;
+                int start = adjacencyStart[vertex];
+                int live = liveTriangles[vertex];
+                for (int i = start; i < start + live; i++) {
+                    if (adjacency[i] == best) {
+                        adjacency[i] = adjacency[start + live - 1];
+                        adjacency[start + live - 1] = best;
+                        liveTriangles[vertex]--;
+                        break;
+                    }
+                }
+            }
+            for (int i = 0; i < cacheSize; i++) {
+                int vertex = cache[i];
+                if (vertex != newCache[0] && vertex != newCache[1] && vertex != newCache[2]) {
+                    newCache[newSize++] = vertex;
+                }
+            }
+            int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheSize = Math.min(newSize, CACHE_SIZE);
+
+            for (int i = 0; i < newSize; i++) {
+                int vertex = cache[i];
+                cachePositions[vertex] = i < CACHE_SIZE ? i : -1;
+                vertexScores[vertex] = score(cachePositions[vertex], liveTriangles[vertex]);
+            }
+
+            best = -1;
+            bestScore = -1;
+            for (int i = 0; i < newSize; i++) {
+                int vertex = cache[i];
+                for (int a = adjacencyStart[vertex]; a < adjacencyStart[vertex] + liveTriangles[vertex]; a++) {
+                    int triangle = adjacency[a];
+                    float score = vertexScores[indices[triangle * 3]] + vertexScores[indices[triangle * 3 + 1]]
+                            + vertexScores[indices[triangle * 3 + 2]];
+                    triangleScores[triangle] = score;
+                    if (score > bestScore) {
+                        bestScore = score;
+                        best = triangle;
+                    }
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @return the average number of vertices transformed per triangle with a FIFO cache of the given size
+     */
+    public static double acmr(int[] indices, int triangleCount, int vertexCount, int cacheSize) {
+        if (triangleCount == 0) {
+            return 0;
+        }
+        // A vertex is cached if fewer than cacheSize misses happened since its own
+        long[] missTimes = new long[vertexCount];
+        Arrays.fill(missTimes, Long.MIN_VALUE / 2);
+        long misses = 0;
+        for (int i = 0; i < triangleCount * 3; i++) {
+            int vertex = indices[i];
+            if (misses - missTimes[vertex] >= cacheSize) {
+                misses++;
+                missTimes[vertex] = misses;
+            }
+        }
+        return misses / (double) triangleCount;
+    }
+
+    private static float score(int cachePosition, int liveTriangles) {
+        if (liveTriangles == 0) {
+            return -1;
+        }
+        float score = cachePosition >= 0 ? CACHE_SCORES[cachePosition] : 0;
+        return score + (liveTriangles < VALENCE_TABLE_SIZE ? VALENCE_SCORES[liveTriangles]
+                : valenceScore(liveTriangles));
+    }
+
+    private static float valenceScore(int liveTriangles) {
+        // Vertices with few triangles left are finished first
+        return VALENCE_BOOST_SCALE * (float) Math.pow(liveTriangles, -VALENCE_BOOST_POWER);
+    }
+}
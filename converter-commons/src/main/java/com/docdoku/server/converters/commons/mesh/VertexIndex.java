@@ -0,0 +1,163 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Welds vertices sharing the exact same position.
+ * <p>
+ * Open addressing hash table over primitive arrays: positions are stored in
+ * one growable float array and the table holds vertex indices, so that no
+ * object is allocated per vertex.
+ */
+public class VertexIndex {
+
+    private static final int EMPTY = -1;
+
+    private float[] positions;
+    private int[] table;
+    private int mask;
+    private int size;
+
+    public VertexIndex() {
+        this(1024);
+    }
+
+    public VertexIndex(int expectedVertices) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedVertices * 2 - 1)) << 1;
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        mask = capacity - 1;
+        positions = new float[Math.max(16, expectedVertices) * 3];
+    }
+
+    /**
+     * @return the index of the vertex at the given position, added if it is new
+     */
+    public int add(float x, float y, float z) {
+        x = normalize(x);
+        y = normalize(y);
+        z = normalize(z);
+        int slot = hash(x, y, z) & mask;
+        int index;
+        while ((index = table[slot]) != EMPTY) {
+            if (matches(index, x, y, z)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        index = size++;
+        if (index * 3 + 3 > positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[index * 3] = x;
+        positions[index * 3 + 1] = y;
+        positions[index * 3 + 2] = z;
+        table[slot] = index;
+
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the vertex at the given position, or -1 if unknown
+     */
+    public int find(float x, float y, float z) {
+        x = normalize(x);
+        y = normalize(y);
+        z = normalize(z);
+        int slot = hash(x, y, z) & mask;
+        int index;
+        while ((index = table[slot]) != EMPTY) {
+            if (matches(index, x, y, z)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public float x(int index) {
+        return positions[index * 3];
+    }
+
+    public float y(int index) {
+        return positions[index * 3 + 1];
+    }
+
+    public float z(int index) {
+        return positions[index * 3 + 2];
+    }
+
+    /**
+     * @return the positions of the vertices, three floats per vertex, the array may be larger
+     */
+    public float[] positions() {
+        return positions;
+    }
+
+    private boolean matches(int index, float x, float y, float z) {
+        int offset = index * 3;
+        return Float.floatToIntBits(positions[offset]) == Float.floatToIntBits(x)
+                && Float.floatToIntBits(positions[offset + 1]) == Float.floatToIntBits(y)
+                && Float.floatToIntBits(positions[offset + 2]) == Float.floatToIntBits(z);
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        Arrays.fill(table, EMPTY);
+        mask = table.length - 1;
+        for (int index = 0; index < size; index++) {
+            int offset = index * 3;
+            int slot = hash(positions[offset], positions[offset + 1], positions[offset + 2]) & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index;
+        }
+    }
+
+    private static float normalize(float value) {
+        // -0.0 and 0.0 are the same position
+        return value == 0f ? 0f : value;
+    }
+
+    static int hash(float x, float y, float z) {
+        int h = Float.floatToIntBits(x);
+        h = h * 31 + Float.floatToIntBits(y);
+        h = h * 31 + Float.floatToIntBits(z);
+        // Murmur3 finalizer, coordinates on a grid share many low bits
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
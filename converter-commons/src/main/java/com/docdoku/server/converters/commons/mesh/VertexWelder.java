@@ -0,0 +1,142 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Merges the vertices closer than a tolerance, through a spatial hash of cells
+ * as large as the tolerance: a vertex is compared with those of its cell and
+ * of the 26 neighbouring ones. The first vertex added to a cluster is kept.
+ */
+public class VertexWelder {
+
+    private final double tolerance;
+    private final double squaredTolerance;
+
+    private float[] positions;
+    private int[] next;
+    private int[] heads;
+    private int mask;
+    private int size;
+
+    /**
+     * @param tolerance the largest distance between merged vertices, strictly positive
+     */
+    public VertexWelder(double tolerance, int expectedVertices) {
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("Invalid tolerance " + tolerance);
+        }
+        this.tolerance = tolerance;
+        this.squaredTolerance = tolerance * tolerance;
+        int capacity = Integer.highestOneBit(Math.max(16, expectedVertices * 2 - 1)) << 1;
+        heads = new int[capacity];
+        Arrays.fill(heads, -1);
+        mask = capacity - 1;
+        positions = new float[Math.max(16, expectedVertices) * 3];
+        next = new int[Math.max(16, expectedVertices)];
+    }
+
+    /**
+     * @return the index of a vertex within the tolerance of the given position, added if there is none
+     */
+    public int add(float x, float y, float z) {
+        long cellX = cell(x);
+        long cellY = cell(y);
+        long cellZ = cell(z);
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    for (int index = heads[hash(cellX + dx, cellY + dy, cellZ + dz) & mask]; index >= 0;
+                         index = next[index]) {
+                        if (isClose(index, x, y, z)) {
+                            return index;
+                        }
+                    }
+                }
+            }
+        }
+
+        int index = size++;
+        if (index == next.length) {
+            next = Arrays.copyOf(next, index * 2);
+            positions = Arrays.copyOf(positions, index * 6);
+        }
+        positions[index * 3] = x;
+        positions[index * 3 + 1] = y;
+        positions[index * 3 + 2] = z;
+        link(index);
+        if (size > heads.length) {
+            rehash();
+        }
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public float x(int index) {
+        return positions[index * 3];
+    }
+
+    public float y(int index) {
+        return positions[index * 3 + 1];
+    }
+
+    public float z(int index) {
+        return positions[index * 3 + 2];
+    }
+
+    private boolean isClose(int index, float x, float y, float z) {
+        double dx = positions[index * 3] - (double) x;
+        double dy = positions[index * 3 + 1] - (double) y;
+        double dz = positions[index * 3 + 2] - (double) z;
+        return dx * dx + dy * dy + dz * dz <= squaredTolerance;
+    }
+
+    private void link(int index) {
+        int bucket = hash(cell(positions[index * 3]), cell(positions[index * 3 + 1]),
+                cell(positions[index * 3 + 2])) & mask;
+        next[index] = heads[bucket];
+        heads[bucket] = index;
+    }
+
+    private void rehash() {
+        heads = new int[heads.length * 2];
+        Arrays.fill(heads, -1);
+        mask = heads.length - 1;
+        for (int index = 0; index < size; index++) {
+            link(index);
+        }
+    }
+
+    private long cell(float value) {
+        return (long) Math.floor(value / tolerance);
+    }
+
+    private static int hash(long x, long y, long z) {
+        long h = x * 0x9E3779B97F4A7C15L + y * 0xC2B2AE3D27D4EB4FL + z * 0x165667B19E3779F9L;
+        h ^= h >>> 32;
+        h *= 0x85EBCA6BL;
+        return (int) (h ^ h >>> 29);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.metrics;
+
+/**
+ * What the conversion running on the current thread has spent besides its
+ * duration, reported by the layers it goes through without them knowing the
+ * converter, such as the external process runners.
+ * <p>
+ * Reports made outside of an instrumented conversion are ignored.
+ *
+ * @see ConverterMetrics#instrument
+ */
+public final class ConversionRecording {
+
+    private static final ThreadLocal<ConversionRecording> CURRENT = new ThreadLocal<>();
+
+    long queueWaitNanos;
+    long cpuNanos;
+    boolean cpuKnown;
+    long peakMemory = -1;
+    boolean timedOut;
+
+    ConversionRecording() {
+    }
+
+    /**
+     * Make this recording the current one of the thread.
+     *
+     * @return the recording it replaces, to restore once done
+     */
+    ConversionRecording start() {
+        ConversionRecording previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    static void restore(ConversionRecording previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Report time spent waiting for a free process slot.
+     */
+    public static void queueWait(long nanos) {
+        ConversionRecording recording = CURRENT.get();
+        if (recording != null) {
+            recording.queueWaitNanos += nanos;
+        }
+    }
+
+    /**
+     * Report the resources used by an external process.
+     *
+     * @param cpuNanos   CPU time of the process, negative if unknown
+     * @param peakMemory highest resident memory of the process in bytes, negative if unknown
+     */
+    public static void processUsage(long cpuNanos, long peakMemory) {
+        ConversionRecording recording = CURRENT.get();
+        if (recording != null) {
+            if (cpuNanos >= 0) {
+                recording.cpuNanos += cpuNanos;
+                recording.cpuKnown = true;
+            }
+            recording.peakMemory = Math.max(recording.peakMemory, peakMemory);
+        }
+    }
+
+    /**
+     * Report an external process killed on its timeout.
+     */
+    public static void timeout() {
+        ConversionRecording recording = CURRENT.get();
+        if (recording != null) {
+            recording.timedOut = true;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.Locale;
+
+/**
+ * Snapshot of the conversions of one file extension by a converter.
+ * <p>
+ * Durations are in milliseconds, percentiles are upper bounds of histogram
+ * buckets. CPU time and peak memory are those of the external tools, when the
+ * platform reports them: the peak memory is -1 if never known.
+ */
+public class ConversionStats {
+
+    private final String extension;
+    private final long conversions;
+    private final long failures;
+    private final long timeouts;
+    private final double latencyP50;
+    private final double latencyP95;
+    private final double latencyP99;
+    private final double queueWaitP95;
+    private final long queueWaitTotal;
+    private final long inputBytes;
+    private final long outputBytes;
+    private final long cpuTime;
+    private final long peakMemory;
+
+    @ConstructorProperties({"extension", "conversions", "failures", "timeouts", "latencyP50", "latencyP95",
+            "latencyP99", "queueWaitP95", "queueWaitTotal", "inputBytes", "outputBytes", "cpuTime", "peakMemory"})
+    public ConversionStats(String extension, long conversions, long failures, long timeouts, double latencyP50,
+                           double latencyP95, double latencyP99, double queueWaitP95, long queueWaitTotal,
+                           long inputBytes, long outputBytes, long cpuTime, long peakMemory) {
+        this.extension = extension;
+        this.conversions = conversions;
+        this.failures = failures;
+        this.timeouts = timeouts;
+        this.latencyP50 = latencyP50;
+        this.latencyP95 = latencyP95;
+        this.latencyP99 = latencyP99;
+        this.queueWaitP95 = queueWaitP95;
+        this.queueWaitTotal = queueWaitTotal;
+        this.inputBytes = inputBytes;
+        this.outputBytes = outputBytes;
+        this.cpuTime = cpuTime;
+        this.peakMemory = peakMemory;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public long getConversions() {
+        return conversions;
+    }
+
+    /**
+     * @return the failed conversions, timeouts included
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public double getLatencyP50() {
+        return latencyP50;
+    }
+
+    public double getLatencyP95() {
+        return latencyP95;
+    }
+
+    public double getLatencyP99() {
+        return latencyP99;
+    }
+
+    /**
+     * @return the 95th percentile of the time spent waiting for a free tool process slot
+     */
+    public double getQueueWaitP95() {
+        return queueWaitP95;
+    }
+
+    public long getQueueWaitTotal() {
+        return queueWaitTotal;
+    }
+
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     * @return the size of the converted files, materials and artifacts
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return the highest resident memory of a tool process, in bytes
+     */
+    public long getPeakMemory() {
+        return peakMemory;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "%s: %d conversions, %d failures, %d timeouts, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms",
+                extension, conversions, failures, timeouts, latencyP50, latencyP95, latencyP99);
+    }
+}
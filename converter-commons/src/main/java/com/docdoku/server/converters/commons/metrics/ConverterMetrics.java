@@ -0,0 +1,237 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.metrics;
+
+import com.docdoku.server.converters.commons.ConversionTask;
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.output.ConversionOutput;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Conversion metrics of a converter, by file extension: latency percentiles,
+ * input and output sizes, failures and timeouts, and what the external tools
+ * cost, as reported through {@link ConversionRecording}.
+ * <p>
+ * The metrics of each converter are registered once as an MXBean, see
+ * {@link ConverterMetricsMXBean}, and also available as a {@link #snapshot()}.
+ */
+public class ConverterMetrics implements ConverterMetricsMXBean {
+
+    public static final String OBJECT_NAME_DOMAIN = "com.docdoku.converters";
+
+    private static final Logger LOGGER = Logger.getLogger(ConverterMetrics.class.getName());
+
+    private static final ConcurrentMap<String, ConverterMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private final String converterId;
+    private final ConcurrentMap<String, ExtensionMetrics> extensions = new ConcurrentSkipListMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+
+    ConverterMetrics(String converterId) {
+        this.converterId = converterId;
+    }
+
+    /**
+     * Get the metrics of the given converter, registering their MXBean on first use.
+     */
+    public static ConverterMetrics forConverter(String converterId) {
+        return METRICS.computeIfAbsent(converterId, id -> {
+            ConverterMetrics metrics = new ConverterMetrics(id);
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(metrics, objectName(id));
+            } catch (JMException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Cannot register the metrics of converter " + id, e);
+            }
+            return metrics;
+        });
+    }
+
+    public static ObjectName objectName(String converterId) throws JMException {
+        return new ObjectName(OBJECT_NAME_DOMAIN + ":type=ConverterMetrics,name=" + ObjectName.quote(converterId));
+    }
+
+    /**
+     * @return a task running the given one and recording its metrics
+     */
+    public ConversionTask instrument(ConversionTask task) {
+        return (cadFileUri, tmpDirUri) -> {
+            Path cadFile = Paths.get(cadFileUri);
+            ExtensionMetrics metrics = extensions.computeIfAbsent(ConverterFiles.getExtension(cadFile),
+                    ExtensionMetrics::new);
+            ConversionRecording recording = new ConversionRecording();
+            ConversionRecording previous = recording.start();
+            active.incrementAndGet();
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                ConversionResult result = task.convert(cadFileUri, tmpDirUri);
+                failed = false;
+                metrics.outputBytes.add(sizeOf(result));
+                return result;
+            } finally {
+                metrics.record(System.nanoTime() - start, failed, recording, sizeOf(cadFile));
+                active.decrementAndGet();
+                ConversionRecording.restore(previous);
+            }
+        };
+    }
+
+    /**
+     * Run the task, recording its metrics.
+     */
+    public ConversionResult convert(URI cadFileUri, URI tmpDirUri, ConversionTask task)
+            throws CADConverter.ConversionException {
+        return instrument(task).convert(cadFileUri, tmpDirUri);
+    }
+
+    /**
+     * @return the statistics of each converted file extension, in alphabetical order
+     */
+    public List<ConversionStats> snapshot() {
+        List<ConversionStats> stats = new ArrayList<>();
+        for (ExtensionMetrics metrics : extensions.values()) {
+            stats.add(metrics.snapshot());
+        }
+        return stats;
+    }
+
+    @Override
+    public String getConverterId() {
+        return converterId;
+    }
+
+    @Override
+    public long getConversions() {
+        return extensions.values().stream().mapToLong(metrics -> metrics.conversions.sum()).sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return extensions.values().stream().mapToLong(metrics -> metrics.failures.sum()).sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return extensions.values().stream().mapToLong(metrics -> metrics.timeouts.sum()).sum();
+    }
+
+    @Override
+    public int getActiveConversions() {
+        return active.get();
+    }
+
+    @Override
+    public List<ConversionStats> getExtensions() {
+        return snapshot();
+    }
+
+    private static long sizeOf(ConversionResult result) {
+        if (result == null) {
+            return 0;
+        }
+        long size = sizeOf(result.getConvertedFile());
+        if (result.getMaterials() != null) {
+            for (Path material : result.getMaterials()) {
+                size += sizeOf(material);
+            }
+        }
+        for (Map.Entry<String, Path> artifact : ConversionOutput.artifactsOf(result).entrySet()) {
+            size += sizeOf(artifact.getValue());
+        }
+        return size;
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return file != null && Files.isRegularFile(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINEST, null, e);
+            return 0;
+        }
+    }
+
+    private static class ExtensionMetrics {
+
+        private final String extension;
+        final LongAdder conversions = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder inputBytes = new LongAdder();
+        final LongAdder outputBytes = new LongAdder();
+        final LongAdder queueWaitNanos = new LongAdder();
+        final LongAdder cpuNanos = new LongAdder();
+        final AtomicLong peakMemory = new AtomicLong(-1);
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram queueWait = new LatencyHistogram();
+
+        ExtensionMetrics(String extension) {
+            this.extension = extension;
+        }
+
+        void record(long nanos, boolean failed, ConversionRecording recording, long inputSize) {
+            conversions.increment();
+            latency.record(nanos);
+            queueWait.record(recording.queueWaitNanos);
+            queueWaitNanos.add(recording.queueWaitNanos);
+            inputBytes.add(inputSize);
+            if (failed) {
+                failures.increment();
+            }
+            if (recording.timedOut) {
+                timeouts.increment();
+            }
+            if (recording.cpuKnown) {
+                cpuNanos.add(recording.cpuNanos);
+            }
+            peakMemory.accumulateAndGet(recording.peakMemory, Math::max);
+        }
+
+        ConversionStats snapshot() {
+            return new ConversionStats(extension, conversions.sum(), failures.sum(), timeouts.sum(),
+                    latency.quantileMillis(0.5), latency.quantileMillis(0.95), latency.quantileMillis(0.99),
+                    queueWait.quantileMillis(0.95), queueWaitNanos.sum() / 1_000_000, inputBytes.sum(),
+                    outputBytes.sum(), cpuNanos.sum() / 1_000_000, peakMemory.get());
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.metrics;
+
+import java.util.List;
+
+/**
+ * JMX view of the metrics of a converter, registered as
+ * <code>com.docdoku.converters:type=ConverterMetrics,name=&lt;converter&gt;</code>.
+ */
+public interface ConverterMetricsMXBean {
+
+    String getConverterId();
+
+    long getConversions();
+
+    long getFailures();
+
+    long getTimeouts();
+
+    int getActiveConversions();
+
+    /**
+     * @return the statistics of each converted file extension
+     */
+    List<ConversionStats> getExtensions();
+}
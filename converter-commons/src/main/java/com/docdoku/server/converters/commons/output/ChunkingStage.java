@@ -0,0 +1,138 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.mesh.ObjChunker;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adds the OBJ result split into spatially coherent chunks, as the
+ * <code>chunk1</code>, <code>chunk2</code>... artifacts, with their manifest
+ * listing the bounds of each chunk as the <code>chunks</code> artifact.
+ * Viewers can fetch the chunks in parallel and render them as they arrive.
+ * <p>
+ * Enabled by <code>chunking_max_triangles</code>, the maximum number of
+ * triangles of a chunk; smaller models are left whole. OBJ files larger than
+ * <code>chunking_max_size</code> megabytes are left alone, since the model
+ * is held in memory while split.
+ *
+ * @see ObjChunker
+ */
+public class ChunkingStage implements OutputStage {
+
+    public static final String CHUNKING_MAX_TRIANGLES = "chunking_max_triangles";
+    public static final String CHUNKING_MAX_SIZE = "chunking_max_size";
+    public static final String ARTIFACT = "chunks";
+    public static final String CHUNK_ARTIFACT_PREFIX = "chunk";
+
+    private static final long DEFAULT_MAX_SIZE = 2048;
+
+    private static final Logger LOGGER = Logger.getLogger(ChunkingStage.class.getName());
+
+    private final int maxTriangles;
+    private final long maxSize;
+
+    ChunkingStage(int maxTriangles, long maxSize) {
+        this.maxTriangles = maxTriangles;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the configured stage, null if chunking is disabled
+     */
+    static ChunkingStage fromConf(Properties conf) {
+        String value = conf.getProperty(CHUNKING_MAX_TRIANGLES, "").trim();
+        if (value.isEmpty()) {
+            return null;
+        }
+        int maxTriangles;
+        try {
+            maxTriangles = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + CHUNKING_MAX_TRIANGLES + " value: " + value, e);
+            return null;
+        }
+        if (maxTriangles <= 0) {
+            return null;
+        }
+        long maxSize = DEFAULT_MAX_SIZE;
+        value = conf.getProperty(CHUNKING_MAX_SIZE, "").trim();
+        if (!value.isEmpty()) {
+            try {
+                maxSize = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid " + CHUNKING_MAX_SIZE + " value: " + value, e);
+            }
+        }
+        return new ChunkingStage(maxTriangles, maxSize * 1024 * 1024);
+    }
+
+    @Override
+    public String getSettings() {
+        return "chunks=" + maxTriangles + "/" + maxSize;
+    }
+
+    @Override
+    public ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException {
+        Path objFile = result.getConvertedFile();
+        if (Files.size(objFile) > maxSize) {
+            LOGGER.log(Level.INFO, "Not chunking {0}, larger than {1} bytes", new Object[]{objFile, maxSize});
+            return result;
+        }
+        String name = objFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        Path manifestFile = tmpDir.resolve(baseName + "." + ARTIFACT + ".json");
+
+        List<ObjChunker.Chunk> chunks = ObjChunker.split(objFile, maxTriangles,
+                index -> tmpDir.resolve(baseName + "_" + CHUNK_ARTIFACT_PREFIX + (index + 1) + ".obj"));
+        if (chunks == null) {
+            return result;
+        }
+        try {
+            ObjChunker.writeManifest(chunks, manifestFile);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(manifestFile);
+            for (ObjChunker.Chunk chunk : chunks) {
+                Files.deleteIfExists(chunk.getFile());
+            }
+            throw e;
+        }
+        LOGGER.log(Level.FINE, "Split {0} into {1} chunks", new Object[]{objFile.getFileName(), chunks.size()});
+
+        Map<String, Path> artifacts = new LinkedHashMap<>(ConversionOutput.artifactsOf(result));
+        artifacts.put(ARTIFACT, manifestFile);
+        for (int i = 0; i < chunks.size(); i++) {
+            artifacts.put(CHUNK_ARTIFACT_PREFIX + (i + 1), chunks.get(i).getFile());
+        }
+        return new ConversionOutput(objFile, result.getMaterials(), artifacts);
+    }
+}
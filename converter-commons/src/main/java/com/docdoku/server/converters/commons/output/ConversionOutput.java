@@ -0,0 +1,87 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Conversion result carrying additional output files besides the converted
+ * file and its materials, such as a binary glTF version of the model.
+ * <p>
+ * Artifacts are named by the stage which produced them, and deleted along
+ * with the other files when the result is closed.
+ */
+public class ConversionOutput extends ConversionResult {
+
+    private final Map<String, Path> artifacts;
+
+    public ConversionOutput(Path convertedFile, List<Path> materials, Map<String, Path> artifacts) {
+        super(convertedFile, materials);
+        this.artifacts = new LinkedHashMap<>(artifacts);
+    }
+
+    /**
+     * @return the artifacts of the given result, empty for a plain {@link ConversionResult}
+     */
+    public static Map<String, Path> artifactsOf(ConversionResult result) {
+        return result instanceof ConversionOutput ? ((ConversionOutput) result).getArtifacts()
+                : Collections.emptyMap();
+    }
+
+    /**
+     * @return a result holding the files of the given one, plus the given artifact
+     */
+    public static ConversionOutput withArtifact(ConversionResult result, String name, Path file) {
+        Map<String, Path> artifacts = new LinkedHashMap<>(artifactsOf(result));
+        artifacts.put(name, file);
+        return new ConversionOutput(result.getConvertedFile(), result.getMaterials(), artifacts);
+    }
+
+    public Map<String, Path> getArtifacts() {
+        return Collections.unmodifiableMap(artifacts);
+    }
+
+    /**
+     * @return the artifact of the given name, null if there is none
+     */
+    public Path getArtifact(String name) {
+        return artifacts.get(name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            for (Path artifact : artifacts.values()) {
+                Files.deleteIfExists(artifact);
+            }
+        }
+    }
+}
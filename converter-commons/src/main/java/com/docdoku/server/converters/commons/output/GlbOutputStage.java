@@ -0,0 +1,125 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.gltf.ObjToGlbConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts the OBJ result and its materials to binary glTF.
+ * <p>
+ * Enabled by <code>glb_output</code>: <code>additional</code> adds the GLB
+ * file as the <code>glb</code> artifact of the result, <code>replace</code>
+ * makes it the converted file in place of the OBJ and MTL files.
+ * <code>glb_max_chunk_vertices</code> bounds the vertices of each primitive,
+ * 16-bit indices are used up to 65535 vertices.
+ */
+public class GlbOutputStage implements OutputStage {
+
+    public static final String GLB_OUTPUT = "glb_output";
+    public static final String GLB_MAX_CHUNK_VERTICES = "glb_max_chunk_vertices";
+    public static final String ARTIFACT = "glb";
+
+    private static final Logger LOGGER = Logger.getLogger(GlbOutputStage.class.getName());
+
+    private final boolean replace;
+    private final int maxChunkVertices;
+
+    GlbOutputStage(boolean replace, int maxChunkVertices) {
+        this.replace = replace;
+        this.maxChunkVertices = maxChunkVertices;
+    }
+
+    /**
+     * @return the configured stage, null if GLB output is disabled
+     */
+    static GlbOutputStage fromConf(Properties conf) {
+        String mode = conf.getProperty(GLB_OUTPUT, "none").trim().toLowerCase(Locale.ROOT);
+        int maxChunkVertices = ObjToGlbConverter.DEFAULT_MAX_CHUNK_VERTICES;
+        String value = conf.getProperty(GLB_MAX_CHUNK_VERTICES, "").trim();
+        if (!value.isEmpty()) {
+            try {
+                maxChunkVertices = Math.max(3, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid " + GLB_MAX_CHUNK_VERTICES + " value: " + value, e);
+            }
+        }
+        switch (mode) {
+            case "additional":
+                return new GlbOutputStage(false, maxChunkVertices);
+            case "replace":
+                return new GlbOutputStage(true, maxChunkVertices);
+            case "none":
+            case "":
+                return null;
+            default:
+                LOGGER.log(Level.WARNING, "Invalid {0} value: {1}", new Object[]{GLB_OUTPUT, mode});
+                return null;
+        }
+    }
+
+    @Override
+    public String getSettings() {
+        return "glb=" + (replace ? "replace" : "additional") + "/" + maxChunkVertices;
+    }
+
+    @Override
+    public ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        Path glbFile = tmpDir.resolve((dot > 0 ? name.substring(0, dot) : name) + ".glb");
+
+        List<Path> mtlFiles = new ArrayList<>();
+        if (result.getMaterials() != null) {
+            for (Path material : result.getMaterials()) {
+                if (Files.exists(material)) {
+                    mtlFiles.add(material);
+                }
+            }
+        }
+        try {
+            new ObjToGlbConverter(maxChunkVertices).convert(objFile, mtlFiles, glbFile);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(glbFile);
+            throw e;
+        }
+
+        if (!replace) {
+            return ConversionOutput.withArtifact(result, ARTIFACT, glbFile);
+        }
+        Files.deleteIfExists(objFile);
+        for (Path material : mtlFiles) {
+            Files.deleteIfExists(material);
+        }
+        return new ConversionOutput(glbFile, new ArrayList<>(), ConversionOutput.artifactsOf(result));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.mesh.ObjInstancer;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Detects the objects of the OBJ result repeating the geometry of another
+ * one, and adds their transforms as the <code>instances</code> artifact.
+ * <p>
+ * Enabled by <code>instancing</code>: <code>additional</code> keeps the OBJ
+ * result as is, <code>replace</code> also removes the copies from it, leaving
+ * their placement to the instance table. Copies must match their prototype
+ * within <code>instancing_tolerance</code>, a fraction of the prototype size.
+ * OBJ files larger than <code>instancing_max_size</code> megabytes are left
+ * alone, since the model is held in memory while compared.
+ */
+public class InstancingStage implements OutputStage {
+
+    public static final String INSTANCING = "instancing";
+    public static final String INSTANCING_TOLERANCE = "instancing_tolerance";
+    public static final String INSTANCING_MAX_SIZE = "instancing_max_size";
+    public static final String ARTIFACT = "instances";
+
+    private static final double DEFAULT_TOLERANCE = 1e-5;
+    private static final long DEFAULT_MAX_SIZE = 512;
+
+    private static final Logger LOGGER = Logger.getLogger(InstancingStage.class.getName());
+
+    private final boolean replace;
+    private final double tolerance;
+    private final long maxSize;
+
+    InstancingStage(boolean replace, double tolerance, long maxSize) {
+        this.replace = replace;
+        this.tolerance = tolerance;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the configured stage, null if instancing is disabled
+     */
+    static InstancingStage fromConf(Properties conf) {
+        String mode = conf.getProperty(INSTANCING, "none").trim().toLowerCase(Locale.ROOT);
+        boolean replace;
+        switch (mode) {
+            case "":
+            case "none":
+                return null;
+            case "additional":
+                replace = false;
+                break;
+            case "replace":
+                replace = true;
+                break;
+            default:
+                LOGGER.log(Level.WARNING, "Invalid {0} value: {1}", new Object[]{INSTANCING, mode});
+                return null;
+        }
+        double tolerance = DEFAULT_TOLERANCE;
+        String value = conf.getProperty(INSTANCING_TOLERANCE, "").trim();
+        if (!value.isEmpty()) {
+            try {
+                tolerance = Math.max(0, Double.parseDouble(value));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid " + INSTANCING_TOLERANCE + " value: " + value, e);
+            }
+        }
+        long maxSize = DEFAULT_MAX_SIZE;
+        value = conf.getProperty(INSTANCING_MAX_SIZE, "").trim();
+        if (!value.isEmpty()) {
+            try {
+                maxSize = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid " + INSTANCING_MAX_SIZE + " value: " + value, e);
+            }
+        }
+        return new InstancingStage(replace, tolerance, maxSize * 1024 * 1024);
+    }
+
+    @Override
+    public String getSettings() {
+        return "instancing=" + (replace ? "replace" : "additional") + "/" + tolerance + "/" + maxSize;
+    }
+
+    @Override
+    public ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException {
+        Path objFile = result.getConvertedFile();
+        if (Files.size(objFile) > maxSize) {
+            LOGGER.log(Level.INFO, "Not instancing {0}, larger than {1} bytes", new Object[]{objFile, maxSize});
+            return result;
+        }
+        String name = objFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        Path tableFile = tmpDir.resolve((dot > 0 ? name.substring(0, dot) : name) + "." + ARTIFACT + ".json");
+        Path strippedFile = replace ? Files.createTempFile(tmpDir, "instanced", ".obj") : null;
+        try {
+            ObjInstancer.Report report = ObjInstancer.instance(objFile, strippedFile, tableFile, tolerance);
+            if (report == null) {
+                LOGGER.log(Level.FINE, "No repeated geometry in {0}", objFile);
+                return result;
+            }
+            if (strippedFile != null) {
+                Files.move(strippedFile, objFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            LOGGER.log(Level.INFO, "Instanced {0}: {1}", new Object[]{objFile.getFileName(), report});
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tableFile);
+            throw e;
+        } finally {
+            if (strippedFile != null) {
+                Files.deleteIfExists(strippedFile);
+            }
+        }
+
+        Map<String, Path> artifacts = new LinkedHashMap<>(ConversionOutput.artifactsOf(result));
+        artifacts.put(ARTIFACT, tableFile);
+        return new ConversionOutput(objFile, result.getMaterials(), artifacts);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.lod.ObjLodGenerator;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adds decimated versions of the OBJ result, from the finest to the coarsest,
+ * as the <code>lod1</code>, <code>lod2</code>... artifacts.
+ * <p>
+ * Enabled by <code>lod_levels</code>, the comma separated fractions of the
+ * triangles kept at each level, such as <code>0.5,0.15,0.03</code>. Models of
+ * fewer than <code>lod_min_triangles</code> triangles are left alone.
+ */
+public class LodOutputStage implements OutputStage {
+
+    public static final String LOD_LEVELS = "lod_levels";
+    public static final String LOD_MIN_TRIANGLES = "lod_min_triangles";
+    public static final String ARTIFACT_PREFIX = "lod";
+
+    private static final int DEFAULT_MIN_TRIANGLES = 1000;
+
+    private static final Logger LOGGER = Logger.getLogger(LodOutputStage.class.getName());
+
+    private final double[] ratios;
+    private final int minTriangles;
+
+    LodOutputStage(double[] ratios, int minTriangles) {
+        this.ratios = ratios;
+        this.minTriangles = minTriangles;
+    }
+
+    /**
+     * @return the configured stage, null if no level is configured
+     */
+    static LodOutputStage fromConf(Properties conf) {
+        String levels = conf.getProperty(LOD_LEVELS, "").trim();
+        if (levels.isEmpty()) {
+            return null;
+        }
+        double[] ratios;
+        try {
+            ratios = Arrays.stream(levels.split(",")).mapToDouble(level -> Double.parseDouble(level.trim()))
+                    .sorted().toArray();
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + LOD_LEVELS + " value: " + levels, e);
+            return null;
+        }
+        if (ratios[0] <= 0 || ratios[ratios.length - 1] >= 1) {
+            LOGGER.log(Level.WARNING, "Invalid {0} value, fractions must be between 0 and 1: {1}",
+                    new Object[]{LOD_LEVELS, levels});
+            return null;
+        }
+        // From the finest level to the coarsest
+        for (int i = 0; i < ratios.length / 2; i++) {
+            double ratio = ratios[i];
+            ratios[i] = ratios[ratios.length - 1 - i];
+            ratios[ratios.length - 1 - i] = ratio;
+        }
+
+        int minTriangles = DEFAULT_MIN_TRIANGLES;
+        String value = conf.getProperty(LOD_MIN_TRIANGLES, "").trim();
+        if (!value.isEmpty()) {
+            try {
+                minTriangles = Math.max(0, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid " + LOD_MIN_TRIANGLES + " value: " + value, e);
+            }
+        }
+        return new LodOutputStage(ratios, minTriangles);
+    }
+
+    @Override
+    public String getSettings() {
+        StringBuilder settings = new StringBuilder("lod=");
+        for (int i = 0; i < ratios.length; i++) {
+            settings.append(i > 0 ? "," : "").append(ratios[i]);
+        }
+        return settings.append('/').append(minTriangles).toString();
+    }
+
+    @Override
+    public ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+
+        List<Path> lodFiles = new ArrayList<>();
+        for (int level = 1; level <= ratios.length; level++) {
+            lodFiles.add(tmpDir.resolve(baseName + "_" + ARTIFACT_PREFIX + level + ".obj"));
+        }
+        try {
+            int triangleCount = ObjLodGenerator.generate(objFile, ratios, lodFiles, minTriangles);
+            if (triangleCount < minTriangles) {
+                return result;
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path lodFile : lodFiles) {
+                Files.deleteIfExists(lodFile);
+            }
+            throw e;
+        }
+
+        Map<String, Path> artifacts = new LinkedHashMap<>(ConversionOutput.artifactsOf(result));
+        for (int level = 1; level <= lodFiles.size(); level++) {
+            artifacts.put(ARTIFACT_PREFIX + level, lodFiles.get(level - 1));
+        }
+        return new ConversionOutput(objFile, result.getMaterials(), artifacts);
+    }
+}
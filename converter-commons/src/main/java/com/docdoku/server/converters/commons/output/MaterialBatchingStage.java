@@ -0,0 +1,135 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.mesh.ObjMaterialBatcher;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges the materials of the OBJ result with the same definition and
+ * regroups the triangles of each material into a single run, to cut the
+ * draw calls of the viewers. Groups and objects are kept within each run, so
+ * the instancing and metadata stages run after it still see them.
+ * <p>
+ * The deduplicated material library replaces the first one of the result,
+ * the others are removed from the result. Enabled by
+ * <code>material_batching</code>. OBJ files larger than
+ * <code>material_batching_max_size</code> megabytes are left alone, since
+ * the model is held in memory while batched.
+ *
+ * @see ObjMaterialBatcher
+ */
+public class MaterialBatchingStage implements OutputStage {
+
+    public static final String MATERIAL_BATCHING = "material_batching";
+    public static final String MATERIAL_BATCHING_MAX_SIZE = "material_batching_max_size";
+
+    private static final long DEFAULT_MAX_SIZE = 512;
+
+    private static final Logger LOGGER = Logger.getLogger(MaterialBatchingStage.class.getName());
+
+    private final long maxSize;
+
+    MaterialBatchingStage(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the configured stage, null if material batching is disabled
+     */
+    static MaterialBatchingStage fromConf(Properties conf) {
+        if (!Boolean.parseBoolean(conf.getProperty(MATERIAL_BATCHING, "false").trim())) {
+            return null;
+        }
+        long maxSize = DEFAULT_MAX_SIZE;
+        String value = conf.getProperty(MATERIAL_BATCHING_MAX_SIZE, "").trim();
+        if (!value.isEmpty()) {
+            try {
+                maxSize = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid " + MATERIAL_BATCHING_MAX_SIZE + " value: " + value, e);
+            }
+        }
+        return new MaterialBatchingStage(maxSize * 1024 * 1024);
+    }
+
+    @Override
+    public String getSettings() {
+        return "batching=" + maxSize;
+    }
+
+    @Override
+    public ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException {
+        Path objFile = result.getConvertedFile();
+        if (Files.size(objFile) > maxSize) {
+            LOGGER.log(Level.INFO, "Not batching {0}, larger than {1} bytes", new Object[]{objFile, maxSize});
+            return result;
+        }
+        List<Path> mtlFiles = new ArrayList<>();
+        if (result.getMaterials() != null) {
+            for (Path material : result.getMaterials()) {
+                // Converters list the material file they expect, tools do not always write it
+                if (Files.exists(material)) {
+                    mtlFiles.add(material);
+                }
+            }
+        }
+        Path batchedObj = Files.createTempFile(tmpDir, "batched", ".obj");
+        Path batchedMtl = Files.createTempFile(tmpDir, "batched", ".mtl");
+        try {
+            ObjMaterialBatcher.Report report = ObjMaterialBatcher.batch(objFile, mtlFiles, batchedObj, batchedMtl);
+            if (report == null) {
+                LOGGER.log(Level.INFO, "Not batching {0}, it has unsupported elements", objFile);
+                return result;
+            }
+            Files.move(batchedObj, objFile, StandardCopyOption.REPLACE_EXISTING);
+            if (mtlFiles.isEmpty()) {
+                LOGGER.log(Level.INFO, "Batched {0}: {1}", new Object[]{objFile.getFileName(), report});
+                return result;
+            }
+            Files.move(batchedMtl, mtlFiles.get(0), StandardCopyOption.REPLACE_EXISTING);
+            for (Path merged : mtlFiles.subList(1, mtlFiles.size())) {
+                Files.deleteIfExists(merged);
+            }
+            LOGGER.log(Level.INFO, "Batched {0}: {1}", new Object[]{objFile.getFileName(), report});
+        } finally {
+            Files.deleteIfExists(batchedObj);
+            Files.deleteIfExists(batchedMtl);
+        }
+
+        List<Path> materials = new ArrayList<>();
+        materials.add(mtlFiles.get(0));
+        Map<String, Path> artifacts = ConversionOutput.artifactsOf(result);
+        return artifacts.isEmpty() ? new ConversionResult(objFile, materials)
+                : new ConversionOutput(objFile, materials, artifacts);
+    }
+}
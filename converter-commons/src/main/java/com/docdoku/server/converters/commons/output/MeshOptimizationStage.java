@@ -0,0 +1,117 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.mesh.ObjOptimizer;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Welds the vertices of the OBJ result and reorders its triangles and
+ * vertices for the GPU caches, in place.
+ * <p>
+ * Enabled by <code>mesh_optimization</code>. Positions closer than
+ * <code>mesh_weld_tolerance</code>, a fraction of the diagonal of the model
+ * bounds, are merged. OBJ files larger than
+ * <code>mesh_optimization_max_size</code> megabytes are left alone, since the
+ * model is held in memory while optimized.
+ */
+public class MeshOptimizationStage implements OutputStage {
+
+    public static final String MESH_OPTIMIZATION = "mesh_optimization";
+    public static final String MESH_WELD_TOLERANCE = "mesh_weld_tolerance";
+    public static final String MESH_OPTIMIZATION_MAX_SIZE = "mesh_optimization_max_size";
+
+    private static final double DEFAULT_WELD_TOLERANCE = 1e-6;
+    private static final long DEFAULT_MAX_SIZE = 512;
+
+    private static final Logger LOGGER = Logger.getLogger(MeshOptimizationStage.class.getName());
+
+    private final double weldTolerance;
+    private final long maxSize;
+
+    MeshOptimizationStage(double weldTolerance, long maxSize) {
+        this.weldTolerance = weldTolerance;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the configured stage, null if the optimization is disabled
+     */
+    static MeshOptimizationStage fromConf(Properties conf) {
+        if (!Boolean.parseBoolean(conf.getProperty(MESH_OPTIMIZATION, "false").trim())) {
+            return null;
+        }
+        double weldTolerance = DEFAULT_WELD_TOLERANCE;
+        String value = conf.getProperty(MESH_WELD_TOLERANCE, "").trim();
+        if (!value.isEmpty()) {
+            try {
+                weldTolerance = Math.max(0, Double.parseDouble(value));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid " + MESH_WELD_TOLERANCE + " value: " + value, e);
+            }
+        }
+        long maxSize = DEFAULT_MAX_SIZE;
+        value = conf.getProperty(MESH_OPTIMIZATION_MAX_SIZE, "").trim();
+        if (!value.isEmpty()) {
+            try {
+                maxSize = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid " + MESH_OPTIMIZATION_MAX_SIZE + " value: " + value, e);
+            }
+        }
+        return new MeshOptimizationStage(weldTolerance, maxSize * 1024 * 1024);
+    }
+
+    @Override
+    public String getSettings() {
+        return "optimize=" + weldTolerance + "/" + maxSize;
+    }
+
+    @Override
+    public ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException {
+        Path objFile = result.getConvertedFile();
+        if (Files.size(objFile) > maxSize) {
+            LOGGER.log(Level.INFO, "Not optimizing {0}, larger than {1} bytes", new Object[]{objFile, maxSize});
+            return result;
+        }
+        Path optimizedFile = Files.createTempFile(tmpDir, "optimized", ".obj");
+        try {
+            ObjOptimizer.Report report = ObjOptimizer.optimize(objFile, optimizedFile, weldTolerance);
+            if (report == null) {
+                LOGGER.log(Level.INFO, "Not optimizing {0}, it has unsupported elements", objFile);
+                return result;
+            }
+            Files.move(optimizedFile, objFile, StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.log(Level.INFO, "Optimized {0}: {1}", new Object[]{objFile.getFileName(), report});
+            return result;
+        } finally {
+            Files.deleteIfExists(optimizedFile);
+        }
+    }
+}
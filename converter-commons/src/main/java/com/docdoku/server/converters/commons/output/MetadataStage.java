@@ -0,0 +1,74 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.mesh.ObjStatistics;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Adds the counts, bounds and materials of the OBJ result as the
+ * <code>metadata</code> artifact, a small JSON document from which viewers
+ * can cull and budget models without loading their geometry.
+ * <p>
+ * Enabled by <code>metadata_output</code>.
+ *
+ * @see ObjStatistics#write(Path)
+ */
+public class MetadataStage implements OutputStage {
+
+    public static final String METADATA_OUTPUT = "metadata_output";
+    public static final String ARTIFACT = "metadata";
+
+    MetadataStage() {
+    }
+
+    /**
+     * @return the configured stage, null if the metadata output is disabled
+     */
+    static MetadataStage fromConf(Properties conf) {
+        return Boolean.parseBoolean(conf.getProperty(METADATA_OUTPUT, "false").trim()) ? new MetadataStage() : null;
+    }
+
+    @Override
+    public String getSettings() {
+        return "metadata";
+    }
+
+    @Override
+    public ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        Path metadataFile = tmpDir.resolve((dot > 0 ? name.substring(0, dot) : name) + "." + ARTIFACT + ".json");
+        try {
+            ObjStatistics.read(objFile).write(metadataFile);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(metadataFile);
+            throw e;
+        }
+        return ConversionOutput.withArtifact(result, ARTIFACT, metadataFile);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Post-processing applied to the OBJ produced by a converter.
+ */
+public interface OutputStage {
+
+    /**
+     * @return what the output of this stage depends on, part of the conversion cache key
+     */
+    String getSettings();
+
+    /**
+     * @param result the conversion result, possibly already processed by other stages
+     * @param tmpDir the conversion temporary directory, where new files must be written
+     * @return the processed result; the given one is not used anymore unless this method fails
+     */
+    ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException;
+}
@@ -0,0 +1,130 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The output stages enabled in a converter <code>conf.properties</code>,
+ * applied in order to each conversion result.
+ * <p>
+ * A failing stage is logged and skipped: the conversion itself succeeded,
+ * the stages only add to its result.
+ */
+public class OutputStages {
+
+    private static final Logger LOGGER = Logger.getLogger(OutputStages.class.getName());
+
+    private static final OutputStages NONE = new OutputStages(Collections.emptyList());
+
+    private final List<OutputStage> stages;
+
+    OutputStages(List<OutputStage> stages) {
+        this.stages = stages;
+    }
+
+    public static OutputStages none() {
+        return NONE;
+    }
+
+    public static OutputStages of(OutputStage... stages) {
+        return new OutputStages(Arrays.asList(stages));
+    }
+
+    public static OutputStages forConverter(Properties conf) {
+        List<OutputStage> stages = new ArrayList<>();
+        // One run per material first, the optimization reorders triangles within runs
+        MaterialBatchingStage batching = MaterialBatchingStage.fromConf(conf);
+        if (batching != null) {
+            stages.add(batching);
+        }
+        // Textures of the merged materials only, before the GLB stage references them
+        TextureStage textures = TextureStage.fromConf(conf);
+        if (textures != null) {
+            stages.add(textures);
+        }
+        MeshOptimizationStage optimization = MeshOptimizationStage.fromConf(conf);
+        if (optimization != null) {
+            stages.add(optimization);
+        }
+        InstancingStage instancing = InstancingStage.fromConf(conf);
+        if (instancing != null) {
+            stages.add(instancing);
+        }
+        // Levels of detail are decimated from the OBJ file, which the GLB stage may replace
+        LodOutputStage lod = LodOutputStage.fromConf(conf);
+        if (lod != null) {
+            stages.add(lod);
+        }
+        ChunkingStage chunking = ChunkingStage.fromConf(conf);
+        if (chunking != null) {
+            stages.add(chunking);
+        }
+        // Statistics of the final OBJ file, before the GLB stage may replace it
+        MetadataStage metadata = MetadataStage.fromConf(conf);
+        if (metadata != null) {
+            stages.add(metadata);
+        }
+        GlbOutputStage glb = GlbOutputStage.fromConf(conf);
+        if (glb != null) {
+            stages.add(glb);
+        }
+        return stages.isEmpty() ? NONE : new OutputStages(stages);
+    }
+
+    public boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    /**
+     * @return the settings of all the stages, empty if there is none
+     */
+    public String getSettings() {
+        StringBuilder settings = new StringBuilder();
+        for (OutputStage stage : stages) {
+            settings.append(' ').append(stage.getSettings());
+        }
+        return settings.toString();
+    }
+
+    public ConversionResult apply(ConversionResult result, Path tmpDir) {
+        ConversionResult current = result;
+        for (OutputStage stage : stages) {
+            try {
+                current = stage.apply(current, tmpDir);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Output stage " + stage.getSettings() + " failed on "
+                        + current.getConvertedFile(), e);
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.mesh.MtlLibrary;
+import com.docdoku.server.converters.commons.texture.TextureResampler;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downscales the textures referenced by the materials of the result to power
+ * of two sizes of at most <code>texture_max_size</code> pixels, and points the
+ * materials at them. The textures are added as the <code>texture1</code>,
+ * <code>texture2</code>... artifacts, and with <code>texture_mipmaps</code>
+ * their successive halves as the <code>texture1_mip1</code>,
+ * <code>texture1_mip2</code>... artifacts, named after the texture file.
+ * <p>
+ * Textures are resampled in parallel, by at most <code>texture_threads</code>
+ * threads. Textures which cannot be found or decoded are left alone.
+ *
+ * @see TextureResampler
+ */
+public class TextureStage implements OutputStage {
+
+    public static final String TEXTURE_MAX_SIZE = "texture_max_size";
+    public static final String TEXTURE_MIPMAPS = "texture_mipmaps";
+    public static final String TEXTURE_THREADS = "texture_threads";
+    public static final String ARTIFACT_PREFIX = "texture";
+    public static final String MIP_SUFFIX = "_mip";
+
+    private static final int DEFAULT_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    // Statements of the MTL format taking a texture file
+    private static final Set<String> TEXTURE_KEYWORDS = new HashSet<>(Arrays.asList("map_Ka", "map_Kd", "map_Ks",
+            "map_Ke", "map_Ns", "map_d", "map_bump", "map_Bump", "bump", "disp", "decal", "norm", "refl",
+            "map_Pr", "map_Pm", "map_Ps"));
+
+    private static final Logger LOGGER = Logger.getLogger(TextureStage.class.getName());
+
+    private final int maxSize;
+    private final boolean mipmaps;
+    private final ExecutorService resamplers;
+
+    TextureStage(int maxSize, boolean mipmaps, int threads) {
+        this.maxSize = maxSize;
+        this.mipmaps = mipmaps;
+        resamplers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "texture-resampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the configured stage, null if texture downscaling is disabled
+     */
+    static TextureStage fromConf(Properties conf) {
+        String value = conf.getProperty(TEXTURE_MAX_SIZE, "").trim();
+        if (value.isEmpty()) {
+            return null;
+        }
+        int maxSize;
+        try {
+            maxSize = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + TEXTURE_MAX_SIZE + " value: " + value, e);
+            return null;
+        }
+        if (maxSize <= 0) {
+            return null;
+        }
+        boolean mipmaps = Boolean.parseBoolean(conf.getProperty(TEXTURE_MIPMAPS, "true").trim());
+        int threads = DEFAULT_THREADS;
+        value = conf.getProperty(TEXTURE_THREADS, "").trim();
+        if (!value.isEmpty()) {
+            try {
+                threads = Math.max(1, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid " + TEXTURE_THREADS + " value: " + value, e);
+            }
+        }
+        return new TextureStage(maxSize, mipmaps, threads);
+    }
+
+    @Override
+    public String getSettings() {
+        return "textures=" + maxSize + (mipmaps ? "/mip" : "");
+    }
+
+    @Override
+    public ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException {
+        if (result.getMaterials() == null) {
+            return result;
+        }
+        String name = result.getConvertedFile().getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+
+        // Each texture is resampled once, however many materials use it
+        Map<Path, Future<List<Path>>> textures = new LinkedHashMap<>();
+        List<Path> mtlFiles = new ArrayList<>();
+        for (Path mtlFile : result.getMaterials()) {
+            if (!Files.exists(mtlFile)) {
+                continue;
+            }
+            mtlFiles.add(mtlFile);
+            for (String line : Files.readAllLines(mtlFile, StandardCharsets.UTF_8)) {
+                Path texture = texturePath(mtlFile, line);
+                if (texture != null && !textures.containsKey(texture) && Files.isRegularFile(texture)) {
+                    String textureName = baseName + "_" + ARTIFACT_PREFIX + (textures.size() + 1);
+                    textures.put(texture, resamplers.submit(() -> resample(texture, tmpDir, textureName)));
+                }
+            }
+        }
+
+        Map<Path, List<Path>> resampled = new LinkedHashMap<>();
+        Map<String, Path> artifacts = new LinkedHashMap<>(ConversionOutput.artifactsOf(result));
+        int index = 0;
+        for (Map.Entry<Path, Future<List<Path>>> texture : textures.entrySet()) {
+            index++;
+            List<Path> levels = resampled(texture.getKey(), texture.getValue());
+            if (levels == null) {
+                continue;
+            }
+            resampled.put(texture.getKey(), levels);
+            artifacts.put(ARTIFACT_PREFIX + index, levels.get(0));
+            for (int level = 1; level < levels.size(); level++) {
+                artifacts.put(ARTIFACT_PREFIX + index + MIP_SUFFIX + level, levels.get(level));
+            }
+        }
+        if (resampled.isEmpty()) {
+            return result;
+        }
+
+        try {
+            for (Path mtlFile : mtlFiles) {
+                rewrite(mtlFile, resampled, tmpDir);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (List<Path> levels : resampled.values()) {
+                for (Path level : levels) {
+                    Files.deleteIfExists(level);
+                }
+            }
+            throw e;
+        }
+        LOGGER.log(Level.FINE, "Resampled {0} textures of {1}", new Object[]{resampled.size(), name});
+        return new ConversionOutput(result.getConvertedFile(), result.getMaterials(), artifacts);
+    }
+
+    /**
+     * @return the files of the resampled texture and of its mip levels, null if it was left alone
+     */
+    private List<Path> resampled(Path texture, Future<List<Path>> levels) {
+        try {
+            return levels.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            levels.cancel(true);
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Could not resample " + texture, e.getCause());
+            return null;
+        }
+    }
+
+    private List<Path> resample(Path texture, Path tmpDir, String textureName) throws IOException {
+        BufferedImage image = ImageIO.read(texture.toFile());
+        if (image == null) {
+            LOGGER.log(Level.FINE, "Not resampling {0}, unsupported image format", texture);
+            return null;
+        }
+        int width = TextureResampler.targetSize(image.getWidth(), maxSize);
+        int height = TextureResampler.targetSize(image.getHeight(), maxSize);
+        if (width == image.getWidth() && height == image.getHeight() && !mipmaps) {
+            return null;
+        }
+        BufferedImage resampled = width == image.getWidth() && height == image.getHeight() ? image
+                : TextureResampler.resample(image, width, height);
+        List<BufferedImage> levels = new ArrayList<>();
+        levels.add(resampled);
+        if (mipmaps) {
+            levels.addAll(TextureResampler.mipChain(resampled));
+        }
+
+        // JPEG textures stay JPEG, the others are written as PNG which keeps their transparency
+        String sourceName = texture.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean jpeg = sourceName.endsWith(".jpg") || sourceName.endsWith(".jpeg");
+        String format = jpeg ? "jpg" : "png";
+        List<Path> files = new ArrayList<>();
+        try {
+            for (int level = 0; level < levels.size(); level++) {
+                Path file = tmpDir.resolve(textureName + (level > 0 ? MIP_SUFFIX + level : "") + "." + format);
+                files.add(file);
+                if (!ImageIO.write(levels.get(level), format, file.toFile())) {
+                    throw new IOException("No " + format + " image writer");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            throw e;
+        }
+        return files;
+    }
+
+    /**
+     * @return the texture file of the given MTL statement, null if it is not a texture statement
+     */
+    private static Path texturePath(Path mtlFile, String line) {
+        String trimmed = line.trim();
+        int space = trimmed.indexOf(' ');
+        if (space < 0 || !TEXTURE_KEYWORDS.contains(trimmed.substring(0, space))) {
+            return null;
+        }
+        String file = MtlLibrary.textureFile(trimmed.substring(space + 1).trim());
+        try {
+            Path parent = mtlFile.toAbsolutePath().getParent();
+            return parent.resolve(Paths.get(file.replace('\\', '/'))).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static void rewrite(Path mtlFile, Map<Path, List<Path>> resampled, Path tmpDir) throws IOException {
+        Path rewrittenFile = Files.createTempFile(tmpDir, "textures", ".mtl");
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(mtlFile), StandardCharsets.UTF_8));
+             Writer writer = new BufferedWriter(
+                     new OutputStreamWriter(Files.newOutputStream(rewrittenFile), StandardCharsets.UTF_8))) {
+            Path parent = mtlFile.toAbsolutePath().getParent();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Path texture = texturePath(mtlFile, line);
+                List<Path> levels = texture == null ? null : resampled.get(texture);
+                String trimmed = line.trim();
+                String file = levels == null ? null
+                        : MtlLibrary.textureFile(trimmed.substring(trimmed.indexOf(' ') + 1).trim());
+                if (file != null && trimmed.endsWith(file)) {
+                    String reference = parent.relativize(levels.get(0).toAbsolutePath()).toString().replace('\\', '/');
+                    line = trimmed.substring(0, trimmed.length() - file.length()) + reference;
+                }
+                writer.write(line);
+                writer.write('\n');
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(rewrittenFile);
+            throw e;
+        }
+        Files.move(rewrittenFile, mtlFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.process;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Ring buffer collecting the output of an external process.
+ * <p>
+ * Only the last {@code capacity} bytes are kept, which is the part of a tool
+ * output that matters when a conversion fails.
+ */
+public class BoundedOutputBuffer extends OutputStream {
+
+    private final byte[] buffer;
+    private long written;
+
+    public BoundedOutputBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        buffer = new byte[capacity];
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        buffer[(int) (written % buffer.length)] = (byte) b;
+        written++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (len >= buffer.length) {
+            // Only the tail can survive
+            off += len - buffer.length;
+            written += len - buffer.length;
+            len = buffer.length;
+        }
+        int position = (int) (written % buffer.length);
+        int firstChunk = Math.min(len, buffer.length - position);
+        System.arraycopy(b, off, buffer, position, firstChunk);
+        System.arraycopy(b, off + firstChunk, buffer, 0, len - firstChunk);
+        written += len;
+    }
+
+    /**
+     * @return the total number of bytes written, including the discarded ones
+     */
+    public synchronized long getWrittenBytes() {
+        return written;
+    }
+
+    /**
+     * Discard the collected output.
+     */
+    public synchronized void reset() {
+        written = 0;
+    }
+
+    public synchronized boolean isTruncated() {
+        return written > buffer.length;
+    }
+
+    public synchronized byte[] toByteArray() {
+        if (written <= buffer.length) {
+            byte[] content = new byte[(int) written];
+            System.arraycopy(buffer, 0, content, 0, content.length);
+            return content;
+        }
+        byte[] content = new byte[buffer.length];
+        int position = (int) (written % buffer.length);
+        System.arraycopy(buffer, position, content, 0, buffer.length - position);
+        System.arraycopy(buffer, 0, content, buffer.length - position, position);
+        return content;
+    }
+
+    public String toString(Charset charset) {
+        byte[] content;
+        long discarded;
+        synchronized (this) {
+            content = toByteArray();
+            discarded = written - content.length;
+        }
+        String text = new String(content, charset);
+        return discarded > 0 ? "[" + discarded + " bytes truncated]\n" + text : text;
+    }
+
+    @Override
+    public String toString() {
+        return toString(Charset.defaultCharset());
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.process;
+
+import com.docdoku.server.converters.commons.metrics.ConversionRecording;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the external tools used by the converters (assimp, IfcConvert, meshconv,
+ * FreeCAD...).
+ * <p>
+ * Standard and error outputs are drained concurrently into bounded buffers so
+ * that a verbose tool can never block on a full pipe, every run is given a
+ * wall-clock timeout after which the whole process tree is killed, and the
+ * number of processes running at once is capped for each tool.
+ * <p>
+ * Runners are configured from the converter <code>conf.properties</code>:
+ * <ul>
+ * <li><code>max_concurrent_processes</code>: processes allowed at once for the
+ * tool, defaults to the number of available cores</li>
+ * <li><code>process_timeout</code>: timeout in seconds, defaults to 600</li>
+ * <li><code>process_timeout.&lt;extension&gt;</code>: timeout in seconds for a
+ * given input file extension</li>
+ * </ul>
+ */
+public class ProcessRunner {
+
+    public static final String MAX_CONCURRENT_PROCESSES = "max_concurrent_processes";
+    public static final String PROCESS_TIMEOUT = "process_timeout";
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessRunner.class.getName());
+
+    private static final long DEFAULT_TIMEOUT_SECONDS = 600;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final long DRAIN_GRACE_SECONDS = 5;
+    private static final long MIN_SAMPLE_INTERVAL_MILLIS = 10;
+    private static final long MAX_SAMPLE_INTERVAL_MILLIS = 1000;
+
+    private static final ConcurrentMap<String, Semaphore> PERMITS = new ConcurrentHashMap<>();
+
+    static final ExecutorService STREAM_DRAINERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "converter-process-output");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String toolName;
+    private final Semaphore permits;
+    private final Properties conf;
+    private final long defaultTimeout;
+
+    private ProcessRunner(String toolName, Semaphore permits, Properties conf) {
+        this.toolName = toolName;
+        this.permits = permits;
+        this.conf = conf;
+        this.defaultTimeout = parseSeconds(conf.getProperty(PROCESS_TIMEOUT), DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Get a runner for the given tool. Runners of the same tool share their
+     * concurrency limit, the first configuration registered wins.
+     */
+    public static ProcessRunner forTool(String toolName, Properties conf) {
+        Semaphore permits = PERMITS.computeIfAbsent(toolName, name -> {
+            int maxProcesses = parseMaxProcesses(conf.getProperty(MAX_CONCURRENT_PROCESSES));
+            LOGGER.log(Level.INFO, "At most {0} concurrent {1} processes", new Object[]{maxProcesses, name});
+            return new Semaphore(maxProcesses, true);
+        });
+        return new ProcessRunner(toolName, permits, conf);
+    }
+
+    public String getToolName() {
+        return toolName;
+    }
+
+    Semaphore getPermits() {
+        return permits;
+    }
+
+    /**
+     * @param extension extension of the converted file, may be null
+     * @return the timeout in seconds for the given file extension
+     */
+    public long getTimeout(String extension) {
+        if (extension == null) {
+            return defaultTimeout;
+        }
+        return parseSeconds(conf.getProperty(PROCESS_TIMEOUT + "." + extension.toLowerCase()), defaultTimeout);
+    }
+
+    /**
+     * Run the command, waiting first for a free slot if the tool is saturated.
+     *
+     * @param command   the tool and its arguments
+     * @param extension extension of the converted file, selects the timeout
+     * @throws ProcessTimeoutException if the tool did not complete in time
+     */
+    public ProcessResult run(String[] command, String extension) throws IOException, InterruptedException {
+        long timeout = getTimeout(extension);
+        long queued = System.nanoTime();
+        permits.acquire();
+        ConversionRecording.queueWait(System.nanoTime() - queued);
+        try {
+            return execute(command, timeout);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private ProcessResult execute(String[] command, long timeout) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).start();
+        process.getOutputStream().close();
+
+        BoundedOutputBuffer stdOutput = new BoundedOutputBuffer(OUTPUT_BUFFER_SIZE);
+        BoundedOutputBuffer errorOutput = new BoundedOutputBuffer(OUTPUT_BUFFER_SIZE);
+        Future<?> stdDrain = STREAM_DRAINERS.submit(() -> drain(process.getInputStream(), stdOutput));
+        Future<?> errorDrain = STREAM_DRAINERS.submit(() -> drain(process.getErrorStream(), errorOutput));
+
+        ProcessUsage usage = ProcessUsage.of(process);
+        boolean completed;
+        try {
+            completed = waitFor(process, timeout, usage);
+        } catch (InterruptedException e) {
+            ProcessTrees.destroy(process);
+            closeQuietly(process.getInputStream());
+            closeQuietly(process.getErrorStream());
+            throw e;
+        }
+
+        if (!completed) {
+            ProcessTrees.destroy(process);
+        }
+
+        awaitDrain(stdDrain, process.getInputStream());
+        awaitDrain(errorDrain, process.getErrorStream());
+
+        ConversionRecording.processUsage(usage.getCpuNanos(), usage.getPeakMemory());
+        if (!completed) {
+            ConversionRecording.timeout();
+            throw new ProcessTimeoutException(toolName + " did not complete within " + timeout + " seconds: "
+                    + Arrays.toString(command), errorOutput.toString(Charset.defaultCharset()));
+        }
+
+        return new ProcessResult(process.exitValue(), stdOutput.toString(Charset.defaultCharset()),
+                errorOutput.toString(Charset.defaultCharset()));
+    }
+
+    /**
+     * Wait for the process, sampling its usage more and more sparsely.
+     *
+     * @return false if the process is still running after the timeout
+     */
+    private static boolean waitFor(Process process, long timeout, ProcessUsage usage) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        long interval = MIN_SAMPLE_INTERVAL_MILLIS;
+        while (true) {
+            usage.sample();
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return !process.isAlive();
+            }
+            if (process.waitFor(Math.min(interval, remaining), TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            interval = Math.min(interval * 2, MAX_SAMPLE_INTERVAL_MILLIS);
+        }
+    }
+
+    private void awaitDrain(Future<?> drain, InputStream stream) throws InterruptedException {
+        // A grandchild may still hold the pipe open after the tool exited
+        try {
+            drain.get(DRAIN_GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            LOGGER.log(Level.FINE, "Output of " + toolName + " not fully drained", e);
+            closeQuietly(stream);
+        }
+    }
+
+    static void drain(InputStream stream, OutputStream sink) {
+        byte[] chunk = new byte[8192];
+        try {
+            int read;
+            while ((read = stream.read(chunk)) != -1) {
+                sink.write(chunk, 0, read);
+            }
+        } catch (IOException e) {
+            // The stream is closed when the process is killed
+            LOGGER.log(Level.FINEST, null, e);
+        }
+    }
+
+    static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINEST, null, e);
+        }
+    }
+
+    private static int parseMaxProcesses(String value) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (value == null || value.trim().isEmpty()) {
+            return cores;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + MAX_CONCURRENT_PROCESSES + " value: " + value, e);
+            return cores;
+        }
+    }
+
+    private static long parseSeconds(String value, long defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + PROCESS_TIMEOUT + " value: " + value, e);
+            return defaultValue;
+        }
+    }
+}
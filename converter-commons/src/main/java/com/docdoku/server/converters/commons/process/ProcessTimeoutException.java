@@ -0,0 +1,46 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.process;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an external tool exceeds its wall-clock budget. The process
+ * tree has already been killed when this exception is raised.
+ */
+public class ProcessTimeoutException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String errorOutput;
+
+    public ProcessTimeoutException(String message, String errorOutput) {
+        super(message);
+        this.errorOutput = errorOutput;
+    }
+
+    /**
+     * @return what the tool wrote on its error stream before being killed
+     */
+    public String getErrorOutput() {
+        return errorOutput;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.process;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Kills a process together with the processes it spawned (FreeCAD and
+ * IfcConvert both fork helpers).
+ * <p>
+ * Process handles are only available from Java 9 on, they are looked up
+ * reflectively so that the converters still run on a Java 8 server, where only
+ * the direct child can be destroyed.
+ */
+final class ProcessTrees {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessTrees.class.getName());
+
+    private static final Method TO_HANDLE;
+    private static final Method DESCENDANTS;
+    private static final Method DESTROY_FORCIBLY;
+
+    static {
+        Method toHandle = null;
+        Method descendants = null;
+        Method destroyForcibly = null;
+        try {
+            Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            toHandle = Process.class.getMethod("toHandle");
+            descendants = handleClass.getMethod("descendants");
+            destroyForcibly = handleClass.getMethod("destroyForcibly");
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            LOGGER.log(Level.FINE, "Process handles not available, only direct children will be killed", e);
+        }
+        TO_HANDLE = toHandle;
+        DESCENDANTS = descendants;
+        DESTROY_FORCIBLY = destroyForcibly;
+    }
+
+    private ProcessTrees() {
+    }
+
+    static void destroy(Process process) {
+        List<?> descendants = descendantsOf(process);
+        process.destroyForcibly();
+        for (Object descendant : descendants) {
+            try {
+                DESTROY_FORCIBLY.invoke(descendant);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.WARNING, "Cannot kill child process " + descendant, e);
+            }
+        }
+    }
+
+    private static List<?> descendantsOf(Process process) {
+        if (TO_HANDLE == null) {
+            return Collections.emptyList();
+        }
+        try {
+            Object handle = TO_HANDLE.invoke(process);
+            // Snapshot before killing the parent, orphans get re-parented afterwards
+            try (Stream<?> descendants = (Stream<?>) DESCENDANTS.invoke(handle)) {
+                return descendants.collect(Collectors.toList());
+            }
+        } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.WARNING, "Cannot list child processes", e);
+            return Collections.emptyList();
+        }
+    }
+}
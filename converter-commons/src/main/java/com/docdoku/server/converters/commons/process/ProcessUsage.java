@@ -0,0 +1,127 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.process;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the CPU time and the peak resident memory of a running process
+ * from <code>/proc</code>.
+ * <p>
+ * Only available on Linux and from Java 9 on, where process ids are known:
+ * elsewhere nothing is sampled. The figures stop at the last sample taken
+ * before the process exits, they include its waited-for children.
+ */
+final class ProcessUsage {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessUsage.class.getName());
+
+    private static final Path PROC = Paths.get("/proc");
+    // USER_HZ, the unit of the times in /proc/<pid>/stat, is 100 on every Linux architecture
+    private static final long NANOS_PER_TICK = 10_000_000;
+
+    private static final Method PID;
+
+    static {
+        Method pid = null;
+        try {
+            pid = Process.class.getMethod("pid");
+        } catch (NoSuchMethodException e) {
+            LOGGER.log(Level.FINE, "Process ids not available, process usage will not be measured", e);
+        }
+        PID = pid;
+    }
+
+    private final Path stat;
+    private final Path status;
+    private long cpuNanos = -1;
+    private long peakMemory = -1;
+
+    private ProcessUsage(Path processDir) {
+        this.stat = processDir == null ? null : processDir.resolve("stat");
+        this.status = processDir == null ? null : processDir.resolve("status");
+    }
+
+    static ProcessUsage of(Process process) {
+        if (PID == null || !Files.isDirectory(PROC)) {
+            return new ProcessUsage(null);
+        }
+        try {
+            return new ProcessUsage(PROC.resolve(String.valueOf(PID.invoke(process))));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Cannot get the process id", e);
+            return new ProcessUsage(null);
+        }
+    }
+
+    /**
+     * Read the current usage, ignored once the process is gone.
+     */
+    void sample() {
+        if (stat == null) {
+            return;
+        }
+        try {
+            String line = new String(Files.readAllBytes(stat), StandardCharsets.US_ASCII);
+            // The command name, second field, may hold spaces and parentheses
+            String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+            long ticks = 0;
+            // utime, stime, cutime and cstime, fields 14 to 17
+            for (int field = 11; field <= 14; field++) {
+                ticks += Long.parseLong(fields[field]);
+            }
+            cpuNanos = Math.max(cpuNanos, ticks * NANOS_PER_TICK);
+
+            List<String> lines = Files.readAllLines(status, StandardCharsets.US_ASCII);
+            for (String statusLine : lines) {
+                if (statusLine.startsWith("VmHWM:")) {
+                    long kb = Long.parseLong(statusLine.substring(6).replace("kB", "").trim());
+                    peakMemory = Math.max(peakMemory, kb * 1024);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Exited in the meantime
+            LOGGER.log(Level.FINEST, null, e);
+        }
+    }
+
+    /**
+     * @return the CPU time of the process, -1 if unknown
+     */
+    long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * @return the peak resident memory of the process in bytes, -1 if unknown
+     */
+    long getPeakMemory() {
+        return peakMemory;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.process;
+
+import com.docdoku.server.converters.commons.metrics.ConversionRecording;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of long-lived worker processes, for tools whose startup costs more
+ * than the conversion of a small file (a Python interpreter importing
+ * FreeCAD for instance).
+ * <p>
+ * Workers speak a line based protocol over their standard streams. Once
+ * initialized a worker writes a <code>ready</code> reply, then answers every
+ * request line with exactly one reply line:
+ * <pre>status TAB peak-memory-in-kB TAB message</pre>
+ * where status is <code>ok</code> or <code>error</code>. A worker exiting on
+ * its own (idle timeout, end of its standard input) is simply replaced.
+ * <p>
+ * Jobs share the concurrency limit and the timeouts of the tool
+ * {@link ProcessRunner}. Workers are recycled after a number of jobs or once
+ * they grew past a memory threshold, both read from the converter
+ * <code>conf.properties</code>:
+ * <ul>
+ * <li><code>worker_max_jobs</code>: jobs run by a worker before it is
+ * replaced, defaults to 50</li>
+ * <li><code>worker_max_memory</code>: peak resident memory in MB above which a
+ * worker is replaced, defaults to 2048</li>
+ * </ul>
+ */
+public class WorkerPool {
+
+    public static final String WORKER_MAX_JOBS = "worker_max_jobs";
+    public static final String WORKER_MAX_MEMORY = "worker_max_memory";
+
+    private static final Logger LOGGER = Logger.getLogger(WorkerPool.class.getName());
+
+    private static final int DEFAULT_MAX_JOBS = 50;
+    private static final long DEFAULT_MAX_MEMORY = 2048;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final long STOP_GRACE_SECONDS = 5;
+
+    private static final String READY = "ready";
+    private static final String OK = "ok";
+    private static final String ERROR = "error";
+
+    private final ProcessRunner runner;
+    private final String[] command;
+    private final int maxJobs;
+    private final long maxMemoryKb;
+
+    private final Deque<Worker> idleWorkers = new ConcurrentLinkedDeque<>();
+    private final AtomicLong startedWorkers = new AtomicLong();
+    private final AtomicLong completedJobs = new AtomicLong();
+
+    /**
+     * @param runner  runner of the tool, gives the concurrency limit and the timeouts
+     * @param command command starting a worker
+     * @param conf    converter configuration
+     */
+    public WorkerPool(ProcessRunner runner, String[] command, Properties conf) {
+        this.runner = runner;
+        this.command = command.clone();
+        this.maxJobs = (int) parsePositive(conf.getProperty(WORKER_MAX_JOBS), DEFAULT_MAX_JOBS);
+        this.maxMemoryKb = parsePositive(conf.getProperty(WORKER_MAX_MEMORY), DEFAULT_MAX_MEMORY) * 1024;
+    }
+
+    /**
+     * Hand the request to an idle worker, starting one if none is available.
+     *
+     * @param request   the request line, without line end
+     * @param extension extension of the converted file, selects the timeout
+     * @return the reply, successful if the worker answered <code>ok</code>.
+     * The message of an <code>ok</code> reply is returned as standard output,
+     * the message of an <code>error</code> reply as error output, followed by
+     * what the worker wrote on its error stream during the job.
+     * @throws ProcessTimeoutException if the worker did not answer in time, it has been killed
+     */
+    public ProcessResult call(String request, String extension) throws IOException, InterruptedException {
+        if (request.indexOf('\n') >= 0 || request.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Requests must fit on a single line");
+        }
+        long timeout = runner.getTimeout(extension);
+        Semaphore permits = runner.getPermits();
+        long queued = System.nanoTime();
+        permits.acquire();
+        ConversionRecording.queueWait(System.nanoTime() - queued);
+        try {
+            Worker worker = pollIdleWorker();
+            boolean reused = worker != null;
+            if (!reused) {
+                worker = new Worker(timeout);
+            }
+            try {
+                return execute(worker, request, timeout);
+            } catch (ProcessTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                if (!reused) {
+                    throw e;
+                }
+                // The worker may have quit on its idle timeout right before being picked
+                LOGGER.log(Level.FINE, "Idle " + runner.getToolName() + " worker lost, retrying on a new one", e);
+                return execute(new Worker(timeout), request, timeout);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return the number of worker processes started so far
+     */
+    public long getStartedWorkers() {
+        return startedWorkers.get();
+    }
+
+    public long getCompletedJobs() {
+        return completedJobs.get();
+    }
+
+    public int getIdleWorkers() {
+        return idleWorkers.size();
+    }
+
+    /**
+     * Stop the idle workers, busy ones are stopped when their job completes.
+     */
+    public void shutdown() {
+        Worker worker;
+        while ((worker = idleWorkers.pollFirst()) != null) {
+            worker.stop();
+        }
+    }
+
+    private ProcessResult execute(Worker worker, String request, long timeout) throws IOException, InterruptedException {
+        boolean reusable = false;
+        try {
+            ProcessResult result = worker.call(request, timeout);
+            completedJobs.incrementAndGet();
+            // The worker outlives the job, only its memory can be told apart
+            ConversionRecording.processUsage(-1, worker.peakMemoryKb * 1024);
+            reusable = worker.jobs < maxJobs && worker.peakMemoryKb <= maxMemoryKb;
+            if (!reusable) {
+                LOGGER.log(Level.FINE, "Recycling {0} worker after {1} jobs, {2} kB peak memory",
+                        new Object[]{runner.getToolName(), worker.jobs, worker.peakMemoryKb});
+            }
+            return result;
+        } finally {
+            if (reusable) {
+                // Most recently used first, so that surplus workers reach their idle timeout
+                idleWorkers.offerFirst(worker);
+            } else {
+                worker.stop();
+            }
+        }
+    }
+
+    private Worker pollIdleWorker() {
+        Worker worker;
+        while ((worker = idleWorkers.pollFirst()) != null) {
+            if (worker.process.isAlive()) {
+                return worker;
+            }
+            worker.stop();
+        }
+        return null;
+    }
+
+    private static long parsePositive(String value, long defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid worker setting: " + value, e);
+            return defaultValue;
+        }
+    }
+
+    private class Worker {
+
+        private final Process process;
+        private final Writer input;
+        private final BufferedReader output;
+        private final BoundedOutputBuffer errorOutput = new BoundedOutputBuffer(OUTPUT_BUFFER_SIZE);
+        private int jobs;
+        private long peakMemoryKb;
+
+        Worker(long timeout) throws IOException, InterruptedException {
+            process = new ProcessBuilder(command).start();
+            startedWorkers.incrementAndGet();
+            input = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            ProcessRunner.STREAM_DRAINERS.submit(() -> ProcessRunner.drain(process.getErrorStream(), errorOutput));
+
+            boolean ready = false;
+            try {
+                String[] reply = readReply(timeout);
+                ready = READY.equals(reply[0]);
+                if (!ready) {
+                    throw new IOException("Unexpected " + runner.getToolName() + " worker greeting: "
+                            + Arrays.toString(reply) + "\n" + errorOutput.toString(Charset.defaultCharset()));
+                }
+            } finally {
+                if (!ready) {
+                    stop();
+                }
+            }
+            LOGGER.log(Level.FINE, "{0} worker started", runner.getToolName());
+        }
+
+        ProcessResult call(String request, long timeout) throws IOException, InterruptedException {
+            errorOutput.reset();
+            input.write(request);
+            input.write('\n');
+            input.flush();
+            String[] reply = readReply(timeout);
+            jobs++;
+            String errors = errorOutput.toString(Charset.defaultCharset());
+            if (OK.equals(reply[0])) {
+                return new ProcessResult(0, reply[2], errors);
+            } else if (ERROR.equals(reply[0])) {
+                return new ProcessResult(1, "", errors.isEmpty() ? reply[2] : reply[2] + "\n" + errors);
+            }
+            throw new IOException("Unexpected " + runner.getToolName() + " worker reply: " + Arrays.toString(reply));
+        }
+
+        private String[] readReply(long timeout) throws IOException, InterruptedException {
+            Future<String> line = ProcessRunner.STREAM_DRAINERS.submit(output::readLine);
+            String reply;
+            try {
+                reply = line.get(timeout, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                ProcessTrees.destroy(process);
+                ConversionRecording.timeout();
+                throw new ProcessTimeoutException(runner.getToolName() + " worker did not answer within " + timeout
+                        + " seconds", errorOutput.toString(Charset.defaultCharset()));
+            } catch (InterruptedException e) {
+                ProcessTrees.destroy(process);
+                throw e;
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            if (reply == null) {
+                throw new EOFException(runner.getToolName() + " worker exited\n"
+                        + errorOutput.toString(Charset.defaultCharset()));
+            }
+            String[] fields = reply.split("\t", 3);
+            if (fields.length != 3) {
+                throw new IOException("Malformed " + runner.getToolName() + " worker reply: " + reply);
+            }
+            try {
+                peakMemoryKb = Long.parseLong(fields[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed " + runner.getToolName() + " worker reply: " + reply, e);
+            }
+            return fields;
+        }
+
+        void stop() {
+            // Workers exit at the end of their input, kill the stubborn ones
+            try {
+                input.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINEST, null, e);
+            }
+            ProcessRunner.STREAM_DRAINERS.submit(() -> {
+                try {
+                    if (!process.waitFor(STOP_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                        ProcessTrees.destroy(process);
+                    }
+                } catch (InterruptedException e) {
+                    ProcessTrees.destroy(process);
+                    Thread.currentThread().interrupt();
+                }
+                ProcessRunner.closeQuietly(process.getInputStream());
+            });
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.routing;
+
+import com.docdoku.server.converters.commons.ConversionTask;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * One way for a converter to produce OBJ files: an in-JVM reader or an
+ * external tool, and the extensions it handles.
+ */
+public class ConversionRoute {
+
+    private final String id;
+    private final String settings;
+    private final String executable;
+    private final ConversionTask task;
+    private final Set<String> extensions;
+
+    private ConversionRoute(String id, String settings, String executable, ConversionTask task,
+                            String... extensions) {
+        this.id = id;
+        this.settings = settings;
+        this.executable = executable;
+        this.task = task;
+        this.extensions = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(extensions)));
+    }
+
+    /**
+     * A route converting in the JVM, always available.
+     */
+    public static ConversionRoute inJvm(String id, ConversionTask task, String... extensions) {
+        return new ConversionRoute(id, id, null, task, extensions);
+    }
+
+    /**
+     * A route running an external tool, available if the tool is found
+     * executable when the router is created.
+     *
+     * @param executable path of the tool, or its name to look up in the <code>PATH</code>
+     * @param settings   what, besides the input file, determines the output of the tool
+     */
+    public static ConversionRoute tool(String id, String executable, String settings, ConversionTask task,
+                                       String... extensions) {
+        return new ConversionRoute(id, settings, executable, task, extensions);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSettings() {
+        return settings;
+    }
+
+    public String getExecutable() {
+        return executable;
+    }
+
+    ConversionTask getTask() {
+        return task;
+    }
+
+    public Set<String> getExtensions() {
+        return extensions;
+    }
+
+    /**
+     * @return true if the tool can be run, always for in-JVM routes
+     */
+    boolean probe() {
+        if (executable == null) {
+            return true;
+        }
+        if (executable.trim().isEmpty()) {
+            return false;
+        }
+        Path path = Paths.get(executable);
+        if (path.getNameCount() > 1 || path.isAbsolute()) {
+            return Files.isRegularFile(path) && Files.isExecutable(path);
+        }
+        String searchPath = System.getenv("PATH");
+        if (searchPath == null) {
+            return false;
+        }
+        for (String dir : searchPath.split(File.pathSeparator)) {
+            Path candidate = Paths.get(dir).resolve(executable);
+            if (Files.isRegularFile(candidate) && Files.isExecutable(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.routing;
+
+import com.docdoku.server.converters.commons.ConversionTask;
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends each file to the best of the routes of a converter able to read it.
+ * <p>
+ * The tools of the routes are probed once, when the router is created. For
+ * each extension, healthy routes are tried before the ones failing more
+ * often than not, then routes not measured yet in declaration order, then
+ * the fastest per kilobyte of input first. Whenever a route fails, by a
+ * conversion error or by any runtime exception, the next one is tried. A
+ * route judged unhealthy is given another chance a minute after its last
+ * failure.
+ * <p>
+ * Choosing a route takes no lock, the routes and their statistics are
+ * fixed once the router is created.
+ */
+public class ConversionRouter implements ConversionTask {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionRouter.class.getName());
+
+    static final long RETRY_AFTER_MILLIS = 60_000;
+
+    private final String converterId;
+    private final Set<String> extensions;
+    // Available routes of each extension, in declaration order
+    private final Map<String, RouteStats[]> routes = new HashMap<>();
+    private final List<RouteStats> stats = new ArrayList<>();
+    private final Map<String, String> unavailableTools = new HashMap<>();
+    private final String settings;
+
+    public ConversionRouter(String converterId, ConversionRoute... declaredRoutes) {
+        this.converterId = converterId;
+        Set<String> allExtensions = new LinkedHashSet<>();
+        Map<String, List<RouteStats>> available = new HashMap<>();
+        StringJoiner availableSettings = new StringJoiner(" | ");
+
+        for (ConversionRoute route : declaredRoutes) {
+            boolean runnable = route.probe();
+            if (runnable) {
+                availableSettings.add(route.getSettings());
+            } else {
+                LOGGER.log(Level.WARNING, "Route {0} of converter {1} disabled, \"{2}\" cannot be run",
+                        new Object[]{route.getId(), converterId, route.getExecutable()});
+            }
+            for (String extension : route.getExtensions()) {
+                allExtensions.add(extension);
+                RouteStats routeStats = new RouteStats(route, extension, runnable);
+                stats.add(routeStats);
+                if (runnable) {
+                    available.computeIfAbsent(extension, e -> new ArrayList<>()).add(routeStats);
+                } else {
+                    unavailableTools.putIfAbsent(extension, route.getExecutable());
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<RouteStats>> entry : available.entrySet()) {
+            routes.put(entry.getKey(), entry.getValue().toArray(new RouteStats[0]));
+        }
+        this.extensions = Collections.unmodifiableSet(allExtensions);
+        this.settings = availableSettings.toString();
+    }
+
+    /**
+     * @return true if a route was declared for the extension, even if its tool is missing
+     */
+    public boolean canConvert(String extension) {
+        return extensions.contains(extension);
+    }
+
+    /**
+     * @return the settings of the available routes
+     */
+    public String getSettings() {
+        return settings;
+    }
+
+    public List<RouteStats> getRouteStats() {
+        return Collections.unmodifiableList(stats);
+    }
+
+    @Override
+    public ConversionResult convert(URI cadFileUri, URI tmpDirUri) throws CADConverter.ConversionException {
+        return convert(cadFileUri, tmpDirUri, null);
+    }
+
+    /**
+     * Convert the file through the given cache, keyed by the settings of the
+     * route tried: routes do not produce the same output. The result cached
+     * by a route is only used when that route is tried.
+     *
+     * @param cache the cache of the converter, null to convert without one
+     */
+    public ConversionResult convert(URI cadFileUri, URI tmpDirUri, ConversionCache cache)
+            throws CADConverter.ConversionException {
+        Path cadFile = Paths.get(cadFileUri);
+        String extension = ConverterFiles.getExtension(cadFile);
+        RouteStats[] candidates = routes.get(extension);
+        if (candidates == null) {
+            String tool = unavailableTools.get(extension);
+            throw new CADConverter.ConversionException("Cannot convert file \"" + cadFile + "\", "
+                    + (tool != null ? "\"" + tool + "\" is not available" : "unsupported format"));
+        }
+
+        long inputSize = sizeOf(cadFile);
+        CADConverter.ConversionException failure = null;
+        for (RouteStats candidate : rank(candidates, System.currentTimeMillis())) {
+            // Cache hits are not measured
+            ConversionTask task = (cad, tmp) -> {
+                long start = System.nanoTime();
+                try {
+                    ConversionResult result = candidate.getRoute().getTask().convert(cad, tmp);
+                    candidate.record(true, System.nanoTime() - start, inputSize);
+                    return result;
+                } catch (CADConverter.ConversionException e) {
+                    candidate.record(false, System.nanoTime() - start, inputSize);
+                    throw e;
+                } catch (RuntimeException e) {
+                    // In-JVM routes may choke on malformed input, the next route may not
+                    candidate.record(false, System.nanoTime() - start, inputSize);
+                    throw new CADConverter.ConversionException("Route " + candidate.getRouteId() + " failed: " + e, e);
+                }
+            };
+            try {
+                return cache == null ? task.convert(cadFileUri, tmpDirUri)
+                        : cache.convert(cadFileUri, tmpDirUri, candidate.getRoute().getSettings(), task);
+            } catch (CADConverter.ConversionException e) {
+                LOGGER.log(Level.WARNING, "Route " + candidate.getRouteId() + " of converter " + converterId
+                        + " failed on " + cadFile, e);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * @return the candidates in the order to try them, from a snapshot of their statistics
+     */
+    static RouteStats[] rank(RouteStats[] candidates, long now) {
+        int count = candidates.length;
+        RouteStats[] ranked = Arrays.copyOf(candidates, count);
+        boolean[] healthy = new boolean[count];
+        double[] cost = new double[count];
+        for (int i = 0; i < count; i++) {
+            healthy[i] = ranked[i].isHealthy(now, RETRY_AFTER_MILLIS);
+            double nanos = ranked[i].getNanosPerKilobyte();
+            // Routes not measured yet are tried first, to get measured
+            cost[i] = Double.isNaN(nanos) ? -1 : nanos;
+        }
+        // Insertion sort, stable and cheap on a handful of routes
+        for (int i = 1; i < count; i++) {
+            RouteStats route = ranked[i];
+            boolean routeHealthy = healthy[i];
+            double routeCost = cost[i];
+            int j = i - 1;
+            while (j >= 0 && isBefore(routeHealthy, routeCost, healthy[j], cost[j])) {
+                ranked[j + 1] = ranked[j];
+                healthy[j + 1] = healthy[j];
+                cost[j + 1] = cost[j];
+                j--;
+            }
+            ranked[j + 1] = route;
+            healthy[j + 1] = routeHealthy;
+            cost[j + 1] = routeCost;
+        }
+        return ranked;
+    }
+
+    private static boolean isBefore(boolean healthy, double cost, boolean otherHealthy, double otherCost) {
+        if (healthy != otherHealthy) {
+            return healthy;
+        }
+        return cost < otherCost;
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+            return 0;
+        }
+    }
+}
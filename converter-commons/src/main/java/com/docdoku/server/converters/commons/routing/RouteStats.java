@@ -0,0 +1,122 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.routing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rolling record of a route on one extension: exponentially weighted
+ * averages of its cost per kilobyte of input and of its success rate.
+ * <p>
+ * Updated with compare-and-set loops, read without locking.
+ */
+public class RouteStats {
+
+    // Weight of the latest conversion in the averages
+    static final double SMOOTHING = 0.2;
+    static final double MIN_SUCCESS_RATE = 0.5;
+
+    private final ConversionRoute route;
+    private final String extension;
+    private final boolean available;
+
+    // Doubles stored as their bits, NaN until a first success
+    private final AtomicLong nanosPerKilobyte = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+    private final AtomicLong successRate = new AtomicLong(Double.doubleToLongBits(1.0));
+    private final AtomicLong conversions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastFailureMillis;
+
+    RouteStats(ConversionRoute route, String extension, boolean available) {
+        this.route = route;
+        this.extension = extension;
+        this.available = available;
+    }
+
+    void record(boolean success, long nanos, long inputSize) {
+        conversions.incrementAndGet();
+        if (success) {
+            double cost = nanos / Math.max(1.0, inputSize / 1024.0);
+            average(nanosPerKilobyte, cost);
+            average(successRate, 1.0);
+        } else {
+            failures.incrementAndGet();
+            lastFailureMillis = System.currentTimeMillis();
+            average(successRate, 0.0);
+        }
+    }
+
+    private static void average(AtomicLong bits, double value) {
+        while (true) {
+            long current = bits.get();
+            double previous = Double.longBitsToDouble(current);
+            double next = Double.isNaN(previous) ? value : previous + SMOOTHING * (value - previous);
+            if (bits.compareAndSet(current, Double.doubleToLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param retryAfterMillis time after its last failure for an unhealthy route to be given another chance
+     */
+    boolean isHealthy(long now, long retryAfterMillis) {
+        return getSuccessRate() >= MIN_SUCCESS_RATE || now - lastFailureMillis >= retryAfterMillis;
+    }
+
+    ConversionRoute getRoute() {
+        return route;
+    }
+
+    public String getRouteId() {
+        return route.getId();
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return false if the tool of the route was not found at startup
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return the average conversion time per kilobyte of input, NaN until a first success
+     */
+    public double getNanosPerKilobyte() {
+        return Double.longBitsToDouble(nanosPerKilobyte.get());
+    }
+
+    public double getSuccessRate() {
+        return Double.longBitsToDouble(successRate.get());
+    }
+
+    public long getConversions() {
+        return conversions.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.scheduling;
+
+/**
+ * Workspace and priority of the conversions requested by the current thread,
+ * read by the {@link ConversionScheduler} of each converter since the
+ * converter contract does not carry them.
+ * <p>
+ * Contexts are opened around the conversion calls and closed once done:
+ * <pre>
+ * try (ConversionContext context = ConversionContext.open(workspaceId, ConversionPriority.BULK)) {
+ *     converter.convert(cadFileUri, tmpDirUri);
+ * }
+ * </pre>
+ * Conversions requested outside of any context are interactive ones of an
+ * anonymous workspace.
+ */
+public final class ConversionContext implements AutoCloseable {
+
+    public static final String NO_WORKSPACE = "";
+
+    private static final ThreadLocal<ConversionContext> CURRENT = new ThreadLocal<>();
+    private static final ConversionContext DEFAULT = new ConversionContext(NO_WORKSPACE,
+            ConversionPriority.INTERACTIVE, null);
+
+    private final String workspaceId;
+    private final ConversionPriority priority;
+    private final ConversionContext previous;
+
+    private ConversionContext(String workspaceId, ConversionPriority priority, ConversionContext previous) {
+        this.workspaceId = workspaceId;
+        this.priority = priority;
+        this.previous = previous;
+    }
+
+    /**
+     * Make the given workspace and priority current until the returned context is closed.
+     */
+    public static ConversionContext open(String workspaceId, ConversionPriority priority) {
+        ConversionContext context = new ConversionContext(workspaceId == null ? NO_WORKSPACE : workspaceId,
+                priority == null ? ConversionPriority.INTERACTIVE : priority, CURRENT.get());
+        CURRENT.set(context);
+        return context;
+    }
+
+    /**
+     * @return the innermost open context of the thread, the default one if none
+     */
+    public static ConversionContext current() {
+        ConversionContext context = CURRENT.get();
+        return context == null ? DEFAULT : context;
+    }
+
+    public String getWorkspaceId() {
+        return workspaceId;
+    }
+
+    public ConversionPriority getPriority() {
+        return priority;
+    }
+
+    @Override
+    public void close() {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.scheduling;
+
+import com.docdoku.server.converters.commons.ConversionTask;
+import com.docdoku.server.converters.commons.metrics.ConverterMetrics;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue in front of the converters of a type, so that a workspace importing
+ * thousands of files does not hold back the conversions of the others.
+ * <p>
+ * At most <code>max_concurrent_conversions</code> conversions run at once,
+ * the number of available cores by default. The others wait in the queue of
+ * their {@link ConversionPriority}: interactive conversions all start before
+ * bulk ones. Within a priority, workspaces take turns in proportion to their
+ * <code>workspace_weight.&lt;workspace&gt;</code>, 1 by default, and the
+ * conversions of a workspace start in order of arrival. A workspace joining
+ * the queue starts on par with the ones served so far, it does not bank
+ * turns while idle.
+ * <p>
+ * Conversions run on the calling thread once started. The queue of each
+ * converter type is registered as an MXBean, see
+ * {@link ConversionSchedulerMXBean}.
+ */
+public class ConversionScheduler implements ConversionSchedulerMXBean {
+
+    public static final String MAX_CONCURRENT_CONVERSIONS = "max_concurrent_conversions";
+    public static final String WORKSPACE_WEIGHT = "workspace_weight";
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionScheduler.class.getName());
+
+    private static final ConcurrentMap<String, ConversionScheduler> SCHEDULERS = new ConcurrentHashMap<>();
+
+    private final String converterType;
+    private final int maxConcurrent;
+    private final Properties conf;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<ConversionPriority, PriorityLevel> queues = new EnumMap<>(ConversionPriority.class);
+    private int running;
+    private int queued;
+    private int peakQueued;
+    private long started;
+
+    ConversionScheduler(String converterType, int maxConcurrent, Properties conf) {
+        this.converterType = converterType;
+        this.maxConcurrent = maxConcurrent;
+        this.conf = conf;
+        for (ConversionPriority priority : ConversionPriority.values()) {
+            queues.put(priority, new PriorityLevel());
+        }
+    }
+
+    /**
+     * Get the scheduler of a converter type, registering its MXBean on first
+     * use. The first configuration registered wins.
+     */
+    public static ConversionScheduler forConverter(String converterType, Properties conf) {
+        return SCHEDULERS.computeIfAbsent(converterType, type -> {
+            int maxConcurrent = parseMaxConcurrent(conf.getProperty(MAX_CONCURRENT_CONVERSIONS));
+            LOGGER.log(Level.INFO, "At most {0} concurrent {1} conversions", new Object[]{maxConcurrent, type});
+            ConversionScheduler scheduler = new ConversionScheduler(type, maxConcurrent, conf);
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(scheduler, objectName(type));
+            } catch (JMException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Cannot register the scheduler of converter " + type, e);
+            }
+            return scheduler;
+        });
+    }
+
+    public static ObjectName objectName(String converterType) throws JMException {
+        return new ObjectName(ConverterMetrics.OBJECT_NAME_DOMAIN + ":type=ConversionScheduler,name="
+                + ObjectName.quote(converterType));
+    }
+
+    /**
+     * Run the conversion once its turn has come, with the workspace and
+     * priority of the current {@link ConversionContext}.
+     *
+     * @throws CADConverter.ConversionException if interrupted while waiting, or if the conversion failed
+     */
+    public ConversionResult convert(URI cadFileUri, URI tmpDirUri, ConversionTask task)
+            throws CADConverter.ConversionException {
+        ConversionContext context = ConversionContext.current();
+        return convert(task, cadFileUri, tmpDirUri, context.getWorkspaceId(), context.getPriority());
+    }
+
+    /**
+     * Run the conversion once its turn has come.
+     *
+     * @throws CADConverter.ConversionException if interrupted while waiting, or if the conversion failed
+     */
+    public ConversionResult convert(CADConverter converter, URI cadFileUri, URI tmpDirUri, String workspaceId,
+                                    ConversionPriority priority) throws CADConverter.ConversionException {
+        return convert(converter::convert, cadFileUri, tmpDirUri, workspaceId, priority);
+    }
+
+    private ConversionResult convert(ConversionTask task, URI cadFileUri, URI tmpDirUri, String workspaceId,
+                                     ConversionPriority priority) throws CADConverter.ConversionException {
+        try {
+            acquire(workspaceId, priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CADConverter.ConversionException("Interrupted while waiting for a " + converterType
+                    + " conversion slot", e);
+        }
+        try {
+            return task.convert(cadFileUri, tmpDirUri);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Wait for a turn to run a conversion, to be given back with {@link #release()}.
+     */
+    void acquire(String workspaceId, ConversionPriority priority) throws InterruptedException {
+        lock.lock();
+        try {
+            if (running < maxConcurrent && queued == 0) {
+                running++;
+                started++;
+                return;
+            }
+            PriorityLevel queue = queues.get(priority);
+            Ticket ticket = queue.add(workspaceId, weightOf(workspaceId), lock.newCondition());
+            queued++;
+            peakQueued = Math.max(peakQueued, queued);
+            try {
+                while (!ticket.granted) {
+                    ticket.condition.await();
+                }
+            } catch (InterruptedException e) {
+                if (ticket.granted) {
+                    running--;
+                    dispatch();
+                } else {
+                    queue.remove(ticket);
+                    queued--;
+                }
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            running--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        while (running < maxConcurrent && queued > 0) {
+            for (PriorityLevel queue : queues.values()) {
+                Ticket ticket = queue.poll();
+                if (ticket != null) {
+                    queued--;
+                    running++;
+                    started++;
+                    ticket.granted = true;
+                    ticket.condition.signal();
+                    break;
+                }
+            }
+        }
+    }
+
+    private int weightOf(String workspaceId) {
+        String value = conf.getProperty(WORKSPACE_WEIGHT + "." + workspaceId);
+        if (value == null || value.trim().isEmpty()) {
+            return 1;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid weight of workspace " + workspaceId + ": " + value, e);
+            return 1;
+        }
+    }
+
+    private static int parseMaxConcurrent(String value) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (value == null || value.trim().isEmpty()) {
+            return cores;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + MAX_CONCURRENT_CONVERSIONS + ": " + value, e);
+            return cores;
+        }
+    }
+
+    @Override
+    public String getConverterType() {
+        return converterType;
+    }
+
+    @Override
+    public int getMaxConcurrentConversions() {
+        return maxConcurrent;
+    }
+
+    @Override
+    public int getRunningConversions() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueuedConversions() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getPeakQueuedConversions() {
+        lock.lock();
+        try {
+            return peakQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getStartedConversions() {
+        lock.lock();
+        try {
+            return started;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getQueuedByPriority() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            for (Map.Entry<ConversionPriority, PriorityLevel> entry : queues.entrySet()) {
+                depths.put(entry.getKey().name(), entry.getValue().size);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return depths;
+    }
+
+    @Override
+    public Map<String, Integer> getQueuedByWorkspace() {
+        Map<String, Integer> depths = new TreeMap<>();
+        lock.lock();
+        try {
+            for (PriorityLevel queue : queues.values()) {
+                for (Map.Entry<String, WorkspaceQueue> entry : queue.workspaces.entrySet()) {
+                    depths.merge(entry.getKey(), entry.getValue().tickets.size(), Integer::sum);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return depths;
+    }
+
+    private static class Ticket {
+
+        private final String workspaceId;
+        private final Condition condition;
+        private boolean granted;
+
+        Ticket(String workspaceId, Condition condition) {
+            this.workspaceId = workspaceId;
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * Queued conversions of a workspace, and how far it has been served: each
+     * start advances its pass by the inverse of its weight.
+     */
+    private static class WorkspaceQueue {
+
+        private final ArrayDeque<Ticket> tickets = new ArrayDeque<>();
+        private final int weight;
+        private double pass;
+
+        WorkspaceQueue(int weight, double pass) {
+            this.weight = weight;
+            this.pass = pass;
+        }
+    }
+
+    /**
+     * Queued conversions of a priority, the workspace of lowest pass starts
+     * next, the longest queued one on ties.
+     */
+    private static class PriorityLevel {
+
+        // Workspaces having queued conversions, in order of arrival
+        private final Map<String, WorkspaceQueue> workspaces = new LinkedHashMap<>();
+        // Pass of the last workspace served
+        private double virtualTime;
+        private int size;
+
+        Ticket add(String workspaceId, int weight, Condition condition) {
+            Ticket ticket = new Ticket(workspaceId, condition);
+            workspaces.computeIfAbsent(workspaceId, id -> new WorkspaceQueue(weight, virtualTime))
+                    .tickets.add(ticket);
+            size++;
+            return ticket;
+        }
+
+        void remove(Ticket ticket) {
+            WorkspaceQueue workspace = workspaces.get(ticket.workspaceId);
+            if (workspace != null && workspace.tickets.remove(ticket)) {
+                size--;
+                if (workspace.tickets.isEmpty()) {
+                    workspaces.remove(ticket.workspaceId);
+                }
+            }
+        }
+
+        Ticket poll() {
+            Map.Entry<String, WorkspaceQueue> next = null;
+            for (Map.Entry<String, WorkspaceQueue> entry : workspaces.entrySet()) {
+                if (next == null || entry.getValue().pass < next.getValue().pass) {
+                    next = entry;
+                }
+            }
+            if (next == null) {
+                return null;
+            }
+            WorkspaceQueue workspace = next.getValue();
+            Ticket ticket = workspace.tickets.poll();
+            size--;
+            virtualTime = workspace.pass;
+            workspace.pass += 1.0 / workspace.weight;
+            if (workspace.tickets.isEmpty()) {
+                workspaces.remove(next.getKey());
+            }
+            return ticket;
+        }
+    }
+}
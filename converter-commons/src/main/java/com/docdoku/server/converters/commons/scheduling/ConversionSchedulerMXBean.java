@@ -0,0 +1,58 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.scheduling;
+
+import java.util.Map;
+
+/**
+ * JMX view of the queue of a converter type, registered as
+ * <code>com.docdoku.converters:type=ConversionScheduler,name=&lt;converter&gt;</code>.
+ */
+public interface ConversionSchedulerMXBean {
+
+    String getConverterType();
+
+    int getMaxConcurrentConversions();
+
+    int getRunningConversions();
+
+    int getQueuedConversions();
+
+    /**
+     * @return the highest number of conversions queued at once
+     */
+    int getPeakQueuedConversions();
+
+    /**
+     * @return the number of conversions started, without or after waiting
+     */
+    long getStartedConversions();
+
+    /**
+     * @return the number of queued conversions of each priority
+     */
+    Map<String, Integer> getQueuedByPriority();
+
+    /**
+     * @return the number of queued conversions of each workspace having some
+     */
+    Map<String, Integer> getQueuedByWorkspace();
+}
@@ -0,0 +1,60 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.scheduling;
+
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.net.URI;
+
+/**
+ * Converter running the conversions of another one through a
+ * {@link ConversionScheduler}, with the workspace and priority of the current
+ * {@link ConversionContext}.
+ */
+public class ScheduledConverter implements CADConverter {
+
+    private final CADConverter converter;
+    private final ConversionScheduler scheduler;
+
+    public ScheduledConverter(CADConverter converter, ConversionScheduler scheduler) {
+        this.converter = converter;
+        this.scheduler = scheduler;
+    }
+
+    public CADConverter getConverter() {
+        return converter;
+    }
+
+    public ConversionScheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public ConversionResult convert(URI cadFileUri, URI tmpDirUri) throws ConversionException {
+        return scheduler.convert(cadFileUri, tmpDirUri, converter::convert);
+    }
+
+    @Override
+    public boolean canConvertToOBJ(String cadFileExtension) {
+        return converter.canConvertToOBJ(cadFileExtension);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.scratch;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Directory of a {@link ScratchSpace} owned by one conversion, deleted and
+ * given back to the quota when closed.
+ */
+public class ScratchDirectory implements Closeable {
+
+    private final ScratchSpace space;
+    private final Path path;
+    private final long reservedBytes;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    ScratchDirectory(ScratchSpace space, Path path, long reservedBytes) {
+        this.space = space;
+        this.path = path;
+        this.reservedBytes = reservedBytes;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Path resolve(String name) {
+        return path.resolve(name);
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            space.close(this);
+        }
+    }
+}
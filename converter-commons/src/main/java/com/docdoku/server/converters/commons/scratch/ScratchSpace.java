@@ -0,0 +1,412 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.scratch;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Working space of the converters for their intermediate files, on a volume
+ * of its own such as a tmpfs.
+ * <p>
+ * Conversions get a {@link ScratchDirectory} of their own, deleted when
+ * closed. Each directory reserves part of the <code>scratch_quota</code> (in
+ * MB): an allocation that would exceed it, or that the volume has no room
+ * for, waits for other directories to be closed, up to
+ * <code>scratch_wait_timeout</code> seconds. Directories left behind by a
+ * crashed server are reclaimed on startup and whenever an allocation has to
+ * wait: every server owns a lock file in the scratch space, held as long as
+ * it runs.
+ * <p>
+ * Helper files such as the scripts run by the external tools are staged once
+ * in the scratch space, see {@link #stage(Class, String)}.
+ * <p>
+ * Configured from the converter <code>conf.properties</code>, the scratch
+ * space is <code>scratch_dir</code>, the system temp directory by default.
+ * Converters sharing a scratch directory share its quota, the first
+ * configuration registered wins.
+ */
+public class ScratchSpace {
+
+    public static final String SCRATCH_DIR = "scratch_dir";
+    public static final String SCRATCH_QUOTA = "scratch_quota";
+    public static final String SCRATCH_WAIT_TIMEOUT = "scratch_wait_timeout";
+
+    private static final Logger LOGGER = Logger.getLogger(ScratchSpace.class.getName());
+
+    private static final long DEFAULT_QUOTA_MB = 4096;
+    private static final long DEFAULT_WAIT_TIMEOUT_SECONDS = 600;
+    private static final long RECLAIM_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final String OWNERS = "owners";
+    private static final String JOBS = "jobs";
+    private static final String STAGED = "staged";
+    private static final String LOCK_SUFFIX = ".lock";
+
+    private static final ConcurrentMap<Path, ScratchSpace> SPACES = new ConcurrentHashMap<>();
+
+    private final Path root;
+    private final long quota;
+    private final long waitTimeoutMillis;
+    private final String owner = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+    private final Set<Path> liveDirectories = ConcurrentHashMap.newKeySet();
+    private final Map<String, Path> stagedFiles = new ConcurrentHashMap<>();
+
+    // Held open as long as the server runs, closing it would release the lock
+    private FileChannel ownerChannel;
+    private FileLock ownerLock;
+    private long reserved;
+    private int waiting;
+    private long lastReclaim;
+
+    ScratchSpace(Path root, long quota, long waitTimeoutMillis) {
+        this.root = root;
+        this.quota = quota;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+
+    /**
+     * Get the scratch space configured in the given properties.
+     */
+    public static ScratchSpace of(Properties conf) {
+        String dir = conf.getProperty(SCRATCH_DIR, "").trim();
+        Path root = (dir.isEmpty() ? Paths.get(System.getProperty("java.io.tmpdir"), "docdoku-scratch")
+                : Paths.get(dir)).toAbsolutePath();
+        return SPACES.computeIfAbsent(root, path -> {
+            long quota = parseLong(conf, SCRATCH_QUOTA, DEFAULT_QUOTA_MB) * 1024 * 1024;
+            long timeout = parseLong(conf, SCRATCH_WAIT_TIMEOUT, DEFAULT_WAIT_TIMEOUT_SECONDS);
+            LOGGER.log(Level.INFO, "Scratch space {0}, quota of {1} MB",
+                    new Object[]{path, quota / (1024 * 1024)});
+            return new ScratchSpace(path, quota, TimeUnit.SECONDS.toMillis(timeout));
+        });
+    }
+
+    /**
+     * Allocate a directory expected to hold up to the given number of bytes,
+     * waiting for room if needed. Reservations larger than the quota are
+     * allowed once nothing else is reserved.
+     *
+     * @param label a name for the directory, such as the converter id
+     * @throws IOException if no room was found in time or the directory cannot be created
+     */
+    public ScratchDirectory allocate(String label, long bytes) throws IOException, InterruptedException {
+        ScratchDirectory directory = allocate(label, bytes, waitTimeoutMillis);
+        if (directory == null) {
+            throw new IOException("No room in scratch space " + root + " for " + bytes + " bytes, "
+                    + getReservedBytes() + " of " + quota + " bytes reserved");
+        }
+        return directory;
+    }
+
+    /**
+     * Allocate a directory if there is room for it right away, for work that
+     * can be skipped or done later.
+     *
+     * @return the directory, null if there is no room
+     * @see #allocate(String, long)
+     */
+    public ScratchDirectory tryAllocate(String label, long bytes) throws IOException {
+        try {
+            return allocate(label, bytes, 0);
+        } catch (InterruptedException e) {
+            // Not waiting
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private ScratchDirectory allocate(String label, long bytes, long timeoutMillis)
+            throws IOException, InterruptedException {
+        long reservation = Math.min(Math.max(0, bytes), quota);
+        synchronized (this) {
+            open();
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!hasRoomFor(reservation)) {
+                if (System.currentTimeMillis() - lastReclaim > RECLAIM_INTERVAL_MILLIS) {
+                    reclaimOrphans();
+                    continue;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                waiting++;
+                try {
+                    wait(remaining);
+                } finally {
+                    waiting--;
+                }
+            }
+            reserved += reservation;
+        }
+
+        Path directory = root.resolve(JOBS).resolve(owner + "." + label + "." + sequence.incrementAndGet());
+        // Live before it exists, so that a concurrent reclaim leaves it alone
+        liveDirectories.add(directory);
+        try {
+            Files.createDirectory(directory);
+        } catch (IOException e) {
+            liveDirectories.remove(directory);
+            release(reservation);
+            throw e;
+        }
+        return new ScratchDirectory(this, directory, reservation);
+    }
+
+    private boolean hasRoomFor(long reservation) {
+        if (reserved == 0) {
+            return true;
+        }
+        if (reserved + reservation > quota) {
+            return false;
+        }
+        try {
+            return Files.getFileStore(root).getUsableSpace() >= reservation;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+            return true;
+        }
+    }
+
+    void close(ScratchDirectory directory) {
+        try {
+            ConverterFiles.deleteRecursively(directory.getPath());
+        } catch (IOException e) {
+            // Retried by the next reclaim, the directory is no longer live
+            LOGGER.log(Level.WARNING, "Cannot delete scratch directory " + directory.getPath(), e);
+        }
+        liveDirectories.remove(directory.getPath());
+        release(directory.getReservedBytes());
+    }
+
+    private synchronized void release(long reservation) {
+        reserved -= reservation;
+        notifyAll();
+    }
+
+    /**
+     * Copy a class path resource to the scratch space, once for all
+     * conversions. Staged files are named after their content, so that
+     * servers sharing the scratch space share them too, and copied again if
+     * deleted in the meantime.
+     *
+     * @return the staged file, not to be modified
+     */
+    public Path stage(Class<?> type, String resource) throws IOException {
+        Path staged = stagedFiles.get(resource);
+        if (staged != null && Files.exists(staged)) {
+            return staged;
+        }
+        byte[] content;
+        try (InputStream in = type.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new FileNotFoundException(resource);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                bytes.write(buffer, 0, read);
+            }
+            content = bytes.toByteArray();
+        }
+        String name = Paths.get(resource).getFileName().toString();
+        Path stagedDir = Files.createDirectories(root.resolve(STAGED));
+        staged = stagedDir.resolve(digest(content) + "-" + name);
+        if (!Files.exists(staged)) {
+            Path tmp = Files.createTempFile(stagedDir, name, ".tmp");
+            try {
+                Files.write(tmp, content);
+                Files.move(tmp, staged, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, staged, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        stagedFiles.put(resource, staged);
+        return staged;
+    }
+
+    /**
+     * Take the ownership lock of this server and reclaim the directories of
+     * the crashed ones, on first use.
+     */
+    private void open() throws IOException {
+        if (ownerLock != null) {
+            return;
+        }
+        Files.createDirectories(root.resolve(JOBS));
+        Path owners = Files.createDirectories(root.resolve(OWNERS));
+        ownerChannel = FileChannel.open(owners.resolve(owner + LOCK_SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        ownerLock = ownerChannel.lock();
+        reclaimOrphans();
+    }
+
+    /**
+     * Delete the directories of the servers that no longer hold their lock,
+     * and the ones of this server that could not be deleted when closed.
+     */
+    synchronized void reclaimOrphans() {
+        lastReclaim = System.currentTimeMillis();
+        List<Path> jobs;
+        try (Stream<Path> children = Files.list(root.resolve(JOBS))) {
+            jobs = children.collect(Collectors.toList());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot list scratch directories in " + root, e);
+            return;
+        }
+        for (Path job : jobs) {
+            String name = job.getFileName().toString();
+            int dot = name.indexOf('.');
+            String jobOwner = dot > 0 ? name.substring(0, dot) : name;
+            boolean orphan = jobOwner.equals(owner) ? !liveDirectories.contains(job) : !isAlive(jobOwner);
+            if (orphan) {
+                try {
+                    ConverterFiles.deleteRecursively(job);
+                    reclaimed.incrementAndGet();
+                    LOGGER.log(Level.INFO, "Reclaimed orphaned scratch directory {0}", job);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Cannot reclaim scratch directory " + job, e);
+                }
+            }
+        }
+        deleteDeadOwners();
+    }
+
+    private boolean isAlive(String jobOwner) {
+        Path lockFile = root.resolve(OWNERS).resolve(jobOwner + LOCK_SUFFIX);
+        if (!Files.exists(lockFile)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            // Held by another scratch space of this server
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+            return true;
+        }
+    }
+
+    private void deleteDeadOwners() {
+        try (DirectoryStream<Path> lockFiles = Files.newDirectoryStream(root.resolve(OWNERS), "*" + LOCK_SUFFIX)) {
+            for (Path lockFile : lockFiles) {
+                String name = lockFile.getFileName().toString();
+                String lockOwner = name.substring(0, name.length() - LOCK_SUFFIX.length());
+                if (!lockOwner.equals(owner) && !isAlive(lockOwner)) {
+                    Files.deleteIfExists(lockFile);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public long getQuota() {
+        return quota;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reserved;
+    }
+
+    /**
+     * @return the number of allocations waiting for room
+     */
+    public synchronized int getWaitingAllocations() {
+        return waiting;
+    }
+
+    public int getLiveDirectories() {
+        return liveDirectories.size();
+    }
+
+    public long getReclaimedDirectories() {
+        return reclaimed.get();
+    }
+
+    private static String digest(byte[] content) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long parseLong(Properties conf, String key, long defaultValue) {
+        String value = conf.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + key + " value: " + value, e);
+            return defaultValue;
+        }
+    }
+}
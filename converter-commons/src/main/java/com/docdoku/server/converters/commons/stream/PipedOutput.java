@@ -0,0 +1,104 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.stream;
+
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Output written by a converter running in the JVM, through a pipe: the
+ * writer blocks whenever the consumer lags behind, so the content is never
+ * held whole, in memory or on disk.
+ */
+class PipedOutput implements StreamedOutput {
+
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "converter-stream-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final Pipe.SourceChannel source;
+    private final Future<?> writing;
+
+    private PipedOutput(String name, Pipe.SourceChannel source, Future<?> writing) {
+        this.name = name;
+        this.source = source;
+        this.writing = writing;
+    }
+
+    static PipedOutput start(String name, ContentWriter writer) {
+        Pipe pipe;
+        try {
+            pipe = Pipe.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open a pipe", e);
+        }
+        Pipe.SinkChannel sink = pipe.sink();
+        Future<?> writing = WRITERS.submit(() -> {
+            try (Pipe.SinkChannel channel = sink) {
+                writer.write(channel);
+            }
+            return null;
+        });
+        return new PipedOutput(name, pipe.source(), writing);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public ReadableByteChannel getChannel() {
+        return source;
+    }
+
+    @Override
+    public void complete() throws CADConverter.ConversionException {
+        try {
+            writing.get();
+        } catch (ExecutionException e) {
+            throw new CADConverter.ConversionException("Cannot stream " + name, e.getCause());
+        } catch (CancellationException e) {
+            throw new CADConverter.ConversionException("Streaming of " + name + " was cancelled", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CADConverter.ConversionException("Interrupted while streaming " + name, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The writer fails on its next write once the source is closed
+        source.close();
+        writing.cancel(true);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.stream;
+
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copies a streamed output to its destination in a single pass, hashing
+ * and optionally gzip compressing it on the way.
+ */
+public final class StreamTransfer {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private StreamTransfer() {
+    }
+
+    /**
+     * Copy the whole output, then complete it. The destination is left open.
+     *
+     * @param compress gzip the content written to the destination
+     * @throws CADConverter.ConversionException if the producer failed, the destination then holds a partial copy
+     */
+    public static Summary copy(StreamedOutput output, OutputStream destination, boolean compress)
+            throws IOException, CADConverter.ConversionException {
+        MessageDigest digest = sha256();
+        CountingOutputStream counted = new CountingOutputStream(destination);
+        OutputStream target = compress ? new GZIPOutputStream(counted, BUFFER_SIZE) : counted;
+
+        ReadableByteChannel channel = output.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long size = 0;
+        int read;
+        while ((read = channel.read(buffer)) != -1) {
+            digest.update(buffer.array(), 0, read);
+            target.write(buffer.array(), 0, read);
+            size += read;
+            buffer.clear();
+        }
+        if (compress) {
+            ((GZIPOutputStream) target).finish();
+        }
+        target.flush();
+        output.complete();
+        return new Summary(output.getName(), toHex(digest.digest()), size, counted.count);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * What was copied: the hash and size of the content itself, and the size
+     * written to the destination.
+     */
+    public static class Summary {
+
+        private final String name;
+        private final String sha256;
+        private final long size;
+        private final long storedSize;
+
+        Summary(String name, String sha256, long size, long storedSize) {
+            this.name = name;
+            this.sha256 = sha256;
+            this.size = size;
+            this.storedSize = storedSize;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the SHA-256 of the uncompressed content, in hexadecimal
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getStoredSize() {
+            return storedSize;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.stream;
+
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Converted file handed over while it is being produced, instead of once
+ * written to the temporary directory.
+ * <p>
+ * The consumer reads the channel to its end, then calls {@link #complete()}
+ * to learn whether the producer succeeded: a truncated output is only
+ * detected there. Closing before the end stops the producer.
+ */
+public interface StreamedOutput extends Closeable {
+
+    /**
+     * @return the file name of the converted content, such as <code>part.obj</code>
+     */
+    String getName();
+
+    /**
+     * @return the converted content, to be read once
+     */
+    ReadableByteChannel getChannel() throws IOException;
+
+    /**
+     * Wait for the producer to finish.
+     *
+     * @throws CADConverter.ConversionException if the producer failed, the content read is then incomplete
+     */
+    void complete() throws CADConverter.ConversionException;
+
+    /**
+     * Stream the content written by the writer, run on another thread.
+     */
+    static StreamedOutput write(String name, ContentWriter writer) {
+        return PipedOutput.start(name, writer);
+    }
+
+    /**
+     * Stream an already converted file, for the converters that cannot do
+     * better.
+     */
+    static StreamedOutput of(Path file) {
+        return new FileOutput(file);
+    }
+
+    @FunctionalInterface
+    interface ContentWriter {
+
+        /**
+         * Write the whole content, the channel is closed afterwards.
+         */
+        void write(WritableByteChannel channel) throws Exception;
+    }
+}
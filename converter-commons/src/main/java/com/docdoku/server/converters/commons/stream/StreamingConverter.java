@@ -0,0 +1,48 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.stream;
+
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.net.URI;
+
+/**
+ * Converter able to hand its OBJ output over while converting, so that the
+ * consumer copies it straight to its destination rather than reading back a
+ * finished temporary file.
+ * <p>
+ * Streamed conversions are neither cached nor post-processed by the output
+ * stages, which both need the whole file. Only converters running in the JVM
+ * stream their output, the external tools write files.
+ * <p>
+ * A consumer hands the output to {@link StreamTransfer#copy}, which writes it
+ * to its destination, completes it and returns its size and hash.
+ */
+public interface StreamingConverter extends CADConverter {
+
+    /**
+     * Start the conversion, the output is to be read and completed by the
+     * caller, see {@link StreamedOutput}.
+     *
+     * @param tmpDirUri directory for the files the conversion may still need
+     */
+    StreamedOutput convertStreamed(URI cadFileUri, URI tmpDirUri) throws ConversionException;
+}
@@ -0,0 +1,97 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.texture;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downscales texture images to power of two sizes and prepares their mip
+ * chains, with a box filter weighted by the opacity of the pixels so that
+ * transparent pixels do not darken the edges of the opaque ones.
+ */
+public final class TextureResampler {
+
+    private TextureResampler() {
+    }
+
+    /**
+     * @return the largest power of two not above the given size nor the given maximum, at least 1
+     */
+    public static int targetSize(int size, int maxSize) {
+        return Integer.highestOneBit(Math.max(1, Math.min(size, maxSize)));
+    }
+
+    /**
+     * @return the image averaged down to the given size, which must not exceed its own
+     */
+    public static BufferedImage resample(BufferedImage image, int width, int height) {
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        int[] source = image.getRGB(0, 0, sourceWidth, sourceHeight, null, 0, sourceWidth);
+        int[] target = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int fromY = (int) ((long) y * sourceHeight / height);
+            int toY = Math.max(fromY + 1, (int) (((long) y + 1) * sourceHeight / height));
+            for (int x = 0; x < width; x++) {
+                int fromX = (int) ((long) x * sourceWidth / width);
+                int toX = Math.max(fromX + 1, (int) (((long) x + 1) * sourceWidth / width));
+                long alpha = 0;
+                long red = 0;
+                long green = 0;
+                long blue = 0;
+                for (int sy = fromY; sy < toY; sy++) {
+                    for (int sx = fromX; sx < toX; sx++) {
+                        int argb = source[sy * sourceWidth + sx];
+                        int a = argb >>> 24;
+                        alpha += a;
+                        red += a * ((argb >> 16) & 0xff);
+                        green += a * ((argb >> 8) & 0xff);
+                        blue += a * (argb & 0xff);
+                    }
+                }
+                int count = (toY - fromY) * (toX - fromX);
+                target[y * width + x] = alpha == 0 ? 0 : (int) ((alpha + count / 2) / count) << 24
+                        | (int) ((red + alpha / 2) / alpha) << 16
+                        | (int) ((green + alpha / 2) / alpha) << 8
+                        | (int) ((blue + alpha / 2) / alpha);
+            }
+        }
+        BufferedImage resampled = new BufferedImage(width, height,
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        resampled.setRGB(0, 0, width, height, target, 0, width);
+        return resampled;
+    }
+
+    /**
+     * @return the successive halves of the given image, down to a single pixel, not including the image itself
+     */
+    public static List<BufferedImage> mipChain(BufferedImage image) {
+        List<BufferedImage> levels = new ArrayList<>();
+        BufferedImage level = image;
+        while (level.getWidth() > 1 || level.getHeight() > 1) {
+            level = resample(level, Math.max(1, level.getWidth() / 2), Math.max(1, level.getHeight() / 2));
+            levels.add(level);
+        }
+        return levels;
+    }
+}
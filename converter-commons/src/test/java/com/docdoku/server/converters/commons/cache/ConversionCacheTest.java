@@ -0,0 +1,203 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.cache;
+
+import com.docdoku.server.converters.commons.ConversionTask;
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TestFiles;
+import com.docdoku.server.converters.commons.output.ConversionOutput;
+import com.docdoku.server.converters.commons.output.OutputStage;
+import com.docdoku.server.converters.commons.output.OutputStages;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConversionCacheTest {
+
+    private Path workDir;
+    private Path cadFile;
+    private AtomicInteger conversions;
+    private ConversionTask task;
+
+    @Before
+    public void setup() throws Exception {
+        workDir = Files.createTempDirectory("conversion-cache-test");
+        cadFile = Files.write(workDir.resolve("part.stl"), "solid part".getBytes(StandardCharsets.UTF_8));
+        conversions = new AtomicInteger();
+        task = (cadFileUri, tmpDirUri) -> {
+            conversions.incrementAndGet();
+            Path tmpDir = Paths.get(tmpDirUri);
+            try {
+                Path obj = Files.write(tmpDir.resolve("result.obj"), "mtllib result.mtl\nv 0 0 0\n".getBytes(StandardCharsets.UTF_8));
+                Path mtl = Files.write(tmpDir.resolve("result.mtl"), "newmtl a\n".getBytes(StandardCharsets.UTF_8));
+                return new ConversionResult(obj, new ArrayList<>(Collections.singletonList(mtl)));
+            } catch (IOException e) {
+                throw new CADConverter.ConversionException(e);
+            }
+        };
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testHitReturnsCopyOfCachedResult() throws Exception {
+        ConversionCache cache = newCache(1024 * 1024);
+
+        Path firstDir = Files.createDirectory(workDir.resolve("first"));
+        ConversionResult first = cache.convert(cadFile.toUri(), firstDir.toUri(), "settings", task);
+        Path secondDir = Files.createDirectory(workDir.resolve("second"));
+        ConversionResult second = cache.convert(cadFile.toUri(), secondDir.toUri(), "settings", task);
+
+        Assert.assertEquals(1, conversions.get());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(secondDir.resolve("result.obj"), second.getConvertedFile());
+        Assert.assertArrayEquals(Files.readAllBytes(first.getConvertedFile()), Files.readAllBytes(second.getConvertedFile()));
+        Assert.assertEquals(1, second.getMaterials().size());
+        Assert.assertEquals(secondDir.resolve("result.mtl"), second.getMaterials().get(0));
+    }
+
+    @Test
+    public void testSettingsArePartOfTheKey() throws Exception {
+        ConversionCache cache = newCache(1024 * 1024);
+        Assert.assertNotEquals(cache.computeKey(cadFile, "coarse"), cache.computeKey(cadFile, "fine"));
+
+        cache.convert(cadFile.toUri(), Files.createDirectory(workDir.resolve("a")).toUri(), "coarse", task);
+        cache.convert(cadFile.toUri(), Files.createDirectory(workDir.resolve("b")).toUri(), "fine", task);
+        Assert.assertEquals(2, conversions.get());
+    }
+
+    @Test
+    public void testRestoreInOccupiedDirectory() throws Exception {
+        ConversionCache cache = newCache(1024 * 1024);
+        Path tmpDir = Files.createDirectory(workDir.resolve("tmp"));
+        cache.convert(cadFile.toUri(), tmpDir.toUri(), "", task);
+        ConversionResult second = cache.convert(cadFile.toUri(), tmpDir.toUri(), "", task);
+
+        Assert.assertEquals(1, conversions.get());
+        Assert.assertNotEquals(tmpDir, second.getConvertedFile().getParent());
+        Assert.assertEquals("result.obj", second.getConvertedFile().getFileName().toString());
+    }
+
+    @Test
+    public void testSameNamedFilesAreKeptApart() throws Exception {
+        ConversionTask texturedTask = (cadFileUri, tmpDirUri) -> {
+            Path tmpDir = Paths.get(tmpDirUri);
+            try {
+                Path obj = TestFiles.write(tmpDir, "result.obj", "v 0 0 0\n");
+                Path front = TestFiles.write(Files.createDirectory(tmpDir.resolve("front")), "texture.png", "front");
+                Path back = TestFiles.write(Files.createDirectory(tmpDir.resolve("back")), "texture.png", "back");
+                return new ConversionResult(obj, new ArrayList<>(Arrays.asList(front, back)));
+            } catch (IOException e) {
+                throw new CADConverter.ConversionException(e);
+            }
+        };
+        ConversionCache cache = newCache(1024 * 1024);
+        cache.convert(cadFile.toUri(), Files.createDirectory(workDir.resolve("a")).toUri(), "", texturedTask);
+        ConversionResult second = cache.lookup(cache.computeKey(cadFile, ""),
+                Files.createDirectory(workDir.resolve("b")));
+
+        Assert.assertNotNull(second);
+        Assert.assertEquals(2, second.getMaterials().size());
+        Assert.assertEquals("texture.png", second.getMaterials().get(1).getFileName().toString());
+        Assert.assertEquals("front", TestFiles.read(second.getMaterials().get(0)));
+        Assert.assertEquals("back", TestFiles.read(second.getMaterials().get(1)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        // Room for a single entry
+        ConversionCache cache = newCache(40);
+        Path otherFile = Files.write(workDir.resolve("other.stl"), "solid other".getBytes(StandardCharsets.UTF_8));
+
+        cache.convert(cadFile.toUri(), Files.createDirectory(workDir.resolve("a")).toUri(), "", task);
+        cache.convert(otherFile.toUri(), Files.createDirectory(workDir.resolve("b")).toUri(), "", task);
+        Assert.assertEquals(1, cache.getEntryCount());
+
+        cache.convert(cadFile.toUri(), Files.createDirectory(workDir.resolve("c")).toUri(), "", task);
+        Assert.assertEquals(3, conversions.get());
+    }
+
+    @Test
+    public void testEntriesSurviveRestart() throws Exception {
+        newCache(1024 * 1024).convert(cadFile.toUri(), Files.createDirectory(workDir.resolve("a")).toUri(), "", task);
+
+        ConversionCache reloaded = newCache(1024 * 1024);
+        Assert.assertEquals(1, reloaded.getEntryCount());
+        reloaded.convert(cadFile.toUri(), Files.createDirectory(workDir.resolve("b")).toUri(), "", task);
+        Assert.assertEquals(1, conversions.get());
+    }
+
+    @Test
+    public void testArtifactsAreCached() throws Exception {
+        OutputStage stage = new OutputStage() {
+            @Override
+            public String getSettings() {
+                return "copy";
+            }
+
+            @Override
+            public ConversionResult apply(ConversionResult result, Path tmpDir) throws IOException {
+                Path copy = Files.copy(result.getConvertedFile(), tmpDir.resolve("result.copy"));
+                return ConversionOutput.withArtifact(result, "copy", copy);
+            }
+        };
+        ConversionCache cache = new ConversionCache("test", "1", workDir.resolve("cache"), 1024 * 1024, true,
+                OutputStages.of(stage));
+        cache.load();
+        Assert.assertNotEquals(newCache(1024 * 1024).computeKey(cadFile, ""), cache.computeKey(cadFile, ""));
+
+        cache.convert(cadFile.toUri(), Files.createDirectory(workDir.resolve("a")).toUri(), "", task);
+        Path secondDir = Files.createDirectory(workDir.resolve("b"));
+        ConversionResult second = cache.convert(cadFile.toUri(), secondDir.toUri(), "", task);
+
+        Assert.assertEquals(1, conversions.get());
+        Assert.assertTrue(second instanceof ConversionOutput);
+        Path copy = ((ConversionOutput) second).getArtifact("copy");
+        Assert.assertEquals(secondDir.resolve("result.copy"), copy);
+        Assert.assertArrayEquals(Files.readAllBytes(second.getConvertedFile()), Files.readAllBytes(copy));
+
+        second.close();
+        Assert.assertFalse(Files.exists(copy));
+    }
+
+    private ConversionCache newCache(long maxSize) throws Exception {
+        ConversionCache cache = new ConversionCache("test", "1", workDir.resolve("cache"), maxSize, true);
+        cache.load();
+        return cache;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.cache;
+
+import com.docdoku.server.converters.commons.ConversionTask;
+import com.docdoku.server.converters.commons.ConverterFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InFlightConversionsTest {
+
+    private Path workDir;
+    private ExecutorService executor;
+
+    @Before
+    public void setup() throws Exception {
+        workDir = Files.createTempDirectory("in-flight-test");
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        executor.shutdownNow();
+        ConverterFiles.deleteRecursively(workDir);
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentCallersShareOneConversion() throws Exception {
+        InFlightConversions inFlight = new InFlightConversions();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger conversions = new AtomicInteger();
+
+        ConversionTask task = (cadFileUri, tmpDirUri) -> {
+            conversions.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+                return new ConversionResult(Files.write(Paths.get(tmpDirUri).resolve("part.obj"),
+                        "v 1 2 3\n".getBytes(StandardCharsets.UTF_8)));
+            } catch (InterruptedException | IOException e) {
+                throw new CADConverter.ConversionException(e);
+            }
+        };
+
+        Path cadFile = workDir.resolve("part.stp");
+        Path leaderDir = Files.createDirectory(workDir.resolve("leader"));
+        Path waiterDir = Files.createDirectory(workDir.resolve("waiter"));
+
+        Future<ConversionResult> leader = executor.submit(() -> inFlight.convert("key", cadFile.toUri(), leaderDir.toUri(), task));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<ConversionResult> waiter = executor.submit(() -> inFlight.convert("key", cadFile.toUri(), waiterDir.toUri(), task));
+        // Give the second caller time to join the running conversion
+        Thread.sleep(200);
+        Assert.assertFalse(waiter.isDone());
+        release.countDown();
+
+        ConversionResult leaderResult = leader.get();
+        ConversionResult waiterResult = waiter.get();
+        Assert.assertEquals(1, conversions.get());
+        Assert.assertEquals(1, inFlight.getSharedConversions());
+        Assert.assertEquals(0, inFlight.getInFlightCount());
+        Assert.assertEquals(waiterDir.resolve("part.obj"), waiterResult.getConvertedFile());
+        Assert.assertArrayEquals(Files.readAllBytes(leaderResult.getConvertedFile()),
+                Files.readAllBytes(waiterResult.getConvertedFile()));
+    }
+
+    @Test(timeout = 10000)
+    public void testFailureIsSharedAndRegistryCleared() throws Exception {
+        InFlightConversions inFlight = new InFlightConversions();
+        ConversionTask failing = (cadFileUri, tmpDirUri) -> {
+            throw new CADConverter.ConversionException("broken file");
+        };
+        try {
+            inFlight.convert("key", workDir.toUri(), workDir.toUri(), failing);
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertEquals("broken file", e.getMessage());
+        }
+        Assert.assertEquals(0, inFlight.getInFlightCount());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.cache;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TessellationProfile;
+import com.docdoku.server.converters.commons.scratch.ScratchSpace;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+public class PreviewThenRefineTest {
+
+    private Path workDir;
+    private Path cadFile;
+    private ConversionCache cache;
+    private Properties conf;
+
+    private final PreviewThenRefine.ProfiledConversionTask task = (cadFileUri, tmpDirUri, profile) -> {
+        try {
+            Path obj = Paths.get(tmpDirUri).resolve("result.obj");
+            return new ConversionResult(Files.write(obj, profile.toSettings().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new CADConverter.ConversionException(e);
+        }
+    };
+
+    @Before
+    public void setup() throws Exception {
+        workDir = Files.createTempDirectory("preview-then-refine-test");
+        cadFile = Files.write(workDir.resolve("part.step"), "ISO-10303-21;".getBytes(StandardCharsets.UTF_8));
+        cache = new ConversionCache("test", "1", workDir.resolve("cache"), 1024 * 1024, true);
+        conf = new Properties();
+        conf.setProperty(PreviewThenRefine.PREVIEW_THEN_REFINE, "true");
+        conf.setProperty(TessellationProfile.TESSELLATION_PROFILE, "fine");
+        conf.setProperty("tessellation.preview.linear_deflection", "1");
+        conf.setProperty("tessellation.fine.linear_deflection", "0.01");
+        conf.setProperty(ScratchSpace.SCRATCH_DIR, workDir.resolve("scratch").toString());
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(workDir);
+    }
+
+    @Test(timeout = 20000)
+    public void testPreviewIsReplacedOnceRefined() throws Exception {
+        PreviewThenRefine conversion = new PreviewThenRefine(cache, conf);
+        ConversionResult preview = conversion.convert(cadFile.toUri(),
+                Files.createDirectory(workDir.resolve("a")).toUri(), "tool", task);
+        Assert.assertTrue(read(preview).startsWith("preview 1.0 "));
+
+        while (conversion.getPendingRefinements() > 0) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, conversion.getCompletedRefinements());
+
+        ConversionResult refined = conversion.convert(cadFile.toUri(),
+                Files.createDirectory(workDir.resolve("b")).toUri(), "tool", task);
+        Assert.assertTrue(read(refined).startsWith("fine 0.01 "));
+    }
+
+    @Test
+    public void testSinglePhaseWhenDisabled() throws Exception {
+        conf.setProperty(PreviewThenRefine.PREVIEW_THEN_REFINE, "false");
+        conf.setProperty(TessellationProfile.TESSELLATION_PROFILE + ".step", "preview");
+        PreviewThenRefine conversion = new PreviewThenRefine(cache, conf);
+        Assert.assertFalse(conversion.isEnabled());
+
+        ConversionResult result = conversion.convert(cadFile.toUri(),
+                Files.createDirectory(workDir.resolve("a")).toUri(), "tool", task);
+        Assert.assertTrue(read(result).startsWith("preview "));
+        Assert.assertEquals(0, conversion.getPendingRefinements());
+    }
+
+    private static String read(ConversionResult result) throws IOException {
+        return new String(Files.readAllBytes(result.getConvertedFile()), StandardCharsets.UTF_8);
+    }
+}
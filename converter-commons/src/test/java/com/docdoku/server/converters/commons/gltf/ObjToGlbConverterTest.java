@@ -0,0 +1,139 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.gltf;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TestFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+public class ObjToGlbConverterTest {
+
+    private static final String OBJ = "mtllib model.mtl\n"
+            + "v 0 0 0\nv 2 0 0\nv 2 2 0\nv 0 2 0\nv 0 0 4\n"
+            + "vt 0 0\nvt 1 0\nvt 1 1\nvt 0 1\n"
+            + "vn 0 0 1\n"
+            + "usemtl red\n"
+            + "f 1/1/1 2/2/1 3/3/1 4/4/1\n"
+            + "usemtl blue\n"
+            + "f -5 -4 -1\n";
+    private static final String MTL = "newmtl red\nKd 1 0 0\nd 0.5\nmap_Kd textures/red paint.png\n"
+            + "newmtl blue\nKd 0 0 1\n";
+
+    private Path dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("glb-test");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testGlbStructure() throws Exception {
+        Path glb = convert(ObjToGlbConverter.DEFAULT_MAX_CHUNK_VERTICES);
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(glb)).order(ByteOrder.LITTLE_ENDIAN);
+
+        Assert.assertEquals(0x46546C67, bytes.getInt());
+        Assert.assertEquals(2, bytes.getInt());
+        Assert.assertEquals(bytes.capacity(), bytes.getInt());
+        int jsonLength = bytes.getInt();
+        Assert.assertEquals(0, jsonLength % 4);
+        Assert.assertEquals(0x4E4F534A, bytes.getInt());
+        byte[] jsonBytes = new byte[jsonLength];
+        bytes.get(jsonBytes);
+        String json = new String(jsonBytes, StandardCharsets.UTF_8);
+        int binLength = bytes.getInt();
+        Assert.assertEquals(0x004E4942, bytes.getInt());
+        Assert.assertEquals(bytes.remaining(), binLength);
+        Assert.assertTrue(json.contains("\"byteLength\":" + binLength + "}]"));
+
+        Assert.assertTrue(json.contains("\"extensionsRequired\":[\"KHR_mesh_quantization\"]"));
+        Assert.assertEquals(2, count(json, "\"mode\":4"));
+        // The quad shares its corners, the second triangle reuses none of them
+        Assert.assertTrue(json.contains("\"componentType\":5123,\"count\":6,\"type\":\"SCALAR\""));
+        Assert.assertTrue(json.contains("\"componentType\":5123,\"count\":3,\"type\":\"SCALAR\""));
+        // Positions, normal and quantized texture coordinates, interleaved
+        Assert.assertEquals(2, count(json, "\"byteStride\":16"));
+        Assert.assertTrue(json.contains("\"alphaMode\":\"BLEND\""));
+        Assert.assertTrue(json.contains("{\"uri\":\"textures/red%20paint.png\"}"));
+        // Dequantization around the center of the bounds
+        Assert.assertTrue(json.contains("\"translation\":[1.0,1.0,2.0],\"scale\":[2.0,2.0,2.0]"));
+    }
+
+    @Test
+    public void testPrimitivesAreSplitAtTheVertexLimit() throws Exception {
+        Path glb = convert(3);
+        String json = json(glb);
+        // The quad is split in two triangles, then comes the blue one
+        Assert.assertEquals(3, count(json, "\"mode\":4"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidIndices() throws Exception {
+        Path obj = Files.write(dir.resolve("bad.obj"), "v 0 0 0\nf 1 2 3\n".getBytes(StandardCharsets.UTF_8));
+        new ObjToGlbConverter().convert(obj, Collections.emptyList(), dir.resolve("bad.glb"));
+    }
+
+    private Path convert(int maxChunkVertices) throws IOException {
+        Path obj = TestFiles.write(dir, "model.obj", OBJ);
+        Path mtl = TestFiles.write(dir, "model.mtl", MTL);
+        Path glb = dir.resolve("model.glb");
+        Assert.assertEquals(3, new ObjToGlbConverter(maxChunkVertices)
+                .convert(obj, Collections.singletonList(mtl), glb));
+        try (Stream<Path> files = Files.list(dir)) {
+            // Spill files are gone
+            Assert.assertEquals(3, files.count());
+        }
+        return glb;
+    }
+
+    private static String json(Path glb) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(glb)).order(ByteOrder.LITTLE_ENDIAN);
+        int jsonLength = bytes.getInt(12);
+        return new String(bytes.array(), 20, jsonLength, StandardCharsets.UTF_8);
+    }
+
+    private static int count(String text, String pattern) {
+        Matcher matcher = Pattern.compile(Pattern.quote(pattern)).matcher(text);
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.incremental;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TestFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class IncrementalAssemblyTest {
+
+    private Path dir;
+    private BodyCache cache;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("incremental-assembly-test");
+        cache = new BodyCache(dir.resolve("bodies"), 1024 * 1024);
+        cache.load();
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testRenumberedSubgraphsHashTheSame() throws Exception {
+        Path first = TestFiles.write(dir, "first.stp", "ISO-10303-21;\nHEADER;FILE_NAME('a.stp');ENDSEC;\nDATA;\n"
+                + "#1=CARTESIAN_POINT('',(0.,0.,0.));\n#2=VERTEX_POINT('',#1);\n"
+                + "#3=CARTESIAN_POINT('',(1.,0.,0.));\n#4=VERTEX_POINT('',#3);\n"
+                + "#5=EDGE_CURVE('',#2,#4,$,.T.);\n#6=APPLICATION_CONTEXT('saved monday');\n"
+                + "#7=STYLED_ITEM('',(#8),#5);\n#8=COLOUR_RGB('red',1.,0.,0.);\nENDSEC;\nEND-ISO-10303-21;\n");
+        Path second = TestFiles.write(dir, "second.stp", "ISO-10303-21;\nHEADER;FILE_NAME('b.stp');ENDSEC;\nDATA;\n"
+                + "#10=APPLICATION_CONTEXT('saved tuesday');\n#11 = COLOUR_RGB('red', 1., 0., 0.);\n"
+                + "#12=STYLED_ITEM('',(#11),#15);\n"
+                + "#13=CARTESIAN_POINT('',(1.,0.,0.));\n#14=VERTEX_POINT('',#13);\n"
+                + "/* moved */ #15=EDGE_CURVE('',#17,#14,$,.T.);\n"
+                + "#16=CARTESIAN_POINT('',(0.,0.,0.));\n#17=VERTEX_POINT('',#16);\nENDSEC;\nEND-ISO-10303-21;\n");
+
+        Part21Graph firstGraph = Part21Graph.read(first);
+        Part21Graph secondGraph = Part21Graph.read(second);
+        Assert.assertEquals(8, firstGraph.size());
+        Assert.assertEquals("EDGE_CURVE", firstGraph.get(5).getEntity());
+        Assert.assertEquals("", firstGraph.get(5).getFirstString());
+        Assert.assertArrayEquals(new long[]{2, 4}, firstGraph.get(5).getReferences());
+
+        HashSet<String> ignored = new HashSet<>(Collections.singletonList("APPLICATION_CONTEXT"));
+        HashSet<String> attached = new HashSet<>(Collections.singletonList("STYLED_ITEM"));
+        String firstHash = new SubgraphHasher(firstGraph, ignored, attached).hash(5);
+        Assert.assertEquals(firstHash, new SubgraphHasher(secondGraph, ignored, attached).hash(15));
+        // Without its style, the edge is another body
+        Assert.assertNotEquals(firstHash, new SubgraphHasher(firstGraph, ignored, Collections.emptySet()).hash(5));
+    }
+
+    @Test
+    public void testChunksAreStitched() throws Exception {
+        IncrementalAssembly assembly = new IncrementalAssembly(cache, "standard");
+        String wall = assembly.chunkKey("wall");
+        String slab = assembly.chunkKey("slab");
+        Assert.assertNotEquals(wall, new IncrementalAssembly(cache, "fine").chunkKey("wall"));
+        List<String> keys = Arrays.asList(wall, slab);
+        Assert.assertEquals(keys, assembly.missing(keys));
+
+        // Tessellated in two runs, both naming their own material "style-1"
+        Path firstMtl = TestFiles.write(dir, "first.mtl", "newmtl style-1\nKd 1 0 0\n");
+        assembly.store(wall, TestFiles.write(dir, "wall.obj", "mtllib first.mtl\ng wall\nv 0 0 0\nv 1 0 0\nv 0 1 0\n"
+                + "usemtl style-1\nf 1 2 3\n"), firstMtl);
+        Path secondMtl = TestFiles.write(dir, "second.mtl", "newmtl style-1\nKd 0 0 1\n");
+        assembly.store(slab, TestFiles.write(dir, "slab.obj",
+                "g slab\nv 0 0 1\nv 1 0 1\nv 0 1 1\nusemtl style-1\nf 1 2 3\n"), secondMtl);
+        Assert.assertTrue(assembly.missing(keys).isEmpty());
+        Assert.assertEquals(2, cache.getEntryCount());
+
+        Path obj = dir.resolve("model.obj");
+        Path mtl = dir.resolve("model.mtl");
+        ConversionResult result = assembly.stitch(keys, obj, mtl);
+        Assert.assertEquals(obj, result.getConvertedFile());
+        Assert.assertEquals(Collections.singletonList(mtl), result.getMaterials());
+
+        String stitched = TestFiles.read(obj);
+        String materials = TestFiles.read(mtl);
+        Assert.assertTrue(stitched.startsWith("mtllib model.mtl\ng wall\n"));
+        Assert.assertTrue(stitched.contains("g slab\nv 0 0 1\nv 1 0 1\nv 0 1 1\n"));
+        Assert.assertTrue(stitched.endsWith("f 4 5 6\n"));
+        Assert.assertFalse(stitched.contains("style-1"));
+        Assert.assertTrue(materials.contains("Kd 1 0 0\n"));
+        Assert.assertTrue(materials.contains("Kd 0 0 1\n"));
+
+        Assert.assertNull(assembly.stitch(Arrays.asList(wall, assembly.chunkKey("roof")), obj, mtl));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedChunksAreEvicted() throws Exception {
+        BodyCache small = new BodyCache(dir.resolve("small"), 70);
+        small.load();
+        Path chunk = TestFiles.write(dir, "chunk.obj", "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n");
+        small.put("a", chunk, null);
+        small.put("b", chunk, null);
+        Assert.assertNotNull(small.getObj("a"));
+        small.put("c", chunk, null);
+
+        Assert.assertTrue(small.contains("a"));
+        Assert.assertFalse(small.contains("b"));
+        Assert.assertTrue(small.contains("c"));
+        Assert.assertFalse(Files.exists(small.getRoot().resolve("b.obj")));
+
+        BodyCache reloaded = new BodyCache(dir.resolve("small"), 70);
+        reloaded.load();
+        Assert.assertEquals(2, reloaded.getEntryCount());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class MeshIOTest {
+
+    private Path file;
+
+    @Before
+    public void setup() throws IOException {
+        file = Files.createTempFile("mesh-io-test", ".txt");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testNumbersAcrossWindows() throws Exception {
+        Files.write(file, "  -1.5e2 0.125\t+3\n7 1E-3 .5 nan\n".getBytes(StandardCharsets.US_ASCII));
+        // A tiny window forces numbers to straddle mappings
+        try (MappedFileReader reader = new MappedFileReader(file, 3)) {
+            Assert.assertEquals(-150.0, reader.readDouble(), 0);
+            Assert.assertEquals(0.125f, reader.readFloat(), 0);
+            Assert.assertEquals(3, reader.readInt());
+            Assert.assertEquals(7, reader.readLong());
+            Assert.assertEquals(1e-3, reader.readDouble(), 1e-15);
+            Assert.assertEquals(0.5, reader.readDouble(), 0);
+            Assert.assertTrue(Double.isNaN(reader.readDouble()));
+            Assert.assertEquals(-1, reader.skipWhitespace());
+        }
+    }
+
+    @Test
+    public void testKeywordsAndLines() throws Exception {
+        Files.write(file, "SOLID part one\r\nfacet\n".getBytes(StandardCharsets.US_ASCII));
+        try (MappedFileReader reader = new MappedFileReader(file, 4)) {
+            Assert.assertFalse(reader.matchKeyword("facet"));
+            Assert.assertTrue(reader.matchKeyword("solid"));
+            Assert.assertEquals(" part one", reader.readLine());
+            Assert.assertEquals("facet", reader.readToken());
+            Assert.assertNull(reader.readToken());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSyntaxError() throws Exception {
+        Files.write(file, "1.0 x".getBytes(StandardCharsets.US_ASCII));
+        try (MappedFileReader reader = new MappedFileReader(file)) {
+            reader.readFloat();
+            reader.readFloat();
+        }
+    }
+
+    @Test
+    public void testObjFormatting() throws Exception {
+        try (ObjWriter writer = new ObjWriter(file)) {
+            writer.statement("mtllib", "part.mtl");
+            writer.vertex(1f, -0.5f, 0f);
+            writer.vertex(123.456f, -0.0f, 1e-5f);
+            writer.normal(0f, 0f, 1f);
+            writer.textureCoordinate(0.25f, 1f);
+            writer.face(0, 1, 2);
+            writer.face(new int[]{0, 1, 2}, new int[]{0, -1, 0}, new int[]{0, 0, -1}, 0, 3);
+        }
+        Assert.assertEquals("mtllib part.mtl\n"
+                        + "v 1 -0.5 0\n"
+                        + "v 123.456 0 1.0E-5\n"
+                        + "vn 0 0 1\n"
+                        + "vt 0.25 1\n"
+                        + "f 1 2 3\n"
+                        + "f 1/1/1 2//1 3/1\n",
+                new String(Files.readAllBytes(file), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testVertexIndexWeldsExactPositions() {
+        VertexIndex index = new VertexIndex(1);
+        Assert.assertEquals(0, index.add(1, 2, 3));
+        Assert.assertEquals(1, index.add(1, 2, 4));
+        Assert.assertEquals(0, index.add(1, 2, 3));
+        Assert.assertEquals(2, index.add(0, -0f, 0));
+        Assert.assertEquals(2, index.find(-0f, 0, 0));
+        Assert.assertEquals(-1, index.find(5, 5, 5));
+        for (int i = 0; i < 1000; i++) {
+            index.add(i, i, i);
+        }
+        Assert.assertEquals(1002, index.size());
+        Assert.assertEquals(1, index.find(1, 2, 4));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MeshSimplifierTest {
+
+    @Test
+    public void testSphereKeepsItsShape() {
+        TriangleMesh sphere = sphere(32, 64);
+        int target = sphere.getTriangleCount() / 10;
+        TriangleMesh lod = MeshSimplifier.simplify(sphere, target);
+
+        Assert.assertTrue(lod.getTriangleCount() <= target);
+        Assert.assertTrue(lod.getTriangleCount() > target - 10);
+        float[] positions = lod.getPositions();
+        for (int vertex = 0; vertex < lod.getVertexCount(); vertex++) {
+            double x = positions[vertex * 3];
+            double y = positions[vertex * 3 + 1];
+            double z = positions[vertex * 3 + 2];
+            Assert.assertEquals(1, Math.sqrt(x * x + y * y + z * z), 0.1);
+        }
+        int[] triangles = lod.getTriangles();
+        for (int i = 0; i < lod.getTriangleCount() * 3; i++) {
+            Assert.assertTrue(triangles[i] >= 0 && triangles[i] < lod.getVertexCount());
+        }
+    }
+
+    @Test
+    public void testOpenSurfaceKeepsItsOutlineAndGroups() {
+        int size = 20;
+        TriangleMesh grid = new TriangleMesh();
+        for (int j = 0; j <= size; j++) {
+            for (int i = 0; i <= size; i++) {
+                grid.addVertex(i, j, 0);
+            }
+        }
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                int corner = j * (size + 1) + i;
+                int group = i < size / 2 ? 0 : 1;
+                grid.addTriangle(corner, corner + 1, corner + size + 2, group);
+                grid.addTriangle(corner, corner + size + 2, corner + size + 1, group);
+            }
+        }
+
+        TriangleMesh lod = MeshSimplifier.simplify(grid, 40);
+        Assert.assertTrue(lod.getTriangleCount() <= 40);
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE};
+        float[] positions = lod.getPositions();
+        for (int vertex = 0; vertex < lod.getVertexCount(); vertex++) {
+            for (int axis = 0; axis < 2; axis++) {
+                min[axis] = Math.min(min[axis], positions[vertex * 3 + axis]);
+                max[axis] = Math.max(max[axis], positions[vertex * 3 + axis]);
+            }
+            Assert.assertEquals(0, positions[vertex * 3 + 2], 0);
+        }
+        Assert.assertArrayEquals(new float[]{0, 0}, min, 1e-4f);
+        Assert.assertArrayEquals(new float[]{size, size}, max, 1e-4f);
+
+        boolean[] groups = new boolean[2];
+        for (int triangle = 0; triangle < lod.getTriangleCount(); triangle++) {
+            groups[lod.getGroups()[triangle]] = true;
+        }
+        Assert.assertTrue(groups[0] && groups[1]);
+        // The source mesh is left unchanged
+        Assert.assertEquals(size * size * 2, grid.getTriangleCount());
+        Assert.assertEquals(size + 2, grid.getTriangles()[2]);
+    }
+
+    static TriangleMesh sphere(int rings, int segments) {
+        TriangleMesh mesh = new TriangleMesh();
+        int top = mesh.addVertex(0, 1, 0);
+        for (int ring = 1; ring < rings; ring++) {
+            double polar = Math.PI * ring / rings;
+            for (int segment = 0; segment < segments; segment++) {
+                double azimuth = 2 * Math.PI * segment / segments;
+                mesh.addVertex((float) (Math.sin(polar) * Math.cos(azimuth)), (float) Math.cos(polar),
+                        (float) (Math.sin(polar) * Math.sin(azimuth)));
+            }
+        }
+        int bottom = mesh.addVertex(0, -1, 0);
+        for (int segment = 0; segment < segments; segment++) {
+            int next = (segment + 1) % segments;
+            mesh.addTriangle(top, 1 + next, 1 + segment);
+            int last = 1 + (rings - 2) * segments;
+            mesh.addTriangle(bottom, last + segment, last + next);
+            for (int ring = 0; ring < rings - 2; ring++) {
+                int a = 1 + ring * segments + segment;
+                int b = 1 + ring * segments + next;
+                mesh.addTriangle(a, b, b + segments);
+                mesh.addTriangle(a, b + segments, a + segments);
+            }
+        }
+        return mesh;
+    }
+}
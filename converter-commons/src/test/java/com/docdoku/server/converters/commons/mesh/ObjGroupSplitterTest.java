@@ -0,0 +1,65 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TestFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+public class ObjGroupSplitterTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("obj-group-splitter-test");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testGroupsAreRenumbered() throws Exception {
+        Path obj = TestFiles.write(dir, "model.obj", "mtllib model.mtl\ng wall\n"
+                + "v 0 0 0\nv 1 0 0\nv 0 1 0\nvn 0 0 1\nusemtl red\nf 1//1 2//1 3//1\n"
+                + "g slab\nv 0 0 1\nv 1 0 1\nvt 0 0\nv 0 1 1\nvn 0 0 1\nf 4/1/2 5/1/2 6/1/2\n"
+                + "f -3 -2 -1\ng wall\nf 3//1 2//1 1//1\n");
+
+        Map<String, Path> chunks = new ObjGroupSplitter().split(obj, group -> dir.resolve(group + ".obj"));
+
+        Assert.assertEquals(Arrays.asList("wall", "slab"), new ArrayList<>(chunks.keySet()));
+        Assert.assertEquals("g wall\nv 0 0 0\nv 1 0 0\nv 0 1 0\nvn 0 0 1\nusemtl red\nf 1//1 2//1 3//1\n"
+                + "f 3//1 2//1 1//1\n", TestFiles.read(chunks.get("wall")));
+        Assert.assertEquals("g slab\nv 0 0 1\nv 1 0 1\nv 0 1 1\nvt 0 0\nvn 0 0 1\nf 1/1/1 2/1/1 3/1/1\nf 1 2 3\n",
+                TestFiles.read(chunks.get("slab")));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ObjInstancerTest {
+
+    private static final double[][] TETRAHEDRON = {{0, 0, 0}, {2, 0, 0}, {0, 1, 0}, {0, 0, 0.5}};
+
+    private Path objFile;
+    private Path strippedFile;
+    private Path tableFile;
+
+    @Before
+    public void setup() throws IOException {
+        objFile = Files.createTempFile("instancer-test", ".obj");
+        strippedFile = Files.createTempFile("instancer-test", ".obj");
+        tableFile = Files.createTempFile("instancer-test", ".json");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(objFile);
+        Files.deleteIfExists(strippedFile);
+        Files.deleteIfExists(tableFile);
+    }
+
+    @Test
+    public void testMovedCopiesAreInstances() throws Exception {
+        StringBuilder obj = new StringBuilder("mtllib part.mtl\nusemtl steel\n");
+        tetrahedron(obj, "bolt", 0, 0, 0, 0, 1);
+        tetrahedron(obj, "bolt.001", 10, -3, 7, 0, 1);
+        tetrahedron(obj, "bolt.002", 5, 5, 5, Math.PI / 2, 1);
+        write(obj.toString());
+
+        ObjInstancer.Report report = ObjInstancer.instance(objFile, null, tableFile, 1e-5);
+        Assert.assertEquals(3, report.getObjects());
+        Assert.assertEquals(1, report.getPrototypes());
+        Assert.assertEquals(2, report.getInstances());
+        Assert.assertEquals(8, report.getInstanceTriangles());
+
+        String table = new String(Files.readAllBytes(tableFile), StandardCharsets.UTF_8);
+        Assert.assertTrue(table.contains("\"name\":\"bolt\""));
+        Assert.assertTrue(table.contains("\"name\":\"bolt.001\""));
+        Assert.assertTrue(table.contains("\"name\":\"bolt.002\""));
+
+        Matcher matrix = Pattern.compile("\"matrix\":\\[([^\\]]*)\\]").matcher(table);
+        Assert.assertTrue(matrix.find());
+        assertMatrix(new double[]{1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 10, -3, 7, 1}, matrix.group(1));
+        Assert.assertTrue(matrix.find());
+        assertMatrix(new double[]{0, 1, 0, 0, -1, 0, 0, 0, 0, 0, 1, 0, 5, 5, 5, 1}, matrix.group(1));
+    }
+
+    @Test
+    public void testDifferentGeometryIsNotInstanced() throws Exception {
+        StringBuilder obj = new StringBuilder();
+        tetrahedron(obj, "bolt", 0, 0, 0, 0, 1);
+        // Scaled and mirrored copies are other parts
+        tetrahedron(obj, "bigger", 10, 0, 0, 0, 1.01);
+        tetrahedron(obj, "mirrored", 20, 0, 0, 0, -1);
+        write(obj.toString());
+
+        Assert.assertNull(ObjInstancer.instance(objFile, strippedFile, tableFile, 1e-5));
+    }
+
+    @Test
+    public void testCopiesAreRemovedWhenReplaced() throws Exception {
+        StringBuilder obj = new StringBuilder("usemtl red\n");
+        tetrahedron(obj, "bolt", 0, 0, 0, 0, 1);
+        obj.append("usemtl red\n");
+        tetrahedron(obj, "bolt.001", 3, 0, 0, 0, 1);
+        obj.append("usemtl red\n");
+        tetrahedron(obj, "nut", 0, 0, 0, 0, 0.5);
+        write(obj.toString());
+
+        ObjInstancer.Report report = ObjInstancer.instance(objFile, strippedFile, tableFile, 1e-5);
+        Assert.assertEquals(1, report.getInstances());
+
+        List<String> lines = Files.readAllLines(strippedFile);
+        Assert.assertTrue(lines.contains("o bolt"));
+        Assert.assertFalse(lines.contains("o bolt.001"));
+        Assert.assertTrue(lines.contains("o nut"));
+        // The statements of the copy are kept, they may apply to the next objects
+        Assert.assertEquals(3, lines.stream().filter(line -> line.equals("usemtl red")).count());
+        Assert.assertTrue(lines.lastIndexOf("usemtl red") < lines.indexOf("o nut"));
+        Assert.assertEquals(8, lines.stream().filter(line -> line.startsWith("f ")).count());
+        Assert.assertEquals(8, lines.stream().filter(line -> line.startsWith("v ")).count());
+    }
+
+    private static void tetrahedron(StringBuilder obj, String name, double x, double y, double z, double angle,
+                                    double scale) {
+        obj.append("o ").append(name).append('\n');
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        for (double[] vertex : TETRAHEDRON) {
+            double vx = vertex[0] * scale;
+            double vy = vertex[1] * Math.abs(scale);
+            double vz = vertex[2] * Math.abs(scale);
+            obj.append(String.format(Locale.ROOT, "v %.7f %.7f %.7f\n",
+                    cos * vx - sin * vy + x, sin * vx + cos * vy + y, vz + z));
+        }
+        obj.append("f -4 -2 -3\nf -4 -3 -1\nf -4 -1 -2\nf -3 -2 -1\n");
+    }
+
+    private static void assertMatrix(double[] expected, String values) {
+        String[] actual = values.split(",");
+        Assert.assertEquals(16, actual.length);
+        for (int i = 0; i < 16; i++) {
+            Assert.assertEquals(expected[i], Double.parseDouble(actual[i]), 1e-5);
+        }
+    }
+
+    private void write(String obj) throws IOException {
+        Files.write(objFile, obj.getBytes(StandardCharsets.UTF_8));
+    }
+}
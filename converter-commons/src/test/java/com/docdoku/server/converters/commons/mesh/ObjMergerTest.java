@@ -0,0 +1,67 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TestFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class ObjMergerTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("obj-merger-test");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testIndicesAreShifted() throws Exception {
+        Path first = TestFiles.write(dir, "a.obj",
+                "mtllib a.mtl\nv 0 0 0\nv 1 0 0\nv 0 1 0\nvn 0 0 1\nusemtl red\nf 1//1 2//1 3//1\n");
+        Path second = TestFiles.write(dir, "b.obj", "mtllib b.mtl\ng part\nv 0 0 1\nv 1 0 1\nvt 0 0\nv 0 1 1\nvn 0 0 1\n"
+                + "f 1/1/1 2/1/1 3/1/1\nf -3 -2 -1\nl 1 2\n");
+        Path mtlA = TestFiles.write(dir, "a.mtl", "newmtl red\nKd 1 0 0\n");
+        Path mtlB = TestFiles.write(dir, "b.mtl", "newmtl red\nKd 1 0 0\n\nnewmtl blue\nKd 0 0 1\n");
+
+        Path merged = dir.resolve("merged.obj");
+        Path mtl = dir.resolve("merged.mtl");
+        ObjMerger.mergeMaterials(Arrays.asList(mtlA, mtlB, dir.resolve("missing.mtl")), mtl);
+        Assert.assertEquals(6, new ObjMerger().merge(Arrays.asList(first, second), merged, mtl));
+
+        Assert.assertEquals("mtllib merged.mtl\nv 0 0 0\nv 1 0 0\nv 0 1 0\nvn 0 0 1\nusemtl red\nf 1//1 2//1 3//1\n"
+                        + "g part\nv 0 0 1\nv 1 0 1\nvt 0 0\nv 0 1 1\nvn 0 0 1\nf 4/1/2 5/1/2 6/1/2\nf -3 -2 -1\nl 4 5\n",
+                TestFiles.read(merged));
+        Assert.assertEquals("newmtl red\nKd 1 0 0\nnewmtl blue\nKd 0 0 1\n", TestFiles.read(mtl));
+    }
+}
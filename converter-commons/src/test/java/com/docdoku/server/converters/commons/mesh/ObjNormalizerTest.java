@@ -0,0 +1,132 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class ObjNormalizerTest {
+
+    private Path dir;
+    private Path objFile;
+    private Path normalizedFile;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("normalizer-test");
+        objFile = dir.resolve("part.obj");
+        normalizedFile = dir.resolve("normalized.obj");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(objFile);
+        Files.deleteIfExists(normalizedFile);
+        // Chunk files must have been removed
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testVertexDataComesFirstWithPositiveIndices() throws Exception {
+        write("# exported\n"
+                + "mtllib part.mtl\n"
+                + "v 0.000000 0.000000 0.000000\n"
+                + "vn 0 0 1.0\n"
+                + "v 1.500000 0 -0.0\n"
+                + "\t v  1e-3\t1 0   # third\n"
+                + "o  plate\n"
+                + "usemtl steel\n"
+                + "f -3//-1 -2//-1 -1//-1\n"
+                + "vt 0.5 .25\n"
+                + "v 0 1 0\r\n"
+                + "f 1/1 3/-1 4/1\n");
+
+        for (long chunkSize : new long[]{1, 40, 1000}) {
+            ObjNormalizer.Report report = ObjNormalizer.normalize(objFile, normalizedFile, chunkSize);
+            Assert.assertEquals(12, report.getLines());
+            Assert.assertEquals(4, report.getPositions());
+            Assert.assertEquals(1, report.getTextures());
+            Assert.assertEquals(1, report.getNormals());
+            Assert.assertEquals(2, report.getFaces());
+            Assert.assertEquals(Files.size(normalizedFile), report.getOutputSize());
+            Assert.assertEquals(Arrays.asList(
+                    "v 0 0 0", "v 1.5 0 -0", "v 1e-3 1 0", "v 0 1 0",
+                    "vt 0.5 .25",
+                    "vn 0 0 1",
+                    "mtllib part.mtl", "o plate", "usemtl steel",
+                    "f 1//1 2//1 3//1", "f 1/1 3/1 4/1"), Files.readAllLines(normalizedFile));
+        }
+    }
+
+    @Test
+    public void testChunksGiveTheSameResult() throws Exception {
+        StringBuilder obj = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            obj.append("v ").append(i).append(".250 ").append(i % 7).append(" 0\n");
+            if (i > 2) {
+                obj.append(i % 2 == 0 ? "f -1 -2 -3\n" : "f " + (i - 2) + " " + (i - 1) + " " + i + "\n");
+            }
+        }
+        write(obj.toString());
+
+        ObjNormalizer.normalize(objFile, normalizedFile, 1 << 20);
+        List<String> single = Files.readAllLines(normalizedFile);
+        ObjNormalizer.Report report = ObjNormalizer.normalize(objFile, normalizedFile, 1000);
+        Assert.assertEquals(single, Files.readAllLines(normalizedFile));
+        Assert.assertEquals(2000, report.getPositions());
+        Assert.assertEquals(1997, report.getFaces());
+        Assert.assertEquals("f 1997 1998 1999", single.get(single.size() - 1));
+    }
+
+    @Test
+    public void testBrokenFilesAreRejectedWithTheLineNumber() throws Exception {
+        assertRejected("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\nf 1 2 4\n", "line 5: index \"4\"");
+        assertRejected("v 0 0 0\nv 1 0 0\nf -1 -2 -3\n", "line 3: index \"-3\"");
+        assertRejected("v 0 0 0\nv 1 0 0\n\nv 0 x 0\n", "line 4: invalid number \"x\"");
+        assertRejected("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2\n", "line 4: expected at least 3 vertices");
+        assertRejected("v 0 0 0\nv 1 0\n", "line 2: expected 3 to 7 values");
+        assertRejected("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3a\n", "line 4: invalid vertex reference \"3a\"");
+        Assert.assertFalse(Files.exists(normalizedFile));
+    }
+
+    private void assertRejected(String obj, String message) throws IOException {
+        write(obj);
+        try {
+            ObjNormalizer.normalize(objFile, normalizedFile, 8);
+            Assert.fail("Expected " + message);
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private void write(String obj) throws IOException {
+        Files.write(objFile, obj.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class ObjOptimizerTest {
+
+    private Path objFile;
+    private Path optimizedFile;
+
+    @Before
+    public void setup() throws IOException {
+        objFile = Files.createTempFile("optimizer-test", ".obj");
+        optimizedFile = Files.createTempFile("optimizer-test", ".obj");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(objFile);
+        Files.deleteIfExists(optimizedFile);
+    }
+
+    @Test
+    public void testCloseVerticesAreWelded() throws Exception {
+        write("mtllib part.mtl\n"
+                + "o first\n"
+                + "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "vn 0 0 1\nvn 0 0 1\n"
+                + "usemtl red\n"
+                + "f 1//1 2//1 3//1 4//1\n"
+                + "o second\n"
+                // Same corners as the first quad, within the tolerance
+                + "v 0.0000001 0 0\nv 1 1.0000001 0\nv 0 0 1\n"
+                + "f -3//2 -2//2 -1//2\n"
+                // Collapsed by the welding
+                + "f 1//1 5//1 7//1\n");
+
+        ObjOptimizer.Report report = ObjOptimizer.optimize(objFile, optimizedFile, 1e-5);
+        Assert.assertEquals(3, report.getTriangles());
+        Assert.assertEquals(9, report.getVerticesBefore());
+        Assert.assertEquals(5, report.getVerticesAfter());
+
+        List<String> lines = Files.readAllLines(optimizedFile);
+        Assert.assertEquals(5, count(lines, "v "));
+        Assert.assertEquals(1, count(lines, "vn "));
+        List<String> statements = lines.stream().filter(line -> !line.startsWith("v")).collect(Collectors.toList());
+        Assert.assertEquals("mtllib part.mtl", statements.get(0));
+        Assert.assertEquals("o first", statements.get(1));
+        Assert.assertEquals("usemtl red", statements.get(2));
+        Assert.assertTrue(statements.get(3).startsWith("f "));
+        Assert.assertTrue(statements.get(4).startsWith("f "));
+        Assert.assertEquals("o second", statements.get(5));
+        Assert.assertTrue(statements.get(6).matches("f [1-4]//1 [1-4]//1 5//1"));
+        Assert.assertEquals(7, statements.size());
+    }
+
+    @Test
+    public void testTrianglesAreReorderedForTheVertexCache() throws Exception {
+        int size = 40;
+        StringBuilder obj = new StringBuilder();
+        for (int j = 0; j <= size; j++) {
+            for (int i = 0; i <= size; i++) {
+                obj.append("v ").append(i).append(' ').append(j).append(" 0\n");
+            }
+        }
+        List<String> faces = new ArrayList<>();
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                int corner = j * (size + 1) + i + 1;
+                faces.add("f " + corner + " " + (corner + 1) + " " + (corner + size + 2) + "\n");
+                faces.add("f " + corner + " " + (corner + size + 2) + " " + (corner + size + 1) + "\n");
+            }
+        }
+        Collections.shuffle(faces, new Random(42));
+        faces.forEach(obj::append);
+        write(obj.toString());
+
+        ObjOptimizer.Report report = ObjOptimizer.optimize(objFile, optimizedFile, 0);
+        Assert.assertEquals(size * size * 2, report.getTriangles());
+        Assert.assertTrue(report.getAcmrBefore() > 2);
+        Assert.assertTrue(report.getAcmrAfter() < 0.8);
+        Assert.assertEquals(size * size * 2, count(Files.readAllLines(optimizedFile), "f "));
+    }
+
+    @Test
+    public void testLinesAreNotSupported() throws Exception {
+        write("v 0 0 0\nv 1 0 0\nv 1 1 0\nf 1 2 3\nl 1 2\n");
+        Assert.assertNull(ObjOptimizer.optimize(objFile, optimizedFile, 0));
+    }
+
+    @Test
+    public void testOptimizedOrderIsAPermutation() {
+        int[] indices = {0, 1, 2, 2, 1, 3, 4, 5, 6, 3, 1, 7};
+        int[] order = VertexCacheOptimizer.optimize(indices, 4, 8);
+        boolean[] seen = new boolean[4];
+        for (int triangle : order) {
+            Assert.assertFalse(seen[triangle]);
+            seen[triangle] = true;
+        }
+        Assert.assertEquals(2.0, VertexCacheOptimizer.acmr(new int[]{0, 1, 2, 0, 2, 3}, 2, 4, 16), 0);
+    }
+
+    private void write(String obj) throws IOException {
+        Files.write(objFile, obj.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long count(List<String> lines, String prefix) {
+        return lines.stream().filter(line -> line.startsWith(prefix)).count();
+    }
+}
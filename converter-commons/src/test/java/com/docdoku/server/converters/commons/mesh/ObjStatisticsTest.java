@@ -0,0 +1,101 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.mesh;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class ObjStatisticsTest {
+
+    private Path objFile;
+    private Path jsonFile;
+
+    @Before
+    public void setup() throws IOException {
+        objFile = Files.createTempFile("statistics-test", ".obj");
+        jsonFile = Files.createTempFile("statistics-test", ".json");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(objFile);
+        Files.deleteIfExists(jsonFile);
+    }
+
+    @Test
+    public void testCountsAndBounds() throws Exception {
+        write("mtllib part.mtl\n"
+                + "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\nv 5 5 -2\n"
+                + "vt 0 0\nvn 0 0 1\n"
+                + "f 1 2 3\n"
+                + "o plate\n"
+                + "usemtl steel\n"
+                + "f 1/1/1 2/1/1 3/1/1 4/1/1\n"
+                + "g \"bolt\\1\"\n"
+                + "usemtl brass\n"
+                + "f -1 -2 -3\n"
+                + "usemtl steel\n");
+
+        ObjStatistics statistics = ObjStatistics.read(objFile);
+        Assert.assertEquals(5, statistics.getVertices());
+        Assert.assertEquals(1, statistics.getTextureCoordinates());
+        Assert.assertEquals(1, statistics.getNormals());
+        Assert.assertEquals(3, statistics.getFaces());
+        Assert.assertEquals(4, statistics.getTriangles());
+        Assert.assertArrayEquals(new double[]{0, 0, -2, 5, 5, 0}, statistics.getBounds(), 0);
+        Assert.assertEquals(Arrays.asList("steel", "brass"), Arrays.asList(statistics.getMaterials().toArray()));
+        Assert.assertArrayEquals(new double[]{0, 0, 0, 1, 1, 0}, statistics.getGroupBounds("plate"), 0);
+        Assert.assertArrayEquals(new double[]{0, 1, -2, 5, 5, 0}, statistics.getGroupBounds("\"bolt\\1\""), 0);
+        Assert.assertArrayEquals(new double[]{0, 0, 0, 1, 1, 0}, statistics.getGroupBounds(""), 0);
+
+        statistics.write(jsonFile);
+        String json = new String(Files.readAllBytes(jsonFile), StandardCharsets.UTF_8);
+        Assert.assertTrue(json.startsWith("{\"vertices\":5,\"textureCoordinates\":1,\"normals\":1,\"faces\":3,"));
+        Assert.assertTrue(json.contains("\"bounds\":{\"min\":[0.0,0.0,-2.0],\"max\":[5.0,5.0,0.0]}"));
+        Assert.assertTrue(json.contains("\"materialLibraries\":[\"part.mtl\"]"));
+        Assert.assertTrue(json.contains("{\"name\":\"\\\"bolt\\\\1\\\"\",\"faces\":1,"));
+    }
+
+    @Test
+    public void testEmptyModel() throws Exception {
+        write("# nothing\n");
+
+        ObjStatistics statistics = ObjStatistics.read(objFile);
+        Assert.assertEquals(0, statistics.getVertices());
+        Assert.assertNull(statistics.getBounds());
+        statistics.write(jsonFile);
+        String json = new String(Files.readAllBytes(jsonFile), StandardCharsets.UTF_8);
+        Assert.assertTrue(json.contains("\"bounds\":null"));
+        Assert.assertTrue(json.contains("\"groups\":[\n]"));
+    }
+
+    private void write(String obj) throws IOException {
+        Files.write(objFile, obj.getBytes(StandardCharsets.UTF_8));
+    }
+}
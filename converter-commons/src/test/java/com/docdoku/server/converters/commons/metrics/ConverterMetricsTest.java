@@ -0,0 +1,124 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.metrics;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ConverterMetricsTest {
+
+    private Path dir;
+    private Path cadFile;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("metrics-test");
+        cadFile = Files.write(dir.resolve("part.STP"), new byte[100]);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        Files.deleteIfExists(dir.resolve("part.obj"));
+        Files.delete(cadFile);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testConversionsAreRecordedByExtension() throws Exception {
+        ConverterMetrics metrics = new ConverterMetrics("test");
+        Path objFile = Files.write(dir.resolve("part.obj"), new byte[40]);
+
+        metrics.convert(cadFile.toUri(), dir.toUri(), (cad, tmp) -> {
+            ConversionRecording.queueWait(TimeUnit.MILLISECONDS.toNanos(30));
+            ConversionRecording.processUsage(TimeUnit.MILLISECONDS.toNanos(200), 1 << 20);
+            return new ConversionResult(objFile);
+        });
+        try {
+            metrics.convert(cadFile.toUri(), dir.toUri(), (cad, tmp) -> {
+                ConversionRecording.processUsage(-1, 2 << 20);
+                ConversionRecording.timeout();
+                throw new CADConverter.ConversionException("timed out");
+            });
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertEquals("timed out", e.getMessage());
+        }
+        // Outside of a conversion
+        ConversionRecording.timeout();
+
+        List<ConversionStats> snapshot = metrics.snapshot();
+        Assert.assertEquals(1, snapshot.size());
+        ConversionStats stats = snapshot.get(0);
+        Assert.assertEquals("stp", stats.getExtension());
+        Assert.assertEquals(2, stats.getConversions());
+        Assert.assertEquals(1, stats.getFailures());
+        Assert.assertEquals(1, stats.getTimeouts());
+        Assert.assertEquals(200, stats.getInputBytes());
+        Assert.assertEquals(40, stats.getOutputBytes());
+        Assert.assertEquals(200, stats.getCpuTime());
+        Assert.assertEquals(2 << 20, stats.getPeakMemory());
+        Assert.assertEquals(30, stats.getQueueWaitTotal());
+        Assert.assertTrue(stats.getQueueWaitP95() >= 30 && stats.getQueueWaitP95() < 36);
+        Assert.assertTrue(stats.getLatencyP50() <= stats.getLatencyP99());
+        Assert.assertEquals(0, metrics.getActiveConversions());
+    }
+
+    @Test
+    public void testMetricsAreExposedThroughJmx() throws Exception {
+        ConverterMetrics metrics = ConverterMetrics.forConverter("jmx-test");
+        Assert.assertSame(metrics, ConverterMetrics.forConverter("jmx-test"));
+        Path objFile = Files.write(dir.resolve("part.obj"), new byte[40]);
+        metrics.convert(cadFile.toUri(), dir.toUri(), (cad, tmp) -> new ConversionResult(objFile));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = ConverterMetrics.objectName("jmx-test");
+        Assert.assertEquals(1L, server.getAttribute(name, "Conversions"));
+        CompositeData[] extensions = (CompositeData[]) server.getAttribute(name, "Extensions");
+        Assert.assertEquals("stp", extensions[0].get("extension"));
+        Assert.assertEquals(40L, extensions[0].get("outputBytes"));
+    }
+
+    @Test
+    public void testHistogramQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.quantileMillis(0.5), 0);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        Assert.assertEquals(50, histogram.quantileMillis(0.5), 50 * 0.19);
+        Assert.assertEquals(95, histogram.quantileMillis(0.95), 95 * 0.19);
+        Assert.assertEquals(99, histogram.quantileMillis(0.99), 99 * 0.19);
+        Assert.assertTrue(histogram.quantileMillis(1) >= 100);
+    }
+}
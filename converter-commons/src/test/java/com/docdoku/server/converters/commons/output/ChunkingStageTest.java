@@ -0,0 +1,113 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TestFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+public class ChunkingStageTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("chunking-test");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testChunksAreSpatiallyCoherent() throws Exception {
+        Path obj = TestMeshes.writeGrid(dir.resolve("part.obj"), 20, 0, "steel", "glass");
+        Path mtl = TestFiles.write(dir, "part.mtl", "newmtl steel\nnewmtl glass\n");
+        Properties conf = new Properties();
+        conf.setProperty(ChunkingStage.CHUNKING_MAX_TRIANGLES, "200");
+        ChunkingStage stage = ChunkingStage.fromConf(conf);
+
+        ConversionResult result = stage.apply(new ConversionResult(obj, Collections.singletonList(mtl)), dir);
+        Assert.assertEquals(obj, result.getConvertedFile());
+        Assert.assertEquals(Collections.singletonList(mtl), result.getMaterials());
+        ConversionOutput output = (ConversionOutput) result;
+        Assert.assertEquals(5, output.getArtifacts().size());
+        Assert.assertEquals(dir.resolve("part.chunks.json"), output.getArtifact("chunks"));
+
+        int triangles = 0;
+        for (int i = 1; i <= 4; i++) {
+            List<String> lines = Files.readAllLines(output.getArtifact("chunk" + i));
+            Assert.assertEquals("mtllib part.mtl", lines.get(0));
+            int vertices = 0;
+            int faces = 0;
+            for (String line : lines) {
+                if (line.startsWith("v ")) {
+                    vertices++;
+                } else if (line.startsWith("f ")) {
+                    faces++;
+                    for (String corner : line.substring(2).split(" ")) {
+                        Assert.assertTrue(Integer.parseInt(corner.split("/")[0]) <= vertices);
+                    }
+                }
+            }
+            Assert.assertEquals(200, faces);
+            triangles += faces;
+        }
+        Assert.assertEquals(800, triangles);
+
+        // Cut along x first, then along y: the lower rows are steel, the upper ones glass
+        List<String> first = Files.readAllLines(output.getArtifact("chunk1"));
+        Assert.assertTrue(first.contains("usemtl steel"));
+        Assert.assertFalse(first.contains("usemtl glass"));
+        List<String> second = Files.readAllLines(output.getArtifact("chunk2"));
+        Assert.assertEquals(Collections.singletonList("usemtl glass"),
+                second.stream().filter(line -> line.startsWith("usemtl")).collect(Collectors.toList()));
+
+        String manifest = TestFiles.read(output.getArtifact("chunks"));
+        Assert.assertTrue(manifest.startsWith("{\"triangles\":800,\"chunks\":["));
+        Assert.assertTrue(manifest.contains("{\"file\":\"part_chunk1.obj\",\"triangles\":200,\"vertices\":121,"
+                + "\"bounds\":{\"min\":[0.0,0.0,0.0],\"max\":[10.0,10.0,0.0]}}"));
+    }
+
+    @Test
+    public void testSmallModelsAreLeftWhole() throws Exception {
+        Path obj = TestMeshes.writeGrid(dir.resolve("part.obj"), 5, 0, "steel", "glass");
+        Properties conf = new Properties();
+        conf.setProperty(ChunkingStage.CHUNKING_MAX_TRIANGLES, "50");
+        ConversionResult result = new ConversionResult(obj);
+
+        Assert.assertSame(result, ChunkingStage.fromConf(conf).apply(result, dir));
+        conf.setProperty(ChunkingStage.CHUNKING_MAX_TRIANGLES, "");
+        Assert.assertNull(ChunkingStage.fromConf(conf));
+    }
+}
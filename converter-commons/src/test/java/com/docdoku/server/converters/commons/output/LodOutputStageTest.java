@@ -0,0 +1,98 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TestFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class LodOutputStageTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("lod-test");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testLevelsAreAddedAsArtifacts() throws Exception {
+        Path obj = TestMeshes.writeGrid(dir.resolve("part.obj"), 30, 1, "steel");
+        Path mtl = TestFiles.write(dir, "part.mtl", "newmtl steel\n");
+        Properties conf = new Properties();
+        conf.setProperty(LodOutputStage.LOD_LEVELS, "0.1, 0.5");
+        LodOutputStage stage = LodOutputStage.fromConf(conf);
+        Assert.assertEquals("lod=0.5,0.1/1000", stage.getSettings());
+
+        ConversionResult result = stage.apply(new ConversionResult(obj, Collections.singletonList(mtl)), dir);
+        Assert.assertEquals(obj, result.getConvertedFile());
+        Assert.assertEquals(Collections.singletonList(mtl), result.getMaterials());
+        Path lod1 = ((ConversionOutput) result).getArtifact("lod1");
+        Path lod2 = ((ConversionOutput) result).getArtifact("lod2");
+        Assert.assertEquals(dir.resolve("part_lod1.obj"), lod1);
+
+        List<String> lines = Files.readAllLines(lod1);
+        Assert.assertEquals("mtllib part.mtl", lines.get(0));
+        Assert.assertTrue(lines.contains("usemtl steel"));
+        long faces1 = faces(lines);
+        long faces2 = faces(Files.readAllLines(lod2));
+        Assert.assertTrue(faces1 <= 900 && faces1 > 800);
+        Assert.assertTrue(faces2 <= 180 && faces2 > 100);
+    }
+
+    @Test
+    public void testSmallModelsAreLeftAlone() throws Exception {
+        Path obj = TestMeshes.writeGrid(dir.resolve("part.obj"), 10, 1, "steel");
+        Properties conf = new Properties();
+        conf.setProperty(LodOutputStage.LOD_LEVELS, "0.5");
+        ConversionResult result = new ConversionResult(obj);
+
+        Assert.assertSame(result, LodOutputStage.fromConf(conf).apply(result, dir));
+        try (Stream<Path> files = Files.list(dir)) {
+            Assert.assertEquals(1, files.count());
+        }
+        conf.setProperty(LodOutputStage.LOD_LEVELS, "");
+        Assert.assertNull(LodOutputStage.fromConf(conf));
+        conf.setProperty(LodOutputStage.LOD_LEVELS, "0.5,1.5");
+        Assert.assertNull(LodOutputStage.fromConf(conf));
+    }
+
+    private static long faces(List<String> lines) {
+        return lines.stream().filter(line -> line.startsWith("f ")).collect(Collectors.counting());
+    }
+}
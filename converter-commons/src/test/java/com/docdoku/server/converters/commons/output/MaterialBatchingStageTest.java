@@ -0,0 +1,105 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TestFiles;
+import com.docdoku.server.converters.commons.mesh.ObjStatistics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+public class MaterialBatchingStageTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("material-batching-test");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testTrianglesAreGroupedByDistinctMaterial() throws Exception {
+        Path obj = TestFiles.write(dir, "part.obj", "mtllib part.mtl\nmtllib extra.mtl\n"
+                + "v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\n"
+                + "g door\nusemtl red\nf 1 2 3\n"
+                + "g frame\nusemtl blue\nf 2 4 3\n"
+                + "g handle\nusemtl crimson\nf 3 2 1\n"
+                + "g panel\nusemtl blue\nf 4 2 3\n");
+        Path mtl = TestFiles.write(dir, "part.mtl", "newmtl red\nKd 1 0 0\nd 1\n\nnewmtl blue\nKd 0 0 1\n");
+        Path extra = TestFiles.write(dir, "extra.mtl", "# same as red\nnewmtl crimson\nd 1.0\nKd 1.000 0.0 0\n");
+        Properties conf = new Properties();
+        conf.setProperty(MaterialBatchingStage.MATERIAL_BATCHING, "true");
+        MaterialBatchingStage stage = MaterialBatchingStage.fromConf(conf);
+
+        ConversionResult result = stage.apply(new ConversionResult(obj, Arrays.asList(mtl, extra)), dir);
+        Assert.assertEquals(obj, result.getConvertedFile());
+        Assert.assertEquals(Collections.singletonList(mtl), result.getMaterials());
+        Assert.assertFalse(Files.exists(extra));
+
+        Assert.assertEquals("v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\nmtllib part.mtl\n"
+                + "g door\nusemtl red\nf 1 2 3\ng handle\nf 3 2 1\n"
+                + "g frame\nusemtl blue\nf 2 4 3\ng panel\nf 4 2 3\n", TestFiles.read(obj));
+        Assert.assertEquals("newmtl red\nKd 1 0 0\nd 1\n\nnewmtl blue\nKd 0 0 1\n\n", TestFiles.read(mtl));
+        try (Stream<Path> files = Files.list(dir)) {
+            Assert.assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void testGroupsKeepTheirFacesAcrossMaterials() throws Exception {
+        Path obj = TestFiles.write(dir, "part.obj", "v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 2\n"
+                + "usemtl blue\nf 1 2 3\n"
+                + "g door\nusemtl red\nf 1 2 3\nusemtl blue\nf 2 4 3\n"
+                + "g frame\nf 3 2 1\n");
+        ObjStatistics before = ObjStatistics.read(obj);
+        Properties conf = new Properties();
+        conf.setProperty(MaterialBatchingStage.MATERIAL_BATCHING, "true");
+
+        MaterialBatchingStage.fromConf(conf).apply(new ConversionResult(obj, Collections.emptyList()), dir);
+        Assert.assertEquals("v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 2\n"
+                + "usemtl blue\nf 1 2 3\ng door\nf 2 4 3\ng frame\nf 3 2 1\n"
+                + "g door\nusemtl red\nf 1 2 3\n", TestFiles.read(obj));
+        ObjStatistics after = ObjStatistics.read(obj);
+        for (String group : Arrays.asList("", "door", "frame")) {
+            Assert.assertArrayEquals(before.getGroupBounds(group), after.getGroupBounds(group), 0);
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        Assert.assertNull(MaterialBatchingStage.fromConf(new Properties()));
+    }
+}
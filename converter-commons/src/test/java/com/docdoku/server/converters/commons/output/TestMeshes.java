@@ -0,0 +1,68 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Meshes shared by the output stage tests.
+ */
+final class TestMeshes {
+
+    private TestMeshes() {
+    }
+
+    /**
+     * Write a grid of size by size quads in the xy plane, using the
+     * <code>part.mtl</code> library, its rows split evenly between the given
+     * materials.
+     *
+     * @param waviness the amplitude of the sine wave along x given to the heights of the vertices, 0 for a flat grid
+     * @return the written file
+     */
+    static Path writeGrid(Path objFile, int size, double waviness, String... materials) throws Exception {
+        StringBuilder obj = new StringBuilder("mtllib part.mtl\n");
+        for (int j = 0; j <= size; j++) {
+            for (int i = 0; i <= size; i++) {
+                double height = waviness * Math.sin(i / 3.0);
+                // Written as an integer when flat, a negative sine would give -0.0
+                obj.append("v ").append(i).append(' ').append(j).append(' ').append(height == 0 ? "0" : height)
+                        .append('\n');
+            }
+        }
+        obj.append("vn 0 0 1\n");
+        int material = -1;
+        for (int j = 0; j < size; j++) {
+            if (j * materials.length / size != material) {
+                material = j * materials.length / size;
+                obj.append("usemtl ").append(materials[material]).append('\n');
+            }
+            for (int i = 0; i < size; i++) {
+                int corner = j * (size + 1) + i + 1;
+                obj.append("f ").append(corner).append("//1 ").append(corner + 1).append("//1 ")
+                        .append(corner + size + 2).append("//1 ").append(corner + size + 1).append("//1\n");
+            }
+        }
+        return Files.write(objFile, obj.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
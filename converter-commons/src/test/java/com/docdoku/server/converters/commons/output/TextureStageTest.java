@@ -0,0 +1,95 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.output;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+public class TextureStageTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("texture-stage-test");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testTexturesAreDownscaledWithTheirMipChain() throws Exception {
+        Path sources = Files.createDirectory(dir.resolve("sources"));
+        BufferedImage image = new BufferedImage(300, 100, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 300; x++) {
+                image.setRGB(x, y, x < 150 ? 0xffff0000 : 0x800000ff);
+            }
+        }
+        ImageIO.write(image, "png", sources.resolve("wood grain.png").toFile());
+        Path obj = Files.write(dir.resolve("part.obj"), "mtllib part.mtl\n".getBytes(StandardCharsets.UTF_8));
+        Path mtl = Files.write(dir.resolve("part.mtl"), ("newmtl wood\nKd 1 1 1\nmap_Kd -s 1 1 1 sources/wood grain.png\n"
+                + "map_Ka sources/wood grain.png\nmap_bump missing.png\n").getBytes(StandardCharsets.UTF_8));
+        Properties conf = new Properties();
+        conf.setProperty(TextureStage.TEXTURE_MAX_SIZE, "128");
+        conf.setProperty(TextureStage.TEXTURE_THREADS, "2");
+        TextureStage stage = TextureStage.fromConf(conf);
+
+        ConversionResult result = stage.apply(new ConversionResult(obj, Collections.singletonList(mtl)), dir);
+        Map<String, Path> artifacts = ConversionOutput.artifactsOf(result);
+        // 128x64 down to 1x1
+        Assert.assertEquals(8, artifacts.size());
+        Assert.assertEquals(dir.resolve("part_texture1.png"), artifacts.get("texture1"));
+        BufferedImage texture = ImageIO.read(artifacts.get("texture1").toFile());
+        Assert.assertEquals(128, texture.getWidth());
+        Assert.assertEquals(64, texture.getHeight());
+        Assert.assertEquals(0xffff0000, texture.getRGB(0, 0));
+        Assert.assertEquals(0x800000ff, texture.getRGB(127, 63));
+        BufferedImage last = ImageIO.read(artifacts.get("texture1_mip7").toFile());
+        Assert.assertEquals(1, last.getWidth());
+        Assert.assertEquals(1, last.getHeight());
+        // Opacity weighted average of the two halves
+        Assert.assertEquals(0xc0aa0055, last.getRGB(0, 0));
+
+        Assert.assertEquals("newmtl wood\nKd 1 1 1\nmap_Kd -s 1 1 1 part_texture1.png\nmap_Ka part_texture1.png\n"
+                + "map_bump missing.png\n", new String(Files.readAllBytes(mtl), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        Assert.assertNull(TextureStage.fromConf(new Properties()));
+    }
+}
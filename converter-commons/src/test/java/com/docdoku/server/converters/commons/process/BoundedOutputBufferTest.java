@@ -0,0 +1,58 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.process;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class BoundedOutputBufferTest {
+
+    @Test
+    public void testKeepsEverythingUnderCapacity() {
+        BoundedOutputBuffer buffer = new BoundedOutputBuffer(8);
+        buffer.write("abc".getBytes(StandardCharsets.US_ASCII), 0, 3);
+        buffer.write('d');
+        Assert.assertFalse(buffer.isTruncated());
+        Assert.assertEquals("abcd", buffer.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testKeepsTail() {
+        BoundedOutputBuffer buffer = new BoundedOutputBuffer(4);
+        buffer.write("abc".getBytes(StandardCharsets.US_ASCII), 0, 3);
+        buffer.write("def".getBytes(StandardCharsets.US_ASCII), 0, 3);
+        Assert.assertTrue(buffer.isTruncated());
+        Assert.assertEquals(6, buffer.getWrittenBytes());
+        Assert.assertArrayEquals("cdef".getBytes(StandardCharsets.US_ASCII), buffer.toByteArray());
+        Assert.assertEquals("[2 bytes truncated]\ncdef", buffer.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testWriteLargerThanCapacity() {
+        BoundedOutputBuffer buffer = new BoundedOutputBuffer(4);
+        buffer.write('x');
+        buffer.write("0123456789".getBytes(StandardCharsets.US_ASCII), 0, 10);
+        Assert.assertEquals(11, buffer.getWrittenBytes());
+        Assert.assertArrayEquals("6789".getBytes(StandardCharsets.US_ASCII), buffer.toByteArray());
+    }
+}
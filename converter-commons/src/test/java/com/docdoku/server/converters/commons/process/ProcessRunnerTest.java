@@ -0,0 +1,116 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.process;
+
+import com.docdoku.server.converters.commons.metrics.ConversionStats;
+import com.docdoku.server.converters.commons.metrics.ConverterMetrics;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+public class ProcessRunnerTest {
+
+    private ProcessRunner runner;
+
+    @Before
+    public void setup() {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+        Properties conf = new Properties();
+        conf.setProperty(ProcessRunner.PROCESS_TIMEOUT, "30");
+        conf.setProperty(ProcessRunner.PROCESS_TIMEOUT + ".slow", "1");
+        runner = ProcessRunner.forTool("sh", conf);
+    }
+
+    @Test
+    public void testTimeoutPerExtension() {
+        Assert.assertEquals(30, runner.getTimeout(null));
+        Assert.assertEquals(30, runner.getTimeout("fast"));
+        Assert.assertEquals(1, runner.getTimeout("SLOW"));
+    }
+
+    @Test
+    public void testExitValueAndOutputs() throws Exception {
+        ProcessResult result = runner.run(new String[]{"/bin/sh", "-c", "echo out; echo err >&2; exit 3"}, "fast");
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertEquals(3, result.getExitValue());
+        Assert.assertEquals("out\n", result.getStdOutput());
+        Assert.assertEquals("err\n", result.getErrorOutput());
+    }
+
+    @Test(timeout = 20000)
+    public void testVerboseErrorOutputDoesNotBlock() throws Exception {
+        // Fills the error pipe before writing anything on the standard output
+        ProcessResult result = runner.run(new String[]{"/bin/sh", "-c",
+                "head -c 4000000 /dev/zero | tr '\\0' e >&2; echo done"}, "fast");
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals("done\n", result.getStdOutput());
+        Assert.assertTrue(result.getErrorOutput().startsWith("["));
+    }
+
+    @Test(timeout = 20000)
+    public void testUsageIsReportedToTheConversion() throws Exception {
+        Path dir = Files.createTempDirectory("runner-test");
+        Path cadFile = Files.createFile(dir.resolve("part.slow"));
+        ConverterMetrics metrics = ConverterMetrics.forConverter("runner-test");
+        try {
+            metrics.convert(cadFile.toUri(), dir.toUri(), (cad, tmp) -> {
+                try {
+                    runner.run(new String[]{"/bin/sh", "-c", "sleep 0.3"}, "fast");
+                    runner.run(new String[]{"/bin/sh", "-c", "sleep 5"}, "slow");
+                } catch (IOException | InterruptedException e) {
+                    throw new CADConverter.ConversionException(e.getMessage(), e);
+                }
+                return null;
+            });
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertTrue(e.getCause() instanceof ProcessTimeoutException);
+        } finally {
+            Files.delete(cadFile);
+            Files.delete(dir);
+        }
+        ConversionStats stats = metrics.snapshot().get(0);
+        Assert.assertEquals(1, stats.getTimeouts());
+        if (Files.isDirectory(Paths.get("/proc/self")) && !System.getProperty("java.version").startsWith("1.")) {
+            Assert.assertTrue(stats.getPeakMemory() > 0);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testTimeoutKillsProcessTree() throws Exception {
+        long start = System.nanoTime();
+        try {
+            runner.run(new String[]{"/bin/sh", "-c", "sleep 60 & echo started >&2; wait"}, "slow");
+            Assert.fail();
+        } catch (ProcessTimeoutException e) {
+            Assert.assertEquals("started\n", e.getErrorOutput());
+        }
+        Assert.assertTrue(System.nanoTime() - start < 15_000_000_000L);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.process;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+public class WorkerPoolTest {
+
+    private static final String WORKER = "printf 'ready\\t1000\\t\\n'; while read -r cmd arg; do case $cmd in "
+            + "ok) printf 'ok\\t1000\\t%s\\n' \"$arg\";; "
+            + "fail) echo boom >&2; printf 'error\\t1000\\tfailed\\n';; "
+            + "grow) printf 'ok\\t4000000\\tgrown\\n';; "
+            + "quit) printf 'ok\\t1000\\tbye\\n'; exit 0;; "
+            + "hang) sleep 60;; "
+            + "esac; done";
+
+    private WorkerPool pool;
+
+    @Before
+    public void setup() {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+        Properties conf = new Properties();
+        conf.setProperty(ProcessRunner.PROCESS_TIMEOUT, "30");
+        conf.setProperty(ProcessRunner.PROCESS_TIMEOUT + ".slow", "1");
+        conf.setProperty(WorkerPool.WORKER_MAX_JOBS, "3");
+        conf.setProperty(WorkerPool.WORKER_MAX_MEMORY, "1024");
+        pool = new WorkerPool(ProcessRunner.forTool("sh-worker", conf), new String[]{"/bin/sh", "-c", WORKER}, conf);
+    }
+
+    @After
+    public void cleanup() {
+        pool.shutdown();
+    }
+
+    @Test(timeout = 20000)
+    public void testWorkersAreReused() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            ProcessResult result = pool.call("ok job" + i, "fast");
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertEquals("job" + i, result.getStdOutput());
+        }
+        Assert.assertEquals(1, pool.getStartedWorkers());
+        // Recycled after its third job
+        Assert.assertEquals(0, pool.getIdleWorkers());
+        pool.call("ok again", "fast");
+        Assert.assertEquals(2, pool.getStartedWorkers());
+    }
+
+    @Test(timeout = 20000)
+    public void testErrorReply() throws Exception {
+        ProcessResult result = pool.call("fail", "fast");
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertTrue(result.getErrorOutput().startsWith("failed"));
+        Assert.assertTrue(pool.call("ok next", "fast").isSuccess());
+        Assert.assertEquals(1, pool.getStartedWorkers());
+    }
+
+    @Test(timeout = 20000)
+    public void testRecycledOnMemoryThreshold() throws Exception {
+        Assert.assertEquals("grown", pool.call("grow", "fast").getStdOutput());
+        Assert.assertEquals(0, pool.getIdleWorkers());
+        pool.call("ok next", "fast");
+        Assert.assertEquals(2, pool.getStartedWorkers());
+    }
+
+    @Test(timeout = 20000)
+    public void testWorkerExitIsRecovered() throws Exception {
+        Assert.assertEquals("bye", pool.call("quit", "fast").getStdOutput());
+        Assert.assertEquals("next", pool.call("ok next", "fast").getStdOutput());
+        Assert.assertEquals(2, pool.getStartedWorkers());
+    }
+
+    @Test(timeout = 20000)
+    public void testTimeoutKillsWorker() throws Exception {
+        try {
+            pool.call("hang", "slow");
+            Assert.fail();
+        } catch (ProcessTimeoutException e) {
+            Assert.assertEquals(0, pool.getIdleWorkers());
+        }
+        Assert.assertTrue(pool.call("ok next", "fast").isSuccess());
+        Assert.assertEquals(2, pool.getStartedWorkers());
+    }
+}
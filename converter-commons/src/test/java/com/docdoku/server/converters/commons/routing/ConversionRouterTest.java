@@ -0,0 +1,217 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.routing;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+public class ConversionRouterTest {
+
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    private Path dir;
+    private Path cadFile;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("router-test");
+        cadFile = Files.write(dir.resolve("part.stl"), new byte[4096]);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testFailingRouteFallsBack() throws Exception {
+        ConversionRouter router = new ConversionRouter("test",
+                ConversionRoute.inJvm("broken", (cad, tmp) -> {
+                    calls.add("broken");
+                    throw new CADConverter.ConversionException("Cannot read");
+                }, "stl"),
+                route("working", 0, "stl"));
+
+        Assert.assertNotNull(router.convert(cadFile.toUri(), dir.toUri()));
+        Assert.assertEquals(Arrays.asList("broken", "working"), calls);
+
+        // Still healthy after a single failure, then given up until its retry delay has passed
+        for (int i = 0; i < 3; i++) {
+            router.convert(cadFile.toUri(), dir.toUri());
+        }
+        calls.clear();
+        router.convert(cadFile.toUri(), dir.toUri());
+        Assert.assertEquals(Collections.singletonList("working"), calls);
+
+        RouteStats broken = router.getRouteStats().get(0);
+        Assert.assertEquals(4, broken.getFailures());
+        Assert.assertTrue(broken.getSuccessRate() < RouteStats.MIN_SUCCESS_RATE);
+        Assert.assertTrue(Double.isNaN(broken.getNanosPerKilobyte()));
+        Assert.assertTrue(broken.isHealthy(System.currentTimeMillis() + ConversionRouter.RETRY_AFTER_MILLIS,
+                ConversionRouter.RETRY_AFTER_MILLIS));
+    }
+
+    @Test
+    public void testCrashingRouteFallsBack() throws Exception {
+        ConversionRouter router = new ConversionRouter("test",
+                ConversionRoute.inJvm("crashing", (cad, tmp) -> {
+                    calls.add("crashing");
+                    throw new NumberFormatException("For input string: \"1.0.0\"");
+                }, "stl"),
+                route("working", 0, "stl"));
+
+        Assert.assertNotNull(router.convert(cadFile.toUri(), dir.toUri()));
+        Assert.assertEquals(Arrays.asList("crashing", "working"), calls);
+        Assert.assertEquals(1, router.getRouteStats().get(0).getFailures());
+    }
+
+    @Test
+    public void testFastestRouteIsPreferred() throws Exception {
+        ConversionRouter router = new ConversionRouter("test", route("slow", 50, "stl"), route("fast", 0, "stl"));
+
+        // Both are measured first, in declaration order
+        router.convert(cadFile.toUri(), dir.toUri());
+        router.convert(cadFile.toUri(), dir.toUri());
+        Assert.assertEquals(Arrays.asList("slow", "fast"), calls);
+
+        calls.clear();
+        router.convert(cadFile.toUri(), dir.toUri());
+        router.convert(cadFile.toUri(), dir.toUri());
+        Assert.assertEquals(Arrays.asList("fast", "fast"), calls);
+    }
+
+    @Test
+    public void testResultsAreCachedByRoute() throws Exception {
+        Properties conf = new Properties();
+        conf.setProperty(ConversionCache.CACHE_DIR, dir.resolve("cache").toString());
+        ConversionCache cache = ConversionCache.forConverter("router-test", conf);
+        ConversionRouter router = new ConversionRouter("test", writingRoute("slow", 50), writingRoute("fast", 0));
+
+        Assert.assertEquals("slow", convert(router, cache, "first"));
+        Assert.assertEquals("fast", convert(router, cache, "second"));
+        // The fast route is preferred, its own result is reused
+        Assert.assertEquals("fast", convert(router, cache, "third"));
+        Assert.assertEquals(Arrays.asList("slow", "fast"), calls);
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testAllRoutesFailing() {
+        ConversionRouter router = new ConversionRouter("test",
+                ConversionRoute.inJvm("first", (cad, tmp) -> {
+                    throw new CADConverter.ConversionException("first");
+                }, "stl"),
+                ConversionRoute.inJvm("second", (cad, tmp) -> {
+                    throw new CADConverter.ConversionException("second");
+                }, "stl"));
+        try {
+            router.convert(cadFile.toUri(), dir.toUri());
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertEquals("first", e.getMessage());
+            Assert.assertEquals("second", e.getSuppressed()[0].getMessage());
+        }
+    }
+
+    @Test
+    public void testToolsAreProbed() throws Exception {
+        ConversionRouter router = new ConversionRouter("test",
+                ConversionRoute.tool("missing", dir.resolve("meshconv").toString(), "meshconv -c obj",
+                        (cad, tmp) -> {
+                            throw new AssertionError("Not available");
+                        }, "stl", "3ds"),
+                route("native", 0, "stl"));
+
+        Assert.assertTrue(router.canConvert("3ds"));
+        Assert.assertFalse(router.canConvert("dae"));
+        Assert.assertEquals("native", router.getSettings());
+        Assert.assertFalse(router.getRouteStats().get(0).isAvailable());
+
+        router.convert(cadFile.toUri(), dir.toUri());
+        Assert.assertEquals(Collections.singletonList("native"), calls);
+
+        Path other = Files.write(dir.resolve("part.3ds"), new byte[1]);
+        try {
+            router.convert(other.toUri(), dir.toUri());
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertTrue(e.getMessage().contains("is not available"));
+        } finally {
+            Files.delete(other);
+        }
+    }
+
+    @Test
+    public void testProbeLooksUpThePath() {
+        if (Files.isExecutable(Paths.get("/bin/sh"))) {
+            Assert.assertTrue(ConversionRoute.tool("sh", "sh", "sh", null, "sh").probe());
+        }
+        Assert.assertFalse(ConversionRoute.tool("none", "no-such-tool-on-path", "", null, "x").probe());
+        Assert.assertFalse(ConversionRoute.tool("empty", "", "", null, "x").probe());
+    }
+
+    private String convert(ConversionRouter router, ConversionCache cache, String tmpDir) throws Exception {
+        Path tmp = Files.createDirectory(dir.resolve(tmpDir));
+        ConversionResult result = router.convert(cadFile.toUri(), tmp.toUri(), cache);
+        return new String(Files.readAllBytes(result.getConvertedFile()), StandardCharsets.US_ASCII);
+    }
+
+    private ConversionRoute writingRoute(String id, long sleepMillis) {
+        return ConversionRoute.inJvm(id, (cad, tmp) -> {
+            calls.add(id);
+            try {
+                Thread.sleep(sleepMillis);
+                return new ConversionResult(Files.write(Paths.get(tmp).resolve("part.obj"),
+                        id.getBytes(StandardCharsets.US_ASCII)));
+            } catch (InterruptedException | IOException e) {
+                throw new CADConverter.ConversionException(e);
+            }
+        }, "stl");
+    }
+
+    private ConversionRoute route(String id, long sleepMillis, String... extensions) {
+        return ConversionRoute.inJvm(id, (cad, tmp) -> {
+            calls.add(id);
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                throw new CADConverter.ConversionException(e);
+            }
+            return new ConversionResult(Paths.get(tmp).resolve(id + ".obj"));
+        }, extensions);
+    }
+}
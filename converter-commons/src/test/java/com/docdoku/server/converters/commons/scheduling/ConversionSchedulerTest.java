@@ -0,0 +1,259 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.scheduling;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConversionSchedulerTest {
+
+    private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+    private final List<Thread> threads = new ArrayList<>();
+
+    @Test
+    public void testInteractiveConversionsGoFirst() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("test", 1, new Properties());
+        scheduler.acquire("import", ConversionPriority.BULK);
+        for (int i = 1; i <= 3; i++) {
+            enqueue(scheduler, "import", ConversionPriority.BULK, "bulk" + i);
+        }
+        enqueue(scheduler, "design", ConversionPriority.INTERACTIVE, "interactive");
+
+        Assert.assertEquals(4, scheduler.getQueuedConversions());
+        Assert.assertEquals(Integer.valueOf(3), scheduler.getQueuedByPriority().get("BULK"));
+        Assert.assertEquals(Integer.valueOf(1), scheduler.getQueuedByPriority().get("INTERACTIVE"));
+        Assert.assertEquals(Integer.valueOf(3), scheduler.getQueuedByWorkspace().get("import"));
+
+        scheduler.release();
+        joinAll();
+        Assert.assertEquals(Arrays.asList("interactive", "bulk1", "bulk2", "bulk3"), order);
+        Assert.assertEquals(0, scheduler.getQueuedConversions());
+        Assert.assertEquals(0, scheduler.getRunningConversions());
+        Assert.assertEquals(4, scheduler.getPeakQueuedConversions());
+        Assert.assertEquals(5, scheduler.getStartedConversions());
+    }
+
+    @Test
+    public void testWorkspacesShareByWeight() throws Exception {
+        Properties conf = new Properties();
+        conf.setProperty(ConversionScheduler.WORKSPACE_WEIGHT + ".heavy", "3");
+        ConversionScheduler scheduler = new ConversionScheduler("test", 1, conf);
+        scheduler.acquire("other", ConversionPriority.BULK);
+        for (int i = 0; i < 4; i++) {
+            enqueue(scheduler, "light", ConversionPriority.BULK, "light");
+        }
+        for (int i = 0; i < 4; i++) {
+            enqueue(scheduler, "heavy", ConversionPriority.BULK, "heavy");
+        }
+
+        scheduler.release();
+        joinAll();
+        Assert.assertEquals(Arrays.asList("light", "heavy", "heavy", "heavy", "light", "heavy", "light", "light"),
+                order);
+    }
+
+    @Test
+    public void testLateWorkspaceIsServedNext() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("test", 1, new Properties());
+        scheduler.acquire("import", ConversionPriority.BULK);
+        CountDownLatch latch = new CountDownLatch(1);
+        enqueue(scheduler, "import", ConversionPriority.BULK, new CADConverterStub("import") {
+            @Override
+            public ConversionResult convert(URI cadFileUri, URI tmpDirUri) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return super.convert(cadFileUri, tmpDirUri);
+            }
+        });
+        enqueue(scheduler, "import", ConversionPriority.BULK, "import");
+        enqueue(scheduler, "import", ConversionPriority.BULK, "import");
+        scheduler.release();
+        // The first import now holds the slot
+        awaitQueued(scheduler, 2);
+        enqueue(scheduler, "late", ConversionPriority.BULK, "late");
+
+        latch.countDown();
+        joinAll();
+        Assert.assertEquals(Arrays.asList("import", "late", "import", "import"), order);
+    }
+
+    @Test
+    public void testConcurrencyIsBounded() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("test", 2, new Properties());
+        scheduler.acquire("a", ConversionPriority.BULK);
+        scheduler.acquire("a", ConversionPriority.BULK);
+        Assert.assertEquals(2, scheduler.getRunningConversions());
+        enqueue(scheduler, "b", ConversionPriority.INTERACTIVE, "b");
+        Assert.assertEquals(1, scheduler.getQueuedConversions());
+        scheduler.release();
+        joinAll();
+        Assert.assertEquals(Collections.singletonList("b"), order);
+        Assert.assertEquals(1, scheduler.getRunningConversions());
+        scheduler.release();
+        Assert.assertEquals(0, scheduler.getRunningConversions());
+    }
+
+    @Test
+    public void testInterruptedConversionLeavesTheQueue() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("test", 1, new Properties());
+        scheduler.acquire("a", ConversionPriority.INTERACTIVE);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CADConverter converter = converter("b");
+        Thread thread = new Thread(() -> {
+            try {
+                scheduler.convert(converter, URI.create("file:/part.stp"), URI.create("file:/tmp/"), "b",
+                        ConversionPriority.INTERACTIVE);
+            } catch (CADConverter.ConversionException e) {
+                failure.set(e);
+            }
+        });
+        thread.start();
+        awaitQueued(scheduler, 1);
+
+        thread.interrupt();
+        thread.join();
+        Assert.assertNotNull(failure.get());
+        Assert.assertEquals(0, scheduler.getQueuedConversions());
+        Assert.assertTrue(scheduler.getQueuedByWorkspace().isEmpty());
+        Assert.assertTrue(order.isEmpty());
+        scheduler.release();
+        Assert.assertEquals(0, scheduler.getRunningConversions());
+    }
+
+    @Test
+    public void testScheduledConverterUsesTheContext() throws Exception {
+        Properties conf = new Properties();
+        conf.setProperty(ConversionScheduler.MAX_CONCURRENT_CONVERSIONS, "1");
+        ConversionScheduler scheduler = ConversionScheduler.forConverter("scheduled-test", conf);
+        Assert.assertSame(scheduler, ConversionScheduler.forConverter("scheduled-test", new Properties()));
+        Assert.assertEquals(1, scheduler.getMaxConcurrentConversions());
+
+        ScheduledConverter scheduled = new ScheduledConverter(converter("converted"), scheduler);
+        Assert.assertTrue(scheduled.canConvertToOBJ("stp"));
+        scheduler.acquire("other", ConversionPriority.INTERACTIVE);
+        Thread thread = new Thread(() -> {
+            ConversionContext context = ConversionContext.open("import", ConversionPriority.BULK);
+            try {
+                scheduled.convert(URI.create("file:/part.stp"), URI.create("file:/tmp/"));
+            } catch (CADConverter.ConversionException e) {
+                throw new AssertionError(e);
+            } finally {
+                context.close();
+            }
+        });
+        thread.start();
+        awaitQueued(scheduler, 1);
+        Assert.assertEquals(Integer.valueOf(1), scheduler.getQueuedByPriority().get("BULK"));
+        Assert.assertEquals(Collections.singletonMap("import", 1), scheduler.getQueuedByWorkspace());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Assert.assertEquals(1, server.getAttribute(ConversionScheduler.objectName("scheduled-test"),
+                "QueuedConversions"));
+
+        scheduler.release();
+        thread.join();
+        Assert.assertEquals(Collections.singletonList("converted"), order);
+        Assert.assertEquals(ConversionPriority.INTERACTIVE, ConversionContext.current().getPriority());
+    }
+
+    private void enqueue(ConversionScheduler scheduler, String workspaceId, ConversionPriority priority,
+                         String label) throws InterruptedException {
+        enqueue(scheduler, workspaceId, priority, converter(label));
+    }
+
+    /**
+     * Start a thread queuing a conversion, and wait for it to be queued.
+     */
+    private void enqueue(ConversionScheduler scheduler, String workspaceId, ConversionPriority priority,
+                         CADConverter converter) throws InterruptedException {
+        int queued = scheduler.getQueuedConversions();
+        Thread thread = new Thread(() -> {
+            try {
+                scheduler.convert(converter, URI.create("file:/part.stp"), URI.create("file:/tmp/"), workspaceId,
+                        priority);
+            } catch (CADConverter.ConversionException e) {
+                throw new AssertionError(e);
+            }
+        });
+        threads.add(thread);
+        thread.start();
+        awaitQueued(scheduler, queued + 1);
+    }
+
+    private static void awaitQueued(ConversionScheduler scheduler, int queued) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getQueuedConversions() != queued) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void joinAll() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(5000);
+            Assert.assertFalse(thread.isAlive());
+        }
+    }
+
+    private CADConverter converter(String label) {
+        return new CADConverterStub(label);
+    }
+
+    /**
+     * Converter recording its label in the order of the conversions.
+     */
+    private class CADConverterStub implements CADConverter {
+
+        private final String label;
+
+        CADConverterStub(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public ConversionResult convert(URI cadFileUri, URI tmpDirUri) {
+            order.add(label);
+            return new ConversionResult(Paths.get("converted.obj"));
+        }
+
+        @Override
+        public boolean canConvertToOBJ(String cadFileExtension) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.scratch;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ScratchSpaceTest {
+
+    private static final String RESOURCE = "ScratchSpaceTest.class";
+
+    private Path root;
+
+    @Before
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("scratch-test");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(root);
+    }
+
+    @Test
+    public void testDirectoriesAreDeletedOnClose() throws Exception {
+        ScratchSpace space = new ScratchSpace(root, 1000, 0);
+        Path file;
+        try (ScratchDirectory directory = space.allocate("test", 400)) {
+            file = Files.write(directory.resolve("shard.obj"), new byte[10]);
+            Assert.assertEquals(400, space.getReservedBytes());
+            Assert.assertEquals(1, space.getLiveDirectories());
+        }
+        Assert.assertFalse(Files.exists(file.getParent()));
+        Assert.assertEquals(0, space.getReservedBytes());
+        Assert.assertEquals(0, space.getLiveDirectories());
+    }
+
+    @Test
+    public void testQuotaHoldsBackAllocations() throws Exception {
+        ScratchSpace space = new ScratchSpace(root, 1000, 5000);
+        ScratchDirectory first = space.allocate("test", 800);
+        Assert.assertNull(space.tryAllocate("test", 300));
+
+        AtomicReference<ScratchDirectory> second = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                second.set(space.allocate("test", 300));
+            } catch (IOException | InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (space.getWaitingAllocations() == 0) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        Assert.assertNull(second.get());
+
+        first.close();
+        thread.join();
+        Assert.assertNotNull(second.get());
+        Assert.assertEquals(300, space.getReservedBytes());
+        second.get().close();
+    }
+
+    @Test
+    public void testAllocationTimesOut() throws Exception {
+        ScratchSpace space = new ScratchSpace(root, 1000, 50);
+        try (ScratchDirectory directory = space.allocate("test", 5000)) {
+            // Larger than the quota, allowed alone
+            Assert.assertEquals(1000, directory.getReservedBytes());
+            try {
+                space.allocate("test", 1);
+                Assert.fail();
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().startsWith("No room in scratch space"));
+            }
+        }
+    }
+
+    @Test
+    public void testOrphanedDirectoriesAreReclaimed() throws Exception {
+        // A running server of the same scratch space
+        ScratchSpace other = new ScratchSpace(root, 1000, 0);
+        ScratchDirectory running = other.allocate("step", 10);
+        // Left behind by a crashed server, its lock file is no longer locked
+        Path orphan = Files.createDirectories(root.resolve("jobs").resolve("crashed.ifc.1"));
+        Files.write(orphan.resolve("shard.obj"), new byte[10]);
+        Path deadLock = root.resolve("owners").resolve("crashed.lock");
+        Files.createFile(deadLock);
+
+        ScratchSpace space = new ScratchSpace(root, 1000, 0);
+        space.allocate("test", 10).close();
+        Assert.assertFalse(Files.exists(orphan));
+        Assert.assertFalse(Files.exists(deadLock));
+        Assert.assertTrue(Files.exists(running.getPath()));
+        Assert.assertEquals(1, space.getReclaimedDirectories());
+        running.close();
+    }
+
+    @Test
+    public void testStagedFilesAreReused() throws Exception {
+        ScratchSpace space = new ScratchSpace(root, 1000, 0);
+        Path staged = space.stage(ScratchSpaceTest.class, RESOURCE);
+        Assert.assertTrue(staged.getFileName().toString().endsWith("-" + RESOURCE));
+        Assert.assertEquals(staged, space.stage(ScratchSpaceTest.class, RESOURCE));
+        // Same content, same file for another server
+        Assert.assertEquals(staged, new ScratchSpace(root, 1000, 0).stage(ScratchSpaceTest.class, RESOURCE));
+
+        Files.delete(staged);
+        Assert.assertEquals(staged, space.stage(ScratchSpaceTest.class, RESOURCE));
+        Assert.assertTrue(Files.exists(staged));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.commons.stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+
+public class StreamTransferTest {
+
+    @Test(timeout = 20000)
+    public void testCompressedCopyOfWrittenOutput() throws Exception {
+        byte[] line = "v 0.5 0.25 1.0\n".getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+
+        // Larger than the pipe buffer, the writer has to wait for the copy
+        try (StreamedOutput output = StreamedOutput.write("part.obj", channel -> {
+            for (int i = 0; i < 100000; i++) {
+                channel.write(ByteBuffer.wrap(line));
+            }
+        })) {
+            StreamTransfer.Summary summary = StreamTransfer.copy(output, stored, true);
+            for (int i = 0; i < 100000; i++) {
+                expected.write(line);
+            }
+            Assert.assertEquals("part.obj", summary.getName());
+            Assert.assertEquals(expected.size(), summary.getSize());
+            Assert.assertEquals(stored.size(), summary.getStoredSize());
+            Assert.assertTrue(summary.getStoredSize() < summary.getSize() / 10);
+            Assert.assertEquals(sha256(expected.toByteArray()), summary.getSha256());
+        }
+        Assert.assertArrayEquals(expected.toByteArray(), gunzip(stored.toByteArray()));
+    }
+
+    @Test(timeout = 20000)
+    public void testWriterFailureIsReportedOnCompletion() throws Exception {
+        try (StreamedOutput output = StreamedOutput.write("part.obj", channel -> {
+            channel.write(ByteBuffer.wrap("v 0 0 0\n".getBytes(StandardCharsets.US_ASCII)));
+            throw new IOException("Unexpected end of mesh");
+        })) {
+            StreamTransfer.copy(output, new ByteArrayOutputStream(), false);
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertEquals("Unexpected end of mesh", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testCopyOfFile() throws Exception {
+        Path file = Files.createTempFile("part", ".obj");
+        try {
+            Files.write(file, "v 0 0 0\n".getBytes(StandardCharsets.US_ASCII));
+            ByteArrayOutputStream stored = new ByteArrayOutputStream();
+            try (StreamedOutput output = StreamedOutput.of(file)) {
+                StreamTransfer.Summary summary = StreamTransfer.copy(output, stored, false);
+                Assert.assertEquals(file.getFileName().toString(), summary.getName());
+                Assert.assertEquals(8, summary.getStoredSize());
+            }
+            Assert.assertEquals("v 0 0 0\n", stored.toString("US-ASCII"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static String sha256(byte[] content) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = input.read(chunk)) != -1) {
+                content.write(chunk, 0, read);
+            }
+        }
+        return content.toByteArray();
+    }
+}
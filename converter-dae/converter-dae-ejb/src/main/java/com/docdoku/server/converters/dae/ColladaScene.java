@@ -0,0 +1,438 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.dae;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything of a COLLADA document but its geometries: the node hierarchy of
+ * the visual scene, the materials and their effects.
+ * <p>
+ * Read in a first streaming pass, so that the geometries can then be streamed
+ * with their instances already known, whatever the order of the libraries.
+ */
+class ColladaScene {
+
+    private static final int MAX_NODE_DEPTH = 256;
+
+    /**
+     * A geometry placed in the scene.
+     */
+    static class Placement {
+        private final String name;
+        private final double[] transform;
+        private final Map<String, String> materials;
+
+        Placement(String name, double[] transform, Map<String, String> materials) {
+            this.name = name;
+            this.transform = transform;
+            this.materials = materials;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the world transform, a row-major 4x4 matrix
+         */
+        double[] getTransform() {
+            return transform;
+        }
+
+        /**
+         * @return the material id bound to the given primitive material symbol
+         */
+        String getMaterial(String symbol) {
+            return symbol == null ? null : materials.getOrDefault(symbol, symbol);
+        }
+    }
+
+    static class Material {
+        private String name;
+        private String effect;
+        private float[] diffuse;
+        private String diffuseTexture;
+        private float[] specular;
+        private float shininess = -1;
+
+        String getName() {
+            return name;
+        }
+
+        float[] getDiffuse() {
+            return diffuse;
+        }
+
+        String getDiffuseTexture() {
+            return diffuseTexture;
+        }
+
+        float[] getSpecular() {
+            return specular;
+        }
+
+        float getShininess() {
+            return shininess;
+        }
+    }
+
+    private static class Effect {
+        private float[] diffuse;
+        private String diffuseTexture;
+        private float[] specular;
+        private float shininess = -1;
+        // sampler or surface sid to surface sid or image id
+        private final Map<String, String> params = new HashMap<>();
+    }
+
+    private static class Node {
+        private final String name;
+        private double[] matrix = Transforms.identity();
+        private final List<Node> children = new ArrayList<>();
+        private final List<String> instanceNodes = new ArrayList<>();
+        private final List<GeometryInstance> geometries = new ArrayList<>();
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class GeometryInstance {
+        private final String geometry;
+        private final Map<String, String> materials = new HashMap<>();
+
+        GeometryInstance(String geometry) {
+            this.geometry = geometry;
+        }
+    }
+
+    private String upAxis = "Y_UP";
+    private String sceneUrl;
+    private boolean skinned;
+    private final Map<String, List<Node>> visualScenes = new LinkedHashMap<>();
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final Map<String, Material> materials = new LinkedHashMap<>();
+    private final Map<String, Effect> effects = new HashMap<>();
+    private final Map<String, String> images = new HashMap<>();
+
+    static XMLStreamReader newReader(InputStream input) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory.createXMLStreamReader(input);
+    }
+
+    static ColladaScene read(Path daeFile) throws IOException, XMLStreamException {
+        ColladaScene scene = new ColladaScene();
+        try (InputStream input = Files.newInputStream(daeFile)) {
+            XMLStreamReader reader = newReader(input);
+            try {
+                scene.parse(reader);
+            } finally {
+                reader.close();
+            }
+        }
+        return scene;
+    }
+
+    /**
+     * @return the geometry placements of the instantiated visual scene, by geometry id
+     */
+    Map<String, List<Placement>> getPlacements() {
+        Map<String, List<Placement>> placements = new HashMap<>();
+        List<Node> roots = sceneUrl != null ? visualScenes.get(sceneUrl) : null;
+        if (roots == null && !visualScenes.isEmpty()) {
+            roots = visualScenes.values().iterator().next();
+        }
+        if (roots != null) {
+            double[] root = Transforms.upAxisToY(upAxis);
+            for (Node node : roots) {
+                place(node, root, placements, 0);
+            }
+        }
+        return placements;
+    }
+
+    Map<String, Material> getMaterials() {
+        for (Material material : materials.values()) {
+            Effect effect = material.effect != null ? effects.get(material.effect) : null;
+            if (effect != null) {
+                material.diffuse = effect.diffuse;
+                material.specular = effect.specular;
+                material.shininess = effect.shininess;
+                material.diffuseTexture = resolveTexture(effect, effect.diffuseTexture);
+            }
+        }
+        return materials;
+    }
+
+    /**
+     * @return true if the scene holds skinned or morphed meshes, which are not supported
+     */
+    boolean isSkinned() {
+        return skinned;
+    }
+
+    private void place(Node node, double[] parent, Map<String, List<Placement>> placements, int depth) {
+        if (depth > MAX_NODE_DEPTH) {
+            return;
+        }
+        double[] world = Transforms.multiply(parent, node.matrix);
+        for (GeometryInstance instance : node.geometries) {
+            placements.computeIfAbsent(instance.geometry, id -> new ArrayList<>())
+                    .add(new Placement(node.name, world, instance.materials));
+        }
+        for (Node child : node.children) {
+            place(child, world, placements, depth + 1);
+        }
+        for (String instanceNode : node.instanceNodes) {
+            Node instantiated = nodes.get(instanceNode);
+            if (instantiated != null) {
+                place(instantiated, world, placements, depth + 1);
+            }
+        }
+    }
+
+    private String resolveTexture(Effect effect, String texture) {
+        String reference = texture;
+        // texture -> sampler -> surface -> image, some exporters skip steps
+        for (int i = 0; i < 3 && reference != null && effect.params.containsKey(reference); i++) {
+            reference = effect.params.get(reference);
+        }
+        return reference == null ? null : images.getOrDefault(reference, null);
+    }
+
+    private void parse(XMLStreamReader reader) throws XMLStreamException {
+        Deque<String> path = new ArrayDeque<>();
+        Deque<Node> nodeStack = new ArrayDeque<>();
+        String visualScene = null;
+        Material material = null;
+        Effect effect = null;
+        String paramSid = null;
+        String image = null;
+        GeometryInstance geometryInstance = null;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = reader.getLocalName();
+                path.pop();
+                if ("node".equals(name)) {
+                    nodeStack.pop();
+                } else if ("instance_geometry".equals(name)) {
+                    geometryInstance = null;
+                }
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+
+            String name = reader.getLocalName();
+            String parent = path.peek();
+            path.push(name);
+
+            switch (name) {
+                case "library_geometries":
+                    // Streamed in the second pass
+                    skipElement(reader);
+                    path.pop();
+                    break;
+                case "up_axis":
+                    upAxis = reader.getElementText().trim();
+                    path.pop();
+                    break;
+                case "image":
+                    image = reader.getAttributeValue(null, "id");
+                    break;
+                case "init_from":
+                case "ref":
+                    String text = reader.getElementText().trim();
+                    path.pop();
+                    if (effect != null && paramSid != null) {
+                        effect.params.put(paramSid, text);
+                    } else if (image != null && !text.isEmpty()) {
+                        images.put(image, text);
+                    }
+                    break;
+                case "material":
+                    material = new Material();
+                    material.name = reader.getAttributeValue(null, "name");
+                    String id = reader.getAttributeValue(null, "id");
+                    if (material.name == null) {
+                        material.name = id;
+                    }
+                    if (id != null) {
+                        materials.put(id, material);
+                    }
+                    break;
+                case "instance_effect":
+                    if (material != null) {
+                        material.effect = stripHash(reader.getAttributeValue(null, "url"));
+                    }
+                    break;
+                case "effect":
+                    effect = new Effect();
+                    effects.put(reader.getAttributeValue(null, "id"), effect);
+                    break;
+                case "newparam":
+                    paramSid = reader.getAttributeValue(null, "sid");
+                    break;
+                case "source":
+                    // The surface of a sampler2D
+                    if (effect != null && paramSid != null) {
+                        effect.params.put(paramSid, reader.getElementText().trim());
+                        path.pop();
+                    }
+                    break;
+                case "color":
+                    if (effect != null && ("diffuse".equals(parent) || "specular".equals(parent))) {
+                        float[] color = parseFloats(reader.getElementText());
+                        path.pop();
+                        if ("diffuse".equals(parent)) {
+                            effect.diffuse = color;
+                        } else {
+                            effect.specular = color;
+                        }
+                    }
+                    break;
+                case "texture":
+                    if (effect != null && "diffuse".equals(parent)) {
+                        effect.diffuseTexture = reader.getAttributeValue(null, "texture");
+                    }
+                    break;
+                case "float":
+                    if (effect != null && "shininess".equals(parent)) {
+                        float[] shininess = parseFloats(reader.getElementText());
+                        path.pop();
+                        effect.shininess = shininess.length > 0 ? shininess[0] : -1;
+                    }
+                    break;
+                case "visual_scene":
+                    visualScene = reader.getAttributeValue(null, "id");
+                    visualScenes.put(visualScene, new ArrayList<>());
+                    break;
+                case "node":
+                    Node node = new Node(nodeName(reader));
+                    String nodeId = reader.getAttributeValue(null, "id");
+                    if (nodeId != null) {
+                        nodes.put(nodeId, node);
+                    }
+                    if (!nodeStack.isEmpty()) {
+                        nodeStack.peek().children.add(node);
+                    } else if (visualScene != null && "visual_scene".equals(parent)) {
+                        visualScenes.get(visualScene).add(node);
+                    }
+                    nodeStack.push(node);
+                    break;
+                case "matrix":
+                case "translate":
+                case "rotate":
+                case "scale":
+                    if ("node".equals(parent) && !nodeStack.isEmpty()) {
+                        Node current = nodeStack.peek();
+                        double[] transform = Transforms.of(name, parseFloats(reader.getElementText()));
+                        path.pop();
+                        current.matrix = Transforms.multiply(current.matrix, transform);
+                    }
+                    break;
+                case "instance_geometry":
+                    if (!nodeStack.isEmpty()) {
+                        geometryInstance = new GeometryInstance(stripHash(reader.getAttributeValue(null, "url")));
+                        nodeStack.peek().geometries.add(geometryInstance);
+                    }
+                    break;
+                case "instance_material":
+                    if (geometryInstance != null) {
+                        geometryInstance.materials.put(reader.getAttributeValue(null, "symbol"),
+                                stripHash(reader.getAttributeValue(null, "target")));
+                    }
+                    break;
+                case "instance_node":
+                    if (!nodeStack.isEmpty()) {
+                        nodeStack.peek().instanceNodes.add(stripHash(reader.getAttributeValue(null, "url")));
+                    }
+                    break;
+                case "instance_controller":
+                    skinned = true;
+                    break;
+                case "instance_visual_scene":
+                    sceneUrl = stripHash(reader.getAttributeValue(null, "url"));
+                    break;
+                default:
+                    break;
+            }
+
+            if ("library_images".equals(name) || "library_effects".equals(name)) {
+                image = null;
+                effect = null;
+            }
+        }
+    }
+
+    private static String nodeName(XMLStreamReader reader) {
+        String name = reader.getAttributeValue(null, "name");
+        if (name == null) {
+            name = reader.getAttributeValue(null, "id");
+        }
+        return name;
+    }
+
+    static String stripHash(String url) {
+        return url != null && url.startsWith("#") ? url.substring(1) : url;
+    }
+
+    static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static float[] parseFloats(String text) {
+        NumberListParser parser = new NumberListParser();
+        parser.startFloats(16);
+        char[] chars = text.toCharArray();
+        parser.feed(chars, 0, chars.length);
+        return parser.finishFloats();
+    }
+}
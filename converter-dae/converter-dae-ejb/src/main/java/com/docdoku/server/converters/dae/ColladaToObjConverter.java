@@ -0,0 +1,587 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.dae;
+
+import com.docdoku.server.converters.commons.mesh.ObjWriter;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts COLLADA documents to Wavefront OBJ and MTL files without building
+ * the whole document in memory.
+ * <p>
+ * A first StAX pass reads the scene graph and the materials, a second one
+ * streams <code>library_geometries</code>: the arrays of a geometry are parsed
+ * straight into primitive arrays, written once per instance of the geometry
+ * in the scene with the world transform applied, then dropped. Memory use is
+ * bounded by the largest geometry rather than by the document.
+ * <p>
+ * Triangles, polylists, polygons (holes ignored), triangle strips and fans are
+ * supported. Skinned models are rejected, they are left to assimp.
+ */
+class ColladaToObjConverter {
+
+    // Array sizes announced by the document are trusted up to this
+    private static final int MAX_PREALLOCATED = 1 << 22;
+
+    private enum PrimitiveType {
+        TRIANGLES, POLYLIST, POLYGONS, TRISTRIPS, TRIFANS
+    }
+
+    private static class Source {
+        private float[] data = new float[0];
+        private int stride = 1;
+
+        int size() {
+            return data.length / stride;
+        }
+    }
+
+    private static class Primitive {
+        private final PrimitiveType type;
+        private final String material;
+        private final NumberListParser indices = new NumberListParser();
+        private final NumberListParser counts = new NumberListParser();
+        private int stride;
+        private int vertexOffset = -1;
+        private int normalOffset = -1;
+        private String normalSource;
+        private int textureOffset = -1;
+        private String textureSource;
+        private int textureSet = Integer.MAX_VALUE;
+
+        Primitive(PrimitiveType type, String material) {
+            this.type = type;
+            this.material = material;
+            indices.startInts(1024, false);
+            counts.startInts(16, false);
+        }
+    }
+
+    private static class Geometry {
+        private final Map<String, Source> sources = new HashMap<>();
+        private final Map<String, String> vertexInputs = new HashMap<>();
+        private final List<Primitive> primitives = new ArrayList<>();
+    }
+
+    private final int[] triangle = new int[3];
+    private int[] polygon = new int[16];
+    private int[] cornerVertices = new int[16];
+    private int[] cornerTextures = new int[16];
+    private int[] cornerNormals = new int[16];
+
+    private int writtenVertices;
+    private int writtenTextures;
+    private int writtenNormals;
+    private long faces;
+
+    /**
+     * @return the number of faces written
+     * @throws IOException if the document cannot be converted by this converter
+     */
+    long convert(Path daeFile, Path objFile, Path mtlFile) throws IOException, XMLStreamException {
+        ColladaScene scene = ColladaScene.read(daeFile);
+        if (scene.isSkinned()) {
+            throw new IOException("Skinned meshes are not supported");
+        }
+        Map<String, List<ColladaScene.Placement>> placements = scene.getPlacements();
+        Map<String, ColladaScene.Material> materials = scene.getMaterials();
+
+        try (InputStream input = Files.newInputStream(daeFile);
+             ObjWriter writer = new ObjWriter(objFile)) {
+            if (!materials.isEmpty()) {
+                writer.statement("mtllib", mtlFile.getFileName().toString());
+            }
+            XMLStreamReader reader = ColladaScene.newReader(input);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT || !"geometry".equals(reader.getLocalName())) {
+                        continue;
+                    }
+                    String id = reader.getAttributeValue(null, "id");
+                    List<ColladaScene.Placement> instances = placements.get(id);
+                    if (instances == null) {
+                        ColladaScene.skipElement(reader);
+                        continue;
+                    }
+                    Geometry geometry = readGeometry(reader);
+                    for (ColladaScene.Placement placement : instances) {
+                        write(geometry, placement, materials, writer);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        if (faces == 0) {
+            throw new IOException("No supported geometry found");
+        }
+        if (!materials.isEmpty()) {
+            writeMaterials(materials.values(), mtlFile);
+        }
+        return faces;
+    }
+
+    private Geometry readGeometry(XMLStreamReader reader) throws XMLStreamException, IOException {
+        Geometry geometry = new Geometry();
+        Source source = null;
+        Primitive primitive = null;
+        boolean inVertices = false;
+        int depth = 1;
+
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                String name = reader.getLocalName();
+                if ("vertices".equals(name)) {
+                    inVertices = false;
+                } else if ("source".equals(name)) {
+                    source = null;
+                } else if (primitive != null && primitiveType(name) != null) {
+                    geometry.primitives.add(primitive);
+                    primitive = null;
+                }
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            depth++;
+            String name = reader.getLocalName();
+            PrimitiveType type = primitiveType(name);
+            if (type != null) {
+                primitive = new Primitive(type, reader.getAttributeValue(null, "material"));
+                continue;
+            }
+            switch (name) {
+                case "source":
+                    source = new Source();
+                    geometry.sources.put(reader.getAttributeValue(null, "id"), source);
+                    break;
+                case "float_array":
+                    if (source != null) {
+                        NumberListParser parser = new NumberListParser();
+                        int count = parseInt(reader.getAttributeValue(null, "count"), 16);
+                        parser.startFloats(Math.min(count, MAX_PREALLOCATED));
+                        readNumbers(reader, parser);
+                        source.data = parser.finishFloats();
+                        depth--;
+                    }
+                    break;
+                case "accessor":
+                    if (source != null) {
+                        source.stride = Math.max(1, parseInt(reader.getAttributeValue(null, "stride"), 1));
+                    }
+                    break;
+                case "vertices":
+                    inVertices = true;
+                    break;
+                case "input":
+                    String semantic = reader.getAttributeValue(null, "semantic");
+                    String sourceId = ColladaScene.stripHash(reader.getAttributeValue(null, "source"));
+                    if (inVertices) {
+                        geometry.vertexInputs.put(semantic, sourceId);
+                    } else if (primitive != null) {
+                        addInput(primitive, semantic, sourceId, parseInt(reader.getAttributeValue(null, "offset"), 0),
+                                parseInt(reader.getAttributeValue(null, "set"), 0));
+                    }
+                    break;
+                case "vcount":
+                    if (primitive != null) {
+                        readNumbers(reader, primitive.counts);
+                        depth--;
+                    }
+                    break;
+                case "p":
+                    if (primitive != null) {
+                        int before = primitive.indices.size();
+                        primitive.indices.startInts(0, true);
+                        readNumbers(reader, primitive.indices);
+                        depth--;
+                        primitive.indices.finishInts();
+                        if (primitive.type != PrimitiveType.TRIANGLES && primitive.type != PrimitiveType.POLYLIST) {
+                            // One polygon, strip or fan per p: remember its length
+                            primitive.counts.add(primitive.indices.size() - before);
+                        }
+                    }
+                    break;
+                case "h":
+                case "lines":
+                case "linestrips":
+                    // Holes of polygons and line primitives are not rendered
+                    ColladaScene.skipElement(reader);
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return geometry;
+    }
+
+    private static void addInput(Primitive primitive, String semantic, String source, int offset, int set) {
+        primitive.stride = Math.max(primitive.stride, offset + 1);
+        if ("VERTEX".equals(semantic)) {
+            primitive.vertexOffset = offset;
+        } else if ("NORMAL".equals(semantic)) {
+            primitive.normalOffset = offset;
+            primitive.normalSource = source;
+        } else if ("TEXCOORD".equals(semantic) && set < primitive.textureSet) {
+            primitive.textureOffset = offset;
+            primitive.textureSource = source;
+            primitive.textureSet = set;
+        }
+    }
+
+    private void write(Geometry geometry, ColladaScene.Placement placement,
+                       Map<String, ColladaScene.Material> materials, ObjWriter writer) throws IOException {
+        Source positions = geometry.sources.get(geometry.vertexInputs.get("POSITION"));
+        if (positions == null || geometry.primitives.isEmpty()) {
+            return;
+        }
+        double[] transform = placement.getTransform();
+        boolean mirrored = Transforms.determinant(transform) < 0;
+
+        writer.statement("o", placement.getName());
+        int vertexBase = writtenVertices;
+        writePositions(positions, transform, writer);
+        Map<String, Integer> normalBases = new HashMap<>();
+        Map<String, Integer> textureBases = new HashMap<>();
+
+        String currentMaterial = null;
+        for (Primitive primitive : geometry.primitives) {
+            if (primitive.vertexOffset < 0) {
+                continue;
+            }
+            // Normals and texture coordinates may also be given along with the positions
+            int normalOffset = primitive.normalOffset;
+            Source normals = geometry.sources.get(primitive.normalSource);
+            if (normals == null && geometry.vertexInputs.containsKey("NORMAL")) {
+                normalOffset = primitive.vertexOffset;
+                normals = geometry.sources.get(geometry.vertexInputs.get("NORMAL"));
+            }
+            int textureOffset = primitive.textureOffset;
+            Source textures = geometry.sources.get(primitive.textureSource);
+            if (textures == null && geometry.vertexInputs.containsKey("TEXCOORD")) {
+                textureOffset = primitive.vertexOffset;
+                textures = geometry.sources.get(geometry.vertexInputs.get("TEXCOORD"));
+            }
+
+            int normalBase = -1;
+            if (normals != null) {
+                Integer base = normalBases.get(primitive.normalSource);
+                if (base == null) {
+                    base = writtenNormals;
+                    writeNormals(normals, transform, writer);
+                    normalBases.put(primitive.normalSource, base);
+                }
+                normalBase = base;
+            }
+            int textureBase = -1;
+            if (textures != null) {
+                Integer base = textureBases.get(primitive.textureSource);
+                if (base == null) {
+                    base = writtenTextures;
+                    writeTextureCoordinates(textures, writer);
+                    textureBases.put(primitive.textureSource, base);
+                }
+                textureBase = base;
+            }
+
+            ColladaScene.Material material = materials.get(placement.getMaterial(primitive.material));
+            String materialName = material != null ? materialName(material) : null;
+            if (materialName != null && !materialName.equals(currentMaterial)) {
+                writer.statement("usemtl", materialName);
+                currentMaterial = materialName;
+            }
+
+            FaceIndices faceIndices = new FaceIndices(primitive, vertexBase, positions.size(),
+                    normalOffset, normalBase, normals != null ? normals.size() : 0,
+                    textureOffset, textureBase, textures != null ? textures.size() : 0, mirrored);
+            writeFaces(primitive, faceIndices, writer);
+        }
+    }
+
+    /**
+     * Translates the corners of a primitive to OBJ indices.
+     */
+    private class FaceIndices {
+        private final int[] p;
+        private final int stride;
+        private final int vertexOffset;
+        private final int vertexBase;
+        private final int vertexCount;
+        private final int normalOffset;
+        private final int normalBase;
+        private final int normalCount;
+        private final int textureOffset;
+        private final int textureBase;
+        private final int textureCount;
+        private final boolean reversed;
+
+        FaceIndices(Primitive primitive, int vertexBase, int vertexCount,
+                    int normalOffset, int normalBase, int normalCount,
+                    int textureOffset, int textureBase, int textureCount, boolean reversed) {
+            this.p = primitive.indices.finishInts();
+            this.stride = primitive.stride;
+            this.vertexOffset = primitive.vertexOffset;
+            this.vertexBase = vertexBase;
+            this.vertexCount = vertexCount;
+            this.normalOffset = normalOffset;
+            this.normalBase = normalBase;
+            this.normalCount = normalCount;
+            this.textureOffset = textureOffset;
+            this.textureBase = textureBase;
+            this.textureCount = textureCount;
+            this.reversed = reversed;
+        }
+
+        void face(ObjWriter writer, int[] corners, int count) throws IOException {
+            if (count < 3) {
+                return;
+            }
+            if (cornerVertices.length < count) {
+                cornerVertices = new int[count];
+                cornerTextures = new int[count];
+                cornerNormals = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = reversed ? count - 1 - i : i;
+                int corner = corners[i] * stride;
+                cornerVertices[slot] = vertexBase + index(p[corner + vertexOffset], vertexCount);
+                cornerTextures[slot] = textureBase < 0 ? -1
+                        : textureBase + index(p[corner + textureOffset], textureCount);
+                cornerNormals[slot] = normalBase < 0 ? -1 : normalBase + index(p[corner + normalOffset], normalCount);
+            }
+            writer.face(cornerVertices, cornerTextures, cornerNormals, 0, count);
+            faces++;
+        }
+
+        private int index(int value, int count) throws IOException {
+            if (value < 0 || value >= count) {
+                throw new IOException("Index " + value + " out of bounds, " + count + " elements");
+            }
+            return value;
+        }
+    }
+
+    private void writeFaces(Primitive primitive, FaceIndices indices, ObjWriter writer) throws IOException {
+        int cornerCount = primitive.indices.size() / Math.max(1, primitive.stride);
+        int[] counts = primitive.counts.finishInts();
+        int countSize = primitive.counts.size();
+
+        switch (primitive.type) {
+            case TRIANGLES:
+                for (int corner = 0; corner + 3 <= cornerCount; corner += 3) {
+                    writePolygon(indices, writer, corner, 3);
+                }
+                break;
+            case POLYLIST:
+            case POLYGONS:
+                int start = 0;
+                for (int i = 0; i < countSize; i++) {
+                    int count = primitive.type == PrimitiveType.POLYGONS ? counts[i] / primitive.stride : counts[i];
+                    if (start + count > cornerCount) {
+                        throw new IOException("Polygon counts exceed the indices");
+                    }
+                    writePolygon(indices, writer, start, count);
+                    start += count;
+                }
+                break;
+            case TRISTRIPS:
+            case TRIFANS:
+                int first = 0;
+                for (int i = 0; i < countSize; i++) {
+                    int count = counts[i] / primitive.stride;
+                    for (int j = 2; j < count; j++) {
+                        if (primitive.type == PrimitiveType.TRIFANS) {
+                            setTriangle(first, first + j - 1, first + j);
+                        } else if (j % 2 == 0) {
+                            setTriangle(first + j - 2, first + j - 1, first + j);
+                        } else {
+                            // Every other triangle of a strip is wound the other way
+                            setTriangle(first + j - 1, first + j - 2, first + j);
+                        }
+                        indices.face(writer, triangle, 3);
+                    }
+                    first += count;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void writePolygon(FaceIndices indices, ObjWriter writer, int start, int count) throws IOException {
+        if (polygon.length < count) {
+            polygon = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            polygon[i] = start + i;
+        }
+        indices.face(writer, polygon, count);
+    }
+
+    private void setTriangle(int a, int b, int c) {
+        triangle[0] = a;
+        triangle[1] = b;
+        triangle[2] = c;
+    }
+
+    private void writePositions(Source positions, double[] m, ObjWriter writer) throws IOException {
+        float[] data = positions.data;
+        int stride = positions.stride;
+        if (stride < 3) {
+            throw new IOException("Positions must have 3 components");
+        }
+        for (int i = 0; i + 2 < data.length; i += stride) {
+            double x = data[i];
+            double y = data[i + 1];
+            double z = data[i + 2];
+            writer.vertex((float) (m[0] * x + m[1] * y + m[2] * z + m[3]),
+                    (float) (m[4] * x + m[5] * y + m[6] * z + m[7]),
+                    (float) (m[8] * x + m[9] * y + m[10] * z + m[11]));
+            writtenVertices++;
+        }
+    }
+
+    private void writeNormals(Source normals, double[] transform, ObjWriter writer) throws IOException {
+        float[] data = normals.data;
+        int stride = normals.stride;
+        if (stride < 3) {
+            throw new IOException("Normals must have 3 components");
+        }
+        double[] m = Transforms.normalMatrix(transform);
+        for (int i = 0; i + 2 < data.length; i += stride) {
+            double x = data[i];
+            double y = data[i + 1];
+            double z = data[i + 2];
+            double nx = m[0] * x + m[1] * y + m[2] * z;
+            double ny = m[3] * x + m[4] * y + m[5] * z;
+            double nz = m[6] * x + m[7] * y + m[8] * z;
+            double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length > 0) {
+                nx /= length;
+                ny /= length;
+                nz /= length;
+            }
+            writer.normal((float) nx, (float) ny, (float) nz);
+            writtenNormals++;
+        }
+    }
+
+    private void writeTextureCoordinates(Source textures, ObjWriter writer) throws IOException {
+        float[] data = textures.data;
+        int stride = textures.stride;
+        for (int i = 0; i < data.length; i += stride) {
+            writer.textureCoordinate(data[i], stride > 1 && i + 1 < data.length ? data[i + 1] : 0f);
+            writtenTextures++;
+        }
+    }
+
+    private static void writeMaterials(Iterable<ColladaScene.Material> materials, Path mtlFile) throws IOException {
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(mtlFile, StandardCharsets.UTF_8))) {
+            for (ColladaScene.Material material : materials) {
+                writer.write("newmtl " + materialName(material) + "\n");
+                float[] diffuse = material.getDiffuse();
+                if (diffuse != null && diffuse.length >= 3) {
+                    writer.write("Kd " + diffuse[0] + " " + diffuse[1] + " " + diffuse[2] + "\n");
+                } else {
+                    writer.write(material.getDiffuseTexture() != null ? "Kd 1 1 1\n" : "Kd 0.8 0.8 0.8\n");
+                }
+                float[] specular = material.getSpecular();
+                if (specular != null && specular.length >= 3) {
+                    writer.write("Ks " + specular[0] + " " + specular[1] + " " + specular[2] + "\n");
+                }
+                if (material.getShininess() >= 0) {
+                    writer.write("Ns " + material.getShininess() + "\n");
+                }
+                if (material.getDiffuseTexture() != null) {
+                    writer.write("map_Kd " + material.getDiffuseTexture() + "\n");
+                }
+                writer.write("\n");
+            }
+        }
+    }
+
+    private static String materialName(ColladaScene.Material material) {
+        // Material names end at the first white space in OBJ files
+        return material.getName().trim().replaceAll("\\s+", "_");
+    }
+
+    private static PrimitiveType primitiveType(String element) {
+        switch (element) {
+            case "triangles":
+                return PrimitiveType.TRIANGLES;
+            case "polylist":
+                return PrimitiveType.POLYLIST;
+            case "polygons":
+                return PrimitiveType.POLYGONS;
+            case "tristrips":
+                return PrimitiveType.TRISTRIPS;
+            case "trifans":
+                return PrimitiveType.TRIFANS;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Feed the text of the current element to the parser, up to its end tag.
+     */
+    private static void readNumbers(XMLStreamReader reader, NumberListParser parser) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                parser.feed(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -22,11 +22,18 @@ package com.docdoku.server.converters.dae;
 
 
 
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import com.docdoku.server.converters.commons.process.ProcessResult;
+import com.docdoku.server.converters.commons.process.ProcessRunner;
+import com.docdoku.server.converters.commons.routing.ConversionRoute;
+import com.docdoku.server.converters.commons.routing.ConversionRouter;
+import com.docdoku.server.converters.commons.scheduling.ConversionScheduler;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
 import javax.ejb.Stateless;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -53,52 +60,81 @@ public class DaeFileConverterImpl implements CADConverter {
         }
     }
 
+    private static final ProcessRunner PROCESS_RUNNER = ProcessRunner.forTool("assimp", CONF);
+    private static final ConversionCache CONVERSION_CACHE = ConversionCache.forConverter("dae", CONF);
+    private static final ConversionScheduler SCHEDULER = ConversionScheduler.forConverter("dae", CONF);
+
+    private static final ConversionRouter ROUTER = new ConversionRouter("dae", routes());
+
+    private static ConversionRoute[] routes() {
+        List<ConversionRoute> routes = new ArrayList<>();
+        if (Boolean.parseBoolean(CONF.getProperty("native_dae", "true"))) {
+            routes.add(ConversionRoute.inJvm("native-dae", DaeFileConverterImpl::convertDae, "dae"));
+        }
+        String assimp = CONF.getProperty("assimp");
+        routes.add(ConversionRoute.tool("assimp", assimp, assimp + " export", DaeFileConverterImpl::convertWithAssimp,
+                "dxf", "dae", "lwo", "x", "ac", "cob", "scn", "ms3d"));
+        return routes.toArray(new ConversionRoute[0]);
+    }
+
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
+        return SCHEDULER.convert(cadFileUri, tmpDirUri, (cad, tmp) -> ROUTER.convert(cad, tmp, CONVERSION_CACHE));
+    }
 
-        Path tmpDir = Paths.get(tmpDirUri);
+    private static ConversionResult convertDae(final URI cadFileUri, final URI tmpDirUri)
+            throws ConversionException {
         Path tmpCadFile = Paths.get(cadFileUri);
+        Path tmpDir = Paths.get(tmpDirUri);
+        UUID uuid = UUID.randomUUID();
+        Path convertedFile = tmpDir.resolve(uuid + ".obj");
+        Path convertedMtlFile = tmpDir.resolve(uuid + ".obj.mtl");
+        try {
+            long faces = new ColladaToObjConverter().convert(tmpCadFile, convertedFile, convertedMtlFile);
+            LOGGER.log(Level.FINE, "{0} converted in-JVM, {1} faces", new Object[]{tmpCadFile, faces});
+            List<Path> materials = new ArrayList<>();
+            if (Files.exists(convertedMtlFile)) {
+                materials.add(convertedMtlFile);
+            }
+            return new ConversionResult(convertedFile, materials);
+        } catch (IOException | XMLStreamException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(convertedFile);
+                Files.deleteIfExists(convertedMtlFile);
+            } catch (IOException deleteError) {
+                LOGGER.log(Level.FINE, null, deleteError);
+            }
+            throw new ConversionException("Cannot read " + tmpCadFile, e);
+        }
+    }
 
-        String assimp = CONF.getProperty("assimp");
-        Path executable = Paths.get(assimp);
-
-        // Sanity checks
+    private static ConversionResult convertWithAssimp(final URI cadFileUri, final URI tmpDirUri)
+            throws ConversionException {
 
-        if (!Files.exists(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + assimp + "\" is not available");
-        }
+        Path tmpDir = Paths.get(tmpDirUri);
+        Path tmpCadFile = Paths.get(cadFileUri);
 
-        if (!Files.isExecutable(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + assimp + "\" has no execution rights");
-        }
+        // The executable was probed by the router
+        String assimp = CONF.getProperty("assimp");
 
         UUID uuid = UUID.randomUUID();
         Path convertedFile = tmpDir.resolve(uuid + ".obj");
         Path convertedMtlFile = tmpDir.resolve(uuid + ".obj.mtl");
 
         String[] args = {assimp, "export", tmpCadFile.toAbsolutePath().toString(), convertedFile.toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
         try {
-            Process process = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(process.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(process.getErrorStream());
-
-            LOGGER.info(stdOutput);
+            ProcessResult result = PROCESS_RUNNER.run(args, ConverterFiles.getExtension(tmpCadFile));
 
-            process.waitFor();
+            LOGGER.info(result.getStdOutput());
 
-            if (process.exitValue() == 0) {
+            if (result.isSuccess()) {
                 List<Path> materials = new ArrayList<>();
                 materials.add(convertedMtlFile);
                 return new ConversionResult(convertedFile, materials);
             } else {
                 throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + result.getErrorOutput());
             }
         } catch (IOException | InterruptedException e) {
             LOGGER.log(Level.SEVERE, null, e);
@@ -108,7 +144,7 @@ public class DaeFileConverterImpl implements CADConverter {
 
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return Arrays.asList("dxf", "dae", "lwo", "x", "ac", "cob", "scn", "ms3d").contains(cadFileExtension);
+        return ROUTER.canConvert(cadFileExtension);
     }
 
 }
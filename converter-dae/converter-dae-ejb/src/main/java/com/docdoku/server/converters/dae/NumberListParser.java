@@ -0,0 +1,218 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.dae;
+
+import java.util.Arrays;
+
+/**
+ * Parses the whitespace separated numbers of COLLADA arrays (<code>float_array</code>,
+ * <code>p</code>, <code>vcount</code>...) from the character chunks given by
+ * the StAX parser, straight into primitive arrays.
+ * <p>
+ * Numbers may be split across chunks; no string is created for the common
+ * decimal notations.
+ */
+class NumberListParser {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final char[] token = new char[64];
+    private int tokenLength;
+    private boolean integers;
+
+    private float[] floats = new float[0];
+    private int[] ints = new int[0];
+    private int size;
+
+    void startFloats(int expectedSize) {
+        integers = false;
+        floats = new float[Math.max(expectedSize, 16)];
+        size = 0;
+        tokenLength = 0;
+    }
+
+    /**
+     * Start a list of integers, appended to the ones already parsed if <code>append</code> is set.
+     */
+    void startInts(int expectedSize, boolean append) {
+        integers = true;
+        if (!append) {
+            ints = new int[Math.max(expectedSize, 16)];
+            size = 0;
+        }
+        tokenLength = 0;
+    }
+
+    void feed(char[] text, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            char c = text[i];
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                flush();
+            } else if (tokenLength < token.length) {
+                token[tokenLength++] = c;
+            }
+        }
+    }
+
+    /**
+     * Append an integer to the list being parsed.
+     */
+    void add(int value) {
+        flush();
+        if (size == ints.length) {
+            ints = Arrays.copyOf(ints, size + (size >> 1) + 16);
+        }
+        ints[size++] = value;
+    }
+
+    /**
+     * @return the parsed floats, the array is exactly sized
+     */
+    float[] finishFloats() {
+        flush();
+        return size == floats.length ? floats : Arrays.copyOf(floats, size);
+    }
+
+    /**
+     * @return the integers parsed since the last non appending start, the array may be larger
+     */
+    int[] finishInts() {
+        flush();
+        return ints;
+    }
+
+    /**
+     * @return the number of values parsed
+     */
+    int size() {
+        return size;
+    }
+
+    private void flush() {
+        if (tokenLength == 0) {
+            return;
+        }
+        if (integers) {
+            if (size == ints.length) {
+                ints = Arrays.copyOf(ints, size + (size >> 1) + 16);
+            }
+            ints[size++] = (int) parseLong();
+        } else {
+            if (size == floats.length) {
+                floats = Arrays.copyOf(floats, size + (size >> 1) + 16);
+            }
+            floats[size++] = (float) parseDouble();
+        }
+        tokenLength = 0;
+    }
+
+    private long parseLong() {
+        int i = 0;
+        boolean negative = token[0] == '-';
+        if (negative || token[0] == '+') {
+            i++;
+        }
+        long value = 0;
+        for (; i < tokenLength; i++) {
+            char c = token[i];
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Invalid integer " + new String(token, 0, tokenLength));
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private double parseDouble() {
+        int i = 0;
+        boolean negative = token[0] == '-';
+        if (negative || token[0] == '+') {
+            i++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean seenDigit = false;
+        boolean fraction = false;
+        for (; i < tokenLength; i++) {
+            char c = token[i];
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else if (!fraction) {
+                    exponent++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (i < tokenLength && seenDigit && (token[i] == 'e' || token[i] == 'E')) {
+            i++;
+            boolean negativeExponent = i < tokenLength && token[i] == '-';
+            if (i < tokenLength && (token[i] == '-' || token[i] == '+')) {
+                i++;
+            }
+            int explicitExponent = 0;
+            int exponentStart = i;
+            for (; i < tokenLength && token[i] >= '0' && token[i] <= '9'; i++) {
+                if (explicitExponent < 10000) {
+                    explicitExponent = explicitExponent * 10 + (token[i] - '0');
+                }
+            }
+            if (i == exponentStart) {
+                return slowParse();
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (!seenDigit || i < tokenLength) {
+            // NaN, INF and other spellings
+            return slowParse();
+        }
+
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value / Math.pow(10, -exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    private double slowParse() {
+        String text = new String(token, 0, tokenLength);
+        if (text.toUpperCase().contains("INF")) {
+            return text.startsWith("-") ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        return Double.parseDouble(text);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.dae;
+
+/**
+ * Row-major 4x4 matrices of the COLLADA node transforms.
+ */
+final class Transforms {
+
+    private Transforms() {
+    }
+
+    static double[] identity() {
+        return new double[]{
+                1, 0, 0, 0,
+                0, 1, 0, 0,
+                0, 0, 1, 0,
+                0, 0, 0, 1
+        };
+    }
+
+    /**
+     * @param element <code>matrix</code>, <code>translate</code>, <code>rotate</code> or <code>scale</code>
+     * @param values  the content of the element
+     */
+    static double[] of(String element, float[] values) {
+        double[] m = identity();
+        switch (element) {
+            case "matrix":
+                if (values.length >= 16) {
+                    for (int i = 0; i < 16; i++) {
+                        m[i] = values[i];
+                    }
+                }
+                break;
+            case "translate":
+                if (values.length >= 3) {
+                    m[3] = values[0];
+                    m[7] = values[1];
+                    m[11] = values[2];
+                }
+                break;
+            case "scale":
+                if (values.length >= 3) {
+                    m[0] = values[0];
+                    m[5] = values[1];
+                    m[10] = values[2];
+                }
+                break;
+            case "rotate":
+                if (values.length >= 4) {
+                    rotation(m, values[0], values[1], values[2], Math.toRadians(values[3]));
+                }
+                break;
+            default:
+                break;
+        }
+        return m;
+    }
+
+    /**
+     * @return the transform bringing a model of the given <code>up_axis</code> to the Y up convention of OBJ viewers
+     */
+    static double[] upAxisToY(String upAxis) {
+        double[] m = identity();
+        if ("Z_UP".equals(upAxis)) {
+            // (x, y, z) -> (x, z, -y)
+            m[5] = 0;
+            m[6] = 1;
+            m[9] = -1;
+            m[10] = 0;
+        } else if ("X_UP".equals(upAxis)) {
+            // (x, y, z) -> (-y, x, z)
+            m[0] = 0;
+            m[1] = -1;
+            m[4] = 1;
+            m[5] = 0;
+        }
+        return m;
+    }
+
+    static double[] multiply(double[] a, double[] b) {
+        double[] m = new double[16];
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 4; column++) {
+                double sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += a[row * 4 + k] * b[k * 4 + column];
+                }
+                m[row * 4 + column] = sum;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @return the inverse transpose of the upper 3x3 part, row-major, to transform normals
+     */
+    static double[] normalMatrix(double[] m) {
+        double a = m[0], b = m[1], c = m[2];
+        double d = m[4], e = m[5], f = m[6];
+        double g = m[8], h = m[9], i = m[10];
+        double det = determinant(m);
+        if (det == 0) {
+            return new double[]{a, b, c, d, e, f, g, h, i};
+        }
+        // Cofactor matrix divided by the determinant: the inverse transposed
+        return new double[]{
+                (e * i - f * h) / det, (f * g - d * i) / det, (d * h - e * g) / det,
+                (c * h - b * i) / det, (a * i - c * g) / det, (b * g - a * h) / det,
+                (b * f - c * e) / det, (c * d - a * f) / det, (a * e - b * d) / det
+        };
+    }
+
+    /**
+     * @return the determinant of the upper 3x3 part, negative if the transform mirrors the model
+     */
+    static double determinant(double[] m) {
+        return m[0] * (m[5] * m[10] - m[6] * m[9])
+                - m[1] * (m[4] * m[10] - m[6] * m[8])
+                + m[2] * (m[4] * m[9] - m[5] * m[8]);
+    }
+
+    private static void rotation(double[] m, double x, double y, double z, double angle) {
+        double length = Math.sqrt(x * x + y * y + z * z);
+        if (length == 0) {
+            return;
+        }
+        x /= length;
+        y /= length;
+        z /= length;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        double t = 1 - cos;
+        m[0] = t * x * x + cos;
+        m[1] = t * x * y - sin * z;
+        m[2] = t * x * z + sin * y;
+        m[4] = t * x * y + sin * z;
+        m[5] = t * y * y + cos;
+        m[6] = t * y * z - sin * x;
+        m[8] = t * x * z - sin * y;
+        m[9] = t * y * z + sin * x;
+        m[10] = t * z * z + cos;
+    }
+}
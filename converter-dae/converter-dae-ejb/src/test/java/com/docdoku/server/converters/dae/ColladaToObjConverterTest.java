@@ -0,0 +1,128 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.dae;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class ColladaToObjConverterTest {
+
+    // A unit quad as a polylist, placed twice through a library node, Z up
+    private static final String INSTANCED_QUAD = "<?xml version=\"1.0\"?>\n"
+            + "<COLLADA xmlns=\"http://www.collada.org/2005/11/COLLADASchema\" version=\"1.4.1\">\n"
+            + "<asset><up_axis>Z_UP</up_axis></asset>\n"
+            + "<library_visual_scenes><visual_scene id=\"scene\">\n"
+            + "  <node name=\"first\"><instance_node url=\"#quad_node\"/></node>\n"
+            + "  <node name=\"second\"><translate>10 0 0</translate><scale>-1 1 1</scale>"
+            + "<instance_node url=\"#quad_node\"/></node>\n"
+            + "</visual_scene></library_visual_scenes>\n"
+            + "<library_nodes><node id=\"quad_node\" name=\"quad\">\n"
+            + "  <instance_geometry url=\"#quad\"><bind_material><technique_common>"
+            + "<instance_material symbol=\"mat\" target=\"#red\"/></technique_common></bind_material>"
+            + "</instance_geometry>\n"
+            + "</node></library_nodes>\n"
+            + "<library_geometries><geometry id=\"quad\"><mesh>\n"
+            + "  <source id=\"quad-pos\"><float_array id=\"quad-pos-array\" count=\"12\">"
+            + "0 0 0  1 0 0  1 1 0  0 1 0</float_array>"
+            + "<technique_common><accessor source=\"#quad-pos-array\" count=\"4\" stride=\"3\"/></technique_common>"
+            + "</source>\n"
+            + "  <vertices id=\"quad-vtx\"><input semantic=\"POSITION\" source=\"#quad-pos\"/></vertices>\n"
+            + "  <polylist count=\"1\" material=\"mat\"><input semantic=\"VERTEX\" source=\"#quad-vtx\" offset=\"0\"/>"
+            + "<vcount>4</vcount><p>0 1 2 3</p></polylist>\n"
+            + "</mesh></geometry></library_geometries>\n"
+            + "<library_materials><material id=\"red\" name=\"Red paint\"><instance_effect url=\"#red-fx\"/>"
+            + "</material></library_materials>\n"
+            + "<library_effects><effect id=\"red-fx\"><profile_COMMON><technique sid=\"common\"><lambert>"
+            + "<diffuse><color>1 0 0 1</color></diffuse></lambert></technique></profile_COMMON></effect>"
+            + "</library_effects>\n"
+            + "<scene><instance_visual_scene url=\"#scene\"/></scene>\n"
+            + "</COLLADA>\n";
+
+    private Path dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("collada-test");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        ConverterFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testConvertSketchUpExport() throws Exception {
+        Path obj = dir.resolve("good.obj");
+        Path mtl = dir.resolve("good.obj.mtl");
+        long faces = new ColladaToObjConverter().convert(Paths.get("src/test/resources/good/good.dae"), obj, mtl);
+
+        Assert.assertTrue(faces > 0);
+        List<String> lines = Files.readAllLines(obj, StandardCharsets.UTF_8);
+        Assert.assertEquals("mtllib good.obj.mtl", lines.get(0));
+        Assert.assertEquals(faces, lines.stream().filter(line -> line.startsWith("f ")).count());
+        Assert.assertTrue(lines.contains("usemtl material_0_0"));
+        Assert.assertTrue(Files.readAllLines(mtl, StandardCharsets.UTF_8).contains("newmtl material_0_0"));
+    }
+
+    @Test
+    public void testTransformsAndUpAxis() throws Exception {
+        Path dae = Files.write(dir.resolve("quad.dae"), INSTANCED_QUAD.getBytes(StandardCharsets.UTF_8));
+        Path obj = dir.resolve("quad.obj");
+        Path mtl = dir.resolve("quad.obj.mtl");
+
+        Assert.assertEquals(2, new ColladaToObjConverter().convert(dae, obj, mtl));
+
+        List<String> lines = Files.readAllLines(obj, StandardCharsets.UTF_8);
+        List<String> vertices = lines.stream().filter(line -> line.startsWith("v ")).collect(Collectors.toList());
+        List<String> faces = lines.stream().filter(line -> line.startsWith("f ")).collect(Collectors.toList());
+        // (x, y, z) becomes (x, z, -y)
+        Assert.assertEquals("v 1 0 -1", vertices.get(2));
+        // Mirrored and moved along x
+        Assert.assertEquals("v 9 0 0", vertices.get(5));
+        Assert.assertEquals("f 1 2 3 4", faces.get(0));
+        // The mirrored instance is wound the other way to keep facing outwards
+        Assert.assertEquals("f 8 7 6 5", faces.get(1));
+        Assert.assertTrue(lines.contains("usemtl Red_paint"));
+
+        List<String> materials = Files.readAllLines(mtl, StandardCharsets.UTF_8);
+        Assert.assertTrue(materials.contains("newmtl Red_paint"));
+        Assert.assertTrue(materials.contains("Kd 1.0 0.0 0.0"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testSkinnedModelsAreRejected() throws Exception {
+        String skinned = INSTANCED_QUAD.replace("<instance_node url=\"#quad_node\"/></node>\n  <node",
+                "<instance_controller url=\"#skin\"/></node>\n  <node");
+        Path dae = Files.write(dir.resolve("skinned.dae"), skinned.getBytes(StandardCharsets.UTF_8));
+        new ColladaToObjConverter().convert(dae, dir.resolve("skinned.obj"), dir.resolve("skinned.obj.mtl"));
+    }
+}
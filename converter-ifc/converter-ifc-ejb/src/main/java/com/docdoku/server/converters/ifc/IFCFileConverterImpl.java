@@ -20,9 +20,23 @@
 
 package com.docdoku.server.converters.ifc;
 
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TessellationProfile;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import com.docdoku.server.converters.commons.cache.PreviewThenRefine;
+import com.docdoku.server.converters.commons.incremental.BodyCache;
+import com.docdoku.server.converters.commons.incremental.IncrementalAssembly;
+import com.docdoku.server.converters.commons.mesh.ObjGroupSplitter;
+import com.docdoku.server.converters.commons.mesh.ObjMerger;
+import com.docdoku.server.converters.commons.process.ProcessResult;
+import com.docdoku.server.converters.commons.process.ProcessRunner;
+import com.docdoku.server.converters.commons.routing.ConversionRoute;
+import com.docdoku.server.converters.commons.routing.ConversionRouter;
+import com.docdoku.server.converters.commons.scheduling.ConversionScheduler;
+import com.docdoku.server.converters.commons.scratch.ScratchDirectory;
+import com.docdoku.server.converters.commons.scratch.ScratchSpace;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
 import javax.ejb.Stateless;
 import java.io.IOException;
@@ -32,6 +46,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,64 +69,322 @@ public class IFCFileConverterImpl implements CADConverter {
         }
     }
 
+    private static final ProcessRunner PROCESS_RUNNER = ProcessRunner.forTool("ifcconvert", CONF);
+    private static final ConversionCache CONVERSION_CACHE = ConversionCache.forConverter("ifc", CONF);
+    private static final ConversionScheduler SCHEDULER = ConversionScheduler.forConverter("ifc", CONF);
+    private static final PreviewThenRefine PREVIEW_THEN_REFINE = new PreviewThenRefine(CONVERSION_CACHE, CONF);
+    private static final ScratchSpace SCRATCH_SPACE = ScratchSpace.of(CONF);
+    // Shard outputs are usually several times larger than the model
+    private static final long SHARD_RESERVATION_FACTOR = 4;
+    // Beyond this share of changed bodies, the whole model is converted
+    private static final double INCREMENTAL_MAX_CHANGED_RATIO = 0.5;
+    // Keeps the GlobalId filters within the command line limits
+    private static final int INCREMENTAL_MAX_FILTERED_BODIES = 4096;
+
+    private static final ExecutorService SHARD_RUNNERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ifc-shard");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final String SETTINGS = CONF.getProperty("ifc_convert_path") + " --sew-shells";
+    // Stitched and merged outputs differ from whole model ones, cached results must not be mixed
+    private static final String CACHE_SETTINGS = SETTINGS
+            + " incremental=" + Boolean.parseBoolean(CONF.getProperty("incremental_conversion", "false"))
+            + " sharding=" + Boolean.parseBoolean(CONF.getProperty("sharding", "false"))
+            + "/" + getMaxShards() + "/" + parseLong(CONF.getProperty("sharding_min_size"), 20);
+    // IfcConvert is probed once, not on every conversion
+    private static final ConversionRouter ROUTER = new ConversionRouter("ifc",
+            ConversionRoute.tool("ifcconvert", CONF.getProperty("ifc_convert_path"), CACHE_SETTINGS,
+                    (cadFileUri, tmpDirUri) -> PREVIEW_THEN_REFINE.convert(cadFileUri, tmpDirUri, CACHE_SETTINGS,
+                            IFCFileConverterImpl::convertWithIfcConvert), "ifc"));
+
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
+        return SCHEDULER.convert(cadFileUri, tmpDirUri, ROUTER::convert);
+    }
+
+    private static ConversionResult convertWithIfcConvert(final URI cadFileUri, final URI tmpDirUri,
+                                                          final TessellationProfile profile)
+            throws ConversionException {
         Path tmpDir = Paths.get(tmpDirUri);
         Path tmpCadFile = Paths.get(cadFileUri);
 
-        String ifcConverter = CONF.getProperty("ifc_convert_path");
-        Path executable = Paths.get(ifcConverter);
-
-        // Sanity checks
-
-        if (!Files.exists(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + ifcConverter + "\" is not available");
-        }
-
-        if (!Files.isExecutable(executable)) {
-            throw new ConversionException("Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + ifcConverter
-                    + "\" has no execution rights");
-        }
-
         UUID uuid = UUID.randomUUID();
         // String extension = FileIO.getExtension(cadFile.getName());
 
         Path convertedFile = tmpDir.resolve(uuid + ".obj");
         Path convertedMtl = tmpDir.resolve(uuid + ".mtl");
 
-        String[] args = {ifcConverter, "--sew-shells", tmpCadFile.toAbsolutePath().toString(),
-                convertedFile.toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
-
+        String extension = ConverterFiles.getExtension(tmpCadFile);
         try {
-            Process process = pb.start();
+            boolean sharding = isShardingEnabled(tmpCadFile);
+            if (Boolean.parseBoolean(CONF.getProperty("incremental_conversion", "false"))) {
+                ConversionResult incremental = convertIncrementally(tmpCadFile, tmpDir, uuid, profile, sharding);
+                if (incremental != null) {
+                    return incremental;
+                }
+            }
 
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(process.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(process.getErrorStream());
+            if (sharding) {
+                ConversionResult sharded = convertSharded(tmpCadFile, tmpDir, uuid, profile);
+                if (sharded != null) {
+                    return sharded;
+                }
+            }
 
-            LOGGER.info(stdOutput);
+            ProcessResult result = PROCESS_RUNNER.run(
+                    buildArguments(profile, tmpCadFile, convertedFile, Collections.emptyList()), extension);
 
-            process.waitFor();
+            LOGGER.info(result.getStdOutput());
 
-            if (process.exitValue() == 0) {
+            if (result.isSuccess()) {
                 List<Path> materials = new ArrayList<>();
                 materials.add(convertedMtl);
                 return new ConversionResult(convertedFile, materials);
             } else {
                 throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + result.getErrorOutput());
             }
         } catch (IOException | InterruptedException e) {
             throw new ConversionException(e);
         }
     }
 
+    /**
+     * Convert the storeys of the model in parallel into the scratch space,
+     * then merge the results.
+     *
+     * @return the merged result, or null if the model cannot be sharded or a shard failed
+     */
+    private static ConversionResult convertSharded(Path tmpCadFile, Path tmpDir, UUID uuid, TessellationProfile profile)
+            throws IOException, InterruptedException {
+        List<IfcShard> shards = IfcShard.plan(new IfcSpatialScanner().scan(tmpCadFile), getMaxShards());
+        if (shards.size() < 2) {
+            return null;
+        }
+        ScratchDirectory shardDir;
+        try {
+            shardDir = SCRATCH_SPACE.allocate("ifc", Files.size(tmpCadFile) * SHARD_RESERVATION_FACTOR);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "No scratch space to shard " + tmpCadFile + ", converting the whole model", e);
+            return null;
+        }
+        LOGGER.log(Level.FINE, "Converting {0} in {1} shards", new Object[]{tmpCadFile, shards.size()});
+
+        String extension = ConverterFiles.getExtension(tmpCadFile);
+        String attributeKeyword = CONF.getProperty("sharding_attribute_keyword", "arg");
+        List<Path> shardObjs = new ArrayList<>();
+        List<Path> shardMtls = new ArrayList<>();
+        List<Future<ProcessResult>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                Path shardObj = shardDir.resolve(uuid + "-" + i + ".obj");
+                shardObjs.add(shardObj);
+                shardMtls.add(shardDir.resolve(uuid + "-" + i + ".mtl"));
+                String[] args = buildArguments(profile, tmpCadFile, shardObj,
+                        shards.get(i).getFilterArguments(attributeKeyword));
+                results.add(SHARD_RUNNERS.submit(() -> PROCESS_RUNNER.run(args, extension)));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                ProcessResult result = results.get(i).get();
+                if (!result.isSuccess() || !Files.exists(shardObjs.get(i))) {
+                    LOGGER.log(Level.WARNING, "Shard {0} of {1} failed, converting the whole model: {2}",
+                            new Object[]{i, tmpCadFile, result.getErrorOutput()});
+                    return null;
+                }
+            }
+
+            Path convertedFile = tmpDir.resolve(uuid + ".obj");
+            Path convertedMtl = tmpDir.resolve(uuid + ".mtl");
+            ObjMerger.mergeMaterials(shardMtls, convertedMtl);
+            new ObjMerger().merge(shardObjs, convertedFile, convertedMtl);
+            List<Path> materials = new ArrayList<>();
+            materials.add(convertedMtl);
+            return new ConversionResult(convertedFile, materials);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Sharded conversion of " + tmpCadFile + " failed, converting the whole model",
+                    e.getCause());
+            return null;
+        } finally {
+            for (Future<ProcessResult> result : results) {
+                // Interrupting a runner kills its process
+                result.cancel(true);
+            }
+            shardDir.close();
+        }
+    }
+
+    /**
+     * Tessellate the bodies missing from the body cache only, then stitch the
+     * chunks of all bodies.
+     *
+     * @param sharding whether the model is large enough to be converted in shards
+     * @return the stitched result, or null if the model has no bodies, the conversion failed or most of a
+     * model to shard changed
+     */
+    private static ConversionResult convertIncrementally(Path tmpCadFile, Path tmpDir, UUID uuid,
+                                                         TessellationProfile profile, boolean sharding)
+            throws IOException, InterruptedException {
+        List<IfcBody> bodies = IfcBody.scan(tmpCadFile);
+        if (bodies.isEmpty()) {
+            return null;
+        }
+        IncrementalAssembly assembly = new IncrementalAssembly(BodyCache.forConverter("ifc", CONF),
+                String.join(" ", SETTINGS, "--deflection-tolerance", String.valueOf(profile.getLinearDeflection()),
+                        CONF.getProperty(ConversionCache.CACHE_VERSION, "")));
+        List<String> keys = new ArrayList<>();
+        Map<String, IfcBody> bodiesByKey = new HashMap<>();
+        for (IfcBody body : bodies) {
+            String key = assembly.chunkKey(body.getHash());
+            keys.add(key);
+            bodiesByKey.put(key, body);
+        }
+        List<IfcBody> changed = new ArrayList<>();
+        for (String key : assembly.missing(keys)) {
+            changed.add(bodiesByKey.get(key));
+        }
+        LOGGER.log(Level.FINE, "{0}: {1} of {2} bodies to tessellate",
+                new Object[]{tmpCadFile, changed.size(), bodies.size()});
+
+        if (!changed.isEmpty() && !tessellateBodies(tmpCadFile, changed, bodies.size(), assembly, profile, uuid,
+                sharding)) {
+            return null;
+        }
+        ConversionResult result = assembly.stitch(keys, tmpDir.resolve(uuid + ".obj"), tmpDir.resolve(uuid + ".mtl"));
+        if (result == null) {
+            LOGGER.log(Level.WARNING, "Chunks of {0} evicted while stitching, converting the whole model", tmpCadFile);
+        }
+        return result;
+    }
+
+    /**
+     * Convert the given bodies, or the whole model if most of it changed, and
+     * store the chunk of each body. The changed bodies of a model to shard are
+     * shared out between parallel IfcConvert processes.
+     *
+     * @return false if the conversion failed, or if most of a model to shard changed
+     */
+    private static boolean tessellateBodies(Path tmpCadFile, List<IfcBody> changed, int bodyCount,
+                                            IncrementalAssembly assembly, TessellationProfile profile, UUID uuid,
+                                            boolean sharding)
+            throws IOException, InterruptedException {
+        boolean filtered = changed.size() <= bodyCount * INCREMENTAL_MAX_CHANGED_RATIO
+                && changed.size() <= INCREMENTAL_MAX_FILTERED_BODIES;
+        if (!filtered && sharding) {
+            // The storey shards convert the whole model faster than a single process
+            LOGGER.log(Level.FINE, "{0}: most bodies changed, converting the model in shards", tmpCadFile);
+            return false;
+        }
+        int shardCount = filtered && sharding ? Math.min(getMaxShards(), changed.size()) : 1;
+        List<List<IfcBody>> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (int i = 0; i < changed.size(); i++) {
+            shards.get(i % shardCount).add(changed.get(i));
+        }
+
+        ScratchDirectory workDir;
+        try {
+            workDir = SCRATCH_SPACE.allocate("ifc", Files.size(tmpCadFile) * SHARD_RESERVATION_FACTOR);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "No scratch space to convert " + tmpCadFile + " incrementally", e);
+            return false;
+        }
+        String extension = ConverterFiles.getExtension(tmpCadFile);
+        String attributeKeyword = CONF.getProperty("sharding_attribute_keyword", "arg");
+        List<Path> shardObjs = new ArrayList<>();
+        List<Path> shardMtls = new ArrayList<>();
+        List<Future<ProcessResult>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                List<String> filters = new ArrayList<>();
+                // Groups named after the GlobalId of their element
+                filters.add("--use-element-guids");
+                if (filtered) {
+                    filters.addAll(IfcBody.getFilterArguments(shards.get(i), attributeKeyword));
+                }
+                Path shardObj = workDir.resolve(uuid + "-" + i + ".obj");
+                shardObjs.add(shardObj);
+                shardMtls.add(workDir.resolve(uuid + "-" + i + ".mtl"));
+                String[] args = buildArguments(profile, tmpCadFile, shardObj, filters);
+                results.add(SHARD_RUNNERS.submit(() -> PROCESS_RUNNER.run(args, extension)));
+            }
+
+            // Bodies without geometry get an empty chunk, not to be converted again
+            Path emptyChunk = Files.createFile(workDir.resolve(uuid + "-empty.obj"));
+            for (int i = 0; i < shardCount; i++) {
+                ProcessResult result = results.get(i).get();
+                if (!result.isSuccess() || !Files.exists(shardObjs.get(i))) {
+                    LOGGER.log(Level.WARNING, "Incremental conversion of {0} failed, converting the whole model: {1}",
+                            new Object[]{tmpCadFile, result.getErrorOutput()});
+                    return false;
+                }
+                Map<String, Path> chunks = new ObjGroupSplitter().split(shardObjs.get(i),
+                        group -> workDir.resolve(UUID.randomUUID() + ".obj"));
+                for (IfcBody body : shards.get(i)) {
+                    assembly.store(assembly.chunkKey(body.getHash()),
+                            chunks.getOrDefault(body.getGlobalId(), emptyChunk), shardMtls.get(i));
+                }
+            }
+            return true;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Incremental conversion of " + tmpCadFile + " failed, converting the whole model",
+                    e.getCause());
+            return false;
+        } finally {
+            for (Future<ProcessResult> result : results) {
+                // Interrupting a runner kills its process
+                result.cancel(true);
+            }
+            workDir.close();
+        }
+    }
+
+    private static String[] buildArguments(TessellationProfile profile, Path input, Path output, List<String> filters) {
+        List<String> args = new ArrayList<>();
+        args.add(CONF.getProperty("ifc_convert_path"));
+        args.add("--sew-shells");
+        // IfcConvert only exposes the linear deflection of its mesher
+        args.add("--deflection-tolerance");
+        args.add(String.valueOf(profile.getLinearDeflection()));
+        args.add(input.toAbsolutePath().toString());
+        args.add(output.toString());
+        // Filters take several values, they come after the files
+        args.addAll(filters);
+        return args.toArray(new String[args.size()]);
+    }
+
+    private static boolean isShardingEnabled(Path ifcFile) throws IOException {
+        if (!Boolean.parseBoolean(CONF.getProperty("sharding", "false"))) {
+            return false;
+        }
+        long minSize = parseLong(CONF.getProperty("sharding_min_size"), 20) * 1024 * 1024;
+        return getMaxShards() > 1 && Files.size(ifcFile) >= minSize;
+    }
+
+    private static int getMaxShards() {
+        return (int) parseLong(CONF.getProperty("sharding_max_shards"), Runtime.getRuntime().availableProcessors());
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid setting: " + value, e);
+            return defaultValue;
+        }
+    }
+
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return "ifc".equals(cadFileExtension);
+        return ROUTER.canConvert(cadFileExtension);
     }
 
 }
\ No newline at end of file
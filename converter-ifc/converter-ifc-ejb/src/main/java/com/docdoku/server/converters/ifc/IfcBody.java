@@ -0,0 +1,127 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.ifc;
+
+import com.docdoku.server.converters.commons.incremental.Part21Graph;
+import com.docdoku.server.converters.commons.incremental.SubgraphHasher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Element of an IFC model with a shape of its own, hashed with the
+ * geometry, placement and styles it references, directly or not, and with
+ * the materials associated to it. An element hashes the same as long as its
+ * geometry and appearance do not change, whatever the rest of the model.
+ */
+public class IfcBody {
+
+    private static final String PRODUCT_SHAPE = "IFCPRODUCTDEFINITIONSHAPE";
+    // Never geometry of their own, excluded by IfcConvert by default
+    private static final Set<String> EXCLUDED_ENTITIES = set("IFCOPENINGELEMENT", "IFCSPACE", "IFCSHAPEASPECT");
+    // Updated on every save
+    private static final Set<String> IGNORED_ENTITIES = set("IFCOWNERHISTORY");
+    // Styles color their items and materials, openings are cut from their element
+    private static final Set<String> ATTACHED_ENTITIES = set("IFCSTYLEDITEM", "IFCRELVOIDSELEMENT",
+            "IFCMATERIALDEFINITIONREPRESENTATION");
+    // Relates many elements to a material, the last reference; hashed with the material only,
+    // not to depend on the other elements
+    private static final String MATERIAL_ASSOCIATION = "IFCRELASSOCIATESMATERIAL";
+    private static final int GLOBAL_ID_LENGTH = 22;
+
+    private final String globalId;
+    private final String hash;
+
+    IfcBody(String globalId, String hash) {
+        this.globalId = globalId;
+        this.hash = hash;
+    }
+
+    /**
+     * @return the bodies of the model, in order of appearance
+     */
+    public static List<IfcBody> scan(Path ifcFile) throws IOException {
+        Part21Graph graph = Part21Graph.read(ifcFile);
+        SubgraphHasher hasher = new SubgraphHasher(graph, IGNORED_ENTITIES, ATTACHED_ENTITIES);
+        Map<Long, List<Long>> materials = new HashMap<>();
+        for (Part21Graph.Instance association : graph.instances()) {
+            if (!MATERIAL_ASSOCIATION.equals(association.getEntity())) {
+                continue;
+            }
+            long[] references = association.getReferences();
+            for (int i = 0; i < references.length - 1; i++) {
+                materials.computeIfAbsent(references[i], id -> new ArrayList<>())
+                        .add(references[references.length - 1]);
+            }
+        }
+        List<IfcBody> bodies = new ArrayList<>();
+        for (Part21Graph.Instance instance : graph.referencing(PRODUCT_SHAPE)) {
+            String globalId = instance.getFirstString();
+            if (EXCLUDED_ENTITIES.contains(instance.getEntity())
+                    || globalId == null || globalId.length() != GLOBAL_ID_LENGTH) {
+                continue;
+            }
+            bodies.add(new IfcBody(globalId, hasher.hash(instance.getId(),
+                    materials.getOrDefault(instance.getId(), Collections.emptyList()))));
+        }
+        return bodies;
+    }
+
+    /**
+     * @param attributeKeyword keyword of the attribute filters of the IfcConvert version in use,
+     *                         <code>arg</code> or <code>attribute</code>
+     * @return the IfcConvert filter options selecting the given bodies. They
+     * take several values, they must come after the input and output files.
+     */
+    public static List<String> getFilterArguments(List<IfcBody> bodies, String attributeKeyword) {
+        List<String> arguments = new ArrayList<>();
+        arguments.add("--include");
+        arguments.add(attributeKeyword);
+        arguments.add("GlobalId");
+        for (IfcBody body : bodies) {
+            arguments.add(body.globalId);
+        }
+        return arguments;
+    }
+
+    public String getGlobalId() {
+        return globalId;
+    }
+
+    /**
+     * @return the hash of the element and of its subgraph, in hexadecimal
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    private static Set<String> set(String... entities) {
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(entities)));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.ifc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Subset of an IFC model converted by one IfcConvert process: a group of
+ * storeys with their content, or everything outside the storeys.
+ */
+public class IfcShard {
+
+    // Never geometry of their own, excluded by IfcConvert unless filters are given
+    private static final String[] EXCLUDED_ENTITIES = {"IfcOpeningElement", "IfcSpace"};
+
+    private final List<String> storeyIds;
+    private final boolean remainder;
+    private long elementCount;
+
+    private IfcShard(List<String> storeyIds, boolean remainder) {
+        this.storeyIds = storeyIds;
+        this.remainder = remainder;
+    }
+
+    /**
+     * Spread the storeys over at most <code>maxShards</code> shards of balanced
+     * element counts, largest storeys first. A remainder shard is added if some
+     * elements are not contained in a storey.
+     *
+     * @return the shards, a single shard means the model is not worth sharding
+     */
+    public static List<IfcShard> plan(IfcSpatialScanner.SpatialStructure structure, int maxShards) {
+        List<IfcSpatialScanner.Storey> storeys = new ArrayList<>(structure.getStoreys());
+        storeys.sort(Comparator.comparingLong(IfcSpatialScanner.Storey::getElementCount).reversed());
+
+        long nonEmptyStoreys = storeys.stream().filter(storey -> storey.getElementCount() > 0).count();
+        boolean hasRemainder = structure.getElementsOutsideStoreys() > 0;
+        int storeyShards = (int) Math.min(nonEmptyStoreys, hasRemainder ? maxShards - 1 : maxShards);
+        if (storeyShards < 2) {
+            return Collections.singletonList(new IfcShard(Collections.emptyList(), false));
+        }
+
+        List<IfcShard> shards = new ArrayList<>();
+        for (int i = 0; i < storeyShards; i++) {
+            shards.add(new IfcShard(new ArrayList<>(), false));
+        }
+        for (IfcSpatialScanner.Storey storey : storeys) {
+            IfcShard lightest = Collections.min(shards, Comparator.comparingLong(shard -> shard.elementCount));
+            lightest.storeyIds.add(storey.getGlobalId());
+            lightest.elementCount += storey.getElementCount();
+        }
+
+        if (hasRemainder) {
+            List<String> allStoreys = new ArrayList<>();
+            storeys.forEach(storey -> allStoreys.add(storey.getGlobalId()));
+            IfcShard rest = new IfcShard(allStoreys, true);
+            rest.elementCount = structure.getElementsOutsideStoreys();
+            shards.add(rest);
+        }
+        return shards;
+    }
+
+    /**
+     * @param attributeKeyword keyword of the attribute filters of the IfcConvert version in use,
+     *                         <code>arg</code> or <code>attribute</code>
+     * @return the IfcConvert filter options selecting this shard. They take
+     * several values each, they must come after the input and output files.
+     */
+    public List<String> getFilterArguments(String attributeKeyword) {
+        List<String> arguments = new ArrayList<>();
+        if (storeyIds.isEmpty()) {
+            return arguments;
+        }
+        // The "+" variants follow the containment and the decomposition of the storeys
+        arguments.add(remainder ? "--exclude+" : "--include+");
+        arguments.add(attributeKeyword);
+        arguments.add("GlobalId");
+        arguments.addAll(storeyIds);
+        arguments.add("--exclude");
+        arguments.add("entities");
+        Collections.addAll(arguments, EXCLUDED_ENTITIES);
+        return arguments;
+    }
+
+    public List<String> getStoreyIds() {
+        return Collections.unmodifiableList(storeyIds);
+    }
+
+    public boolean isRemainder() {
+        return remainder;
+    }
+
+    public long getElementCount() {
+        return elementCount;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.ifc;
+
+import com.docdoku.server.converters.commons.mesh.MappedFileReader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming scan of the STEP physical file of an IFC model, listing its
+ * building storeys with the number of elements contained in each of them.
+ * <p>
+ * Only the entity names, the references and the first string of each
+ * instance are looked at, the file is read once without building any model.
+ */
+public class IfcSpatialScanner {
+
+    private static final String STOREY = "IFCBUILDINGSTOREY";
+    private static final String CONTAINMENT = "IFCRELCONTAINEDINSPATIALSTRUCTURE";
+    private static final int MAX_STRING_LENGTH = 64;
+
+    private final StringBuilder name = new StringBuilder(64);
+    private final StringBuilder string = new StringBuilder(MAX_STRING_LENGTH);
+
+    // Attributes of the instance being scanned
+    private String firstString;
+    private int nestedReferences;
+    private long lastReference;
+
+    /**
+     * Storeys of the model and elements contained in other spatial structures.
+     */
+    public static class SpatialStructure {
+
+        private final List<Storey> storeys;
+        private final long elementsOutsideStoreys;
+
+        SpatialStructure(List<Storey> storeys, long elementsOutsideStoreys) {
+            this.storeys = storeys;
+            this.elementsOutsideStoreys = elementsOutsideStoreys;
+        }
+
+        public List<Storey> getStoreys() {
+            return storeys;
+        }
+
+        /**
+         * @return the number of elements contained in a site, a building or a space
+         */
+        public long getElementsOutsideStoreys() {
+            return elementsOutsideStoreys;
+        }
+    }
+
+    public static class Storey {
+
+        private final String globalId;
+        private long elementCount;
+
+        Storey(String globalId) {
+            this.globalId = globalId;
+        }
+
+        public String getGlobalId() {
+            return globalId;
+        }
+
+        public long getElementCount() {
+            return elementCount;
+        }
+    }
+
+    public SpatialStructure scan(Path ifcFile) throws IOException {
+        Map<Long, Storey> storeys = new LinkedHashMap<>();
+        // Containment relations may come before the storeys they point to
+        Map<Long, Long> containedCounts = new HashMap<>();
+
+        try (MappedFileReader reader = new MappedFileReader(ifcFile)) {
+            int c;
+            while ((c = reader.skipWhitespace()) != -1) {
+                if (c == '/') {
+                    reader.get();
+                    skipComment(reader);
+                    continue;
+                }
+                if (c != '#') {
+                    // Header and section statements
+                    scanAttributes(reader);
+                    continue;
+                }
+                reader.get();
+                long id = reader.readLong();
+                if (reader.skipWhitespace() != '=') {
+                    throw reader.syntaxError("=");
+                }
+                reader.get();
+                reader.skipWhitespace();
+                String entity = readName(reader);
+                scanAttributes(reader);
+
+                if (STOREY.equals(entity) && firstString != null) {
+                    storeys.put(id, new Storey(firstString));
+                } else if (CONTAINMENT.equals(entity) && lastReference >= 0) {
+                    // The related elements are the nested references, the relating structure comes last
+                    containedCounts.merge(lastReference, (long) nestedReferences, Long::sum);
+                }
+            }
+        }
+
+        long outside = 0;
+        for (Map.Entry<Long, Long> contained : containedCounts.entrySet()) {
+            Storey storey = storeys.get(contained.getKey());
+            if (storey != null) {
+                storey.elementCount += contained.getValue();
+            } else {
+                outside += contained.getValue();
+            }
+        }
+        return new SpatialStructure(new ArrayList<>(storeys.values()), outside);
+    }
+
+    private String readName(MappedFileReader reader) throws IOException {
+        name.setLength(0);
+        int c = reader.peek();
+        while (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_') {
+            name.append(Character.toUpperCase((char) c));
+            reader.get();
+            c = reader.peek();
+        }
+        return name.toString();
+    }
+
+    /**
+     * Scan up to the end of the statement, collecting the first string and the
+     * references of the instance.
+     */
+    private void scanAttributes(MappedFileReader reader) throws IOException {
+        firstString = null;
+        nestedReferences = 0;
+        lastReference = -1;
+        int depth = 0;
+        int c;
+        while ((c = reader.peek()) != -1) {
+            reader.get();
+            switch (c) {
+                case ';':
+                    return;
+                case '(':
+                    depth++;
+                    break;
+                case ')':
+                    depth--;
+                    break;
+                case '\'':
+                    readString(reader);
+                    break;
+                case '/':
+                    skipComment(reader);
+                    break;
+                case '#':
+                    lastReference = reader.readLong();
+                    if (depth > 1) {
+                        nestedReferences++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void readString(MappedFileReader reader) throws IOException {
+        string.setLength(0);
+        while (true) {
+            byte b = reader.get();
+            if (b == '\'') {
+                // Quotes are escaped by doubling them
+                if (reader.peek() != '\'') {
+                    break;
+                }
+                reader.get();
+            }
+            if (string.length() < MAX_STRING_LENGTH) {
+                string.append((char) (b & 0xFF));
+            }
+        }
+        if (firstString == null) {
+            firstString = string.toString();
+        }
+    }
+
+    private static void skipComment(MappedFileReader reader) throws IOException {
+        if (reader.peek() != '*') {
+            return;
+        }
+        reader.get();
+        int previous = 0;
+        int c;
+        while ((c = reader.peek()) != -1) {
+            reader.get();
+            if (previous == '*' && c == '/') {
+                return;
+            }
+            previous = c;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.ifc;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class IfcBodyTest {
+
+    private Path file;
+
+    @Before
+    public void setup() throws Exception {
+        file = Files.createTempFile("ifc-body-test", ".ifc");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testUnchangedBodiesHashTheSame() throws Exception {
+        List<IfcBody> original = scan(model(0, 1000, "red", "3."));
+        Assert.assertEquals(2, original.size());
+        Assert.assertEquals("0aaaaaaaaaaaaaaaaaaaaa", original.get(0).getGlobalId());
+        Assert.assertEquals("1bbbbbbbbbbbbbbbbbbbbb", original.get(1).getGlobalId());
+
+        // Renumbered and saved again, the slab style changed
+        List<IfcBody> restyled = scan(model(100, 2000, "blue", "3."));
+        Assert.assertEquals(original.get(0).getHash(), restyled.get(0).getHash());
+        Assert.assertNotEquals(original.get(1).getHash(), restyled.get(1).getHash());
+
+        // The wall is thicker, the shared placement did not change
+        List<IfcBody> reshaped = scan(model(0, 1000, "red", "4."));
+        Assert.assertNotEquals(original.get(0).getHash(), reshaped.get(0).getHash());
+        Assert.assertEquals(original.get(1).getHash(), reshaped.get(1).getHash());
+    }
+
+    @Test
+    public void testBodiesHashWithTheirMaterial() throws Exception {
+        List<IfcBody> original = scan(model(0, 1000, "red", "3.", "Concrete", "grey"));
+
+        // Associated to another material, the geometry did not change
+        List<IfcBody> rematerialized = scan(model(0, 1000, "red", "3.", "Brick", "grey"));
+        Assert.assertNotEquals(original.get(0).getHash(), rematerialized.get(0).getHash());
+        Assert.assertEquals(original.get(1).getHash(), rematerialized.get(1).getHash());
+
+        // The material is colored differently
+        List<IfcBody> recolored = scan(model(100, 2000, "red", "3.", "Concrete", "white"));
+        Assert.assertNotEquals(original.get(0).getHash(), recolored.get(0).getHash());
+        Assert.assertEquals(original.get(1).getHash(), recolored.get(1).getHash());
+
+        List<IfcBody> renumbered = scan(model(100, 2000, "red", "3.", "Concrete", "grey"));
+        Assert.assertEquals(original.get(0).getHash(), renumbered.get(0).getHash());
+    }
+
+    @Test
+    public void testFilterArguments() {
+        List<IfcBody> bodies = Arrays.asList(new IfcBody("0aaaaaaaaaaaaaaaaaaaaa", "a"),
+                new IfcBody("1bbbbbbbbbbbbbbbbbbbbb", "b"));
+        Assert.assertEquals(Arrays.asList("--include", "arg", "GlobalId", "0aaaaaaaaaaaaaaaaaaaaa",
+                "1bbbbbbbbbbbbbbbbbbbbb"), IfcBody.getFilterArguments(bodies, "arg"));
+    }
+
+    private List<IfcBody> scan(String model) throws Exception {
+        Files.write(file, model.getBytes(StandardCharsets.US_ASCII));
+        return IfcBody.scan(file);
+    }
+
+    private static String model(int offset, int saved, String slabColor, String wallDepth) {
+        return model(offset, saved, slabColor, wallDepth, null, null);
+    }
+
+    private static String model(int offset, int saved, String slabColor, String wallDepth, String wallMaterial,
+                                String wallMaterialColor) {
+        String material = wallMaterial == null ? "" : "#" + (60 + offset) + "=IFCMATERIAL('" + wallMaterial + "',$,$);\n"
+                + "#" + (61 + offset) + "=IFCRELASSOCIATESMATERIAL('3ddddddddddddddddddddd',#" + (1 + offset)
+                + ",$,$,(#" + (23 + offset) + "),#" + (60 + offset) + ");\n"
+                + "#" + (62 + offset) + "=IFCSURFACESTYLE('" + wallMaterialColor + "',.BOTH.,());\n"
+                + "#" + (63 + offset) + "=IFCSTYLEDITEM($,(#" + (62 + offset) + "),$);\n"
+                + "#" + (64 + offset) + "=IFCSTYLEDREPRESENTATION($,'Style','Material',(#" + (63 + offset) + "));\n"
+                + "#" + (65 + offset) + "=IFCMATERIALDEFINITIONREPRESENTATION($,$,(#" + (64 + offset) + "),#"
+                + (60 + offset) + ");\n";
+        return "ISO-10303-21;\n"
+                + "HEADER;FILE_NAME('body.ifc','2017',(''),(''),'','','');ENDSEC;\n"
+                + "DATA;\n"
+                + "#" + (1 + offset) + "=IFCOWNERHISTORY($,$,$,.ADDED.," + saved + ",$,$,0);\n"
+                + "#" + (10 + offset) + "=IFCCARTESIANPOINT((0.,0.,0.));\n"
+                + "#" + (11 + offset) + "=IFCAXIS2PLACEMENT3D(#" + (10 + offset) + ",$,$);\n"
+                + "#" + (12 + offset) + "=IFCLOCALPLACEMENT($,#" + (11 + offset) + ");\n"
+                + "#" + (20 + offset) + "=IFCEXTRUDEDAREASOLID($,#" + (11 + offset) + ",$," + wallDepth + ");\n"
+                + "#" + (21 + offset) + "=IFCSHAPEREPRESENTATION($,'Body','SweptSolid',(#" + (20 + offset) + "));\n"
+                + "#" + (22 + offset) + "=IFCPRODUCTDEFINITIONSHAPE($,$,(#" + (21 + offset) + "));\n"
+                + "#" + (23 + offset) + "=IFCWALL('0aaaaaaaaaaaaaaaaaaaaa',#" + (1 + offset) + ",'Wall',$,$,#"
+                + (12 + offset) + ",#" + (22 + offset) + ",$);\n"
+                + "#" + (30 + offset) + "=IFCEXTRUDEDAREASOLID($,#" + (11 + offset) + ",$,5.);\n"
+                + "#" + (31 + offset) + "=IFCSHAPEREPRESENTATION($,'Body','SweptSolid',(#" + (30 + offset) + "));\n"
+                + "#" + (32 + offset) + "=IFCPRODUCTDEFINITIONSHAPE($,$,(#" + (31 + offset) + "));\n"
+                + "#" + (33 + offset) + "=IFCSLAB('1bbbbbbbbbbbbbbbbbbbbb',#" + (1 + offset) + ",'Slab',$,$,#"
+                + (12 + offset) + ",#" + (32 + offset) + ",$,.FLOOR.);\n"
+                + "#" + (40 + offset) + "=IFCSTYLEDITEM(#" + (30 + offset) + ",(#" + (41 + offset) + "),$);\n"
+                + "#" + (41 + offset) + "=IFCSURFACESTYLE('" + slabColor + "',.BOTH.,());\n"
+                + "#" + (50 + offset) + "=IFCOPENINGELEMENT('2ccccccccccccccccccccc',#" + (1 + offset) + ",$,$,$,#"
+                + (12 + offset) + ",#" + (22 + offset) + ",$);\n"
+                + material
+                + "ENDSEC;\nEND-ISO-10303-21;\n";
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.ifc;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class IfcShardTest {
+
+    private static final String MODEL = "ISO-10303-21;\n"
+            + "HEADER;FILE_NAME('a;b.ifc','2017',(''),(''),'','','');ENDSEC;\n"
+            + "DATA;\n"
+            + "#1=IFCBUILDINGSTOREY('0aaaaaaaaaaaaaaaaaaaaa',#9,'Level ''1''',$,$,$,$,$,.ELEMENT.,0.);\n"
+            + "/* comment; */\n"
+            + "#2= IFCBUILDINGSTOREY('1bbbbbbbbbbbbbbbbbbbbb',#9,'Level 2',$,$,$,$,$,.ELEMENT.,3.);\n"
+            + "#3=IfcBuildingStorey('2ccccccccccccccccccccc',#9,'Roof',$,$,$,$,$,.ELEMENT.,6.);\n"
+            + "#4=IFCRELCONTAINEDINSPATIALSTRUCTURE('3ddddddddddddddddddddd',#9,$,$,(#10,#11,#12),#1);\n"
+            + "#5=IFCRELCONTAINEDINSPATIALSTRUCTURE('4eeeeeeeeeeeeeeeeeeeee',#9,$,$,\n(#13),#2);\n"
+            + "#6=IFCRELCONTAINEDINSPATIALSTRUCTURE('5fffffffffffffffffffff',#9,$,$,(#14,#15),#3);\n"
+            + "#7=IFCRELCONTAINEDINSPATIALSTRUCTURE('6ggggggggggggggggggggg',#9,$,$,(#16),#8);\n"
+            + "#8=IFCSITE('7hhhhhhhhhhhhhhhhhhhhh',#9,'Site',$,$,$,$,$,.ELEMENT.,$,$,$,$,$);\n"
+            + "ENDSEC;\nEND-ISO-10303-21;\n";
+
+    private Path file;
+
+    @Before
+    public void setup() throws Exception {
+        file = Files.createTempFile("ifc-shard-test", ".ifc");
+        Files.write(file, MODEL.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        IfcSpatialScanner.SpatialStructure structure = new IfcSpatialScanner().scan(file);
+        Assert.assertEquals(3, structure.getStoreys().size());
+        Assert.assertEquals("0aaaaaaaaaaaaaaaaaaaaa", structure.getStoreys().get(0).getGlobalId());
+        Assert.assertEquals(3, structure.getStoreys().get(0).getElementCount());
+        Assert.assertEquals(1, structure.getStoreys().get(1).getElementCount());
+        Assert.assertEquals(2, structure.getStoreys().get(2).getElementCount());
+        Assert.assertEquals(1, structure.getElementsOutsideStoreys());
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        List<IfcShard> shards = IfcShard.plan(new IfcSpatialScanner().scan(file), 3);
+        Assert.assertEquals(3, shards.size());
+        Assert.assertEquals(Arrays.asList("0aaaaaaaaaaaaaaaaaaaaa"), shards.get(0).getStoreyIds());
+        Assert.assertEquals(Arrays.asList("2ccccccccccccccccccccc", "1bbbbbbbbbbbbbbbbbbbbb"),
+                shards.get(1).getStoreyIds());
+        Assert.assertTrue(shards.get(2).isRemainder());
+        Assert.assertEquals(3, shards.get(2).getStoreyIds().size());
+
+        List<String> include = shards.get(0).getFilterArguments("arg");
+        Assert.assertEquals(Arrays.asList("--include+", "arg", "GlobalId", "0aaaaaaaaaaaaaaaaaaaaa",
+                "--exclude", "entities", "IfcOpeningElement", "IfcSpace"), include);
+        Assert.assertEquals("--exclude+", shards.get(2).getFilterArguments("attribute").get(0));
+    }
+
+    @Test
+    public void testSmallModelsAreNotSharded() throws Exception {
+        Assert.assertEquals(1, IfcShard.plan(new IfcSpatialScanner().scan(file), 2).size());
+        Assert.assertTrue(IfcShard.plan(new IfcSpatialScanner().scan(file), 1).get(0).getFilterArguments("arg")
+                .isEmpty());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.mesh;
+
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import com.docdoku.server.converters.commons.mesh.ObjWriter;
+import com.docdoku.server.converters.commons.mesh.TriangleMesh;
+import com.docdoku.server.converters.commons.scheduling.ConversionScheduler;
+import com.docdoku.server.converters.commons.stream.StreamedOutput;
+import com.docdoku.server.converters.commons.stream.StreamingConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import javax.ejb.Stateless;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts OFF and PLY meshes to OBJ without spawning any external tool. The
+ * OBJ output can also be streamed as it is formatted.
+ */
+@MeshFileConverter
+@Stateless
+public class MeshFileConverterImpl implements StreamingConverter {
+
+    private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/mesh/conf.properties";
+    private static final Properties CONF = new Properties();
+    private static final Logger LOGGER = Logger.getLogger(MeshFileConverterImpl.class.getName());
+
+    static {
+        try (InputStream inputStream = MeshFileConverterImpl.class.getResourceAsStream(CONF_PROPERTIES)) {
+            CONF.load(inputStream);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+        }
+    }
+
+    private static final ConversionCache CONVERSION_CACHE = ConversionCache.forConverter("mesh", CONF);
+    private static final ConversionScheduler SCHEDULER = ConversionScheduler.forConverter("mesh", CONF);
+
+    @Override
+    public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
+            throws ConversionException {
+        return SCHEDULER.convert(cadFileUri, tmpDirUri,
+                (cad, tmp) -> CONVERSION_CACHE.convert(cad, tmp, "native", this::convertMesh));
+    }
+
+    private ConversionResult convertMesh(final URI cadFileUri, final URI tmpDirUri)
+            throws ConversionException {
+        Path tmpCadFile = Paths.get(cadFileUri);
+        Path convertedFile = Paths.get(tmpDirUri).resolve(UUID.randomUUID() + ".obj");
+        MeshReader reader = getReader(ConverterFiles.getExtension(tmpCadFile));
+        if (reader == null) {
+            throw new ConversionException("Cannot convert file \"" + tmpCadFile + "\", unsupported format");
+        }
+
+        try {
+            TriangleMesh mesh = reader.read(tmpCadFile);
+            try (ObjWriter writer = new ObjWriter(convertedFile)) {
+                mesh.writeTo(writer);
+            }
+            LOGGER.log(Level.FINE, "{0} converted, {1} vertices, {2} faces",
+                    new Object[]{tmpCadFile, mesh.getVertexCount(), mesh.getTriangleCount()});
+            return new ConversionResult(convertedFile);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(convertedFile);
+            } catch (IOException deleteError) {
+                LOGGER.log(Level.FINE, null, deleteError);
+            }
+            throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public StreamedOutput convertStreamed(final URI cadFileUri, final URI tmpDirUri)
+            throws ConversionException {
+        Path tmpCadFile = Paths.get(cadFileUri);
+        MeshReader reader = getReader(ConverterFiles.getExtension(tmpCadFile));
+        if (reader == null) {
+            throw new ConversionException("Cannot convert file \"" + tmpCadFile + "\", unsupported format");
+        }
+
+        return StreamedOutput.write(UUID.randomUUID() + ".obj", channel -> {
+            TriangleMesh mesh = reader.read(tmpCadFile);
+            try (ObjWriter writer = new ObjWriter(channel)) {
+                mesh.writeTo(writer);
+            }
+            LOGGER.log(Level.FINE, "{0} streamed, {1} vertices, {2} faces",
+                    new Object[]{tmpCadFile, mesh.getVertexCount(), mesh.getTriangleCount()});
+        });
+    }
+
+    static MeshReader getReader(String extension) {
+        switch (extension) {
+            case "off":
+                return new OffReader();
+            case "ply":
+                return new PlyReader();
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public boolean canConvertToOBJ(String cadFileExtension) {
+        return Arrays.asList("off", "ply").contains(cadFileExtension);
+    }
+
+}
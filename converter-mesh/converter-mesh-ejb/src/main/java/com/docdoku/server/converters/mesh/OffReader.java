@@ -0,0 +1,107 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.mesh;
+
+import com.docdoku.server.converters.commons.mesh.MappedFileReader;
+import com.docdoku.server.converters.commons.mesh.TriangleMesh;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Reader for ASCII Object File Format (OFF) files.
+ * <p>
+ * The <code>C</code>, <code>N</code> and <code>ST</code> header prefixes are
+ * accepted; colors, normals and texture coordinates are skipped. Polygons are
+ * fan triangulated.
+ */
+public class OffReader implements MeshReader {
+
+    @Override
+    public TriangleMesh read(Path file) throws IOException {
+        try (MappedFileReader reader = new MappedFileReader(file)) {
+            skipComments(reader);
+            String header = reader.readToken();
+            if (header == null) {
+                throw new IOException("Empty OFF file " + file);
+            }
+            if (!header.toUpperCase().endsWith("OFF")) {
+                // The header is optional, the counts come first then
+                reader.position(0);
+            } else if (header.length() > 3 && !header.matches("(?i)(ST)?C?N?OFF")) {
+                throw new IOException("Unsupported OFF variant " + header + " in " + file);
+            } else {
+                rejectBinary(reader, file);
+            }
+
+            skipComments(reader);
+            int vertexCount = reader.readInt();
+            int faceCount = reader.readInt();
+            // Edge count, unused
+            reader.readInt();
+            reader.skipLine();
+
+            TriangleMesh mesh = new TriangleMesh(vertexCount, faceCount);
+            for (int i = 0; i < vertexCount; i++) {
+                skipComments(reader);
+                mesh.addVertex(reader.readFloat(), reader.readFloat(), reader.readFloat());
+                reader.skipLine();
+            }
+
+            for (int i = 0; i < faceCount; i++) {
+                skipComments(reader);
+                int corners = reader.readInt();
+                int first = vertex(reader, vertexCount);
+                int previous = corners > 1 ? vertex(reader, vertexCount) : first;
+                for (int corner = 2; corner < corners; corner++) {
+                    int current = vertex(reader, vertexCount);
+                    mesh.addTriangle(first, previous, current);
+                    previous = current;
+                }
+                // Optional face color
+                reader.skipLine();
+            }
+            return mesh;
+        }
+    }
+
+    private static int vertex(MappedFileReader reader, int vertexCount) throws IOException {
+        long offset = reader.position();
+        int index = reader.readInt();
+        if (index < 0 || index >= vertexCount) {
+            throw new IOException("Vertex index " + index + " out of bounds at offset " + offset);
+        }
+        return index;
+    }
+
+    private static void skipComments(MappedFileReader reader) throws IOException {
+        while (reader.skipWhitespace() == '#') {
+            reader.skipLine();
+        }
+    }
+
+    private static void rejectBinary(MappedFileReader reader, Path file) throws IOException {
+        // Some writers put the counts on the header line, only the BINARY keyword is consumed
+        if (reader.skipBlanks() != '\n' && reader.matchKeyword("binary")) {
+            throw new IOException("Binary OFF files are not supported: " + file);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.mesh;
+
+import com.docdoku.server.converters.commons.mesh.MappedFileReader;
+import com.docdoku.server.converters.commons.mesh.TriangleMesh;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader for ASCII and binary (both endiannesses) Stanford PLY files.
+ * <p>
+ * Only the vertex positions and the face vertex indices are kept, every other
+ * property and element is skipped. Binary elements made of fixed size
+ * properties only are skipped in a single jump.
+ * <p>
+ * The whole mesh is held in memory before being handed back: the faces may be
+ * declared before the vertices, so their indices are only checked once every
+ * element has been read.
+ */
+public class PlyReader implements MeshReader {
+
+    private enum Format {ASCII, BINARY_LITTLE_ENDIAN, BINARY_BIG_ENDIAN}
+
+    private enum Type {
+        INT8(1), UINT8(1), INT16(2), UINT16(2), INT32(4), UINT32(4), FLOAT32(4), FLOAT64(8);
+
+        private final int size;
+
+        Type(int size) {
+            this.size = size;
+        }
+
+        static Type of(String name) throws IOException {
+            switch (name) {
+                case "char":
+                case "int8":
+                    return INT8;
+                case "uchar":
+                case "uint8":
+                    return UINT8;
+                case "short":
+                case "int16":
+                    return INT16;
+                case "ushort":
+                case "uint16":
+                    return UINT16;
+                case "int":
+                case "int32":
+                    return INT32;
+                case "uint":
+                case "uint32":
+                    return UINT32;
+                case "float":
+                case "float32":
+                    return FLOAT32;
+                case "double":
+                case "float64":
+                    return FLOAT64;
+                default:
+                    throw new IOException("Unknown PLY property type " + name);
+            }
+        }
+    }
+
+    private static class Property {
+        private final String name;
+        private final Type type;
+        // Type of the list length, null for scalar properties
+        private final Type countType;
+
+        Property(String name, Type type, Type countType) {
+            this.name = name;
+            this.type = type;
+            this.countType = countType;
+        }
+    }
+
+    private static class Element {
+        private final String name;
+        private final long count;
+        private final List<Property> properties = new ArrayList<>();
+
+        Element(String name, long count) {
+            this.name = name;
+            this.count = count;
+        }
+
+        /**
+         * @return the size of a row, or -1 if it contains lists
+         */
+        int rowSize() {
+            int size = 0;
+            for (Property property : properties) {
+                if (property.countType != null) {
+                    return -1;
+                }
+                size += property.type.size;
+            }
+            return size;
+        }
+
+        int indexOf(String... names) {
+            for (int i = 0; i < properties.size(); i++) {
+                for (String name : names) {
+                    if (properties.get(i).name.equals(name)) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class LargestIndex {
+        private long index = -1;
+        // Offset of the index in the file, for error reporting
+        private long offset;
+    }
+
+    @Override
+    public TriangleMesh read(Path file) throws IOException {
+        try (MappedFileReader reader = new MappedFileReader(file)) {
+            if (!"ply".equals(reader.readToken())) {
+                throw new IOException("Missing PLY magic number in " + file);
+            }
+            reader.skipLine();
+
+            Format format = null;
+            List<Element> elements = new ArrayList<>();
+            String keyword;
+            while (!"end_header".equals(keyword = reader.readToken())) {
+                if (keyword == null) {
+                    throw new IOException("Unterminated PLY header in " + file);
+                }
+                switch (keyword) {
+                    case "format":
+                        format = readFormat(reader.readToken(), file);
+                        break;
+                    case "element":
+                        elements.add(new Element(reader.readToken(), reader.readLong()));
+                        break;
+                    case "property":
+                        if (elements.isEmpty()) {
+                            throw new IOException("PLY property declared before any element in " + file);
+                        }
+                        elements.get(elements.size() - 1).properties.add(readProperty(reader));
+                        break;
+                    default:
+                        // comment, obj_info
+                        break;
+                }
+                reader.skipLine();
+            }
+            reader.skipLine();
+            if (format == null) {
+                throw new IOException("Missing PLY format in " + file);
+            }
+            if (format != Format.ASCII) {
+                reader.order(format == Format.BINARY_LITTLE_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            }
+
+            TriangleMesh mesh = new TriangleMesh(expectedCount(elements, "vertex"), expectedCount(elements, "face"));
+            LargestIndex largest = new LargestIndex();
+            for (Element element : elements) {
+                if ("vertex".equals(element.name)) {
+                    readVertices(reader, format, element, mesh);
+                } else if ("face".equals(element.name)) {
+                    readFaces(reader, format, element, mesh, largest);
+                } else {
+                    skipElement(reader, format, element);
+                }
+            }
+            if (largest.index >= mesh.getVertexCount()) {
+                throw new IOException("Vertex index " + largest.index + " out of bounds at offset " + largest.offset);
+            }
+            return mesh;
+        }
+    }
+
+    private static Format readFormat(String name, Path file) throws IOException {
+        if ("ascii".equals(name)) {
+            return Format.ASCII;
+        } else if ("binary_little_endian".equals(name)) {
+            return Format.BINARY_LITTLE_ENDIAN;
+        } else if ("binary_big_endian".equals(name)) {
+            return Format.BINARY_BIG_ENDIAN;
+        }
+        throw new IOException("Unknown PLY format " + name + " in " + file);
+    }
+
+    private static Property readProperty(MappedFileReader reader) throws IOException {
+        String type = reader.readToken();
+        if ("list".equals(type)) {
+            Type countType = Type.of(reader.readToken());
+            Type itemType = Type.of(reader.readToken());
+            return new Property(reader.readToken(), itemType, countType);
+        }
+        return new Property(reader.readToken(), Type.of(type), null);
+    }
+
+    private static int expectedCount(List<Element> elements, String name) {
+        for (Element element : elements) {
+            if (name.equals(element.name)) {
+                return (int) Math.min(element.count, 1 << 24);
+            }
+        }
+        return 0;
+    }
+
+    private static void readVertices(MappedFileReader reader, Format format, Element element, TriangleMesh mesh) throws IOException {
+        int x = element.indexOf("x");
+        int y = element.indexOf("y");
+        int z = element.indexOf("z");
+        if (x < 0 || y < 0 || z < 0) {
+            throw new IOException("PLY vertex element without x, y and z properties");
+        }
+        int propertyCount = element.properties.size();
+        double[] values = new double[propertyCount];
+        for (long i = 0; i < element.count; i++) {
+            for (int p = 0; p < propertyCount; p++) {
+                Property property = element.properties.get(p);
+                if (property.countType != null) {
+                    skipList(reader, format, property);
+                } else {
+                    values[p] = readValue(reader, format, property.type);
+                }
+            }
+            mesh.addVertex((float) values[x], (float) values[y], (float) values[z]);
+        }
+    }
+
+    private static void readFaces(MappedFileReader reader, Format format, Element element, TriangleMesh mesh,
+                                  LargestIndex largest) throws IOException {
+        int indices = element.indexOf("vertex_indices", "vertex_index");
+        if (indices < 0 || element.properties.get(indices).countType == null) {
+            throw new IOException("PLY face element without vertex_indices list");
+        }
+        int propertyCount = element.properties.size();
+        for (long i = 0; i < element.count; i++) {
+            for (int p = 0; p < propertyCount; p++) {
+                Property property = element.properties.get(p);
+                if (p != indices) {
+                    skipProperty(reader, format, property);
+                    continue;
+                }
+                long corners = (long) readValue(reader, format, property.countType);
+                int first = -1;
+                int previous = -1;
+                for (long corner = 0; corner < corners; corner++) {
+                    long offset = reader.position();
+                    long index = (long) readValue(reader, format, property.type);
+                    if (index < 0 || index > Integer.MAX_VALUE) {
+                        throw new IOException("Vertex index " + index + " out of bounds at offset " + offset);
+                    }
+                    if (index > largest.index) {
+                        largest.index = index;
+                        largest.offset = offset;
+                    }
+                    if (corner == 0) {
+                        first = (int) index;
+                    } else if (corner >= 2) {
+                        mesh.addTriangle(first, previous, (int) index);
+                    }
+                    previous = (int) index;
+                }
+            }
+        }
+    }
+
+    private static void skipElement(MappedFileReader reader, Format format, Element element) throws IOException {
+        int rowSize = element.rowSize();
+        if (format != Format.ASCII && rowSize >= 0) {
+            reader.skip(rowSize * element.count);
+        } else if (format == Format.ASCII) {
+            for (long i = 0; i < element.count; i++) {
+                reader.skipWhitespace();
+                reader.skipLine();
+            }
+        } else {
+            for (long i = 0; i < element.count; i++) {
+                for (Property property : element.properties) {
+                    skipProperty(reader, format, property);
+                }
+            }
+        }
+    }
+
+    private static void skipProperty(MappedFileReader reader, Format format, Property property) throws IOException {
+        if (property.countType != null) {
+            skipList(reader, format, property);
+        } else if (format == Format.ASCII) {
+            reader.readToken();
+        } else {
+            reader.skip(property.type.size);
+        }
+    }
+
+    private static void skipList(MappedFileReader reader, Format format, Property property) throws IOException {
+        long count = (long) readValue(reader, format, property.countType);
+        if (format == Format.ASCII) {
+            for (long i = 0; i < count; i++) {
+                reader.readToken();
+            }
+        } else {
+            reader.skip(count * property.type.size);
+        }
+    }
+
+    private static double readValue(MappedFileReader reader, Format format, Type type) throws IOException {
+        if (format == Format.ASCII) {
+            return type == Type.FLOAT32 || type == Type.FLOAT64 ? reader.readDouble() : reader.readLong();
+        }
+        switch (type) {
+            case INT8:
+                return reader.get();
+            case UINT8:
+                return reader.get() & 0xFF;
+            case INT16:
+                return reader.getShort();
+            case UINT16:
+                return reader.getShort() & 0xFFFF;
+            case INT32:
+                return reader.getInt();
+            case UINT32:
+                return reader.getInt() & 0xFFFFFFFFL;
+            case FLOAT32:
+                return reader.getFloat();
+            default:
+                return reader.getDouble();
+        }
+    }
+}
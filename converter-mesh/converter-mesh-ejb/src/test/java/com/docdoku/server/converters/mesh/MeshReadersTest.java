@@ -0,0 +1,135 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.mesh;
+
+import com.docdoku.server.converters.commons.mesh.TriangleMesh;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class MeshReadersTest {
+
+    private Path file;
+
+    @After
+    public void cleanup() throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testOff() throws Exception {
+        TriangleMesh mesh = new OffReader().read(write(".off",
+                "# a square\nOFF\n4 1 0\n0 0 0\n1 0 0\n1 1 0\n0 1 0\n4 0 1 2 3 255 0 0\n"));
+        Assert.assertEquals(4, mesh.getVertexCount());
+        Assert.assertEquals(2, mesh.getTriangleCount());
+        Assert.assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3}, Arrays.copyOf(mesh.getTriangles(), 6));
+    }
+
+    @Test
+    public void testOffWithoutHeader() throws Exception {
+        TriangleMesh mesh = new OffReader().read(write(".off", "3 1 0\n0 0 0\n1 0 0\n0 1 0\n3 0 1 2\n"));
+        Assert.assertEquals(1, mesh.getTriangleCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testOffIndexOutOfBounds() throws Exception {
+        new OffReader().read(write(".off", "OFF\n3 1 0\n0 0 0\n1 0 0\n0 1 0\n3 0 1 3\n"));
+    }
+
+    @Test
+    public void testAsciiPly() throws Exception {
+        TriangleMesh mesh = new PlyReader().read(write(".ply", "ply\nformat ascii 1.0\ncomment test\n"
+                + "element vertex 4\nproperty float x\nproperty float y\nproperty float z\nproperty uchar red\n"
+                + "element face 1\nproperty list uchar int vertex_indices\n"
+                + "element edge 1\nproperty int vertex1\nproperty int vertex2\nend_header\n"
+                + "0 0 0 1\n1 0 0 2\n1 1 0 3\n0 1 0.5 4\n4 0 1 2 3\n0 1\n"));
+        Assert.assertEquals(4, mesh.getVertexCount());
+        Assert.assertEquals(2, mesh.getTriangleCount());
+        Assert.assertEquals(0.5f, mesh.getPositions()[11], 0);
+    }
+
+    @Test
+    public void testPlyFacesBeforeVertices() throws Exception {
+        TriangleMesh mesh = new PlyReader().read(write(".ply", "ply\nformat ascii 1.0\n"
+                + "element face 1\nproperty list uchar int vertex_indices\n"
+                + "element vertex 3\nproperty float x\nproperty float y\nproperty float z\nend_header\n"
+                + "3 0 1 2\n0 0 0\n1 0 0\n0 1 0\n"));
+        Assert.assertEquals(3, mesh.getVertexCount());
+        Assert.assertArrayEquals(new int[]{0, 1, 2}, Arrays.copyOf(mesh.getTriangles(), 3));
+    }
+
+    @Test(expected = IOException.class)
+    public void testPlyIndexOutOfBounds() throws Exception {
+        new PlyReader().read(write(".ply", "ply\nformat ascii 1.0\n"
+                + "element face 1\nproperty list uchar int vertex_indices\n"
+                + "element vertex 3\nproperty float x\nproperty float y\nproperty float z\nend_header\n"
+                + "3 0 1 3\n0 0 0\n1 0 0\n0 1 0\n"));
+    }
+
+    @Test
+    public void testBinaryPly() throws Exception {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            String format = order == ByteOrder.LITTLE_ENDIAN ? "binary_little_endian" : "binary_big_endian";
+            byte[] header = ("ply\nformat " + format + " 1.0\nelement material 2\nproperty double shininess\n"
+                    + "element vertex 3\nproperty double x\nproperty float y\nproperty float z\n"
+                    + "element face 1\nproperty uchar flags\nproperty list uchar uint vertex_index\nend_header\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer body = ByteBuffer.allocate(2 * 8 + 3 * 16 + 2 + 3 * 4).order(order);
+            body.putDouble(1).putDouble(2);
+            body.putDouble(0).putFloat(0).putFloat(0);
+            body.putDouble(2).putFloat(0).putFloat(0);
+            body.putDouble(0).putFloat(3).putFloat(0);
+            body.put((byte) 7).put((byte) 3).putInt(0).putInt(1).putInt(2);
+
+            file = Files.createTempFile("mesh-readers-test", ".ply");
+            Files.write(file, concat(header, body.array()));
+            TriangleMesh mesh = new PlyReader().read(file);
+            Assert.assertEquals(3, mesh.getVertexCount());
+            Assert.assertEquals(1, mesh.getTriangleCount());
+            Assert.assertEquals(2f, mesh.getPositions()[3], 0);
+            Assert.assertEquals(3f, mesh.getPositions()[7], 0);
+            Assert.assertArrayEquals(new int[]{0, 1, 2}, Arrays.copyOf(mesh.getTriangles(), 3));
+            Files.delete(file);
+        }
+    }
+
+    private Path write(String extension, String content) throws IOException {
+        file = Files.createTempFile("mesh-readers-test", extension);
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+}
@@ -21,23 +21,68 @@
 package com.docdoku.server.converters.obj;
 
 
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import com.docdoku.server.converters.commons.mesh.ObjNormalizer;
+import com.docdoku.server.converters.commons.scheduling.ConversionScheduler;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
 
 import javax.ejb.Stateless;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Validates uploaded OBJ files and rewrites them with positive indices and
+ * vertex data first, so that viewers can stream them. The normalized file
+ * then goes through the output stages configured for the converter, like any
+ * converted file.
+ */
 @ObjFileConverter
 @Stateless
 public class ObjFileConverterImpl implements CADConverter {
 
+    private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/obj/conf.properties";
+    private static final Properties CONF = new Properties();
+    private static final Logger LOGGER = Logger.getLogger(ObjFileConverterImpl.class.getName());
+
+    static {
+        try (InputStream inputStream = ObjFileConverterImpl.class.getResourceAsStream(CONF_PROPERTIES)) {
+            CONF.load(inputStream);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+        }
+    }
+
+    private static final ConversionCache CONVERSION_CACHE = ConversionCache.forConverter("obj", CONF);
+    private static final ConversionScheduler SCHEDULER = ConversionScheduler.forConverter("obj", CONF);
+
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
+        return SCHEDULER.convert(cadFileUri, tmpDirUri,
+                (cad, tmp) -> CONVERSION_CACHE.convert(cad, tmp, "normalize", this::normalize));
+    }
+
+    private ConversionResult normalize(final URI cadFileUri, final URI tmpDirUri)
+            throws ConversionException {
         Path tmpCadFile = Paths.get(cadFileUri);
-        return new ConversionResult(tmpCadFile);
+        Path convertedFile = Paths.get(tmpDirUri).resolve(UUID.randomUUID() + ".obj");
+        try {
+            ObjNormalizer.Report report = ObjNormalizer.normalize(tmpCadFile, convertedFile);
+            LOGGER.log(Level.FINE, "{0} normalized: {1}", new Object[]{tmpCadFile, report});
+            return new ConversionResult(convertedFile);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot normalize " + tmpCadFile, e);
+            throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": "
+                    + e.getMessage(), e);
+        }
     }
 
     @Override
@@ -45,4 +90,4 @@ public class ObjFileConverterImpl implements CADConverter {
         return "obj".equals(cadFileExtension);
     }
 
-}
\ No newline at end of file
+}
@@ -21,18 +21,34 @@
 package com.docdoku.server.converters.step;
 
 
+import com.docdoku.server.converters.commons.ConverterFiles;
+import com.docdoku.server.converters.commons.TessellationProfile;
+import com.docdoku.server.converters.commons.cache.ConversionCache;
+import com.docdoku.server.converters.commons.cache.PreviewThenRefine;
+import com.docdoku.server.converters.commons.incremental.BodyCache;
+import com.docdoku.server.converters.commons.incremental.IncrementalAssembly;
+import com.docdoku.server.converters.commons.process.ProcessResult;
+import com.docdoku.server.converters.commons.process.ProcessRunner;
+import com.docdoku.server.converters.commons.process.WorkerPool;
+import com.docdoku.server.converters.commons.routing.ConversionRoute;
+import com.docdoku.server.converters.commons.routing.ConversionRouter;
+import com.docdoku.server.converters.commons.scheduling.ConversionScheduler;
+import com.docdoku.server.converters.commons.scratch.ScratchDirectory;
+import com.docdoku.server.converters.commons.scratch.ScratchSpace;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
 import javax.ejb.Stateless;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -45,6 +61,7 @@ public class StepFileConverterImpl implements CADConverter {
     private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/step/conf.properties";
     private static final Properties CONF = new Properties();
     private static final String PYTHON_SCRIPT_TO_OBJ = "/com/docdoku/server/converters/step/convert_step_obj.py";
+    private static final String PYTHON_WORKER = "/com/docdoku/server/converters/step/freecad_worker.py";
     private static final Logger LOGGER = Logger.getLogger(StepFileConverterImpl.class.getName());
 
     static {
@@ -55,45 +72,66 @@ public class StepFileConverterImpl implements CADConverter {
         }
     }
 
+    private static final ProcessRunner PROCESS_RUNNER = ProcessRunner.forTool("freecad", CONF);
+    private static final ConversionCache CONVERSION_CACHE = ConversionCache.forConverter("step", CONF);
+    private static final ConversionScheduler SCHEDULER = ConversionScheduler.forConverter("step", CONF);
+    private static final PreviewThenRefine PREVIEW_THEN_REFINE = new PreviewThenRefine(CONVERSION_CACHE, CONF);
+    // Scripts are staged once, not on every conversion
+    private static final ScratchSpace SCRATCH_SPACE = ScratchSpace.of(CONF);
+    // Chunks are usually several times larger than the model
+    private static final long CHUNK_RESERVATION_FACTOR = 4;
+
+    private static WorkerPool workerPool;
+    private static Path workerScript;
+
+    private static final String SETTINGS = CONF.getProperty("pythonInterpreter") + " " + PYTHON_SCRIPT_TO_OBJ;
+    // Stitched outputs differ from whole model ones, cached results must not be mixed
+    private static final String CACHE_SETTINGS = SETTINGS
+            + " incremental=" + Boolean.parseBoolean(CONF.getProperty("incremental_conversion", "false"));
+    // The Python interpreter is probed once, not on every conversion
+    private static final ConversionRouter ROUTER = new ConversionRouter("step",
+            ConversionRoute.tool("freecad", CONF.getProperty("pythonInterpreter"), CACHE_SETTINGS,
+                    (cadFileUri, tmpDirUri) -> PREVIEW_THEN_REFINE.convert(cadFileUri, tmpDirUri, CACHE_SETTINGS,
+                            StepFileConverterImpl::convertWithFreeCad), "stp", "step", "igs", "iges"));
+
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
-        String pythonInterpreter = CONF.getProperty("pythonInterpreter");
-        String freeCadLibPath = CONF.getProperty("freeCadLibPath");
+        return SCHEDULER.convert(cadFileUri, tmpDirUri, ROUTER::convert);
+    }
 
+    private static ConversionResult convertWithFreeCad(final URI cadFileUri, final URI tmpDirUri,
+                                                       final TessellationProfile profile) throws ConversionException {
         Path tmpDir = Paths.get(tmpDirUri);
         Path tmpCadFile = Paths.get(cadFileUri);
 
         UUID uuid = UUID.randomUUID();
         Path tmpOBJFile = tmpDir.resolve(uuid + ".obj");
 
-        Path scriptToOBJ = tmpDir.resolve("python_script" + uuid + ".py");
-        try (InputStream scriptStream = StepFileConverterImpl.class.getResourceAsStream(PYTHON_SCRIPT_TO_OBJ)) {
-            Files.copy(scriptStream, scriptToOBJ);
-        } catch (IOException | NullPointerException e) {
-            throw new ConversionException("Unable to copy Pyhton script", e);
-        }
-
-        String[] args = {pythonInterpreter, scriptToOBJ.toAbsolutePath().toString(), "-l", freeCadLibPath, "-i",
-                tmpCadFile.toAbsolutePath().toString(), "-o", tmpOBJFile.toAbsolutePath().toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
-
+        String extension = ConverterFiles.getExtension(tmpCadFile);
+        String input = tmpCadFile.toAbsolutePath().toString();
+        String output = tmpOBJFile.toAbsolutePath().toString();
+        String linearDeflection = String.valueOf(profile.getLinearDeflection());
+        String angularDeflection = String.valueOf(profile.getAngularDeflection());
         try {
-            Process process = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(process.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(process.getErrorStream());
+            if (Boolean.parseBoolean(CONF.getProperty("incremental_conversion", "false"))) {
+                ConversionResult incremental = convertIncrementally(tmpCadFile, tmpDir, uuid, profile);
+                if (incremental != null) {
+                    return incremental;
+                }
+            }
 
-            LOGGER.info(stdOutput);
+            ProcessResult result = runFreeCad(extension,
+                    new String[]{"convert", input, output, linearDeflection, angularDeflection},
+                    "-i", input, "-o", output, "-d", linearDeflection, "-a", angularDeflection);
 
-            process.waitFor();
+            LOGGER.info(result.getStdOutput());
 
-            if (process.exitValue() == 0) {
+            if (result.isSuccess()) {
                 return new ConversionResult(tmpOBJFile);
             } else {
                 throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + result.getErrorOutput());
             }
         } catch (IOException | InterruptedException e) {
             LOGGER.log(Level.SEVERE, null, e);
@@ -101,9 +139,131 @@ public class StepFileConverterImpl implements CADConverter {
         }
     }
 
+    /**
+     * Let FreeCAD hash the shapes of the model and tessellate those missing
+     * from the body cache only, then stitch the chunks of all shapes. FreeCAD
+     * does not expose the entities of STEP files, shapes are hashed from their
+     * boundary representation once loaded.
+     *
+     * @return the stitched result, or null if the model has no shapes or the conversion failed
+     */
+    private static ConversionResult convertIncrementally(Path tmpCadFile, Path tmpDir, UUID uuid,
+                                                         TessellationProfile profile)
+            throws IOException, InterruptedException, ConversionException {
+        BodyCache bodyCache = BodyCache.forConverter("step", CONF);
+        String linearDeflection = String.valueOf(profile.getLinearDeflection());
+        String angularDeflection = String.valueOf(profile.getAngularDeflection());
+        String salt = String.join(" ", SETTINGS, linearDeflection, angularDeflection,
+                CONF.getProperty(ConversionCache.CACHE_VERSION, ""));
+        IncrementalAssembly assembly = new IncrementalAssembly(bodyCache, salt);
+
+        ScratchDirectory chunkDir;
+        try {
+            chunkDir = SCRATCH_SPACE.allocate("step", Files.size(tmpCadFile) * CHUNK_RESERVATION_FACTOR);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "No scratch space to convert " + tmpCadFile + " incrementally", e);
+            return null;
+        }
+        try {
+            String input = tmpCadFile.toAbsolutePath().toString();
+            String chunks = chunkDir.getPath().toAbsolutePath().toString();
+            String store = bodyCache.getRoot().toString();
+            Path manifest = chunkDir.resolve(uuid + ".keys");
+            String manifestFile = manifest.toAbsolutePath().toString();
+            ProcessResult result = runFreeCad(ConverterFiles.getExtension(tmpCadFile),
+                    new String[]{"chunks", input, chunks, store, manifestFile, linearDeflection, angularDeflection, salt},
+                    "-i", input, "-c", chunks, "-s", store, "-m", manifestFile,
+                    "-d", linearDeflection, "-a", angularDeflection, "-k", salt);
+            if (!result.isSuccess() || !Files.exists(manifest)) {
+                LOGGER.log(Level.WARNING, "Incremental conversion of {0} failed, converting the whole model: {1}",
+                        new Object[]{tmpCadFile, result.getErrorOutput()});
+                return null;
+            }
+
+            List<String> keys = Files.readAllLines(manifest, StandardCharsets.US_ASCII);
+            keys.removeIf(String::isEmpty);
+            if (keys.isEmpty()) {
+                return null;
+            }
+            int tessellated = 0;
+            for (String key : keys) {
+                Path chunk = chunkDir.resolve(key + ".obj");
+                if (Files.exists(chunk)) {
+                    assembly.store(key, chunk, null);
+                    Files.delete(chunk);
+                    tessellated++;
+                }
+            }
+            LOGGER.log(Level.FINE, "{0}: {1} of {2} shapes tessellated",
+                    new Object[]{tmpCadFile, tessellated, keys.size()});
+
+            ConversionResult stitched = assembly.stitch(keys, tmpDir.resolve(uuid + ".obj"), null);
+            if (stitched == null) {
+                LOGGER.log(Level.WARNING, "Chunks of {0} evicted while stitching, converting the whole model",
+                        tmpCadFile);
+            }
+            return stitched;
+        } finally {
+            chunkDir.close();
+        }
+    }
+
+    /**
+     * Run a request with a FreeCAD worker if enabled, or with the conversion script.
+     *
+     * @param workerRequest the fields of the worker request
+     * @param scriptOptions the options of the conversion script, besides the FreeCAD library path
+     */
+    private static ProcessResult runFreeCad(String extension, String[] workerRequest, String... scriptOptions)
+            throws ConversionException, IOException, InterruptedException {
+        if (Boolean.parseBoolean(CONF.getProperty("worker_pool", "true")) && isProtocolSafe(workerRequest)) {
+            return getWorkerPool().call(String.join("\t", workerRequest), extension);
+        }
+        List<String> args = new ArrayList<>();
+        args.add(CONF.getProperty("pythonInterpreter"));
+        args.add(getScript(PYTHON_SCRIPT_TO_OBJ).toString());
+        args.add("-l");
+        args.add(CONF.getProperty("freeCadLibPath"));
+        Collections.addAll(args, scriptOptions);
+        return PROCESS_RUNNER.run(args.toArray(new String[args.size()]), extension);
+    }
+
+    private static boolean isProtocolSafe(String... paths) {
+        // Worker requests are tab separated lines
+        for (String path : paths) {
+            if (path.indexOf('\t') >= 0 || path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static synchronized WorkerPool getWorkerPool() throws ConversionException {
+        Path script = getScript(PYTHON_WORKER);
+        if (workerPool == null || !script.equals(workerScript)) {
+            if (workerPool != null) {
+                workerPool.shutdown();
+            }
+            String[] command = {CONF.getProperty("pythonInterpreter"), script.toString(),
+                    "-l", CONF.getProperty("freeCadLibPath"), "-t", CONF.getProperty("worker_idle_timeout", "300")};
+            workerPool = new WorkerPool(PROCESS_RUNNER, command, CONF);
+            workerScript = script;
+        }
+        return workerPool;
+    }
+
+    private static Path getScript(String resource) throws ConversionException {
+        try {
+            // Staged again if a temp directory cleaner removed it
+            return SCRATCH_SPACE.stage(StepFileConverterImpl.class, resource);
+        } catch (IOException e) {
+            throw new ConversionException("Unable to copy Python script", e);
+        }
+    }
+
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return Arrays.asList("stp", "step", "igs", "iges").contains(cadFileExtension);
+        return ROUTER.canConvert(cadFileExtension);
     }
 
 }
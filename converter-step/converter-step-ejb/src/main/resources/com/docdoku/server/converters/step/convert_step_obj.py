@@ -1,4 +1,5 @@
 from optparse import OptionParser;
+import hashlib;
 import sys;
 import os;
 
@@ -7,24 +8,73 @@ parser = OptionParser();
 parser.add_option("-l", "--freeCadLibPath", dest="l", help ="");
 parser.add_option("-i", "--inputFile", dest="i", help ="");
 parser.add_option("-o", "--outputFile", dest="o", help ="");
+parser.add_option("-d", "--linearDeflection", dest="d", type="float", help ="");
+parser.add_option("-a", "--angularDeflection", dest="a", type="float", default=0.5, help ="");
+# Chunk mode: one OBJ file per shape missing from the store, named after its key
+parser.add_option("-c", "--chunkDir", dest="c", help ="");
+parser.add_option("-s", "--storeDir", dest="s", help ="");
+parser.add_option("-k", "--keySalt", dest="k", default="", help ="");
+parser.add_option("-m", "--manifestFile", dest="m", help ="");
 
 (options, args) = parser.parse_args();
 
 freeCadLibPath = options.l;
 inputFile = options.i;
 outputFile = options.o;
+linearDeflection = options.d;
+angularDeflection = options.a;
 
 sys.path.append(freeCadLibPath);
 
 import FreeCAD;
-import Part, Mesh;
+import Part, Mesh, MeshPart;
+
+def chunkKey(shape):
+	# Same keys as IncrementalAssembly.chunkKey with the salt as settings
+	body = hashlib.sha256(shape.exportBrepToString().encode("utf-8")).hexdigest();
+	return hashlib.sha256((body + "\n" + options.k).encode("utf-8")).hexdigest();
+
+def writeChunks():
+	if not inputFile or not options.s or not options.m or linearDeflection is None:
+		sys.exit(2);
+
+	Part.open(inputFile);
+	keys = [];
+	for obj in FreeCAD.ActiveDocument.Objects:
+		if hasattr(obj, "Shape") and not obj.Shape.isNull():
+			key = chunkKey(obj.Shape);
+			keys.append(key);
+			chunk = os.path.join(options.c, key + ".obj");
+			if os.path.exists(os.path.join(options.s, key + ".obj")) or os.path.exists(chunk):
+				continue;
+			MeshPart.meshFromShape(Shape=obj.Shape, LinearDeflection=linearDeflection,
+				AngularDeflection=angularDeflection, Relative=False).write(chunk);
+	with open(options.m, "w") as manifest:
+		for key in keys:
+			manifest.write(key + "\n");
 
 def explodeOBJS():
 	if not inputFile or not outputFile:
 		sys.exit(2);
 
 	Part.open(inputFile);
-	Mesh.export(FreeCAD.ActiveDocument.Objects,outputFile);
+	if linearDeflection is None:
+		Mesh.export(FreeCAD.ActiveDocument.Objects,outputFile);
+	else:
+		# One mesh object per shape, exported as one group each like the shapes themselves
+		document = FreeCAD.ActiveDocument;
+		meshes = [];
+		for obj in list(document.Objects):
+			if hasattr(obj, "Shape") and not obj.Shape.isNull():
+				feature = document.addObject("Mesh::Feature", obj.Name + "_mesh");
+				feature.Label = obj.Label;
+				feature.Mesh = MeshPart.meshFromShape(Shape=obj.Shape, LinearDeflection=linearDeflection,
+					AngularDeflection=angularDeflection, Relative=False);
+				meshes.append(feature);
+		Mesh.export(meshes, outputFile);
 
 if __name__ == "__main__":
-	explodeOBJS();
+	if options.c:
+		writeChunks();
+	else:
+		explodeOBJS();
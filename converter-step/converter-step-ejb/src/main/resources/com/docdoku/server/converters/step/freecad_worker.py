@@ -0,0 +1,118 @@
+from optparse import OptionParser;
+import hashlib;
+import os;
+import resource;
+import select;
+import sys;
+
+# Long-lived FreeCAD worker, FreeCAD is imported once and serves conversion
+# requests read on the standard input, one per line:
+#   convert TAB inputFile TAB outputFile [TAB linearDeflection TAB angularDeflection]
+#   chunks TAB inputFile TAB chunkDir TAB storeDir TAB manifestFile TAB linearDeflection TAB angularDeflection
+#     TAB keySalt
+# Chunk requests write one OBJ file per shape missing from the store, named
+# after its key, and the keys of all shapes in order in the manifest.
+# Each request is answered with one line on the standard output:
+#   ok|error TAB peak memory in kB TAB message
+# The worker exits at the end of its input or after being idle too long.
+
+parser = OptionParser();
+
+parser.add_option("-l", "--freeCadLibPath", dest="l", help ="");
+parser.add_option("-t", "--idleTimeout", dest="t", type="int", default=300, help ="");
+
+(options, args) = parser.parse_args();
+
+sys.path.append(options.l);
+
+# FreeCAD writes on the standard output, keep the original one for the replies
+protocol = os.fdopen(os.dup(1), "w");
+os.dup2(2, 1);
+
+import FreeCAD;
+import Part, Mesh, MeshPart;
+
+def reply(status, message):
+	memory = resource.getrusage(resource.RUSAGE_SELF).ru_maxrss;
+	message = message.replace("\t", " ").replace("\r", " ").replace("\n", " ");
+	protocol.write("%s\t%d\t%s\n" % (status, memory, message));
+	protocol.flush();
+
+def convert(inputFile, outputFile, linearDeflection, angularDeflection):
+	Part.open(inputFile);
+	document = FreeCAD.ActiveDocument;
+	try:
+		if linearDeflection is None:
+			Mesh.export(document.Objects, outputFile);
+		else:
+			# One mesh object per shape, exported as one group each like the shapes themselves
+			meshes = [];
+			for obj in list(document.Objects):
+				if hasattr(obj, "Shape") and not obj.Shape.isNull():
+					feature = document.addObject("Mesh::Feature", obj.Name + "_mesh");
+					feature.Label = obj.Label;
+					feature.Mesh = MeshPart.meshFromShape(Shape=obj.Shape, LinearDeflection=linearDeflection,
+						AngularDeflection=angularDeflection, Relative=False);
+					meshes.append(feature);
+			Mesh.export(meshes, outputFile);
+	finally:
+		# Release the shapes before the next job
+		FreeCAD.closeDocument(document.Name);
+
+def chunkKey(shape, salt):
+	# Same keys as IncrementalAssembly.chunkKey with the salt as settings
+	body = hashlib.sha256(shape.exportBrepToString().encode("utf-8")).hexdigest();
+	return hashlib.sha256((body + "\n" + salt).encode("utf-8")).hexdigest();
+
+def writeChunks(inputFile, chunkDir, storeDir, manifestFile, linearDeflection, angularDeflection, salt):
+	Part.open(inputFile);
+	document = FreeCAD.ActiveDocument;
+	try:
+		keys = [];
+		for obj in document.Objects:
+			if hasattr(obj, "Shape") and not obj.Shape.isNull():
+				key = chunkKey(obj.Shape, salt);
+				keys.append(key);
+				chunk = os.path.join(chunkDir, key + ".obj");
+				if os.path.exists(os.path.join(storeDir, key + ".obj")) or os.path.exists(chunk):
+					continue;
+				MeshPart.meshFromShape(Shape=obj.Shape, LinearDeflection=linearDeflection,
+					AngularDeflection=angularDeflection, Relative=False).write(chunk);
+		with open(manifestFile, "w") as manifest:
+			for key in keys:
+				manifest.write(key + "\n");
+	finally:
+		FreeCAD.closeDocument(document.Name);
+
+def serve():
+	reply("ready", "");
+	while True:
+		readable, writable, failed = select.select([sys.stdin], [], [], options.t);
+		if not readable:
+			return;
+		line = sys.stdin.readline();
+		if not line:
+			return;
+		request = line.rstrip("\r\n").split("\t");
+		if len(request) == 8 and request[0] == "chunks":
+			try:
+				writeChunks(request[1], request[2], request[3], request[4], float(request[5]), float(request[6]),
+					request[7]);
+				reply("ok", request[4]);
+			except Exception as e:
+				reply("error", "%s: %s" % (type(e).__name__, e));
+			continue;
+		if len(request) not in (3, 5) or request[0] != "convert":
+			reply("error", "Unknown request " + line);
+			continue;
+		try:
+			if len(request) == 5:
+				convert(request[1], request[2], float(request[3]), float(request[4]));
+			else:
+				convert(request[1], request[2], None, None);
+			reply("ok", request[2]);
+		except Exception as e:
+			reply("error", "%s: %s" % (type(e).__name__, e));
+
+if __name__ == "__main__":
+	serve();